@@ -0,0 +1,212 @@
+/*
+ * ByteBufferOutputDataStream.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.nio.ByteBuffer;
+
+import java.util.Enumeration;
+
+import org.beepcore.beep.util.BufferSegment;
+
+
+/**
+ * <code>ByteBufferOutputDataStream</code> represents a BEEP message's
+ * payload held in one or more <code>ByteBuffer</code>s.  Direct,
+ * memory-mapped and read-only buffers are sent without first being copied
+ * onto the heap when the transport supports gathering writes.
+ * <p>
+ * The bytes between each buffer's position and limit are sent.  The
+ * buffers' positions are not changed, but their contents must not be
+ * modified until the message has been sent.
+ * <p>
+ * <b>Note that this implementation is not synchronized.</b> If
+ * multiple threads access a <code>ByteBufferOutputDataStream</code>
+ * concurrently, data may be inconsistent or lost.
+ *
+ * @see org.beepcore.beep.core.OutputDataStream
+ */
+public class ByteBufferOutputDataStream extends OutputDataStream {
+
+    /**
+     * Creates a <code>ByteBufferOutputDataStream</code> from a
+     * <code>ByteBuffer</code> with a content type of
+     * <code>DEFAULT_CONTENT_TYPE</code> and a transfer encoding of
+     * <code>DEFAULT_CONTENT_TRANSFER_ENCODING</code>.
+     *
+     * @param data A <code>ByteBuffer</code> representing a message's
+     *             payload.
+     */
+    public ByteBufferOutputDataStream(ByteBuffer data)
+    {
+        this(new MimeHeaders(), new ByteBuffer[] { data });
+    }
+
+    /**
+     * Creates a <code>ByteBufferOutputDataStream</code> from a
+     * <code>ByteBuffer</code> with a specified content type and a transfer
+     * encoding of <code>DEFAULT_CONTENT_TRANSFER_ENCODING</code>.
+     *
+     * @param contentType Content type of <code>data</code>.
+     * @param data A <code>ByteBuffer</code> representing a message's
+     *             payload.
+     */
+    public ByteBufferOutputDataStream(String contentType, ByteBuffer data)
+    {
+        this(new MimeHeaders(contentType), new ByteBuffer[] { data });
+    }
+
+    /**
+     * Creates a <code>ByteBufferOutputDataStream</code> from a
+     * <code>ByteBuffer</code> with a specified content type and a
+     * specified transfer encoding.
+     *
+     * @param contentType Content type of <code>data</code>.
+     * @param transferEncoding Transfer encoding type of <code>data</code>.
+     * @param data A <code>ByteBuffer</code> representing a message's
+     *             payload.
+     */
+    public ByteBufferOutputDataStream(String contentType,
+                                      String transferEncoding,
+                                      ByteBuffer data)
+    {
+        this(new MimeHeaders(contentType, transferEncoding),
+             new ByteBuffer[] { data });
+    }
+
+    /**
+     * Creates a <code>ByteBufferOutputDataStream</code> from the
+     * concatenation of <code>data</code> with the specified MIME headers.
+     *
+     * @param headers MIME headers to be prepended to the data.
+     * @param data <code>ByteBuffer</code>s representing a message's
+     *             payload.
+     */
+    public ByteBufferOutputDataStream(MimeHeaders headers, ByteBuffer[] data)
+    {
+        super(headers);
+
+        for (int i = 0; i < data.length; ++i) {
+            this.add(new BufferSegment(data[i]));
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if no more bytes will be added to those
+     * currently available, if any, on this stream.  Returns
+     * <code>false</code> if more bytes are expected.
+     */
+    public boolean isComplete()
+    {
+        return true;
+    }
+
+    /**
+     * Returns the value of the MIME entity header <code>Content-Type</code>.
+     */
+    public String getContentType() throws BEEPException
+    {
+        return this.mimeHeaders.getContentType();
+    }
+
+    /**
+     * Sets the content type of a <code>DataStream</code>.
+     *
+     * @param contentType
+     */
+    public void setContentType(String contentType)
+    {
+        this.mimeHeaders.setContentType(contentType);
+    }
+
+    /**
+     * Returns the value of the MIME entity header
+     * <code>Content-Transfer-Encoding</code>.
+     */
+    public String getTransferEncoding() throws BEEPException
+    {
+        return this.mimeHeaders.getTransferEncoding();
+    }
+
+    /**
+     * Sets the content transfer encoding of a <code>DataStream</code>
+     *
+     * @param transferEncoding
+     */
+    public void setTransferEncoding(String transferEncoding)
+    {
+        this.mimeHeaders.setTransferEncoding(transferEncoding);
+    }
+
+    /**
+     * Returns an <code>Enumeration</code> of all the names of the MIME entity
+     * headers in this data stream.
+     *
+     * @return An <code>Enumeration</code> of all the MIME entity header
+     * names.
+     *
+     * @throws BEEPException
+     */
+    public Enumeration getHeaderNames() throws BEEPException
+    {
+        return this.mimeHeaders.getHeaderNames();
+    }
+
+    /**
+     * Retrieves the correspoding <code>value</code> to a given a MIME entity
+     * header <code>name</code>.
+     *
+     * @param name Name of the MIME entity header.
+     * @return The <code>value</code> of the MIME entity header.
+     *
+     * @throws BEEPException
+     */
+    public String getHeaderValue(String name) throws BEEPException
+    {
+        return this.mimeHeaders.getHeaderValue(name);
+    }
+
+    /**
+     * Adds a MIME entity header to this data stream.
+     *
+     * @param name  Name of the MIME enitity header.
+     * @param value Value of the MIME entity header.
+     */
+    public void setHeaderValue(String name, String value)
+    {
+        this.mimeHeaders.setHeader(name, value);
+    }
+
+    /**
+     * Removes the <code>name</code> and <code>value</code> of a MIME entity
+     * header from the data stream.  Returns <code>true</code> if the
+     * <code>name</code> was successfully removed.
+     *
+     * @param name Name of the header to be removed from the data stream.
+     *
+     * @return Returns <code>true</code> if header was removed.  Otherwise,
+     * returns <code>false</code>.
+     */
+    public boolean removeHeader(String name)
+    {
+        return this.mimeHeaders.removeHeader(name);
+    }
+}
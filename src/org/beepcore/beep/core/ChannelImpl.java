@@ -41,14 +41,19 @@ package org.beepcore.beep.core;
 
 import java.util.*;
 
-import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.beepcore.beep.util.BufferSegment;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * ChannelImpl is a conduit for a certain kind of traffic over a session,
@@ -61,14 +66,14 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @version $Revision: 1.12 $, $Date: 2006/02/25 17:48:37 $
  *
  */
-class ChannelImpl implements Channel, Runnable {
+class ChannelImpl implements ExtendedChannel, Runnable {
 
     // class variables
+    private static final int NO_PREVIOUS_FRAME = -1;
+
     private static final BufferSegment zeroLengthSegment =
         new BufferSegment(new byte[0]);
 
-    private static final PooledExecutor callbackQueue =
-        new PooledExecutor();
 
     /** @todo check this */
 
@@ -90,6 +95,9 @@ class ChannelImpl implements Channel, Runnable {
     /** channel number on the session */
     private String number;
 
+    /** <code>number</code> parsed, used for the session's channel table */
+    private int numberValue;
+
     /** Used to pass data sent on the Start Channel request */
     private String startData;
 
@@ -99,49 +107,154 @@ class ChannelImpl implements Channel, Runnable {
     /** number of last message sent */
     private int lastMessageSent;
 
-    /** sequence number for messages sent */
-    private long sentSequence;
+    /** messages waiting for replies, replied to in order */
+    private RingQueue sentMSGQueue;
 
-    /** sequence for messages received */
-    private long recvSequence;
+    /** MSG we've received by awaiting proceesing of a former MSG */
+    private RingQueue recvMSGQueue;
 
-    /** messages waiting for replies */
-    private List sentMSGQueue;
+    /** the messages in <code>recvMSGQueue</code> by msgno */
+    private IntMap recvMSGNumbers;
 
-    /** MSG we've received by awaiting proceesing of a former MSG */
-    private LinkedList recvMSGQueue;
+    /**
+     * MSGs sent or being sent that wait for their replies, guarded by
+     * <code>outstandingLock</code>
+     */
+    private int outstandingMSGs = 0;
+
+    /**
+     * guards the outstanding MSG count, a lock rather than a monitor so
+     * a sender waiting for a slot does not pin a virtual thread
+     */
+    private final ReentrantLock outstandingLock = new ReentrantLock();
+    private final Condition outstandingSlotFreed =
+        outstandingLock.newCondition();
+
+    /**
+     * serializes the frames sent on this channel, held while writing to
+     * the session
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    /** most MSGs waiting for replies, 0 for no limit */
+    private int outstandingMSGLimit = 0;
+
+    /** wait instead of failing when <code>outstandingMSGLimit</code> is reached */
+    private boolean blockOnOutstandingMSGLimit = true;
+
+    /** runs the handlers and listeners, the session's if <code>null</code> */
+    private volatile Dispatcher dispatcher = null;
+
+    /**
+     * the <code>ReplyListener</code>s are called on this executor, on the
+     * dispatcher if <code>null</code>
+     */
+    private volatile Executor replyExecutor = null;
+
+    /**
+     * replies waiting to be passed to their <code>ReplyListener</code>s,
+     * the listener followed by the message
+     */
+    private final RingQueue pendingReplies = new RingQueue();
+
+    /** <code>replyDelivery</code> is running or has been submitted */
+    private boolean replyDeliveryScheduled = false;
+
+    /** calls the listeners of <code>pendingReplies</code> in order */
+    private final Runnable replyDelivery = new Runnable() {
+            public void run() {
+                deliverPendingReplies();
+            }
+        };
+
+    /** sends the messages the peer's window held back */
+    private final Runnable queuedMessagesSender = new Runnable() {
+            public void run() {
+                try {
+                    sendQueuedMessages();
+                } catch (BEEPException e) {
+                    log.debug("Unable to send queued messages", e);
+                }
+            }
+        };
 
     /** messages queued to be sent */
     private LinkedList pendingSendMessages;
 
+    /** streams of received messages not yet read to their end or closed */
+    private final HashSet receivedStreams = new HashSet();
+
     /** session this channel sends through. */
     SessionImpl session;
 
-    /** message that we are receiving frames */
-    private LinkedList recvReplyQueue;
+    /** ANS messages that we are receiving frames for, by ansno */
+    private IntMap recvANSTable;
 
-    private int state = STATE_INITIALIZED;
+    /**
+     * RPY or ERR message that we are receiving frames for, guarded by
+     * <code>recvANSTable</code>
+     */
+    private MessageImpl recvReply;
 
-    private Frame previousFrame;
+    private volatile int state = STATE_INITIALIZED;
 
-    /** size of the peer's receive buffer */
-    private AtomicInteger peerWindowSize;
+    /**
+     * message type and msgno of the previous frame received if it was not
+     * the last frame of its message
+     */
+    private int previousMessageType = NO_PREVIOUS_FRAME;
+    private int previousMsgno;
+
+    /*
+     * The flow control state is kept per channel, off the session and
+     * channel monitors.  A sequence number and the window count that must
+     * change with it are packed into one long, see pack(), and updated
+     * with compareAndSet.
+     */
 
-    /** size of the receive buffer */
-    private AtomicInteger recvWindowSize;
+    /** sequence number for messages sent and size of the peer's window */
+    private final AtomicLong sendState =
+        new AtomicLong(pack(0, DEFAULT_WINDOW_SIZE));
 
-    /** amount of the buffer in use */
-    private AtomicInteger recvWindowUsed;
+    /**
+     * sequence number for messages received and the amount of the
+     * receive buffer in use as last advertised to the peer
+     */
+    private final AtomicLong recvState = new AtomicLong(pack(0, 0));
 
+    /** size of the receive buffer */
+    private AtomicInteger recvWindowSize;
 
+    /** bytes consumed since the last window update */
     private AtomicInteger recvWindowFreed;
 
+    /**
+     * serializes the window updates sent for this channel, never waited
+     * for by the session's reader, see sendDueWindowUpdate()
+     */
+    private final ReentrantLock windowUpdateLock = new ReentrantLock();
+
     private Object applicationData = null;
 
     // tuningProfile indicates that the profile for this channel will
     // request a tuning reset
     private boolean tuningProfile = false;
 
+    // maximum frame payload size, 0 to use the session's; the frame
+    // size fields are written holding sendLock
+    private volatile int maxFrameSize = 0;
+
+    private volatile int frameSizeMode = FRAME_SIZE_FIXED;
+
+    // current frame size in the adaptive mode, 0 until the first frame
+    private volatile int adaptiveFrameSize = 0;
+
+    // share of the connection when several channels are sending
+    private volatile int sendWeight = 1;
+
+    // frames waiting in the session's OutboundQueue, guarded by the queue
+    OutboundQueue.ChannelQueue outboundFrames = null;
+
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
@@ -156,21 +269,19 @@ class ChannelImpl implements Channel, Runnable {
         this.profile = profile;
         this.encoding = Constants.ENCODING_DEFAULT;
         this.number = number;
+        this.numberValue = Integer.parseInt(number);
         this.setRequestHandler(handler, tuningReset);
         this.session = session;
-        sentSequence = 0;
-        recvSequence = 0;
         lastMessageSent = 1;
 
         pendingSendMessages = new LinkedList();
-        sentMSGQueue = Collections.synchronizedList(new LinkedList());
-        recvMSGQueue = new LinkedList();
-        recvReplyQueue = new LinkedList();
+        sentMSGQueue = new RingQueue();
+        recvMSGQueue = new RingQueue();
+        recvMSGNumbers = new IntMap();
+        recvANSTable = new IntMap();
         state = STATE_INITIALIZED;
-        recvWindowUsed = new AtomicInteger(0);
         recvWindowFreed = new AtomicInteger(0);
         recvWindowSize = new AtomicInteger(DEFAULT_WINDOW_SIZE);
-        peerWindowSize = new AtomicInteger(DEFAULT_WINDOW_SIZE);
     }
 
     ChannelImpl(String profile, String number, SessionImpl session)
@@ -187,10 +298,14 @@ class ChannelImpl implements Channel, Runnable {
 
         // Add a MSG to the SentMSGQueue to fake channel into accepting the
         // greeting which comes in an unsolicited RPY.
-        channel.sentMSGQueue.add(new MessageStatus(channel,
-                                                   Message.MESSAGE_TYPE_MSG, 0,
-                                                   null, reply));
-        channel.recvMSGQueue.add(new MessageMSGImpl(channel, 0, null));
+        channel.sentMSGQueue.addLast(new MessageStatus(channel,
+                                                       Message.MESSAGE_TYPE_MSG,
+                                                       0, null, reply));
+        channel.outstandingMSGs = 1;
+
+        // the session's state must change with the replies it reads
+        channel.replyExecutor = INLINE_REPLY_EXECUTOR;
+        channel.addToMSGQueue(new MessageMSGImpl(channel, 0, null));
 
         channel.state = STATE_ACTIVE;
 
@@ -236,11 +351,113 @@ class ChannelImpl implements Channel, Runnable {
     /**
      * Returns the receive buffer size for this channel.
      */
-    public synchronized int getBufferSize()
+    public int getBufferSize()
     {
         return recvWindowSize.intValue();
     }
 
+    public int getMaxFrameSize()
+    {
+        return maxFrameSize;
+    }
+
+    public void setMaxFrameSize(int size)
+    {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid frame size " + size);
+        }
+
+        sendLock.lock();
+        try {
+            maxFrameSize = size;
+            adaptiveFrameSize = 0;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    public int getFrameSizeMode()
+    {
+        return frameSizeMode;
+    }
+
+    public void setFrameSizeMode(int mode)
+    {
+        if (mode != FRAME_SIZE_FIXED && mode != FRAME_SIZE_ADAPTIVE) {
+            throw new IllegalArgumentException("Invalid frame size mode " +
+                                               mode);
+        }
+
+        sendLock.lock();
+        try {
+            frameSizeMode = mode;
+            adaptiveFrameSize = 0;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    public Dispatcher getDispatcher()
+    {
+        Dispatcher d = dispatcher;
+
+        return (d == null ? session.getDispatcher() : d);
+    }
+
+    public void setDispatcher(Dispatcher dispatcher)
+    {
+        this.dispatcher = dispatcher;
+    }
+
+    public Executor getReplyExecutor()
+    {
+        return replyExecutor;
+    }
+
+    public void setReplyExecutor(Executor executor)
+    {
+        replyExecutor = executor;
+    }
+
+    public int getOutstandingMSGLimit()
+    {
+        return outstandingMSGLimit;
+    }
+
+    public void setOutstandingMSGLimit(int limit, boolean block)
+    {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Invalid outstanding MSG " +
+                                               "limit " + limit);
+        }
+
+        outstandingLock.lock();
+        try {
+            outstandingMSGLimit = limit;
+            blockOnOutstandingMSGLimit = block;
+
+            // a raised limit may let waiting senders through
+            outstandingSlotFreed.signalAll();
+        } finally {
+            outstandingLock.unlock();
+        }
+    }
+
+    public int getSendWeight()
+    {
+        return sendWeight;
+    }
+
+    public void setSendWeight(int weight)
+    {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Invalid send weight " +
+                                               weight);
+        }
+
+        sendWeight = weight;
+    }
+
     /**
      * Returns the encoding used on this <code>Channel</code>
      * @todo look at removing this and adding the information to getProfile()
@@ -261,7 +478,7 @@ class ChannelImpl implements Channel, Runnable {
      */
     public int getNumber()
     {
-        return Integer.parseInt(number);
+        return numberValue;
     }
 
     /**
@@ -275,14 +492,15 @@ class ChannelImpl implements Channel, Runnable {
      */
     public void setReceiveBufferSize(int size) throws BEEPException
     {
-        synchronized (this) {
+        sendLock.lock();
+        try {
             if ((state != STATE_ACTIVE) && (state != STATE_INITIALIZED)) {
                 throw new BEEPException("Channel in a bad state.");
             }
 
             // make sure we aren't setting the size less than what is currently
             // in the buffer right now.
-            if (size < recvWindowUsed.intValue()) {
+            if (size < count(recvState.get())) {
                 throw new BEEPException("New size is less than what is " +
                     "currently in use.");
             }
@@ -295,7 +513,9 @@ class ChannelImpl implements Channel, Runnable {
                           + recvWindowSize);
             }
 
-            sendWindowUpdate();
+            sendWindowUpdateNow();
+        } finally {
+            sendLock.unlock();
         }
     }
 
@@ -388,43 +608,155 @@ class ChannelImpl implements Channel, Runnable {
             }
         }
 
-        synchronized (this) {
+        // wait for a slot before taking the send lock, the reply that
+        // frees it may need the lock to update the peer's window
+        reserveOutstandingMSG();
 
-            // create a new request
-            status = new MessageStatus(this, Message.MESSAGE_TYPE_MSG,
-                                       lastMessageSent, stream, replyListener);
+        try {
+            sendLock.lock();
+            try {
 
-            // message 0 was the greeting, it was already sent, inc the counter
-            ++lastMessageSent;
+                // create a new request
+                status = new MessageStatus(this, Message.MESSAGE_TYPE_MSG,
+                                           lastMessageSent, stream,
+                                           replyListener);
 
-            // put this in the list of messages waiting
-            // may want to put an expiration or something in here so they
-            // don't just stay around taking up space.
-            // @todo it's a synchronized list, you don't have to sync
-            synchronized (sentMSGQueue) {
-                sentMSGQueue.add(status);
+                // message 0 was the greeting, it was already sent, inc the
+                // counter
+                ++lastMessageSent;
+
+                // put this in the list of messages waiting
+                // may want to put an expiration or something in here so
+                // they don't just stay around taking up space.
+                synchronized (sentMSGQueue) {
+                    sentMSGQueue.addLast(status);
+                }
+                // send it on the session
+                sendToPeer(status);
+            } finally {
+                sendLock.unlock();
             }
-            // send it on the session
-            sendToPeer(status);
+        } catch (BEEPException e) {
+            releaseOutstandingMSG();
+            throw e;
         }
 
         return status;
     }
 
+    public CompletableFuture<Message> sendMSGAsync(OutputDataStream stream)
+    {
+        return sendMSGAsync(stream, null);
+    }
+
+    public CompletableFuture<Message> sendMSGAsync(OutputDataStream stream,
+                                                   Consumer<Message> answers)
+    {
+        FutureReply reply = new FutureReply(answers);
+
+        try {
+            sendMSG(stream, reply);
+        } catch (BEEPException e) {
+            reply.getFuture().completeExceptionally(e);
+        }
+
+        return reply.getFuture();
+    }
+
+    /**
+     * Takes a slot for a MSG waiting for its reply, waiting for one if
+     * the channel's limit is reached and it blocks.
+     *
+     * @throws BEEPException if the limit is reached and the channel does
+     *                       not block, or the channel is no longer open.
+     */
+    private void reserveOutstandingMSG() throws BEEPException
+    {
+        outstandingLock.lock();
+        try {
+            while (outstandingMSGLimit > 0 &&
+                   outstandingMSGs >= outstandingMSGLimit)
+            {
+                if (blockOnOutstandingMSGLimit == false) {
+                    throw new BEEPException("Channel " + number + " has " +
+                                            outstandingMSGs +
+                                            " MSGs waiting for replies");
+                }
+
+                if (state != STATE_ACTIVE && state != STATE_TUNING) {
+                    throw new BEEPException("Channel is " + getStateString());
+                }
+
+                try {
+                    outstandingSlotFreed.await();
+                } catch (InterruptedException e) {
+                    throw new BEEPInterruptedException(e.getMessage());
+                }
+            }
+
+            ++outstandingMSGs;
+        } finally {
+            outstandingLock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a slot taken with <code>reserveOutstandingMSG</code>.
+     */
+    private void releaseOutstandingMSG()
+    {
+        outstandingLock.lock();
+        try {
+            --outstandingMSGs;
+            outstandingSlotFreed.signal();
+        } finally {
+            outstandingLock.unlock();
+        }
+    }
+
     void abort()
     {
         setState(ChannelImpl.STATE_ABORTED);
     }
 
+    /**
+     * Called by a stream created for a message received on this channel.
+     */
+    void streamOpened(InputDataStream stream)
+    {
+        synchronized (receivedStreams) {
+            receivedStreams.add(stream);
+        }
+    }
+
+    /**
+     * Called by a stream once it has been read to its end or closed.
+     */
+    void streamClosed(InputDataStream stream)
+    {
+        synchronized (receivedStreams) {
+            receivedStreams.remove(stream);
+        }
+    }
+
+    /**
+     * Called by the dispatcher if it refuses the dispatch of a MSG it
+     * held back while it was full.  The MSG would never be answered, so
+     * the session is terminated.
+     */
+    void dispatchRefused(BEEPException e)
+    {
+        log.error("Unable to dispatch message on channel " + number, e);
+
+        session.terminate("Unable to dispatch message on channel " + number);
+    }
+
     void addPiggybackedMSG(PiggybackedMSG msg) throws BEEPException
     {
-        recvMSGQueue.add(msg);
-        try {
-            callbackQueue.execute(this);
-        } catch (InterruptedException e) {
-            /** @TODO handle this better */
-            throw new BEEPException(e);
+        synchronized (recvMSGQueue) {
+            addToMSGQueue(msg);
         }
+        getDispatcher().executeRequest(this);
     }
 
     /**
@@ -486,10 +818,9 @@ class ChannelImpl implements Channel, Runnable {
 
                 if (m != null) {
                     /// Move this code to DataStream...
-                    Iterator i = frame.getPayload();
                     synchronized (m) {
-                        while (i.hasNext()) {
-                            m.getDataStream().add((BufferSegment) i.next());
+                        for (int i = 0; i < frame.getPayloadCount(); ++i) {
+                            m.getDataStream().add(frame.getPayload(i));
                         }
 
                         if (frame.isLast()) {
@@ -505,24 +836,18 @@ class ChannelImpl implements Channel, Runnable {
 
                 m.setNotified();
 
-                Iterator i = frame.getPayload();
-                while (i.hasNext()) {
-                    m.getDataStream().add((BufferSegment)i.next());
+                for (int i = 0; i < frame.getPayloadCount(); ++i) {
+                    m.getDataStream().add(frame.getPayload(i));
                 }
 
                 if (frame.isLast()) {
                     m.getDataStream().setComplete();
                 }
 
-                recvMSGQueue.addLast(m);
+                addToMSGQueue(m);
                 
                 if (recvMSGQueue.size() == 1) {
-                    try {
-                        callbackQueue.execute(this);
-                    } catch (InterruptedException e) {
-                        /** @TODO handle this better */
-                        throw new BEEPException(e);
-                    }
+                    getDispatcher().executeRequest(this);
                 }
             }
 
@@ -543,7 +868,7 @@ class ChannelImpl implements Channel, Runnable {
                 // @todo shutdown session (we think)
             }
 
-            mstatus = (MessageStatus) sentMSGQueue.get(0);
+            mstatus = (MessageStatus) sentMSGQueue.getFirst();
 
             if (mstatus.getMsgno() != frame.getMsgno()) {
 
@@ -554,7 +879,8 @@ class ChannelImpl implements Channel, Runnable {
             // ERR) to this MSG.
             if ((frame.isLast() == true)
                     && (frame.getMessageType() != Message.MESSAGE_TYPE_ANS)) {
-                sentMSGQueue.remove(0);
+                sentMSGQueue.removeFirst();
+                releaseOutstandingMSG();
             }
         }
 
@@ -567,8 +893,8 @@ class ChannelImpl implements Channel, Runnable {
         }
 
         if (frame.getMessageType() == Message.MESSAGE_TYPE_NUL) {
-            synchronized (recvReplyQueue) {
-                if (recvReplyQueue.size() != 0) {
+            synchronized (recvANSTable) {
+                if (recvANSTable.size() != 0) {
 
                     // There are ANS messages on the queue for which we
                     // haven't received the last frame.
@@ -585,61 +911,49 @@ class ChannelImpl implements Channel, Runnable {
                 log.debug("Notifying reply listener for channel " + this.getNumber() + " => " + replyListener + " for NUL message");
             }
 
-            replyListener.receiveNUL(m);
+            deliverReply(replyListener, m);
 
             return;
         }
 
-        synchronized (recvReplyQueue) {
+        synchronized (recvANSTable) {
             // is this an ANS message?
             if (frame.getMessageType() == Message.MESSAGE_TYPE_ANS) {
 
                 // see if this answer number has already come in
-                Iterator i = recvReplyQueue.iterator();
-
-                m = null;
-
-                while (i.hasNext()) {
-                    MessageImpl tmp = (MessageImpl) i.next();
-
-                    if (tmp.getAnsno() == frame.getAnsno()) {
-                        m = tmp;
-
-                        break;
-                    }
+                if (frame.isLast()) {
+                    m = (MessageImpl) recvANSTable.remove(frame.getAnsno());
+                } else {
+                    m = (MessageImpl) recvANSTable.get(frame.getAnsno());
                 }
 
                 // if no answer was found, then create a new one and
-                // add it to the queue
+                // add it to the table
                 if (m == null) {
                     m = new MessageImpl(this, frame.getMsgno(),
                                         frame.getAnsno(),
                                         new InputDataStream(this));
 
                     if (!frame.isLast()) {
-                        recvReplyQueue.add(m);
+                        recvANSTable.put(frame.getAnsno(), m);
                     }
-                } else if (frame.isLast()) {
-
-                    // remove the found ANS from the recvReplyQueue
-                    i.remove();
                 }
             } else {    // ERR or RPY
-                if (recvReplyQueue.size() == 0) {
+                if (recvReply == null) {
                     m = new MessageImpl(this, frame.getMsgno(),
                                         new InputDataStream(this),
                                         frame.getMessageType());
 
                     if (frame.isLast() == false) {
-                        recvReplyQueue.add(m);
+                        recvReply = m;
                     }
                 } else {
                     // @todo sanity check: make sure this is the
                     // right Message
-                    m = (MessageImpl) recvReplyQueue.getFirst();
+                    m = recvReply;
 
                     if (frame.isLast()) {
-                        recvReplyQueue.removeFirst();
+                        recvReply = null;
                     }
                 }
 
@@ -652,9 +966,8 @@ class ChannelImpl implements Channel, Runnable {
                 }
             }
 
-            Iterator i = frame.getPayload();
-            while (i.hasNext()) {
-                m.getDataStream().add((BufferSegment)i.next());
+            for (int i = 0; i < frame.getPayloadCount(); ++i) {
+                m.getDataStream().add(frame.getPayload(i));
             }
 
             if (frame.isLast()) {
@@ -677,12 +990,114 @@ class ChannelImpl implements Channel, Runnable {
 
         } // end sync
 
+        deliverReply(replyListener, m);
+    }
+
+    /**
+     * Passes <code>m</code> to <code>listener</code> on the channel's reply
+     * executor or dispatcher, after the replies received before it.
+     */
+    private void deliverReply(final ReplyListener listener,
+                              final MessageImpl m)
+        throws BEEPException
+    {
+        Executor executor = replyExecutor;
+
+        synchronized (pendingReplies) {
+            // inline, unless replies queued before a switch to inline
+            // are still being delivered
+            if (executor != INLINE_REPLY_EXECUTOR ||
+                replyDeliveryScheduled)
+            {
+                pendingReplies.addLast(listener);
+                pendingReplies.addLast(m);
+
+                if (replyDeliveryScheduled) {
+                    return;
+                }
+                replyDeliveryScheduled = true;
+            }
+        }
+
+        if (executor == INLINE_REPLY_EXECUTOR) {
+            session.runInline(new Runnable() {
+                    public void run() {
+                        deliverReplyInline(listener, m);
+                    }
+                });
+            return;
+        }
+
+        try {
+            if (executor == null) {
+                getDispatcher().execute(replyDelivery);
+            } else {
+                executor.execute(replyDelivery);
+            }
+        } catch (BEEPException e) {
+            synchronized (pendingReplies) {
+                replyDeliveryScheduled = false;
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            synchronized (pendingReplies) {
+                replyDeliveryScheduled = false;
+            }
+            throw new BEEPException(e);
+        }
+    }
+
+    private void deliverPendingReplies()
+    {
+        while (true) {
+            ReplyListener listener;
+            MessageImpl m;
+
+            synchronized (pendingReplies) {
+                if (pendingReplies.isEmpty()) {
+                    replyDeliveryScheduled = false;
+                    return;
+                }
+
+                listener = (ReplyListener) pendingReplies.removeFirst();
+                m = (MessageImpl) pendingReplies.removeFirst();
+            }
+
+            try {
+                callReplyListener(listener, m);
+            } catch (BEEPException e) {
+                session.terminate(e.getMessage());
+            } catch (Throwable e) {
+                log.error("Error delivering reply", e);
+                session.terminate("Uncaught exception, terminating session");
+            }
+        }
+    }
+
+    private void deliverReplyInline(ReplyListener listener, MessageImpl m)
+    {
+        try {
+            callReplyListener(listener, m);
+        } catch (BEEPException e) {
+            session.terminate(e.getMessage());
+        } catch (Throwable e) {
+            log.error("Error delivering reply", e);
+            session.terminate("Uncaught exception, terminating session");
+        }
+    }
+
+    private static void callReplyListener(ReplyListener listener,
+                                          MessageImpl m)
+        throws BEEPException
+    {
         if (m.messageType == Message.MESSAGE_TYPE_RPY) {
-            replyListener.receiveRPY(m);
+            listener.receiveRPY(m);
         } else if (m.messageType == Message.MESSAGE_TYPE_ERR) {
-            replyListener.receiveERR(m);
+            listener.receiveERR(m);
         } else if (m.messageType == Message.MESSAGE_TYPE_ANS) {
-            replyListener.receiveANS(m);
+            listener.receiveANS(m);
+        } else if (m.messageType == Message.MESSAGE_TYPE_NUL) {
+            listener.receiveNUL(m);
         }
     }
 
@@ -704,30 +1119,20 @@ class ChannelImpl implements Channel, Runnable {
 
         validateFrame(frame);
 
-	synchronized(session) {
-
-		recvSequence += frame.getSize();
-		if (recvSequence > frame.MAX_SEQUENCE_NUMBER)
-		    recvSequence = (recvSequence - 1) % frame.MAX_SEQUENCE_NUMBER;
+        consumeReceiveBufferBytes(frame.getSize());
 
-		//log.debug("recvWindowUsed was " + recvWindowUsed + " and we are about to add " + frame.getSize() + " to it.");
-
-		// subtract this from the amount available in the buffer
-		recvWindowUsed.getAndAdd(frame.getSize());
-
-		// make sure we didn't overflow the buffer
-		if (recvWindowUsed.intValue() > recvWindowSize.intValue()) {
-		    throw new BEEPException("Channel window overflow");
-		}
-
-	}
+        int messageType = frame.getMessageType();
+        boolean last = frame.isLast();
 
         receiveFrame(frame);
 
-        if (frame.getMessageType() == Message.MESSAGE_TYPE_MSG) {
-            return !(frame.isLast() == true && tuningProfile == true);
+        // the payload now belongs to the message's InputDataStream
+        frame.release();
+
+        if (messageType == Message.MESSAGE_TYPE_MSG) {
+            return !(last == true && tuningProfile == true);
         } else {
-            return !(frame.isLast() == true && getState() == STATE_TUNING);
+            return !(last == true && getState() == STATE_TUNING);
         }
     }
 
@@ -755,9 +1160,10 @@ class ChannelImpl implements Channel, Runnable {
         sendQueuedMessages();
     }
 
-    synchronized void sendQueuedMessages() throws BEEPException
+    void sendQueuedMessages() throws BEEPException
     {
-        synchronized(this) {
+        sendLock.lock();
+        try {
             while (true) {
                 MessageStatus status;
 
@@ -769,7 +1175,7 @@ class ChannelImpl implements Channel, Runnable {
                 }
 
                 if (this.recvWindowFreed.intValue() != 0) {
-                    sendWindowUpdate();
+                    sendWindowUpdateNow();
                 }
                 
                 sendFrames(status);
@@ -783,83 +1189,99 @@ class ChannelImpl implements Channel, Runnable {
                     return;
                 }
             }
+        } finally {
+            sendLock.unlock();
         }
     }
 
+    /**
+     * Sends as much of <code>status</code> as the peer's window allows.
+     * Called holding <code>sendLock</code>.
+     */
     private void sendFrames(MessageStatus status)
         throws BEEPException
     {
-        int sessionBufferSize = session.getMaxFrameSize();
         OutputDataStream ds = status.getMessageData();
 
         do {
-            synchronized (this) {
-                Frame frame;
-                // create a frame
-                frame = new Frame(status.getMessageType(),
-                                  this, status.getMsgno(),
-                                  false,
-                                  sentSequence, 0, status.getAnsno());
-
-                // make sure the other peer can accept something
-                if (peerWindowSize.intValue() == 0) {
-                    return;
-                }
+            // make sure the other peer can accept something
+            long current = sendState.get();
+            int window = count(current);
 
-                int maxToSend =
-                    Math.min(sessionBufferSize, peerWindowSize.intValue());
+            if (window <= 0) {
+                return;
+            }
 
-		//log.debug("Calculated maxToSend = " + maxToSend);
+            Frame frame;
+            // create a frame
+            frame = new Frame(status.getMessageType(), this,
+                              status.getMsgno(), false, sequence(current), 0,
+                              status.getAnsno());
+
+            int maxToSend = Math.min(getSendFrameSize(), window);
 
-                int size = 0;
-                while (size < maxToSend) {
-                    if (ds.availableSegment() == false) {
-                        if (size == 0) {
-                            if (ds.isComplete() == false) {
-                                // More BufferSegments are expected...
-                                return;
-                            }
+		//log.debug("Calculated maxToSend = " + maxToSend);
 
-                            frame.addPayload(zeroLengthSegment);
+            int size = 0;
+            while (size < maxToSend) {
+                if (ds.availableSegment() == false) {
+                    if (size == 0) {
+                        if (ds.isComplete() == false) {
+                            // More BufferSegments are expected...
+                            frame.release();
+                            return;
                         }
 
-                        // Send what we have
-                        break;
+                        frame.addPayload(zeroLengthSegment);
                     }
 
-                    BufferSegment b = ds.getNextSegment(maxToSend - size);
+                    // Send what we have
+                    break;
+                }
 
-                    frame.addPayload(b);
+                BufferSegment b = ds.getNextSegment(maxToSend - size);
 
-                    size += b.getLength();
-                }
-		//log.debug("Frame: " + sentSequence + " Actually sending: " + size);
+                frame.addPayload(b);
 
-                if (ds.isComplete() && ds.availableSegment() == false) {
-                    frame.setLast();
-                }
+                size += b.getLength();
+            }
 
-                try {
-                    session.sendFrame(frame);
-                } catch (BEEPException e) {
-                    /*
-                     * @todo we should do something more than just log
-                     * the error (e.g. close the channel or session).
-                     */
-                    log.error("sendFrames", e);
-                    status.setMessageStatus(MessageStatus.MESSAGE_STATUS_NOT_SENT);
-
-                    throw e;
-                }
+            if (ds.isComplete() && ds.availableSegment() == false) {
+                frame.setLast();
+            }
 
-                // update the sequence and peer window size
-                //sentSequence += size;
-                if ((sentSequence + size) > Frame.MAX_SEQUENCE_NUMBER) {
-                	sentSequence = (sentSequence + size - 1) % Frame.MAX_SEQUENCE_NUMBER;
-		} else {
-			sentSequence = sentSequence + size;
-		}
-                peerWindowSize.getAndAdd(-1 * size);
+            if (frameSizeMode == FRAME_SIZE_ADAPTIVE) {
+                adaptFrameSize(size, maxToSend, window,
+                               ds.availableSegment());
+            }
+
+            try {
+                session.enqueueFrame(frame);
+            } catch (BEEPException e) {
+                /*
+                 * @todo we should do something more than just log
+                 * the error (e.g. close the channel or session).
+                 */
+                log.error("sendFrames", e);
+                status.setMessageStatus(MessageStatus.MESSAGE_STATUS_NOT_SENT);
+
+                throw e;
+            }
+
+            // update the sequence and peer window size, a window
+            // update may have arrived meanwhile
+            while (true) {
+                current = sendState.get();
+
+                long seq = (sequence(current) + size) &
+                    Frame.MAX_SEQUENCE_NUMBER;
+
+                if (sendState.compareAndSet(current,
+                                            pack(seq,
+                                                 count(current) - size)))
+                {
+                    break;
+                }
             }
         } while (ds.availableSegment() == true || ds.isComplete() == false);
 
@@ -874,6 +1296,45 @@ class ChannelImpl implements Channel, Runnable {
         }
     }
 
+    /**
+     * Returns the largest payload to put in the next frame, before the
+     * peer's window is taken into account.  It may be called without
+     * <code>sendLock</code>, the fields are read once.
+     */
+    int getSendFrameSize() throws BEEPException
+    {
+        int max = maxFrameSize;
+        int base = (max > 0 ? max : session.getFrameSize());
+        int adaptive = adaptiveFrameSize;
+
+        if (frameSizeMode == FRAME_SIZE_ADAPTIVE && adaptive > base) {
+            return adaptive;
+        }
+
+        return base;
+    }
+
+    /**
+     * Doubles the frame size, up to the window the peer had available,
+     * when a full frame was sent and more data is ready; otherwise halves
+     * it back toward the maximum frame size.  Called holding
+     * <code>sendLock</code>.
+     */
+    private void adaptFrameSize(int sent, int maxToSend, int window,
+                                boolean moreAvailable)
+        throws BEEPException
+    {
+        int current = getSendFrameSize();
+
+        if (sent == maxToSend && moreAvailable) {
+            if (current < window) {
+                adaptiveFrameSize = (int) Math.min(2L * current, window);
+            }
+        } else {
+            adaptiveFrameSize = current / 2;
+        }
+    }
+
     public void removeFirstPiggyback() throws BEEPException {
         synchronized(recvMSGQueue) {
             MessageMSG m = (MessageMSGImpl) recvMSGQueue.getFirst();
@@ -886,7 +1347,7 @@ class ChannelImpl implements Channel, Runnable {
 	private void removeFirstFromMSGQueue() throws BEEPException {
 		MessageMSGImpl m;
 		synchronized (recvMSGQueue) {
-		    Object removeFirst = recvMSGQueue.removeFirst();
+		    removeFirstFromMSGNumbers();
 
 		    if (recvMSGQueue.size() != 0) {
 		        m = (MessageMSGImpl) recvMSGQueue.getFirst();
@@ -899,27 +1360,145 @@ class ChannelImpl implements Channel, Runnable {
 		}
 
 		if (m != null) {
-		    try {
-		        callbackQueue.execute(this);
-		    } catch (InterruptedException e) {
-		        /** @TODO handle this better */
-		        throw new BEEPException(e);
-		    }
+		    getDispatcher().executeRequest(this);
 		}
 	}
 
-    private void sendWindowUpdate() throws BEEPException
+    /**
+     * Adds <code>m</code> to <code>recvMSGQueue</code> and indexes it by
+     * msgno.  The caller must hold the queue's monitor.
+     */
+    private void addToMSGQueue(MessageMSGImpl m)
     {
-	synchronized(session) {
-		if (session.updateMyReceiveBufferSize(this, recvSequence,
-						      recvWindowSize.intValue() -
-						      (recvWindowUsed.intValue() -
-						       recvWindowFreed.intValue())))
-		{
-		    recvWindowUsed.getAndAdd(-1 * recvWindowFreed.intValue());
-		    recvWindowFreed.set(0);
-		}
-	}
+        recvMSGQueue.addLast(m);
+        recvMSGNumbers.put(m.getMsgno(), m);
+    }
+
+    /**
+     * Removes the first message of <code>recvMSGQueue</code> and its
+     * index entry.  The caller must hold the queue's monitor.
+     */
+    private void removeFirstFromMSGNumbers()
+    {
+        MessageMSGImpl m = (MessageMSGImpl) recvMSGQueue.removeFirst();
+
+        // a later message with the same msgno may have replaced the entry
+        if (recvMSGNumbers.get(m.getMsgno()) == m) {
+            recvMSGNumbers.remove(m.getMsgno());
+        }
+    }
+
+    /**
+     * Advances the receive sequence number past a frame of
+     * <code>size</code> bytes and counts them as used.
+     *
+     * @throws BEEPException if the frame overflows the receive buffer.
+     */
+    void consumeReceiveBufferBytes(int size) throws BEEPException
+    {
+        while (true) {
+            long current = recvState.get();
+            int used = count(current) + size;
+
+            // make sure we didn't overflow the buffer
+            if (used > recvWindowSize.intValue()) {
+                throw new BEEPException("Channel window overflow");
+            }
+
+            long seq = (sequence(current) + size) & Frame.MAX_SEQUENCE_NUMBER;
+
+            if (recvState.compareAndSet(current, pack(seq, used))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Advertises the bytes freed so far, then sends any update that came
+     * due while <code>windowUpdateLock</code> was held.
+     */
+    private void sendWindowUpdateNow() throws BEEPException
+    {
+        windowUpdateLock.lock();
+        try {
+            sendWindowUpdate();
+        } finally {
+            windowUpdateLock.unlock();
+        }
+
+        sendDueWindowUpdate();
+    }
+
+    /**
+     * Advertises the freed bytes once they are half the window.  The
+     * session's reader calls this when it frees bytes, so it never waits
+     * for <code>windowUpdateLock</code>: the thread holding it may be
+     * waiting for the reader to write what the socket did not take.  The
+     * holder checks again once it has released the lock.
+     */
+    private void sendDueWindowUpdate()
+    {
+        while (state == ChannelImpl.STATE_ACTIVE &&
+               recvWindowFreed.intValue() >= recvWindowSize.intValue() / 2)
+        {
+            if (windowUpdateLock.tryLock() == false) {
+                return;
+            }
+
+            try {
+                // another thread may have sent the update meanwhile
+                if (recvWindowFreed.intValue() >=
+                    recvWindowSize.intValue() / 2 &&
+                    sendWindowUpdate() == false)
+                {
+                    return;
+                }
+            } catch (BEEPException e) {
+
+                // do nothing
+                log.fatal("Error updating receive buffer size", e);
+                return;
+            } finally {
+                windowUpdateLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Advertises the bytes freed since the last update to the peer.  The
+     * caller must hold <code>windowUpdateLock</code> so the updates are
+     * sent in order.
+     *
+     * @return <code>false</code> if the session did not send the update.
+     */
+    private boolean sendWindowUpdate() throws BEEPException
+    {
+        int freed = recvWindowFreed.get();
+        long current;
+        long updated;
+
+        // take the freed bytes off the used count, atomically with reading
+        // the sequence number the update acknowledges
+        do {
+            current = recvState.get();
+            updated = pack(sequence(current), count(current) - freed);
+        } while (recvState.compareAndSet(current, updated) == false);
+
+        if (session.updateMyReceiveBufferSize(this, sequence(updated),
+                                              recvWindowSize.intValue() -
+                                              count(updated)))
+        {
+            recvWindowFreed.getAndAdd(-freed);
+            return true;
+        }
+
+        // not sent, the peer still counts the bytes as used
+        do {
+            current = recvState.get();
+            updated = pack(sequence(current), count(current) + freed);
+        } while (recvState.compareAndSet(current, updated) == false);
+
+        return false;
     }
 
     /**
@@ -937,6 +1516,38 @@ class ChannelImpl implements Channel, Runnable {
 
         this.state = newState;
 
+        // senders waiting for a reply slot give up on a closed channel
+        outstandingLock.lock();
+        try {
+            outstandingSlotFreed.signalAll();
+        } finally {
+            outstandingLock.unlock();
+        }
+
+        // and so do producers waiting for the peer's window
+        if (newState == STATE_CLOSED || newState == STATE_ABORTED) {
+            Object[] pending;
+
+            synchronized (pendingSendMessages) {
+                pending = pendingSendMessages.toArray();
+            }
+            for (int i = 0; i < pending.length; ++i) {
+                ((MessageStatus) pending[i]).getMessageData().channelClosed();
+            }
+
+            // release what the messages received hold
+            Object[] received;
+
+            synchronized (receivedStreams) {
+                received = receivedStreams.toArray();
+                receivedStreams.clear();
+            }
+            for (int i = 0; i < received.length; ++i) {
+                ((InputDataStream) received[i])
+                    .channelClosed(newState == STATE_ABORTED);
+            }
+        }
+
         /**
          * @todo state transition rules and error checking
          */
@@ -958,101 +1569,111 @@ class ChannelImpl implements Channel, Runnable {
         return this.profile;
     }
 
-    synchronized void updatePeerReceiveBufferSize(long lastSeq, int size)
+    void updatePeerReceiveBufferSize(long lastSeq, int size)
     {
-        synchronized(this){
-            int previousPeerWindowSize = peerWindowSize.intValue();
+        long current;
+        long updated;
+
+        do {
+            current = sendState.get();
+
+            long sentSequence = sequence(current);
+            int window;
 
             // Handle case where sentSequence wraps around Frame.MAX_SEQUENCE_NUMBER
             if (sentSequence >= lastSeq) {
-                peerWindowSize.set(size - (int) (sentSequence - lastSeq));
+                window = size - (int) (sentSequence - lastSeq);
             } else {
-                peerWindowSize.set(size - (int) (Frame.MAX_SEQUENCE_NUMBER + sentSequence - lastSeq + 1));
+                window = size - (int) (Frame.MAX_SEQUENCE_NUMBER + sentSequence - lastSeq + 1);
             }
 
-            if (log.isDebugEnabled()) {
-                log.debug("updatePeerReceiveBufferSize: channel " + this.getNumber() + ", size " + size
-                          + ", lastSeq " + lastSeq + ", sentSequence "
-                          + sentSequence + ", previousPeerWindowSize " + previousPeerWindowSize
-                          + ", peerWindowSize " + peerWindowSize);
-            }
+            updated = pack(sentSequence, window);
+        } while (sendState.compareAndSet(current, updated) == false);
 
-            if ((previousPeerWindowSize == 0) && (peerWindowSize.intValue() > 0)) {
-                try {
-                    sendQueuedMessages();
-                } catch (BEEPException e) {
-                }
+        int previousPeerWindowSize = count(current);
+
+        if (log.isDebugEnabled()) {
+            log.debug("updatePeerReceiveBufferSize: channel " + this.getNumber() + ", size " + size
+                      + ", lastSeq " + lastSeq + ", sentSequence "
+                      + sequence(updated) + ", previousPeerWindowSize " + previousPeerWindowSize
+                      + ", peerWindowSize " + count(updated));
+        }
+
+        // sent on the dispatcher, the reader must not wait for sendLock:
+        // its holder may be waiting for the reader to write what the
+        // socket did not take
+        if ((previousPeerWindowSize <= 0) && (count(updated) > 0)) {
+            try {
+                getDispatcher().execute(queuedMessagesSender);
+            } catch (BEEPException e) {
+                log.error("Unable to send queued messages", e);
             }
         }
     }
 
+    /**
+     * Only called by the session's reader, which is the only user of
+     * <code>previousMessageType</code> and <code>previousMsgno</code>.
+     */
     private void validateFrame(Frame frame) throws BEEPException 
     {
-        synchronized (this) {
-
-            if (previousFrame == null) {
-                // is the message number correct?
-                if (frame.getMessageType() == Message.MESSAGE_TYPE_MSG) {
-                    synchronized (recvMSGQueue) {
-                        ListIterator i =
-                            recvMSGQueue.listIterator(recvMSGQueue.size());
-                        while (i.hasPrevious()) {
-                            if (((Message) i.previous()).getMsgno()
-                                == frame.getMsgno())
-                            {
-                                throw new BEEPException("Received a frame " +
-                                                        "with a duplicate " +
-                                                        "msgno (" +
-                                                        frame.getMsgno() +
-                                                        ")");
-                            }
-                        }
+        if (previousMessageType == NO_PREVIOUS_FRAME) {
+            // is the message number correct?
+            if (frame.getMessageType() == Message.MESSAGE_TYPE_MSG) {
+                synchronized (recvMSGQueue) {
+                    if (recvMSGNumbers.get(frame.getMsgno()) != null) {
+                        throw new BEEPException("Received a frame " +
+                                                "with a duplicate " +
+                                                "msgno (" +
+                                                frame.getMsgno() +
+                                                ")");
                     }
-                } else {
-                    MessageStatus mstatus;
-
-                    synchronized (sentMSGQueue) {
-                        if (sentMSGQueue.size() == 0) {
-                            throw new BEEPException("Received unsolicited reply");
-                        }
+                }
+            } else {
+                MessageStatus mstatus;
 
-                        mstatus = (MessageStatus) sentMSGQueue.get(0);
+                synchronized (sentMSGQueue) {
+                    if (sentMSGQueue.size() == 0) {
+                        throw new BEEPException("Received unsolicited reply");
                     }
 
-                    if (frame.getMsgno() != mstatus.getMsgno()) {
-                        throw new BEEPException("Incorrect message number: was "
-                                                + frame.getMsgno()
-                                                + "; expecting "
-                                                + mstatus.getMsgno());
-                    }
-                }
-            } else {
-                // is the message type the same as the previous frames?
-                if (previousFrame.getMessageType() != frame.getMessageType()) {
-                    throw new BEEPException("Incorrect message type: was "
-                        + frame.getMessageTypeString()
-                        + "; expecting "
-                        + previousFrame.getMessageTypeString());
+                    mstatus = (MessageStatus) sentMSGQueue.getFirst();
                 }
 
-                // is the message number correct?
-                if (frame.getMessageType() == Message.MESSAGE_TYPE_MSG &&
-                    frame.getMsgno() != previousFrame.getMsgno())
-                {
+                if (frame.getMsgno() != mstatus.getMsgno()) {
                     throw new BEEPException("Incorrect message number: was "
                                             + frame.getMsgno()
                                             + "; expecting "
-                                            + previousFrame.getMsgno());
+                                            + mstatus.getMsgno());
                 }
             }
+        } else {
+            // is the message type the same as the previous frames?
+            if (previousMessageType != frame.getMessageType()) {
+                throw new BEEPException("Incorrect message type: was "
+                    + frame.getMessageTypeString()
+                    + "; expecting "
+                    + Frame.getMessageTypeString(previousMessageType));
+            }
 
-            // is the sequence number correct?
-            if (frame.getSeqno() != recvSequence) {
-                throw new BEEPException("Incorrect sequence number: was "
-                    + frame.getSeqno() + "; expecting "
-                    + recvSequence);
+            // is the message number correct?
+            if (frame.getMessageType() == Message.MESSAGE_TYPE_MSG &&
+                frame.getMsgno() != previousMsgno)
+            {
+                throw new BEEPException("Incorrect message number: was "
+                                        + frame.getMsgno()
+                                        + "; expecting "
+                                        + previousMsgno);
             }
+        }
 
+        // is the sequence number correct?
+        long recvSequence = sequence(recvState.get());
+
+        if (frame.getSeqno() != recvSequence) {
+            throw new BEEPException("Incorrect sequence number: was "
+                + frame.getSeqno() + "; expecting "
+                + recvSequence);
         }
 
         if (frame.getMessageType() != Message.MESSAGE_TYPE_MSG) {
@@ -1063,7 +1684,7 @@ class ChannelImpl implements Channel, Runnable {
                     throw new BEEPException("Received unsolicited reply");
                 }
 
-                mstatus = (MessageStatus) sentMSGQueue.get(0);
+                mstatus = (MessageStatus) sentMSGQueue.getFirst();
 
                 if (mstatus.getMsgno() != frame.getMsgno()) {
                     throw new BEEPException("Received reply out of order");
@@ -1071,39 +1692,33 @@ class ChannelImpl implements Channel, Runnable {
             }
         }
 
-        // save the previous frame to compare message types
+        // save the previous frame's type and msgno to compare with the
+        // next frame, the frame itself is recycled
         if (frame.isLast()) {
-            previousFrame = null;
+            previousMessageType = NO_PREVIOUS_FRAME;
         } else {
-            previousFrame = frame;
+            previousMessageType = frame.getMessageType();
+            previousMsgno = frame.getMsgno();
         }
         
     }
     
-    synchronized void freeReceiveBufferBytes(int size)
+    void freeReceiveBufferBytes(int size)
     {
-        synchronized(this){
-            if (log.isTraceEnabled()) {
-                log.trace("Freed up " + size + " bytes on channel " + number);
-            }
-
-            recvWindowFreed.getAndAdd(size);
+        if (log.isTraceEnabled()) {
+            log.trace("Freed up " + size + " bytes on channel " + number);
+        }
 
-            if (log.isTraceEnabled()) {
-                log.trace("recvWindowUsed = " + recvWindowUsed +
-                          " recvWindowFreed = " + recvWindowFreed +
-                          " recvWindowSize = " + recvWindowSize);
-            }
+        int freed = recvWindowFreed.addAndGet(size);
 
-            if (state == ChannelImpl.STATE_ACTIVE && recvWindowFreed.intValue() >= recvWindowSize.intValue() / 2) {
-                try {
-                    sendWindowUpdate();
-                } catch (BEEPException e) {
+        if (log.isTraceEnabled()) {
+            log.trace("recvWindowUsed = " + count(recvState.get()) +
+                      " recvWindowFreed = " + freed +
+                      " recvWindowSize = " + recvWindowSize);
+        }
 
-                    // do nothing
-                    log.fatal("Error updating receive buffer size", e);
-                }
-            }
+        if (state == ChannelImpl.STATE_ACTIVE && freed >= recvWindowSize.intValue() / 2) {
+            sendDueWindowUpdate();
         }
     }
 
@@ -1119,9 +1734,27 @@ class ChannelImpl implements Channel, Runnable {
      * protocol.
      *
      */
-    synchronized int getAvailableWindow()
+    int getAvailableWindow()
+    {
+        return (recvWindowSize.intValue() - count(recvState.get()));
+    }
+
+    /**
+     * Packs a 32 bit sequence number and a window count into a long.
+     */
+    private static long pack(long sequence, int count)
+    {
+        return (sequence << 32) | (count & 0xFFFFFFFFL);
+    }
+
+    private static long sequence(long state)
+    {
+        return state >>> 32;
+    }
+
+    private static int count(long state)
     {
-        return (recvWindowSize.intValue() - recvWindowUsed.intValue());
+        return (int) state;
     }
 
     /**
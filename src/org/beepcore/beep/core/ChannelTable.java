@@ -0,0 +1,215 @@
+/*
+ * ChannelTable.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * The channels of a session keyed by channel number.
+ * <p>
+ * An open addressing hash table whose slots hold the channels themselves,
+ * the key being the channel's number.  <code>get</code>, which is called
+ * for every frame and <code>SEQ</code> received, does not lock.  Changes
+ * are serialized on the table; a removed channel leaves a marker so the
+ * probe sequences of other channels stay intact, and the table is rebuilt
+ * and republished when it fills up.
+ */
+class ChannelTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /** marks the slot of a removed channel */
+    private static final Object REMOVED = new Object();
+
+    private volatile AtomicReferenceArray table =
+        new AtomicReferenceArray(MIN_CAPACITY);
+
+    private int size = 0;
+
+    /** slots holding a channel or <code>REMOVED</code> */
+    private int used = 0;
+
+    /**
+     * Returns the channel numbered <code>number</code> or
+     * <code>null</code>.
+     */
+    ChannelImpl get(int number)
+    {
+        AtomicReferenceArray t = table;
+        int mask = t.length() - 1;
+
+        for (int i = hash(number) & mask; ; i = (i + 1) & mask) {
+            Object o = t.get(i);
+
+            if (o == null) {
+                return null;
+            }
+
+            if (o != REMOVED && ((ChannelImpl) o).getNumber() == number) {
+                return (ChannelImpl) o;
+            }
+        }
+    }
+
+    /**
+     * Adds <code>channel</code>, replacing any channel with the same
+     * number.
+     */
+    synchronized void put(ChannelImpl channel)
+    {
+        AtomicReferenceArray t = table;
+        int mask = t.length() - 1;
+        int number = channel.getNumber();
+        int free = -1;
+
+        for (int i = hash(number) & mask; ; i = (i + 1) & mask) {
+            Object o = t.get(i);
+
+            if (o == null) {
+                if (free == -1) {
+                    free = i;
+                    ++used;
+                }
+                break;
+            }
+
+            if (o == REMOVED) {
+                if (free == -1) {
+                    free = i;
+                }
+                continue;
+            }
+
+            if (((ChannelImpl) o).getNumber() == number) {
+                t.set(i, channel);
+                return;
+            }
+        }
+
+        t.set(free, channel);
+        ++size;
+
+        if (used * 2 > t.length()) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Removes the channel numbered <code>number</code>.
+     *
+     * @return the removed channel or <code>null</code>.
+     */
+    synchronized ChannelImpl remove(int number)
+    {
+        AtomicReferenceArray t = table;
+        int mask = t.length() - 1;
+
+        for (int i = hash(number) & mask; ; i = (i + 1) & mask) {
+            Object o = t.get(i);
+
+            if (o == null) {
+                return null;
+            }
+
+            if (o != REMOVED && ((ChannelImpl) o).getNumber() == number) {
+                t.set(i, REMOVED);
+                --size;
+                return (ChannelImpl) o;
+            }
+        }
+    }
+
+    synchronized int size()
+    {
+        return size;
+    }
+
+    synchronized void clear()
+    {
+        table = new AtomicReferenceArray(MIN_CAPACITY);
+        size = 0;
+        used = 0;
+    }
+
+    /**
+     * Returns the channels in the table.
+     */
+    synchronized ChannelImpl[] toArray()
+    {
+        AtomicReferenceArray t = table;
+        ChannelImpl[] channels = new ChannelImpl[size];
+        int n = 0;
+
+        for (int i = 0; i < t.length(); ++i) {
+            Object o = t.get(i);
+
+            if (o != null && o != REMOVED) {
+                channels[n++] = (ChannelImpl) o;
+            }
+        }
+
+        return channels;
+    }
+
+    /**
+     * Copies the channels into a new table sized for them and publishes
+     * it.  Readers still probing the old table see a consistent snapshot.
+     */
+    private void rebuild()
+    {
+        int capacity = MIN_CAPACITY;
+
+        while (capacity < size * 4) {
+            capacity <<= 1;
+        }
+
+        AtomicReferenceArray old = table;
+        AtomicReferenceArray t = new AtomicReferenceArray(capacity);
+        int mask = capacity - 1;
+
+        for (int i = 0; i < old.length(); ++i) {
+            Object o = old.get(i);
+
+            if (o == null || o == REMOVED) {
+                continue;
+            }
+
+            int j = hash(((ChannelImpl) o).getNumber()) & mask;
+            while (t.get(j) != null) {
+                j = (j + 1) & mask;
+            }
+            t.set(j, o);
+        }
+
+        used = size;
+        table = t;
+    }
+
+    private static int hash(int number)
+    {
+        // channel numbers go up by two, spread them over the table
+        int h = number * 0x9E3779B9;
+
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Dispatcher.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.util.VirtualThreads;
+
+
+/**
+ * Runs the <code>RequestHandler</code>s and <code>ReplyListener</code>s
+ * of the channels that use it.
+ * <p>
+ * A dispatcher may be set on a <code>ProfileRegistry</code>, a session
+ * or a channel, the most specific one being used, so that profiles doing
+ * CPU bound work can be kept apart from profiles that block.  Each
+ * channel still hands its tasks over one at a time, in the order its
+ * messages were received, whatever the number of threads.
+ * <p>
+ * Once the dispatcher's capacity of tasks waiting or running is reached
+ * the dispatch of new MSGs is held back until half of the tasks have
+ * completed.  The sessions keep reading, so the frames of messages being
+ * received, replies and window updates are still delivered and the tasks
+ * waiting for them can complete.  The MSGs held back are not read by
+ * their handlers, so the peer runs out of window on their channels and
+ * BEEP flow control pushes back on it.
+ */
+public class Dispatcher {
+
+    /** capacity of the default dispatcher */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final AtomicInteger dispatcherCount = new AtomicInteger();
+
+    private static Dispatcher defaultDispatcher = null;
+
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private final ExecutorService executor;
+
+    private final int capacity;
+
+    /** pending count at which the MSGs held back are dispatched */
+    private final int resumeThreshold;
+
+    /** tasks submitted and not completed */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong deferrals = new AtomicLong();
+
+    /** MSG dispatches held back while the dispatcher is full */
+    private final ArrayDeque deferred = new ArrayDeque();
+
+    /** <code>deferred</code> may not be empty */
+    private volatile boolean hasDeferred = false;
+
+    /**
+     * Creates a dispatcher with its own pool of <code>threads</code>
+     * daemon threads.  Its queue is unbounded, the replies and listeners
+     * dispatched once the capacity is reached are queued rather than
+     * refused, while new MSGs are held back.
+     *
+     * @param name prefix of the names of the threads.
+     * @param threads the number of threads.
+     * @param capacity most tasks waiting or running before the dispatch
+     *                 of new MSGs is held back.
+     */
+    public Dispatcher(String name, int threads, int capacity)
+    {
+        this(new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                    new LinkedBlockingQueue(),
+                                    new DaemonThreadFactory(name)),
+             capacity);
+    }
+
+    /**
+     * Creates a dispatcher running its tasks on <code>executor</code>.
+     * The executor should not bound its queue: replies and listeners are
+     * handed to it however many tasks are pending, and a refused reply is
+     * lost.
+     *
+     * @param executor runs the tasks.
+     * @param capacity most tasks waiting or running before the dispatch
+     *                 of new MSGs is held back.
+     */
+    public Dispatcher(ExecutorService executor, int capacity)
+    {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity " +
+                                               capacity);
+        }
+
+        this.executor = executor;
+        this.capacity = capacity;
+        this.resumeThreshold = capacity / 2;
+    }
+
+    /**
+     * Creates a dispatcher starting a virtual thread for each task, so
+     * that handlers blocking on I/O or waiting for replies do not hold
+     * platform threads.
+     *
+     * @param name prefix of the names of the threads.
+     * @param capacity most tasks waiting or running before the dispatch
+     *                 of new MSGs is held back.
+     *
+     * @throws UnsupportedOperationException if the JVM has no virtual
+     *                                       threads.
+     * @see VirtualThreads
+     */
+    public static Dispatcher newVirtualThreadDispatcher(String name,
+                                                        int capacity)
+    {
+        return new Dispatcher(VirtualThreads.newExecutor(
+                                  name + "-" +
+                                  dispatcherCount.incrementAndGet() + "-"),
+                              capacity);
+    }
+
+    /**
+     * Returns the dispatcher used when none is set on the channel, the
+     * session or the <code>ProfileRegistry</code>.  Its threads are
+     * created as needed, like those of the pool it replaced, so handlers
+     * that block waiting for a reply do not starve the others; its
+     * capacity is <code>DEFAULT_CAPACITY</code>.
+     */
+    public static synchronized Dispatcher getDefault()
+    {
+        if (defaultDispatcher == null) {
+            defaultDispatcher =
+                new Dispatcher(Executors.newCachedThreadPool(
+                                   new DaemonThreadFactory("dispatch")),
+                               DEFAULT_CAPACITY);
+        }
+
+        return defaultDispatcher;
+    }
+
+    /**
+     * Replaces the default dispatcher, <code>null</code> goes back to a
+     * pool of platform threads.  Channels already using the previous one
+     * keep it.
+     */
+    public static synchronized void setDefault(Dispatcher dispatcher)
+    {
+        defaultDispatcher = dispatcher;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of tasks waiting or running.
+     */
+    public int getPendingCount()
+    {
+        return pending.get();
+    }
+
+    /**
+     * Returns the number of tasks submitted since the dispatcher was
+     * created.
+     */
+    public long getSubmittedCount()
+    {
+        return submitted.get();
+    }
+
+    /**
+     * Returns the number of tasks completed since the dispatcher was
+     * created.
+     */
+    public long getCompletedCount()
+    {
+        return completed.get();
+    }
+
+    /**
+     * Returns the number of MSGs whose dispatch was held back because the
+     * dispatcher was full.
+     */
+    public long getDeferredCount()
+    {
+        return deferrals.get();
+    }
+
+    /**
+     * Stops the dispatcher's executor once the submitted tasks have run.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Runs <code>task</code>, a reply delivery or a listener, on the
+     * executor whether or not the dispatcher is full.
+     *
+     * @throws BEEPException if the executor refused the task.
+     */
+    public void execute(Runnable task) throws BEEPException
+    {
+        pending.incrementAndGet();
+        submit(task);
+    }
+
+    /**
+     * Runs <code>task</code>, the dispatch of a MSG to its
+     * <code>RequestHandler</code>, on the executor, or holds it back until
+     * half of the tasks have completed if the dispatcher is full.  The
+     * tasks held back run in the order they were submitted.
+     *
+     * @throws BEEPException if the executor refused the task.
+     */
+    void executeRequest(Runnable task) throws BEEPException
+    {
+        synchronized (deferred) {
+            if (hasDeferred || pending.get() >= capacity) {
+                deferred.addLast(task);
+                hasDeferred = true;
+                deferrals.incrementAndGet();
+                task = null;
+            } else {
+                pending.incrementAndGet();
+            }
+        }
+
+        if (task != null) {
+            submit(task);
+        } else if (pending.get() <= resumeThreshold) {
+            // the tasks may have completed meanwhile, see completed()
+            submitDeferred();
+        }
+    }
+
+    /**
+     * Hands a task counted in <code>pending</code> to the executor.
+     */
+    private void submit(final Runnable task) throws BEEPException
+    {
+        try {
+            executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            completed();
+                        }
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            throw new BEEPException(e);
+        }
+
+        submitted.incrementAndGet();
+    }
+
+    private void completed()
+    {
+        completed.incrementAndGet();
+
+        if (pending.decrementAndGet() <= resumeThreshold && hasDeferred) {
+            submitDeferred();
+        }
+    }
+
+    /**
+     * Submits the MSG dispatches held back until the capacity is reached
+     * again.  A MSG whose dispatch is refused would never be answered, so
+     * the session of its channel is terminated.
+     */
+    private void submitDeferred()
+    {
+        while (true) {
+            Runnable task;
+
+            synchronized (deferred) {
+                if (deferred.isEmpty() || pending.get() >= capacity) {
+                    hasDeferred = (deferred.isEmpty() == false);
+                    return;
+                }
+
+                task = (Runnable) deferred.removeFirst();
+                pending.incrementAndGet();
+            }
+
+            try {
+                submit(task);
+            } catch (BEEPException e) {
+                if (task instanceof ChannelImpl) {
+                    ((ChannelImpl) task).dispatchRefused(e);
+                } else {
+                    log.error("Unable to dispatch message", e);
+                }
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        DaemonThreadFactory(String name)
+        {
+            this.prefix = name + "-" + dispatcherCount.incrementAndGet() + "-";
+        }
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, prefix + threadCount.incrementAndGet());
+
+            t.setDaemon(true);
+
+            return t;
+        }
+    }
+}
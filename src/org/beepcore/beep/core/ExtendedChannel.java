@@ -0,0 +1,198 @@
+/*
+ * ExtendedChannel.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+
+/**
+ * The operations of the channels of this library beyond those of
+ * <code>Channel</code>: sending without waiting for the reply, limiting
+ * the MSGs waiting for replies, choosing where handlers and listeners run
+ * and tuning how frames are sized and scheduled.
+ * <p>
+ * The channels returned by the sessions of this library implement this
+ * interface.  It is kept apart from <code>Channel</code> so that other
+ * implementations of <code>Channel</code> keep compiling.
+ */
+public interface ExtendedChannel extends Channel {
+
+    /**
+     * Frames sent on the channel are at most the maximum frame size.
+     */
+    public static final int FRAME_SIZE_FIXED = 0;
+
+    /**
+     * The frame size grows toward the peer's window while the channel has
+     * more data ready to send than fits in a frame (bulk transfers) and
+     * shrinks back to the maximum frame size when it does not (requests
+     * and replies where latency matters).
+     */
+    public static final int FRAME_SIZE_ADAPTIVE = 1;
+
+    /**
+     * Passed to <code>setReplyExecutor</code> to call the
+     * <code>ReplyListener</code>s on the session's reader thread as each
+     * reply frame is read.  Nothing else is read on the session while a
+     * listener runs.
+     */
+    public static final Executor INLINE_REPLY_EXECUTOR = new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+    /**
+     * Sends a MSG message without waiting for the reply.
+     * <p>
+     * The returned future completes with the RPY or ERR message, or with
+     * the NUL message of a one-to-many reply, when its first frame has
+     * been received; the message's <code>InputDataStream</code> may still
+     * be receiving the rest.  ANS messages fail the future, use
+     * {@link #sendMSGAsync(OutputDataStream, Consumer)} for one-to-many
+     * exchanges.  Errors sending the MSG, including reaching the limit
+     * set with <code>setOutstandingMSGLimit</code> when not blocking,
+     * also fail the future.
+     *
+     * @param stream Data contents of the MSG message to be sent.
+     *
+     * @see #setOutstandingMSGLimit
+     */
+    public CompletableFuture<Message> sendMSGAsync(OutputDataStream stream);
+
+    /**
+     * Sends a MSG message without waiting for the reply, passing each ANS
+     * message of a one-to-many reply to <code>answers</code> as its first
+     * frame is received.  The returned future completes with the NUL
+     * message, or with the RPY or ERR message if the peer replied with
+     * one.
+     *
+     * @param stream Data contents of the MSG message to be sent.
+     * @param answers Receives the ANS messages, on the reply executor.
+     *                If it throws, the future fails.
+     *
+     * @see #sendMSGAsync(OutputDataStream)
+     */
+    public CompletableFuture<Message> sendMSGAsync(OutputDataStream stream,
+                                                   Consumer<Message> answers);
+
+    /**
+     * Returns the <code>Dispatcher</code> the <code>RequestHandler</code>
+     * and <code>ReplyListener</code>s of this channel are run on: the
+     * channel's, or the session's if none was set.
+     */
+    public Dispatcher getDispatcher();
+
+    /**
+     * Sets the <code>Dispatcher</code> the <code>RequestHandler</code> and
+     * <code>ReplyListener</code>s of this channel are run on.
+     *
+     * @param dispatcher the dispatcher, or <code>null</code> to use the
+     *                   session's.
+     */
+    public void setDispatcher(Dispatcher dispatcher);
+
+    /**
+     * Returns the executor the <code>ReplyListener</code>s of this channel
+     * are called on, or <code>null</code> if they are run on the
+     * channel's <code>Dispatcher</code>.
+     */
+    public Executor getReplyExecutor();
+
+    /**
+     * Sets the executor the <code>ReplyListener</code>s of this channel are
+     * called on.  Replies are delivered one at a time in the order they
+     * were received whatever the executor, so a slow listener only holds
+     * back the replies of its own channel.  Channel zero uses
+     * <code>INLINE_REPLY_EXECUTOR</code>, other channels their
+     * <code>Dispatcher</code> by default.
+     *
+     * @param executor the executor, <code>INLINE_REPLY_EXECUTOR</code> to
+     *                 call the listeners on the session's reader thread, or
+     *                 <code>null</code> for the channel's dispatcher.
+     */
+    public void setReplyExecutor(Executor executor);
+
+    /**
+     * Returns the limit on MSGs waiting for replies on this channel, or
+     * 0 if there is none.
+     */
+    public int getOutstandingMSGLimit();
+
+    /**
+     * Limits the number of MSGs sent on this channel that are waiting for
+     * their replies.  Once the limit is reached the send methods either
+     * wait for a reply to complete or fail with a
+     * <code>BEEPException</code>.
+     *
+     * @param limit the most MSGs waiting for replies, 0 for no limit.
+     * @param block <code>true</code> to wait when the limit is reached,
+     *              <code>false</code> to fail.
+     */
+    public void setOutstandingMSGLimit(int limit, boolean block);
+
+    /**
+     * Returns the maximum payload size of the frames sent on this channel,
+     * or 0 if the session's maximum frame size is used.
+     */
+    public int getMaxFrameSize();
+
+    /**
+     * Sets the maximum payload size of the frames sent on this channel.
+     *
+     * @param size maximum size in octets, or 0 to use the session's
+     *             maximum frame size.
+     */
+    public void setMaxFrameSize(int size);
+
+    /**
+     * Returns <code>FRAME_SIZE_FIXED</code> or
+     * <code>FRAME_SIZE_ADAPTIVE</code>.
+     */
+    public int getFrameSizeMode();
+
+    /**
+     * Sets how the size of the frames sent on this channel is chosen.
+     *
+     * @param mode <code>FRAME_SIZE_FIXED</code> or
+     *             <code>FRAME_SIZE_ADAPTIVE</code>.
+     */
+    public void setFrameSizeMode(int mode);
+
+    /**
+     * Returns the share of the session's connection this channel gets when
+     * several channels have frames waiting to be written.
+     */
+    public int getSendWeight();
+
+    /**
+     * Sets the share of the session's connection this channel gets when
+     * several channels have frames waiting to be written.  A channel with
+     * weight 4 is given four times the bytes per round of a channel with
+     * weight 1.  Channel zero is always written first.
+     *
+     * @param weight a positive weight, 1 by default.
+     */
+    public void setSendWeight(int weight);
+}
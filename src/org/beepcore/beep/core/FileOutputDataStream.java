@@ -0,0 +1,302 @@
+/*
+ * FileOutputDataStream.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.util.FileSegment;
+
+
+/**
+ * <code>FileOutputDataStream</code> represents a BEEP message's payload
+ * read from a file.
+ * <p>
+ * The payload of each frame is held as a <code>FileSegment</code>, so the
+ * TCP transports send it from the file with
+ * <code>FileChannel.transferTo</code> while the frame headers and trailers
+ * are written from the heap.  Where a direct transfer is not possible,
+ * e.g. under TLS, the payload of each frame is read from the file as it
+ * is written.
+ * <p>
+ * A file opened by this stream is closed once all of its bytes have been
+ * written, or dropped because the channel or session was closed first.
+ * A <code>FileChannel</code> passed by the application is not closed.
+ * <p>
+ * <b>Note that this implementation is not synchronized.</b> If
+ * multiple threads access a <code>FileOutputDataStream</code>
+ * concurrently, data may be inconsistent or lost.
+ *
+ * @see org.beepcore.beep.core.OutputDataStream
+ */
+public class FileOutputDataStream extends OutputDataStream {
+
+    /** largest region of the file held by one segment */
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private FileChannel channel;
+    private AtomicLong unwritten;
+
+    /**
+     * Creates a <code>FileOutputDataStream</code> from a <code>File</code>
+     * with a content type of <code>DEFAULT_CONTENT_TYPE</code> and a
+     * transfer encoding of <code>DEFAULT_CONTENT_TRANSFER_ENCODING</code>.
+     *
+     * @param file The file holding the message's payload.
+     *
+     * @throws IOException if the file can not be opened.
+     */
+    public FileOutputDataStream(File file) throws IOException
+    {
+        this(new MimeHeaders(), file);
+    }
+
+    /**
+     * Creates a <code>FileOutputDataStream</code> from a <code>File</code>
+     * with a specified content type and a transfer encoding of
+     * <code>DEFAULT_CONTENT_TRANSFER_ENCODING</code>.
+     *
+     * @param contentType Content type of <code>file</code>.
+     * @param file The file holding the message's payload.
+     *
+     * @throws IOException if the file can not be opened.
+     */
+    public FileOutputDataStream(String contentType, File file)
+        throws IOException
+    {
+        this(new MimeHeaders(contentType), file);
+    }
+
+    /**
+     * Creates a <code>FileOutputDataStream</code> from a <code>File</code>
+     * with a specified content type and a specified transfer encoding.
+     *
+     * @param contentType Content type of <code>file</code>.
+     * @param transferEncoding Transfer encoding type of <code>file</code>.
+     * @param file The file holding the message's payload.
+     *
+     * @throws IOException if the file can not be opened.
+     */
+    public FileOutputDataStream(String contentType, String transferEncoding,
+                                File file)
+        throws IOException
+    {
+        this(new MimeHeaders(contentType, transferEncoding), file);
+    }
+
+    /**
+     * Creates a <code>FileOutputDataStream</code> from a <code>File</code>
+     * with the specified MIME headers.
+     *
+     * @param headers MIME headers to be prepended to the file.
+     * @param file The file holding the message's payload.
+     *
+     * @throws IOException if the file can not be opened.
+     */
+    public FileOutputDataStream(MimeHeaders headers, File file)
+        throws IOException
+    {
+        super(headers);
+
+        FileChannel ch = new FileInputStream(file).getChannel();
+        long size = ch.size();
+
+        if (size == 0) {
+            ch.close();
+            return;
+        }
+
+        this.channel = ch;
+        this.unwritten = new AtomicLong(size);
+
+        addSegments(ch, 0, size);
+    }
+
+    /**
+     * Creates a <code>FileOutputDataStream</code> from <code>count</code>
+     * bytes of <code>channel</code> starting at <code>position</code>.
+     * The channel is not closed by this stream and must stay open until
+     * the message has been sent.
+     *
+     * @param headers MIME headers to be prepended to the file.
+     * @param channel The file holding the message's payload.
+     * @param position Position in the file of the first byte to send.
+     * @param count Number of bytes to send.
+     */
+    public FileOutputDataStream(MimeHeaders headers, FileChannel channel,
+                                long position, long count)
+    {
+        super(headers);
+
+        addSegments(channel, position, count);
+    }
+
+    /**
+     * Returns <code>true</code> if no more bytes will be added to those
+     * currently available, if any, on this stream.  Returns
+     * <code>false</code> if more bytes are expected.
+     */
+    public boolean isComplete()
+    {
+        return true;
+    }
+
+    /**
+     * Returns the value of the MIME entity header <code>Content-Type</code>.
+     */
+    public String getContentType() throws BEEPException
+    {
+        return this.mimeHeaders.getContentType();
+    }
+
+    /**
+     * Sets the content type of a <code>DataStream</code>.
+     *
+     * @param contentType
+     */
+    public void setContentType(String contentType)
+    {
+        this.mimeHeaders.setContentType(contentType);
+    }
+
+    /**
+     * Returns the value of the MIME entity header
+     * <code>Content-Transfer-Encoding</code>.
+     */
+    public String getTransferEncoding() throws BEEPException
+    {
+        return this.mimeHeaders.getTransferEncoding();
+    }
+
+    /**
+     * Sets the content transfer encoding of a <code>DataStream</code>
+     *
+     * @param transferEncoding
+     */
+    public void setTransferEncoding(String transferEncoding)
+    {
+        this.mimeHeaders.setTransferEncoding(transferEncoding);
+    }
+
+    /**
+     * Returns an <code>Enumeration</code> of all the names of the MIME entity
+     * headers in this data stream.
+     *
+     * @return An <code>Enumeration</code> of all the MIME entity header
+     * names.
+     *
+     * @throws BEEPException
+     */
+    public Enumeration getHeaderNames() throws BEEPException
+    {
+        return this.mimeHeaders.getHeaderNames();
+    }
+
+    /**
+     * Retrieves the correspoding <code>value</code> to a given a MIME entity
+     * header <code>name</code>.
+     *
+     * @param name Name of the MIME entity header.
+     * @return The <code>value</code> of the MIME entity header.
+     *
+     * @throws BEEPException
+     */
+    public String getHeaderValue(String name) throws BEEPException
+    {
+        return this.mimeHeaders.getHeaderValue(name);
+    }
+
+    /**
+     * Adds a MIME entity header to this data stream.
+     *
+     * @param name  Name of the MIME enitity header.
+     * @param value Value of the MIME entity header.
+     */
+    public void setHeaderValue(String name, String value)
+    {
+        this.mimeHeaders.setHeader(name, value);
+    }
+
+    /**
+     * Removes the <code>name</code> and <code>value</code> of a MIME entity
+     * header from the data stream.  Returns <code>true</code> if the
+     * <code>name</code> was successfully removed.
+     *
+     * @param name Name of the header to be removed from the data stream.
+     *
+     * @return Returns <code>true</code> if header was removed.  Otherwise,
+     * returns <code>false</code>.
+     */
+    public boolean removeHeader(String name)
+    {
+        return this.mimeHeaders.removeHeader(name);
+    }
+    private void addSegments(FileChannel ch, long position, long count)
+    {
+        long end = position + count;
+
+        while (position < end) {
+            int n = (int) Math.min(end - position, MAX_SEGMENT_SIZE);
+
+            this.add(new Segment(ch, position, n));
+            position += n;
+        }
+    }
+
+    private void fileWritten(int length)
+    {
+        if (this.unwritten == null ||
+            this.unwritten.addAndGet(-length) != 0)
+        {
+            return;
+        }
+
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            log.error("Error closing file", e);
+        }
+    }
+
+    private class Segment extends FileSegment {
+        Segment(FileChannel ch, long position, int length)
+        {
+            super(ch, position, length);
+        }
+
+        protected void regionWritten(int length)
+        {
+            fileWritten(length);
+        }
+    }
+}
@@ -18,15 +18,16 @@
 package org.beepcore.beep.core;
 
 
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.beepcore.beep.util.BufferSegment;
-import org.beepcore.beep.util.HeaderParser;
-import org.beepcore.beep.util.StringUtil;
+import org.beepcore.beep.util.FrameHeader;
 
 /**
  * Frame encapsulates a BEEP protocol frame for MSG, RPY, ERR, ANS and NUL
@@ -85,7 +86,20 @@ public class Frame {
     private static final BufferSegment trailerBufferSegment =
         new BufferSegment(TRAILER.getBytes());
 
-    private Log log = LogFactory.getLog(this.getClass());
+    /** the ASCII message types indexed by message type */
+    private static final byte[][] typeBytes = {
+        { 'U', 'N', 'K' },
+        { 'M', 'S', 'G' },
+        { 'R', 'P', 'Y' },
+        { 'E', 'R', 'R' },
+        { 'A', 'N', 'S' },
+        { 'N', 'U', 'L' },
+    };
+
+    /** payload segments a frame has room for before growing */
+    private static final int PAYLOAD_CAPACITY = 4;
+
+    private static final Log log = LogFactory.getLog(Frame.class);
 
     /** BEEP message type of  <code>Frame</code>. */
     private int messageType;
@@ -120,10 +134,31 @@ public class Frame {
     /**
      * The payload of a BEEP message.
      */
-    private LinkedList payload = new LinkedList();
+    private BufferSegment[] payload = new BufferSegment[PAYLOAD_CAPACITY];
+
+    /** The number of segments in <code>payload</code>. */
+    private int payloadCount = 0;
+
+    /** The pool this frame is returned to, <code>null</code> if none. */
+    private final FramePool pool;
+
+    /** Set while the frame is released. */
+    private boolean released = false;
 
     Frame(int messageType, ChannelImpl channel, int msgno, boolean last,
           long seqno, int size, int ansno)
+    {
+        this.pool = null;
+        init(messageType, channel, msgno, last, seqno, size, ansno);
+    }
+
+    Frame(FramePool pool)
+    {
+        this.pool = pool;
+    }
+
+    void init(int messageType, ChannelImpl channel, int msgno, boolean last,
+              long seqno, int size, int ansno)
     {
         this.messageType = messageType;
         this.channel = channel;
@@ -132,6 +167,31 @@ public class Frame {
         this.seqno = seqno;
         this.size = size;
         this.ansno = ansno;
+        this.released = false;
+    }
+
+    /**
+     * Drops the references to the payload and channel and returns this
+     * frame to the pool it came from.  The segments themselves are not
+     * released, they belong to whoever the payload was handed to.  The
+     * frame must not be used afterwards.
+     */
+    void release()
+    {
+        if (this.released) {
+            return;
+        }
+
+        for (int i = 0; i < this.payloadCount; ++i) {
+            this.payload[i] = null;
+        }
+        this.payloadCount = 0;
+        this.channel = null;
+        this.released = true;
+
+        if (this.pool != null) {
+            this.pool.put(this);
+        }
     }
 
     /**
@@ -140,7 +200,14 @@ public class Frame {
      */
     public void addPayload(BufferSegment buf)
     {
-        this.payload.add(buf);
+        if (this.payloadCount == this.payload.length) {
+            BufferSegment[] p =
+                new BufferSegment[this.payloadCount * 2];
+            System.arraycopy(this.payload, 0, p, 0, this.payloadCount);
+            this.payload = p;
+        }
+
+        this.payload[this.payloadCount++] = buf;
     }
 
     /**
@@ -150,23 +217,38 @@ public class Frame {
      */
     public BufferSegment[] getBytes()
     {
-        BufferSegment[] b = new BufferSegment[this.payload.size() + 2];
-        this.size = 0;
-
-        int j=1;
-        Iterator i = this.payload.iterator();
-        while (i.hasNext()) {
-            b[j] = (BufferSegment) i.next();
-            this.size += b[j].getLength();
-            ++j;
-        }
+        BufferSegment[] b = new BufferSegment[this.payloadCount + 2];
 
         b[0] = new BufferSegment(buildHeader());
-        b[j] = trailerBufferSegment;
+        System.arraycopy(this.payload, 0, b, 1, this.payloadCount);
+        b[this.payloadCount + 1] = trailerBufferSegment;
 
         return b;
     }
 
+    /**
+     * Copies the payload segments of this frame followed by the trailer
+     * into <code>segments</code> starting at <code>offset</code>.  The
+     * header is not included, see <code>encodeHeader</code>.
+     *
+     * @return the index following the trailer.
+     */
+    int getSegments(BufferSegment[] segments, int offset)
+    {
+        System.arraycopy(this.payload, 0, segments, offset, this.payloadCount);
+        segments[offset + this.payloadCount] = trailerBufferSegment;
+
+        return offset + this.payloadCount + 1;
+    }
+
+    /**
+     * Returns the number of segments <code>getSegments</code> copies.
+     */
+    int getSegmentCount()
+    {
+        return this.payloadCount + 1;
+    }
+
     /**
      * Returns the <code>payload</code> of a <code>Frame</code>.
      * A <code>BufferSegment</code> contains a BEEP Frames Payload.
@@ -175,7 +257,24 @@ public class Frame {
      */
     public Iterator getPayload()
     {
-        return this.payload.iterator();
+        return Arrays.asList(this.payload).subList(0, this.payloadCount)
+            .iterator();
+    }
+
+    /**
+     * Returns the number of payload segments.
+     */
+    int getPayloadCount()
+    {
+        return this.payloadCount;
+    }
+
+    /**
+     * Returns payload segment <code>i</code>.
+     */
+    BufferSegment getPayload(int i)
+    {
+        return this.payload[i];
     }
 
     /**
@@ -194,6 +293,11 @@ public class Frame {
         return MessageType.getMessageType(this.messageType);
     }
 
+    static String getMessageTypeString(int messageType)
+    {
+        return MessageType.getMessageType(messageType);
+    }
+
     /**
      * Returns the <code>Channel</code> to which this <code>Frame</code>
      * belongs.
@@ -230,6 +334,21 @@ public class Frame {
         return this.size;
     }
 
+    /**
+     * Returns the number of payload bytes added to this frame.  Unlike
+     * <code>getSize</code> this is known before the header is encoded.
+     */
+    int getPayloadLength()
+    {
+        int length = 0;
+
+        for (int i = 0; i < this.payloadCount; ++i) {
+            length += this.payload[i].getLength();
+        }
+
+        return length;
+    }
+
     /**
      * Returns the answer number of this <code>Frame</code>.
      */
@@ -254,63 +373,124 @@ public class Frame {
     /**
      * Builds a BEEP Header from the given <code>Frame</code> and returns it
      * as a byte array.
-     *
-     * @param f <code>Frame</code> from which we derive the BEEP Header.
      */
     byte[] buildHeader()
     {
-        StringBuffer header = new StringBuffer(Frame.MAX_HEADER_SIZE);
-
-        // Create header
-        header.append(MessageType.getMessageType(this.messageType));
-        header.append(' ');
-        header.append(this.channel.getNumberAsString());
-        header.append(' ');
-        header.append(this.msgno);
-        header.append(' ');
-        header.append((this.last ? '.' : '*'));
-        header.append(' ');
-        header.append(this.seqno);
-        header.append(' ');
-        header.append(this.size);
+        byte[] header = new byte[Frame.MAX_HEADER_SIZE];
+        int length = encodeHeader(header, 0);
+        byte[] b = new byte[length];
+
+        System.arraycopy(header, 0, b, 0, length);
+
+        return b;
+    }
+
+    /**
+     * Writes the BEEP Header of this <code>Frame</code> as ASCII into
+     * <code>buf</code> starting at <code>offset</code>.  The size is that
+     * of the payload added to the frame.  No objects are allocated unless
+     * trace logging is enabled.
+     *
+     * @param buf array with at least <code>MAX_HEADER_SIZE</code> bytes
+     *            following <code>offset</code>.
+     *
+     * @return the length of the header.
+     */
+    int encodeHeader(byte[] buf, int offset)
+    {
+        this.size = getPayloadLength();
+
+        byte[] type = typeBytes[this.messageType];
+        int i = offset;
+
+        buf[i++] = type[0];
+        buf[i++] = type[1];
+        buf[i++] = type[2];
+        buf[i++] = ' ';
+        i = putDecimal(buf, i, this.channel.getNumber());
+        buf[i++] = ' ';
+        i = putDecimal(buf, i, this.msgno);
+        buf[i++] = ' ';
+        buf[i++] = (byte) (this.last ? '.' : '*');
+        buf[i++] = ' ';
+        i = putDecimal(buf, i, this.seqno);
+        buf[i++] = ' ';
+        i = putDecimal(buf, i, this.size);
 
         if (this.messageType == Message.MESSAGE_TYPE_ANS) {
-            header.append(' ');
-            header.append(this.ansno);
+            buf[i++] = ' ';
+            i = putDecimal(buf, i, this.ansno);
         }
 
-        header.append(Frame.CRLF);
+        buf[i++] = '\r';
+        buf[i++] = '\n';
 
         if (log.isTraceEnabled()) {
-            log.trace(header);
+            log.trace(new String(buf, offset, i - offset,
+                                 StandardCharsets.US_ASCII));
+        }
+
+        return i - offset;
+    }
+
+    /**
+     * Writes the decimal digits of the non-negative <code>value</code> into
+     * <code>buf</code> at <code>offset</code>.
+     *
+     * @return the index following the last digit.
+     */
+    private static int putDecimal(byte[] buf, int offset, long value)
+    {
+        int end = offset + 1;
+
+        for (long v = value; v >= 10; v /= 10) {
+            ++end;
         }
-        return StringUtil.stringBufferToAscii(header);
+
+        int i = end;
+        do {
+            buf[--i] = (byte) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+
+        return end;
     }
 
     static Frame parseHeader(SessionImpl session, byte[] headerBuffer, int length)
         throws BEEPException
     {
-        HeaderParser header = new HeaderParser(headerBuffer, length);
-
-        int msgType =
-            MessageType.getMessageType(new String(header.parseType()));
-        int channelNum = header.parseInt();
-        int msgNum = header.parseInt();
-        boolean last = header.parseLast();
-        long seqNum = header.parseUnsignedInt();
-        int size = header.parseInt();
-
-        int ansNum = -1;
-        if (header.hasMoreTokens()) {
-            ansNum = header.parseInt();
-        }
+        return parseHeader(session, headerBuffer, 0, length);
+    }
 
-        if (header.hasMoreTokens()) {
-            throw new BEEPException("Malformed BEEP Header");
+    static Frame parseHeader(SessionImpl session, byte[] headerBuffer,
+                             int offset, int length)
+        throws BEEPException
+    {
+        FrameHeader header = new FrameHeader();
+
+        header.parse(headerBuffer, offset, length);
+
+        return parseHeader(session, header);
+    }
+
+    /**
+     * Creates a <code>Frame</code> from a parsed header.
+     */
+    static Frame parseHeader(SessionImpl session, FrameHeader header)
+        throws BEEPException
+    {
+        // FrameHeader uses the Message.MESSAGE_TYPE_ values
+        int msgType = header.getType();
+        if (msgType == FrameHeader.TYPE_SEQ) {
+            msgType = Message.MESSAGE_TYPE_UNK;
         }
 
-        return new Frame(msgType, session.getValidChannel(channelNum), msgNum,
-                         last, seqNum, size, ansNum);
+        ChannelImpl channel = session.getValidChannel(header.getChannel());
+
+        return session.getFramePool().get(msgType, channel,
+                                          header.getMsgno(), header.isLast(),
+                                          header.getSeqno(), header.getSize(),
+                                          header.getAnsno());
     }
 
     private static class MessageType {
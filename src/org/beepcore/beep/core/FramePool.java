@@ -0,0 +1,108 @@
+/*
+ * FramePool.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * The recycled <code>Frame</code> objects of a session's reader.
+ * <p>
+ * Received frames are taken with <code>get</code> by the thread reading
+ * the session and returned by <code>Frame.release</code> once the
+ * channel has moved the payload into the message's
+ * <code>InputDataStream</code>, on that same thread.  The pool is
+ * therefore used by one thread and needs no lock: the first thread to
+ * call <code>get</code> owns it, frames got or released on any other
+ * thread are simply allocated or garbage collected.  Frames that are
+ * never released are garbage collected too.
+ * <p>
+ * Frames being sent are not pooled, they are built by the senders and
+ * released by whichever thread writes them.
+ */
+class FramePool {
+
+    private static final int DEFAULT_MAX_FREE = 64;
+
+    /** free frames, used as a stack, only touched by <code>owner</code> */
+    private final Frame[] free;
+    private int freeCount = 0;
+
+    /** the thread using the pool, set by the first <code>get</code> */
+    private final AtomicReference owner = new AtomicReference();
+
+    FramePool()
+    {
+        this(DEFAULT_MAX_FREE);
+    }
+
+    /**
+     * @param maxFree the number of free frames kept for reuse
+     */
+    FramePool(int maxFree)
+    {
+        this.free = new Frame[maxFree];
+    }
+
+    /**
+     * Returns a frame with the given header values and no payload.
+     */
+    Frame get(int messageType, ChannelImpl channel, int msgno, boolean last,
+              long seqno, int size, int ansno)
+    {
+        Frame f;
+
+        if (isOwner() && freeCount > 0) {
+            f = free[--freeCount];
+            free[freeCount] = null;
+        } else {
+            f = new Frame(this);
+        }
+
+        f.init(messageType, channel, msgno, last, seqno, size, ansno);
+
+        return f;
+    }
+
+    /**
+     * Keeps <code>f</code> for reuse if there is room and it is released
+     * by the owner.  Called by <code>Frame.release</code>.
+     */
+    void put(Frame f)
+    {
+        if (freeCount < free.length && owner.get() == Thread.currentThread()) {
+            free[freeCount++] = f;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the calling thread owns the pool, the
+     * first thread to ask does.
+     */
+    private boolean isOwner()
+    {
+        Thread t = Thread.currentThread();
+        Object o = owner.get();
+
+        return o == t || (o == null && owner.compareAndSet(null, t));
+    }
+}
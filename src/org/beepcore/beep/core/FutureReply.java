@@ -0,0 +1,86 @@
+/*
+ * FutureReply.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+
+/**
+ * The <code>ReplyListener</code> behind
+ * <code>ExtendedChannel.sendMSGAsync</code>,
+ * completing a future with the reply instead of blocking a thread in
+ * <code>wait</code> as <code>org.beepcore.beep.lib.Reply</code> does.
+ */
+class FutureReply implements ReplyListener {
+
+    private final CompletableFuture<Message> future =
+        new CompletableFuture<Message>();
+
+    /** receives the ANS messages, may be <code>null</code> */
+    private final Consumer<Message> answers;
+
+    FutureReply(Consumer<Message> answers)
+    {
+        this.answers = answers;
+    }
+
+    CompletableFuture<Message> getFuture()
+    {
+        return future;
+    }
+
+    public void receiveRPY(Message message)
+    {
+        future.complete(message);
+    }
+
+    public void receiveERR(Message message)
+    {
+        future.complete(message);
+    }
+
+    public void receiveANS(Message message)
+    {
+        if (answers == null || future.isDone()) {
+            // nobody will read it, free its part of the window
+            message.getDataStream().close();
+
+            future.completeExceptionally(
+                new BEEPException("Received ANS reply to a MSG sent " +
+                                  "without an answer consumer"));
+            return;
+        }
+
+        try {
+            answers.accept(message);
+        } catch (RuntimeException e) {
+            message.getDataStream().close();
+            future.completeExceptionally(e);
+        }
+    }
+
+    public void receiveNUL(Message message)
+    {
+        future.complete(message);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * HeaderMap.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+
+/**
+ * The MIME entity headers of a message, kept in insertion order in two
+ * small arrays.  Messages have few headers, usually only
+ * <code>Content-Type</code> and <code>Content-Transfer-Encoding</code>,
+ * for which a linear search is quicker and smaller than a hash table.
+ * The well known names are interned so they are usually found by
+ * reference.  It is not synchronized.
+ */
+class HeaderMap {
+
+    /**
+     * The headers of a message without any, shared and never modified.
+     */
+    static final HeaderMap DEFAULTS = new HeaderMap();
+
+    static {
+        DEFAULTS.put(MimeHeaders.CONTENT_TYPE,
+                     MimeHeaders.DEFAULT_CONTENT_TYPE);
+        DEFAULTS.put(MimeHeaders.CONTENT_TRANSFER_ENCODING,
+                     MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING);
+    }
+
+    private static final int DEFAULT_CAPACITY = 4;
+
+    private String[] names;
+    private String[] values;
+    private int size = 0;
+
+    HeaderMap()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    HeaderMap(int capacity)
+    {
+        names = new String[Math.max(capacity, 1)];
+        values = new String[names.length];
+    }
+
+    String get(String name)
+    {
+        int i = indexOf(name);
+
+        return (i == -1 ? null : values[i]);
+    }
+
+    /**
+     * Sets the value of <code>name</code>.
+     *
+     * @return the previous value, <code>null</code> if there was none.
+     */
+    String put(String name, String value)
+    {
+        int i = indexOf(name);
+
+        if (i != -1) {
+            String previous = values[i];
+
+            values[i] = value;
+
+            return previous;
+        }
+
+        if (size == names.length) {
+            String[] n = new String[size * 2];
+            String[] v = new String[size * 2];
+
+            System.arraycopy(names, 0, n, 0, size);
+            System.arraycopy(values, 0, v, 0, size);
+            names = n;
+            values = v;
+        }
+
+        names[size] = name;
+        values[size] = value;
+        ++size;
+
+        return null;
+    }
+
+    /**
+     * Removes <code>name</code>.
+     *
+     * @return the removed value, <code>null</code> if there was none.
+     */
+    String remove(String name)
+    {
+        int i = indexOf(name);
+
+        if (i == -1) {
+            return null;
+        }
+
+        String value = values[i];
+
+        --size;
+        System.arraycopy(names, i + 1, names, i, size - i);
+        System.arraycopy(values, i + 1, values, i, size - i);
+        names[size] = null;
+        values[size] = null;
+
+        return value;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    String getName(int i)
+    {
+        return names[i];
+    }
+
+    String getValue(int i)
+    {
+        return values[i];
+    }
+
+    /**
+     * Returns the names of the headers in the order they were added.
+     */
+    Enumeration names()
+    {
+        return new Enumeration() {
+                private int next = 0;
+
+                public boolean hasMoreElements() {
+                    return next < size;
+                }
+
+                public Object nextElement() {
+                    if (next >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return names[next++];
+                }
+            };
+    }
+
+    private int indexOf(String name)
+    {
+        for (int i = 0; i < size; ++i) {
+            if (names[i] == name) {
+                return i;
+            }
+        }
+
+        for (int i = 0; i < size; ++i) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * HeaderSegment.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.nio.ByteBuffer;
+
+import org.beepcore.beep.util.BufferSegment;
+
+
+/**
+ * A segment over a region of a header buffer that is reused from one
+ * write to the next, so writing a frame header does not allocate a new
+ * segment.  A <code>HeaderSegment</code> is only valid until the write it
+ * was gathered for completes.
+ */
+class HeaderSegment extends BufferSegment {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] data = EMPTY;
+    private int offset = 0;
+    private int length = 0;
+
+    /** view of <code>data</code> handed to gathering writes */
+    private ByteBuffer buffer = null;
+
+    HeaderSegment()
+    {
+        super(EMPTY);
+    }
+
+    /**
+     * Points this segment at <code>length</code> bytes of
+     * <code>data</code> starting at <code>offset</code>.
+     */
+    void set(byte[] data, int offset, int length)
+    {
+        if (this.data != data) {
+            this.data = data;
+            this.buffer = null;
+        }
+
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public byte[] getData()
+    {
+        return this.data;
+    }
+
+    public int getOffset()
+    {
+        return this.offset;
+    }
+
+    public int getLength()
+    {
+        return this.length;
+    }
+
+    public boolean hasArray()
+    {
+        return true;
+    }
+
+    /**
+     * Returns a view of this segment.  The same <code>ByteBuffer</code> is
+     * returned, repositioned, by every call.
+     */
+    public ByteBuffer asByteBuffer()
+    {
+        if (this.buffer == null) {
+            this.buffer = ByteBuffer.wrap(this.data);
+        }
+
+        this.buffer.limit(this.offset + this.length);
+        this.buffer.position(this.offset);
+
+        return this.buffer;
+    }
+
+    public BufferSegment slice(int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        return new BufferSegment(this.data, this.offset + offset, length);
+    }
+}
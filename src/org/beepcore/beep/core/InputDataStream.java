@@ -17,8 +17,25 @@
 package org.beepcore.beep.core;
 
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.Hashtable;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.util.BufferPool;
 import org.beepcore.beep.util.BufferSegment;
 
 /**
@@ -29,6 +46,36 @@ import org.beepcore.beep.util.BufferSegment;
  * <b>Note that this implementation is not synchronized.</b> If
  * multiple threads access a <code>InputDataStream</code>
  * concurrently, data may be inconsistent or lost.
+ * <p>
+ * The segments of received frames may be pooled (see
+ * <code>BufferSegment</code>).  By default a segment returned by
+ * <code>getNextSegment</code> belongs to the caller and is no longer
+ * part of the pool.  After <code>setReleaseOnNext(true)</code> a segment
+ * is only valid until the next call to <code>getNextSegment</code> or
+ * <code>close</code>, at which point it is released back to the pool;
+ * call <code>BufferSegment.retain</code> to keep it longer and
+ * <code>BufferSegment.release</code> when done with it.  The
+ * <code>InputStream</code> returned by <code>getInputStream</code>
+ * always releases the segments it has read.  Code reading the segments
+ * directly must opt in with <code>setReleaseOnNext(true)</code> for their
+ * arrays to be reused; otherwise each array it is handed is left to the
+ * garbage collector.
+ * <p>
+ * A stream may spill received data to a temporary file, see
+ * <code>SessionImpl.setMessageSpillThreshold</code>.  The data is read
+ * back, in order, as it is consumed and the file is deleted when the
+ * stream has been read to its end, is closed or is garbage collected.
+ * <p>
+ * When the channel is aborted, or closed before a message has been
+ * received completely, the stream is closed.  A complete message stays
+ * readable after its channel was closed but no longer counts towards the
+ * session's spill threshold.
+ * <p>
+ * The session's reader adds the segments and a single application thread
+ * consumes them.  They are handed over through a lock free queue and the
+ * available bytes are counted separately by each side, so neither side
+ * waits for the other and a thread waiting for data, possibly a virtual
+ * one, is parked rather than blocked on a monitor.
  *
  * @see org.beepcore.beep.util.BufferSegment
  *
@@ -54,6 +101,8 @@ public class InputDataStream {
     InputDataStream(ChannelImpl channel)
     {
         this.channel = channel;
+        this.session = channel.session;
+        channel.streamOpened(this);
     }
 
     /**
@@ -79,41 +128,68 @@ public class InputDataStream {
         }
     }
 
+    /**
+     * Adds a segment to the stream.  Called by the session's reader.
+     */
     void add(BufferSegment segment)
     {
-        synchronized(this.buffers) {
-            if(this.closed) {
-                if (this.channel != null) {
-                    this.channel.freeReceiveBufferBytes(segment.getLength());
-                }
-                return;
+        if (this.closed) {
+            discard(segment);
+            return;
+        }
+
+        if (spill(segment) == false) {
+            int length = segment.getLength();
+
+            this.memoryAdded += length;
+            this.buffers.add(segment);
+            this.addedBytes += length;
+
+            SessionImpl s = this.session;
+            if (s != null) {
+                s.addBufferedBytes(length);
             }
-            this.buffers.addLast(segment);
-            this.availableBytes += segment.getLength();
-            this.buffers.notify();
+        }
+
+        this.buffers.signal();
+
+        // the stream may have been closed and drained before the segment
+        // was published
+        if (this.closed) {
+            drain();
         }
     }
 
-    synchronized public int available()
+    /**
+     * Spills data added to this stream to a file in <code>directory</code>
+     * once more than <code>threshold</code> bytes are held in memory.
+     * Streams created for a channel take their settings from the session.
+     */
+    void setSpillThreshold(int threshold, File directory)
     {
-        return this.availableBytes;
-//         int bytesAvailable = 0;
+        spillLock.lock();
+        try {
+            this.spillThreshold = threshold;
+            this.spillDirectory = directory;
+        } finally {
+            spillLock.unlock();
+        }
+    }
 
-//         synchronized (this.buffers) {
-//             Iterator i = this.buffers.iterator();
-//             while (i.hasNext()) {
-//                 bytesAvailable += ((BufferSegment) i.next()).getLength();
-//             }
-//         }
+    public int available()
+    {
+        // the counts may be read between the publication of a segment
+        // and its count
+        long n = this.addedBytes - this.removedBytes;
 
-//         return bytesAvailable;
+        return (n <= 0 ? 0 : (int) Math.min(n, Integer.MAX_VALUE));
     }
 
     /**
      * Returns <code>true</code> if a <code>BufferSegment</code> is available
      * to receive.
      */
-    synchronized public boolean availableSegment() {
+    public boolean availableSegment() {
         return (this.buffers.isEmpty() == false);
     }
 
@@ -121,17 +197,40 @@ public class InputDataStream {
      * Indicates that the application is finished receiving data from this
      * stream. If there is more data available the data will be discarded.
      */
-    synchronized public void close() {
+    public void close() {
         this.closed = true;
-        while (this.availableSegment()) {
-            this.getNextSegment();
+        drain();
+        releaseCurrentSegment();
+        finished();
+    }
+
+    /**
+     * Called when the channel of this stream is closed or aborted.  A
+     * stream that is aborted or will not be completed is closed, a
+     * complete one stops counting towards the session's spill threshold.
+     */
+    void channelClosed(boolean aborted) {
+        if (aborted || isComplete() == false) {
+            close();
+            return;
+        }
+
+        SessionImpl s = this.session;
+
+        if (s == null) {
+            return;
         }
+
+        // a consumer that read the session before it was cleared counts
+        // the bytes it removes itself (memoryRemoved is written first)
+        this.session = null;
+        s.addBufferedBytes(-(int) (this.memoryAdded - this.memoryRemoved));
     }
 
     /**
      * Returns an <code>InputStream</code> for reading the data in this stream.
      */
-    synchronized public InputDataStreamAdapter getInputStream()
+    public InputDataStreamAdapter getInputStream()
     {
         if (stream == null) {
             stream = new InputDataStreamAdapter(this);
@@ -140,38 +239,348 @@ public class InputDataStream {
         return stream;
     }
 
+    /**
+     * Returns <code>true</code> if the segment returned by
+     * <code>getNextSegment</code> is released by the next call.
+     *
+     * @see #setReleaseOnNext
+     */
+    public boolean isReleaseOnNext() {
+        return this.releaseOnNext;
+    }
+
+    /**
+     * Sets whether the segment returned by <code>getNextSegment</code> is
+     * released by the next call to <code>getNextSegment</code> or
+     * <code>close</code>.  Releasing lets the arrays of received frames be
+     * reused, the caller must then not use a segment after it has been
+     * released unless it retained it.  The default is <code>false</code>,
+     * in which case the arrays of the segments returned are not reused.
+     */
+    public void setReleaseOnNext(boolean releaseOnNext) {
+        this.releaseOnNext = releaseOnNext;
+    }
+
+    /**
+     * Returns the next <code>BufferSegment</code> in this stream.  The
+     * segment previously returned is released if
+     * <code>isReleaseOnNext</code> is <code>true</code>.
+     *
+     * @throws UncheckedIOException if data spilled to disk can not be
+     *         read back.
+     */
+    public BufferSegment getNextSegment() {
+        return nextSegment(this.releaseOnNext);
+    }
+
     /**
      * Returns the next <code>BufferSegment</code> in this stream.
      *
+     * @param release If <code>true</code> the segment is kept as the
+     *                current one and released by the next call, otherwise
+     *                it is detached from its pool and handed to the
+     *                caller.
      */
-    synchronized public BufferSegment getNextSegment() {
+    BufferSegment nextSegment(boolean release) {
+        Object o = buffers.poll();
         BufferSegment b;
 
-        synchronized (buffers) {
-            b = (BufferSegment) buffers.removeFirst();
+        if (o == null) {
+            throw new NoSuchElementException();
         }
 
-        if (this.channel != null) {
-            this.channel.freeReceiveBufferBytes(b.getLength());
+        if (o instanceof SpillRegion) {
+            // the window was updated when the data was spilled
+            b = readSpilled(coalesce((SpillRegion) o));
+        } else {
+            b = (BufferSegment) o;
+
+            if (this.channel != null) {
+                this.channel.freeReceiveBufferBytes(b.getLength());
+            }
+
+            this.memoryRemoved += b.getLength();
+
+            SessionImpl s = this.session;
+            if (s != null) {
+                s.addBufferedBytes(-b.getLength());
+            }
         }
 
-        this.availableBytes -= b.getLength();
+        this.removedBytes += b.getLength();
+
+        releaseCurrentSegment();
+        if (release) {
+            this.current = b;
+        } else {
+            b.detach();
+        }
 
         return b;
     }
 
+    /**
+     * Returns the next <code>BufferSegment</code> in this stream as a
+     * <code>ByteBuffer</code> slice of the received data.  The buffer is
+     * valid for as long as the segment would be.
+     *
+     * @see #getNextSegment
+     */
+    public ByteBuffer getNextBuffer() {
+        return getNextSegment().asByteBuffer();
+    }
+
+    /**
+     * Waits for the next <code>BufferSegment</code> in this stream and
+     * returns it as a <code>ByteBuffer</code> slice.
+     *
+     * @return null if isComplete() is true.
+     * @see #getNextBuffer
+     */
+    public ByteBuffer waitForNextBuffer()
+        throws InterruptedException
+    {
+        BufferSegment b = waitForNextSegment();
+
+        return b == null ? null : b.asByteBuffer();
+    }
+
     /**
      *
      * @return null if isComplete() is true.
      */
-    synchronized public BufferSegment waitForNextSegment() throws InterruptedException {
-            while (availableSegment() == false) {
-                if (isComplete() == true) {
-                    return null;
+    public BufferSegment waitForNextSegment() throws InterruptedException {
+        if (awaitSegment() == false) {
+            releaseCurrentSegment();
+            return null;
+        }
+        return getNextSegment();
+    }
+
+    /**
+     * Waits until a segment is available or the stream is complete.
+     *
+     * @return <code>false</code> if the stream is complete and no segment
+     *         is available.
+     */
+    boolean awaitSegment() throws InterruptedException {
+        return this.buffers.await();
+    }
+
+    /**
+     * Releases the segment last returned by <code>getNextSegment</code>.
+     */
+    void releaseCurrentSegment() {
+        if (this.current != null) {
+            this.current.release();
+            this.current = null;
+        }
+
+        if (isComplete() && availableSegment() == false) {
+            finished();
+        }
+    }
+
+    /**
+     * Called once the stream has been read to its end or closed.
+     */
+    private void finished() {
+        if (this.spillFile != null) {
+            closeSpillFile();
+        }
+
+        if (this.channel != null && this.done == false) {
+            this.done = true;
+            this.channel.streamClosed(this);
+        }
+    }
+
+    /**
+     * Frees a segment that will not be read.
+     */
+    private void discard(BufferSegment segment) {
+        if (this.channel != null) {
+            this.channel.freeReceiveBufferBytes(segment.getLength());
+        }
+        segment.release();
+    }
+
+    /**
+     * Discards the segments of a closed stream.  Called by
+     * <code>close</code> and by the reader when it added a segment after
+     * the stream was closed.
+     */
+    private void drain() {
+        drainLock.lock();
+        try {
+            Object o;
+
+            while ((o = buffers.poll()) != null) {
+                if (o instanceof SpillRegion) {
+                    // no need to read it back
+                    this.removedBytes += ((SpillRegion) o).length;
+                    continue;
                 }
-                buffers.wait();
+
+                BufferSegment b = (BufferSegment) o;
+
+                this.memoryRemoved += b.getLength();
+
+                SessionImpl s = this.session;
+                if (s != null) {
+                    s.addBufferedBytes(-b.getLength());
+                }
+                this.removedBytes += b.getLength();
+
+                discard(b);
             }
-            return getNextSegment();
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * Appends <code>segment</code> to the spill file if the thresholds
+     * are exceeded.
+     *
+     * @return <code>true</code> if the segment was spilled.
+     */
+    private boolean spill(BufferSegment segment) {
+        int length = segment.getLength();
+
+        if (length == 0) {
+            return false;
+        }
+
+        long memoryBytes = this.memoryAdded - this.memoryRemoved;
+
+        SessionImpl s = this.session;
+
+        if (s != null) {
+            if (s.shouldSpill((int) memoryBytes, length) == false) {
+                return false;
+            }
+        } else if (this.spillThreshold <= 0 ||
+                   memoryBytes + length <= this.spillThreshold)
+        {
+            return false;
+        }
+
+        spillLock.lock();
+        try {
+            // the file is deleted once the stream is closed
+            if (this.closed) {
+                return false;
+            }
+
+            long position;
+
+            try {
+                if (this.spillFile == null) {
+                    File dir = (s != null ? s.getSpillDirectory() :
+                                this.spillDirectory);
+
+                    deleteCollectedSpillFiles();
+
+                    this.spillPath = File.createTempFile("beep", ".spill",
+                                                         dir);
+                    this.spillFile =
+                        new RandomAccessFile(this.spillPath, "rw").getChannel();
+                    this.spillRef = new SpillFileReference(this);
+                    spillFiles.put(this.spillRef, this.spillRef);
+                }
+
+                position = this.spillSize;
+
+                ByteBuffer bb = segment.asByteBuffer();
+                long p = position;
+                while (bb.hasRemaining()) {
+                    p += this.spillFile.write(bb, p);
+                }
+            } catch (IOException e) {
+                log.error("Unable to spill received data, keeping it in " +
+                          "memory", e);
+                return false;
+            }
+
+            this.spillSize += length;
+
+            this.buffers.add(new SpillRegion(position, length));
+            this.addedBytes += length;
+        } finally {
+            spillLock.unlock();
+        }
+
+        segment.release();
+
+        // the data is safe on disk, let the peer send more
+        if (this.channel != null) {
+            this.channel.freeReceiveBufferBytes(length);
+        }
+
+        return true;
+    }
+
+    /**
+     * Merges the regions following <code>r</code> in the queue, they were
+     * written one after the other, to read them back at once.
+     */
+    private SpillRegion coalesce(SpillRegion r) {
+        Object o;
+
+        while ((o = buffers.peek()) instanceof SpillRegion) {
+            SpillRegion next = (SpillRegion) o;
+
+            if (next.position != r.position + r.length ||
+                r.length + next.length > MAX_SPILL_READ)
+            {
+                break;
+            }
+
+            buffers.poll();
+            r.length += next.length;
+        }
+
+        return r;
+    }
+
+    private BufferSegment readSpilled(SpillRegion r) {
+        BufferSegment b = BufferPool.getDefault().allocate(r.length);
+        ByteBuffer bb = ByteBuffer.wrap(b.getData(), 0, r.length);
+
+        try {
+            long p = r.position;
+            while (bb.hasRemaining()) {
+                int n = this.spillFile.read(bb, p);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of spill file");
+                }
+                p += n;
+            }
+        } catch (IOException e) {
+            b.release();
+            throw new UncheckedIOException("Unable to read spilled data", e);
+        }
+
+        return b;
+    }
+
+    private void closeSpillFile() {
+        spillLock.lock();
+        try {
+            if (this.spillFile == null) {
+                return;
+            }
+
+            this.spillRef.delete();
+            this.spillRef = null;
+
+            this.spillFile = null;
+            this.spillPath = null;
+            this.spillSize = 0;
+        } finally {
+            spillLock.unlock();
+        }
     }
 
     public boolean isClosed() {
@@ -183,21 +592,111 @@ public class InputDataStream {
      * those currently available on this stream.  Returns
      * <code>false</code> if more bytes are expected.
      */
-    synchronized public boolean isComplete() {
-        return this.complete;
+    public boolean isComplete() {
+        return this.buffers.isComplete();
     }
 
     void setComplete() {
-        synchronized (this.buffers) {
-            this.complete = true;
-            this.buffers.notify();
+        this.buffers.setComplete();
+    }
+
+    /**
+     * Deletes the spill files of streams that were garbage collected
+     * before being read to their end or closed.
+     */
+    private static void deleteCollectedSpillFiles() {
+        SpillFileReference r;
+
+        while ((r = (SpillFileReference) collected.poll()) != null) {
+            r.delete();
+        }
+    }
+
+    /**
+     * The spill file of a stream, deleted when the stream is done with it
+     * or has been garbage collected.
+     */
+    private static class SpillFileReference extends WeakReference {
+        private final FileChannel file;
+        private final File path;
+
+        SpillFileReference(InputDataStream stream) {
+            super(stream, collected);
+            this.file = stream.spillFile;
+            this.path = stream.spillPath;
+        }
+
+        void delete() {
+            if (spillFiles.remove(this) == null) {
+                return;
+            }
+            clear();
+
+            try {
+                this.file.close();
+            } catch (IOException e) {
+                LogFactory.getLog(InputDataStream.class)
+                    .error("Error closing spill file", e);
+            }
+            this.path.delete();
+        }
+    }
+
+    /**
+     * Bytes of the stream held in the spill file.
+     */
+    private static class SpillRegion {
+        long position;
+        int length;
+
+        SpillRegion(long position, int length) {
+            this.position = position;
+            this.length = length;
         }
     }
 
-    LinkedList buffers = new LinkedList();
-    private int availableBytes = 0;
+    private static final ReferenceQueue collected = new ReferenceQueue();
+
+    /** keeps the references of the spill files not yet deleted */
+    private static final Hashtable spillFiles = new Hashtable();
+
+    /** largest region read back from the spill file at once */
+    private static final int MAX_SPILL_READ = 64 * 1024;
+
+    private Log log = LogFactory.getLog(this.getClass());
+
+    /** segments and <code>SpillRegion</code>s in the order received */
+    private final SegmentQueue buffers = new SegmentQueue();
+
+    /** bytes added, written by the reader only */
+    private volatile long addedBytes = 0;
+
+    /** bytes consumed or discarded, written by the consumer only */
+    private volatile long removedBytes = 0;
+
+    /** bytes added in memory, read and written by the reader only */
+    private long memoryAdded = 0;
+
+    /** bytes consumed from memory, written by the consumer only */
+    private volatile long memoryRemoved = 0;
+
+    /** guards the spill file, which is created by the reader */
+    private final ReentrantLock spillLock = new ReentrantLock();
+
+    /** the reader and the consumer drain a closed stream one at a time */
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+    private BufferSegment current = null;
+    private boolean releaseOnNext = false;
     private ChannelImpl channel = null;
-    private boolean closed = false;
-    private boolean complete = false;
+    private volatile SessionImpl session = null;
+    private int spillThreshold = 0;
+    private File spillDirectory = null;
+    private File spillPath = null;
+    private volatile FileChannel spillFile = null;
+    private SpillFileReference spillRef = null;
+    private long spillSize = 0;
+    private volatile boolean closed = false;
+    private boolean done = false;
     private InputDataStreamAdapter stream = null;
 }
@@ -16,11 +16,9 @@
  */
 package org.beepcore.beep.core;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.UncheckedIOException;
 import java.util.Enumeration;
-import java.util.Hashtable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,9 +34,9 @@ public class InputDataStreamAdapter extends java.io.InputStream {
 
     public int available()
     {
-        if (this.state != STATE_HEADERS_PARSED) {
+        if (this.mimeHeaders == null) {
             parseHeaders();
-            if (this.state != STATE_HEADERS_PARSED) {
+            if (this.mimeHeaders == null) {
                 return 0;
             }
         }
@@ -55,6 +53,8 @@ public class InputDataStreamAdapter extends java.io.InputStream {
 
     public void close()
     {
+        curBuf = zeroLength;
+        pos = 0;
         ids.close();
     }
 
@@ -85,9 +85,17 @@ public class InputDataStreamAdapter extends java.io.InputStream {
      */
     public String getHeaderValue(String name) throws BEEPException
     {
-        waitAvailable();
+        try {
+            waitAvailable();
+        } catch (IOException e) {
+            throw new BEEPException(e);
+        }
+
+        if (this.mimeHeaders == null) {
+            return null;
+        }
 
-        return (String) this.mimeHeaders.get(name);
+        return this.mimeHeaders.get(name);
     }
 
     /**
@@ -100,9 +108,17 @@ public class InputDataStreamAdapter extends java.io.InputStream {
      */
     public Enumeration getHeaderNames() throws BEEPException
     {
-        waitAvailable();
+        try {
+            waitAvailable();
+        } catch (IOException e) {
+            throw new BEEPException(e);
+        }
 
-        return this.mimeHeaders.keys();
+        if (this.mimeHeaders == null) {
+            return new HeaderMap().names();
+        }
+
+        return this.mimeHeaders.names();
     }
 
     /**
@@ -121,6 +137,11 @@ public class InputDataStreamAdapter extends java.io.InputStream {
 
     public int read() throws IOException
     {
+        // the segment being read needs no help from the stream
+        if (pos < curBuf.getLength() && mimeHeaders != null) {
+            return curBuf.getData()[curBuf.getOffset() + pos++] & 0xff;
+        }
+
         if (waitAvailable() == -1) {
             return -1;
         }
@@ -140,6 +161,10 @@ public class InputDataStreamAdapter extends java.io.InputStream {
 
         int bytesRead = 0;
         while (bytesRead < len) {
+            // return what was read before the error, the next read throws
+            if (bytesRead != 0 && error != null) {
+                break;
+            }
             if (waitAvailable() == -1) {
                 if (bytesRead == 0) {
                     return -1;
@@ -189,9 +214,10 @@ public class InputDataStreamAdapter extends java.io.InputStream {
      * This version of read() does not block if there are no bytes
      * available.
      */
-    private int internalRead()
+    private int internalRead() throws IOException
     {
         if (setNextBuffer() == false) {
+            checkError();
             return -1;
         }
 
@@ -226,159 +252,41 @@ public class InputDataStreamAdapter extends java.io.InputStream {
         return bytesRead;
     }
 
+    /**
+     * Parses the headers in the segments received so far.
+     */
     private void parseHeaders()
     {
-        while (true) {
-            switch (state) {
-            case STATE_INIT:
-                state = STATE_PARSING_NAME;
-                break;
-            case STATE_PARSING_NAME:
-                parseName();
-                if (state == STATE_PARSING_NAME) {
-                    return;
-                }
-                break;
-            case STATE_PARSING_NAME_TERMINATOR:
-                parseNameTerminator();
-                if (state == STATE_PARSING_NAME_TERMINATOR) {
-                    return;
-                }
-                break;
-            case STATE_PARSING_VALUE:
-                parseValue();
-                if (state == STATE_PARSING_VALUE) {
-                    return;
-                }
-                break;
-            case STATE_PARSING_VALUE_TERMINATOR:
-                parseValueTerminator();
-                if (state == STATE_PARSING_VALUE_TERMINATOR) {
-                    return;
-                }
-                break;
-            case STATE_PARSING_HEADERS_TERMINATOR:
-                parseHeadersTerminator();
-                if (state == STATE_PARSING_HEADERS_TERMINATOR) {
-                    return;
-                }
-                break;
-            case STATE_HEADERS_PARSED:
-                return;
-            }
-        }
-    }
-
-    private void parseHeadersTerminator()
-    {
-        int b = internalRead(); // move off of the LF
-        if (b == -1) {
-            return;
-        }
-
-        if (this.mimeHeaders.get(MimeHeaders.CONTENT_TYPE) == null) {
-            this.mimeHeaders.put(MimeHeaders.CONTENT_TYPE,
-                                 MimeHeaders.DEFAULT_CONTENT_TYPE);
-        }
-
-        if (mimeHeaders.get(MimeHeaders.CONTENT_TRANSFER_ENCODING) == null) {
-            mimeHeaders.put(MimeHeaders.CONTENT_TRANSFER_ENCODING,
-                            MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING);
-        }
-
-        state = STATE_HEADERS_PARSED;
-    }
-
-    private void parseName()
-    {
-        int b = internalRead();
-        if (b == -1) {
-            return;
-        }
-
-        if (b == COLON) {
-	    state = STATE_PARSING_NAME_TERMINATOR;
-	    return;
-        }
-
-        if (b == CR) {
-            state = STATE_PARSING_HEADERS_TERMINATOR;
-            return;
-        }
-
-        name.write((byte) b);
-
-        // find the ':'
-        while (true) {
-            b = internalRead();
-            if (b == -1) {
-                return;
-            }
-
-            if (b == COLON) {
-                state = STATE_PARSING_NAME_TERMINATOR;
-                return;
-            }
-
-            name.write((byte) b);
-        }
-    }
-
-    private void parseNameTerminator()
-    {
-        int b = internalRead(); // we are pointing to ':' move off of ' '
-        if (b == -1) {
-            return;
-        }
-        state = STATE_PARSING_VALUE;
-    }
+        while (setNextBuffer()) {
+            int n = parser.parse(curBuf.getData(), curBuf.getOffset() + pos,
+                                 curBuf.getLength() - pos);
 
-    private void parseValue()
-    {
-        while (true) {
-            int b = internalRead();
-            if (b == -1) {
-                return;
-            }
+            pos += n;
 
-            if (b == CR) {
-                state = STATE_PARSING_VALUE_TERMINATOR;
+            if (parser.isDone()) {
+                mimeHeaders = parser.getHeaders();
+                parser = null;
                 return;
             }
-
-            value.write((byte) b);
         }
     }
 
-    private void parseValueTerminator()
-    {
-        int b = internalRead(); // move off of LF
-        if (b == -1) {
-            return;
-        }
-
-        try {
-            this.mimeHeaders.put(name.toString("UTF-8"),
-                                 value.toString("UTF-8"));
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("UTF-8 not supported");
-        }
-        name.reset();
-        value.reset();
-        state = STATE_PARSING_NAME;
-    }
-
     /**
      * If there are no bytes remaining in the current buffer move to
      * the next one if it exists.
      */
     private boolean setNextBuffer() {
         while (pos == curBuf.getLength()) {
-            if (ids.availableSegment() == false) {
+            if (error != null || ids.availableSegment() == false) {
                 return false;
             }
 
-            curBuf = ids.getNextSegment();
+            try {
+                curBuf = ids.nextSegment(true);
+            } catch (UncheckedIOException e) {
+                error = e.getCause();
+                return false;
+            }
             pos = 0;
         }
 
@@ -388,33 +296,54 @@ public class InputDataStreamAdapter extends java.io.InputStream {
     /**
      * Wait until available() != 0
      */
-    private int waitAvailable() {
+    private int waitAvailable() throws IOException {
         int n;
 
+        if (pos < curBuf.getLength() && mimeHeaders != null) {
+            return curBuf.getLength() - pos;
+        }
+
         if ((n = available()) > 0) {
+            checkError();
             return n;
         }
 
-        synchronized (ids.buffers) {
-            while ((n = available()) == 0) {
+        while ((n = available()) == 0) {
+            checkError();
 
-                if (ids.isComplete() == true) {
+            // a segment may have been added before the stream completed
+            if (ids.isComplete() == true && ids.availableSegment() == false) {
 
-                    // no more bytes to read() and none are
-                    // expected, return -1
-                    return -1;
+                // no more bytes to read() and none are
+                // expected, return -1
+                if (curBuf != zeroLength) {
+                    curBuf = zeroLength;
+                    pos = 0;
+                    ids.releaseCurrentSegment();
                 }
+                return -1;
+            }
 
-                // no bytes available to read, but more are
-                // expected... block
-                try {
-                    ids.buffers.wait();
-                } catch (InterruptedException e) {
-                    log.error("waiting for buffer", e);
-                }
+            // no bytes available to read, but more are
+            // expected... block
+            try {
+                ids.awaitSegment();
+            } catch (InterruptedException e) {
+                log.error("waiting for buffer", e);
             }
+        }
 
-            return n;
+        checkError();
+        return n;
+    }
+
+    /**
+     * Throws the error met reading the stream once the bytes read before
+     * it have been consumed.
+     */
+    private void checkError() throws IOException {
+        if (error != null && pos == curBuf.getLength()) {
+            throw error;
         }
     }
 
@@ -423,25 +352,14 @@ public class InputDataStreamAdapter extends java.io.InputStream {
     private int pos = 0;
     private BufferSegment curBuf = zeroLength;
 
-    private static final int LF = 10;
-    private static final int CR = 13;
-    private static final int COLON = 58;
+    private Log log = LogFactory.getLog(this.getClass());
 
-    private static final int STATE_INIT = 0;
-    private static final int STATE_PARSING_NAME = 1;
-    private static final int STATE_PARSING_NAME_TERMINATOR = 2;
-    private static final int STATE_PARSING_VALUE = 3;
-    private static final int STATE_PARSING_VALUE_TERMINATOR = 4;
-    private static final int STATE_PARSING_HEADERS_TERMINATOR = 5;
-    private static final int STATE_HEADERS_PARSED = 6;
+    private MimeHeaderParser parser = new MimeHeaderParser();
 
-    private Log log = LogFactory.getLog(this.getClass());
+    /** error reading data the stream spilled to disk */
+    private IOException error = null;
 
-    private int state = STATE_INIT;
-    private ByteArrayOutputStream name = new ByteArrayOutputStream(32);
-    private ByteArrayOutputStream value = new ByteArrayOutputStream(32);
-    private static final int DEFAULT_HEADER_TABLE_SIZE = 2;
-    private Hashtable mimeHeaders =
-        new Hashtable(DEFAULT_HEADER_TABLE_SIZE);
+    /** <code>null</code> until the headers have been parsed */
+    private HeaderMap mimeHeaders = null;
     private InputDataStream ids;
 }
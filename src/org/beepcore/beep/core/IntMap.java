@@ -0,0 +1,185 @@
+/*
+ * IntMap.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+/**
+ * A map from <code>int</code> keys to objects, used to find messages by
+ * msgno or ansno without boxing the key or walking a list.
+ * <p>
+ * An open addressing hash table with linear probing.  Removal shifts the
+ * following entries of the probe sequence back so no markers are left
+ * behind.  It is not synchronized, callers lock as they did for the lists
+ * the map replaces.
+ */
+class IntMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys = new int[MIN_CAPACITY];
+
+    /** a <code>null</code> value marks a free slot */
+    private Object[] values = new Object[MIN_CAPACITY];
+
+    private int size = 0;
+
+    /**
+     * Returns the value for <code>key</code> or <code>null</code>.
+     */
+    Object get(int key)
+    {
+        int mask = keys.length - 1;
+
+        for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Maps <code>key</code> to <code>value</code>.
+     *
+     * @return the previous value for <code>key</code> or <code>null</code>.
+     */
+    Object put(int key, Object value)
+    {
+        if (value == null) {
+            throw new IllegalArgumentException("null value");
+        }
+
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                Object previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+
+        keys[i] = key;
+        values[i] = value;
+
+        if (++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes the mapping for <code>key</code>.
+     *
+     * @return the removed value or <code>null</code>.
+     */
+    Object remove(int key)
+    {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+
+        while (true) {
+            if (values[i] == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+
+        Object removed = values[i];
+
+        // move back the entries that would no longer be found past the
+        // free slot
+        int j = i;
+        while (true) {
+            values[i] = null;
+
+            int home;
+            do {
+                j = (j + 1) & mask;
+                if (values[j] == null) {
+                    --size;
+                    return removed;
+                }
+                home = hash(keys[j]) & mask;
+            } while (i <= j ? (i < home && home <= j)
+                            : (i < home || home <= j));
+
+            keys[i] = keys[j];
+            values[i] = values[j];
+            i = j;
+        }
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    void clear()
+    {
+        keys = new int[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+        size = 0;
+    }
+
+    private void resize(int capacity)
+    {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        int mask = capacity - 1;
+
+        keys = new int[capacity];
+        values = new Object[capacity];
+
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldValues[i] == null) {
+                continue;
+            }
+
+            int j = hash(oldKeys[i]) & mask;
+            while (values[j] != null) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    private static int hash(int key)
+    {
+        // msgnos and ansnos are mostly consecutive, spread them over the
+        // table
+        int h = key * 0x9E3779B9;
+
+        return h ^ (h >>> 16);
+    }
+}
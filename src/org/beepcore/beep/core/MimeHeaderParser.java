@@ -0,0 +1,241 @@
+/*
+ * MimeHeaderParser.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.nio.charset.Charset;
+
+
+/**
+ * Parses the MIME entity headers at the start of a message's payload as
+ * its segments arrive.
+ * <p>
+ * Each call scans a whole segment for the end of the next line, a header
+ * split across segments is kept until the rest of it arrives.  The well
+ * known names and values are interned rather than decoded, and a payload
+ * starting with the empty line, a message without headers, gets the
+ * shared default headers without anything being allocated.
+ */
+class MimeHeaderParser {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte COLON = ':';
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** names and values returned as is when they are received */
+    private static final String[] WELL_KNOWN = {
+        MimeHeaders.CONTENT_TYPE,
+        MimeHeaders.CONTENT_TRANSFER_ENCODING,
+        MimeHeaders.DEFAULT_CONTENT_TYPE,
+        MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING,
+        MimeHeaders.BEEP_XML_CONTENT_TYPE
+    };
+
+    private static final byte[][] WELL_KNOWN_BYTES =
+        new byte[WELL_KNOWN.length][];
+
+    static {
+        for (int i = 0; i < WELL_KNOWN.length; ++i) {
+            WELL_KNOWN_BYTES[i] = WELL_KNOWN[i].getBytes(UTF8);
+        }
+    }
+
+    private HeaderMap headers = null;
+
+    /** the start of a line received in an earlier segment */
+    private byte[] line = null;
+    private int lineLength = 0;
+
+    private boolean done = false;
+
+    /**
+     * Parses the headers in <code>len</code> bytes of <code>b</code>
+     * starting at <code>off</code>.
+     *
+     * @return the number of bytes consumed, all of them unless the end
+     *         of the headers was found.
+     */
+    int parse(byte[] b, int off, int len)
+    {
+        int end = off + len;
+        int i = off;
+
+        // the empty line alone, no headers
+        if (headers == null && lineLength == 0 && len >= 2 &&
+            b[off] == CR && b[off + 1] == LF)
+        {
+            done = true;
+            return 2;
+        }
+
+        while (i < end) {
+            int lf = indexOf(b, i, end, LF);
+
+            if (lf == -1) {
+                append(b, i, end - i);
+                return len;
+            }
+
+            byte[] src;
+            int start;
+            int length;
+
+            if (lineLength > 0) {
+                append(b, i, lf - i);
+                src = line;
+                start = 0;
+                length = lineLength;
+                lineLength = 0;
+            } else {
+                src = b;
+                start = i;
+                length = lf - i;
+            }
+
+            i = lf + 1;
+
+            if (length > 0 && src[start + length - 1] == CR) {
+                --length;
+            }
+
+            if (length == 0) {
+                done = true;
+                line = null;
+                return i - off;
+            }
+
+            addHeader(src, start, length);
+        }
+
+        return len;
+    }
+
+    /**
+     * Returns <code>true</code> once the empty line ending the headers has
+     * been parsed.
+     */
+    boolean isDone()
+    {
+        return done;
+    }
+
+    /**
+     * Returns the headers parsed, with the default
+     * <code>Content-Type</code> and <code>Content-Transfer-Encoding</code>
+     * if they were not received.
+     */
+    HeaderMap getHeaders()
+    {
+        if (headers == null) {
+            return HeaderMap.DEFAULTS;
+        }
+
+        if (headers.get(MimeHeaders.CONTENT_TYPE) == null) {
+            headers.put(MimeHeaders.CONTENT_TYPE,
+                        MimeHeaders.DEFAULT_CONTENT_TYPE);
+        }
+
+        if (headers.get(MimeHeaders.CONTENT_TRANSFER_ENCODING) == null) {
+            headers.put(MimeHeaders.CONTENT_TRANSFER_ENCODING,
+                        MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING);
+        }
+
+        return headers;
+    }
+
+    /**
+     * Adds the header <code>name: value</code>, lines without a colon
+     * are ignored.
+     */
+    private void addHeader(byte[] b, int off, int len)
+    {
+        int end = off + len;
+        int colon = indexOf(b, off, end, COLON);
+
+        if (colon == -1) {
+            return;
+        }
+
+        int v = colon + 1;
+
+        while (v < end && (b[v] == ' ' || b[v] == '\t')) {
+            ++v;
+        }
+
+        if (headers == null) {
+            headers = new HeaderMap();
+        }
+
+        headers.put(decode(b, off, colon - off), decode(b, v, end - v));
+    }
+
+    private void append(byte[] b, int off, int len)
+    {
+        if (line == null || lineLength + len > line.length) {
+            byte[] l = new byte[Math.max(64, (lineLength + len) * 2)];
+
+            if (lineLength > 0) {
+                System.arraycopy(line, 0, l, 0, lineLength);
+            }
+            line = l;
+        }
+
+        System.arraycopy(b, off, line, lineLength, len);
+        lineLength += len;
+    }
+
+    private static String decode(byte[] b, int off, int len)
+    {
+        for (int i = 0; i < WELL_KNOWN_BYTES.length; ++i) {
+            byte[] k = WELL_KNOWN_BYTES[i];
+
+            if (k.length == len && regionMatches(b, off, k)) {
+                return WELL_KNOWN[i];
+            }
+        }
+
+        return new String(b, off, len, UTF8);
+    }
+
+    private static boolean regionMatches(byte[] b, int off, byte[] k)
+    {
+        for (int i = 0; i < k.length; ++i) {
+            if (b[off + i] != k[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int indexOf(byte[] b, int from, int to, byte c)
+    {
+        for (int i = from; i < to; ++i) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -1,11 +1,24 @@
 package org.beepcore.beep.core;
 
 
+import java.nio.charset.Charset;
+
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Vector;
 
 import org.beepcore.beep.util.BufferSegment;
 
+/**
+ * The MIME entity headers of an outbound message.
+ * <p>
+ * <code>Content-Type</code> and <code>Content-Transfer-Encoding</code>
+ * are kept in fields, other headers in a map created when the first one
+ * is set.  The encoded headers are cached until a header changes, and
+ * the usual cases, the default headers and
+ * <code>application/beep+xml</code> with the default encoding, share
+ * segments encoded once.  The segments returned by
+ * <code>getBufferSegment</code> must not be modified.
+ */
 public class MimeHeaders {
     /**
      * The default <code>DataStream</code> content type
@@ -38,19 +51,26 @@ public class MimeHeaders {
 
     private static final String NAME_VALUE_SEPARATOR = ": ";
     private static final String HEADER_SUFFIX = "\r\n";
-    private static final int HEADER_FORMAT_LENGTH =
-        NAME_VALUE_SEPARATOR.length() + HEADER_SUFFIX.length();
 
-    // guessing most hashtables will only contain the 2 default values
-    private static final int DEFAULT_HEADER_TABLE_SIZE = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** the default headers, which are not sent, leaving the empty line */
+    private static final BufferSegment DEFAULT_HEADERS =
+        new BufferSegment(HEADER_SUFFIX.getBytes(UTF8));
 
-    private static final int MAX_BUFFER_SIZE = 128;
+    private static final BufferSegment BEEP_XML_HEADERS =
+        new BufferSegment((CONTENT_TYPE + NAME_VALUE_SEPARATOR +
+                           BEEP_XML_CONTENT_TYPE + HEADER_SUFFIX +
+                           HEADER_SUFFIX).getBytes(UTF8));
 
-    // length of header portion of data stream
-    private int lenHeaders = HEADER_SUFFIX.length();
+    private String contentType = null;
+    private String transferEncoding = null;
 
-    private Hashtable mimeHeadersTable =
-        new Hashtable(DEFAULT_HEADER_TABLE_SIZE);
+    /** headers other than the two above, <code>null</code> if none */
+    private HeaderMap otherHeaders = null;
+
+    /** the encoded headers, <code>null</code> once a header changed */
+    private BufferSegment encoded = null;
 
     /**
      * Creates <code>MimeHeaders</code> using the default content type
@@ -99,9 +119,17 @@ public class MimeHeaders {
      *
      * @throws BEEPException
      */
-    public String getHeaderValue(String name)
+    public synchronized String getHeaderValue(String name)
     {
-        return (String) this.mimeHeadersTable.get(name);
+        if (isContentType(name)) {
+            return this.contentType;
+        }
+
+        if (isTransferEncoding(name)) {
+            return this.transferEncoding;
+        }
+
+        return (otherHeaders == null ? null : otherHeaders.get(name));
     }
 
     /**
@@ -113,9 +141,25 @@ public class MimeHeaders {
      * @return An <code>Enumeration</code> of all the MIME entity header
      * names.
      */
-    public Enumeration getHeaderNames()
+    public synchronized Enumeration getHeaderNames()
     {
-        return this.mimeHeadersTable.keys();
+        Vector names = new Vector();
+
+        if (this.contentType != null) {
+            names.add(CONTENT_TYPE);
+        }
+
+        if (this.transferEncoding != null) {
+            names.add(CONTENT_TRANSFER_ENCODING);
+        }
+
+        if (this.otherHeaders != null) {
+            for (int i = 0; i < otherHeaders.size(); ++i) {
+                names.add(otherHeaders.getName(i));
+            }
+        }
+
+        return names.elements();
     }
 
     /**
@@ -137,33 +181,29 @@ public class MimeHeaders {
      * @return Returns </code>true<code> if header was removed.  Otherwise,
      * returns <code>false</code>.
      */
-    public boolean removeHeader(String name)
+    public synchronized boolean removeHeader(String name)
     {
-        String value = (String) mimeHeadersTable.get(name);
-
         /**
          * @todo change to not allow the removal of content-type and
          * transfer-encoding.
          */
-        if (value != null) {
-            if (this.mimeHeadersTable.remove(name) != null) {
-                if ((name.equals(CONTENT_TYPE) &&
-                     value.equals(DEFAULT_CONTENT_TYPE))
-                    || (name.equals(CONTENT_TRANSFER_ENCODING)
-                        && value.equals(DEFAULT_CONTENT_TRANSFER_ENCODING)))
-                {
-
-                    // don't decrement the length, these are default values
-                } else {
-                    this.lenHeaders -= name.length() + value.length()
-                                       + MimeHeaders.HEADER_FORMAT_LENGTH;
-                }
-
-                return true;
+        if (isContentType(name)) {
+            if (this.contentType == null) {
+                return false;
+            }
+            this.contentType = null;
+        } else if (isTransferEncoding(name)) {
+            if (this.transferEncoding == null) {
+                return false;
             }
+            this.transferEncoding = null;
+        } else if (otherHeaders == null || otherHeaders.remove(name) == null) {
+            return false;
         }
 
-        return false;
+        this.encoded = null;
+
+        return true;
     }
 
     /**
@@ -182,23 +222,24 @@ public class MimeHeaders {
      * @param name  Name of the MIME enitity header.
      * @param value Value of the MIME entity header.
      */
-    public void setHeader(String name, String value)
+    public synchronized void setHeader(String name, String value)
     {
-        if (this.mimeHeadersTable.containsKey(name)) {
-            removeHeader(name);
+        if (value == null) {
+            throw new NullPointerException();
         }
 
-        this.mimeHeadersTable.put(name, value);
-
-        if ((name.equals(CONTENT_TYPE) && value.equals(DEFAULT_CONTENT_TYPE))
-                || (name.equals(CONTENT_TRANSFER_ENCODING)
-                    && value.equals(DEFAULT_CONTENT_TRANSFER_ENCODING))) {
-
-            // these are default values, don't add to len
+        if (isContentType(name)) {
+            this.contentType = value;
+        } else if (isTransferEncoding(name)) {
+            this.transferEncoding = value;
         } else {
-            this.lenHeaders += name.length() + value.length()
-                               + MimeHeaders.HEADER_FORMAT_LENGTH;
+            if (this.otherHeaders == null) {
+                this.otherHeaders = new HeaderMap(1);
+            }
+            this.otherHeaders.put(name, value);
         }
+
+        this.encoded = null;
     }
 
     /**
@@ -211,62 +252,126 @@ public class MimeHeaders {
         this.setHeader(CONTENT_TRANSFER_ENCODING, transferEncoding);
     }
 
-    public BufferSegment getBufferSegment() {
-        byte[] headersBytes = new byte[this.lenHeaders];
+    /**
+     * Returns the headers encoded as they are sent, followed by the empty
+     * line separating them from the data.  Headers with their default
+     * values are left out.
+     */
+    public synchronized BufferSegment getBufferSegment() {
+        if (this.encoded == null) {
+            this.encoded = encode();
+        }
+
+        return this.encoded;
+    }
+
+    private BufferSegment encode() {
+        boolean defaultType = DEFAULT_CONTENT_TYPE.equals(contentType);
+        boolean defaultEncoding =
+            DEFAULT_CONTENT_TRANSFER_ENCODING.equals(transferEncoding);
+
+        if (defaultEncoding &&
+            (otherHeaders == null || otherHeaders.size() == 0))
+        {
+            if (defaultType) {
+                return DEFAULT_HEADERS;
+            }
+
+            if (BEEP_XML_CONTENT_TYPE.equals(contentType)) {
+                return BEEP_XML_HEADERS;
+            }
+        }
 
-        int offsetHeaders = 0;
+        String[] names = new String[2 + (otherHeaders == null ? 0 :
+                                         otherHeaders.size())];
+        String[] values = new String[names.length];
+        int count = 0;
+
+        if (contentType != null && defaultType == false) {
+            names[count] = CONTENT_TYPE;
+            values[count++] = contentType;
+        }
+
+        if (transferEncoding != null && defaultEncoding == false) {
+            names[count] = CONTENT_TRANSFER_ENCODING;
+            values[count++] = transferEncoding;
+        }
+
+        for (int i = 0; otherHeaders != null && i < otherHeaders.size(); ++i) {
+            names[count] = otherHeaders.getName(i);
+            values[count++] = otherHeaders.getValue(i);
+        }
 
-        // read the headers
-        Enumeration headers = mimeHeadersTable.keys();
+        int length = HEADER_SUFFIX.length();
 
-        while (headers.hasMoreElements()) {
-            String name = (String) headers.nextElement();
-            String value = (String) mimeHeadersTable.get(name);
+        for (int i = 0; i < count; ++i) {
+            length += names[i].length() + NAME_VALUE_SEPARATOR.length() +
+                values[i].length() + HEADER_SUFFIX.length();
+        }
 
-            if ((name.equals(CONTENT_TYPE) &&
-                 value.equals(DEFAULT_CONTENT_TYPE)) ||
-                (name.equals(CONTENT_TRANSFER_ENCODING) &&
-                 value.equals(DEFAULT_CONTENT_TRANSFER_ENCODING))) {
+        byte[] b = new byte[length];
+        int off = 0;
 
-                // these are default values that don't need to be added
-                // to the payload
-                continue;
+        for (int i = 0; i < count; ++i) {
+            off = copy(names[i], b, off);
+            off = copy(NAME_VALUE_SEPARATOR, b, off);
+            off = copy(values[i], b, off);
+            off = copy(HEADER_SUFFIX, b, off);
+            if (off == -1) {
+                return encodeUTF8(names, values, count);
             }
+        }
 
-            // copy name
-            System.arraycopy(name.getBytes(), 0, headersBytes,
-                             offsetHeaders, name.length());
+        // the CRLF that separates the headers and the data
+        copy(HEADER_SUFFIX, b, off);
 
-            offsetHeaders += name.length();
+        return new BufferSegment(b);
+    }
 
-            // ": "
-            System.arraycopy(NAME_VALUE_SEPARATOR.getBytes(), 0,
-                             headersBytes, offsetHeaders,
-                             NAME_VALUE_SEPARATOR.length());
+    /**
+     * Copies the US-ASCII string <code>s</code> into <code>b</code>.
+     *
+     * @return the offset following the copied bytes, -1 if <code>s</code>
+     *         is not US-ASCII or <code>off</code> was -1.
+     */
+    private static int copy(String s, byte[] b, int off) {
+        if (off == -1) {
+            return -1;
+        }
 
-            offsetHeaders += NAME_VALUE_SEPARATOR.length();
+        int n = s.length();
 
-            // copy value
-            System.arraycopy(value.getBytes(), 0, headersBytes,
-                             offsetHeaders, value.length());
+        for (int i = 0; i < n; ++i) {
+            char c = s.charAt(i);
 
-            offsetHeaders += value.length();
+            if (c >= 0x80) {
+                return -1;
+            }
+            b[off++] = (byte) c;
+        }
+
+        return off;
+    }
 
-            // CRLF
-            System.arraycopy(MimeHeaders.HEADER_SUFFIX.getBytes(), 0,
-                             headersBytes, offsetHeaders,
-                             MimeHeaders.HEADER_SUFFIX.length());
+    private static BufferSegment encodeUTF8(String[] names, String[] values,
+                                            int count) {
+        StringBuffer sb = new StringBuffer();
 
-            offsetHeaders += MimeHeaders.HEADER_SUFFIX.length();
+        for (int i = 0; i < count; ++i) {
+            sb.append(names[i]).append(NAME_VALUE_SEPARATOR)
+                .append(values[i]).append(HEADER_SUFFIX);
         }
+        sb.append(HEADER_SUFFIX);
 
-        // read the CRLF that separates the headers and the data
-        System.arraycopy(MimeHeaders.HEADER_SUFFIX.getBytes(), 0,
-                         headersBytes, offsetHeaders,
-                         MimeHeaders.HEADER_SUFFIX.length());
+        return new BufferSegment(sb.toString().getBytes(UTF8));
+    }
 
-        offsetHeaders += MimeHeaders.HEADER_SUFFIX.length();
+    private static boolean isContentType(String name) {
+        return name == CONTENT_TYPE || CONTENT_TYPE.equals(name);
+    }
 
-        return new BufferSegment(headersBytes);
+    private static boolean isTransferEncoding(String name) {
+        return name == CONTENT_TRANSFER_ENCODING ||
+            CONTENT_TRANSFER_ENCODING.equals(name);
     }
 }
@@ -0,0 +1,711 @@
+/*
+ * OutboundQueue.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.util.BufferSegment;
+
+
+/**
+ * Queue of the frames and transport specific segments (e.g. TCP
+ * <code>SEQ</code> frames) waiting to be written for a session.
+ * <p>
+ * Senders add to the queue and one of them, the drainer, writes
+ * what is pending, many frames per call to
+ * <code>SessionImpl.writeSegments</code>.  Senders arriving while a write
+ * is in progress leave their frames for the drainer, so under load many
+ * frames go out per write.  When the drain is delayed is controlled by the
+ * session's flush policy.
+ * <p>
+ * A sender returns as soon as its frame is queued if another is
+ * draining, while the drainer writes the frames of other channels still
+ * holding the <code>sendLock</code> of the channel it sent on.  So that a
+ * sender is not held writing for others for long, the drainer writes at
+ * most <code>MAX_DRAIN_WRITES</code> batches and then hands what is left
+ * to the session's dispatcher.  <code>flush</code> writes everything.
+ * <p>
+ * What goes into each write is chosen by a deficit round robin scheduler.
+ * Channel zero frames and transport segments are always written first.
+ * Each other channel with frames waiting has its own queue, and a write
+ * takes up to <code>QUANTUM</code> times the channel's send weight bytes
+ * from each queue per round.  A write stops after
+ * <code>MAX_BATCH_BYTES</code>.  The frames of a channel that is sending
+ * in bulk therefore do not hold back a channel that has just been given
+ * window by the peer.  Frames are only built once the peer's window
+ * allows it, so a queue never holds more than the peer's window for the
+ * channel.
+ * <p>
+ * Transport segments are never held by the flush policy: a
+ * <code>SEQ</code> gives the peer window, so delaying it could stall the
+ * peer.  Frames held by <code>FLUSH_CORK</code> are written after the
+ * delay on the session's dispatcher.  The delays of all the sessions are
+ * timed by one shared thread, which never writes itself.
+ */
+class OutboundQueue {
+
+    private static final int DEFAULT_CORK_THRESHOLD = 16 * 1024;
+    private static final long DEFAULT_CORK_DELAY = 200 * 1000;
+
+    /** batches a sender writes before handing the drain off */
+    static final int MAX_DRAIN_WRITES = 4;
+
+    private static final String CORK_TIMER_NAME = "BEEP Cork Timer";
+
+    /** times the cork delays of all the sessions */
+    private static ScheduledThreadPoolExecutor corkTimer = null;
+
+    /** bytes a channel of weight 1 may send per round */
+    private static final int QUANTUM = 8 * 1024;
+
+    /** bytes after which a write is started with what was scheduled */
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private SessionImpl session;
+
+    /** channel zero frames and transport segments */
+    private ArrayDeque priority = new ArrayDeque();
+
+    /** the <code>ChannelQueue</code>s with frames, in round robin order */
+    private ArrayDeque active = new ArrayDeque();
+
+    private int pendingBytes = 0;
+    private boolean draining = false;
+    private Thread lingerThread = null;
+
+    /** a transport segment is waiting, the linger ends early */
+    private boolean urgent = false;
+
+    /** the pending cork flush, <code>null</code> if none */
+    private ScheduledFuture corkFlush = null;
+
+    /** run on the session's dispatcher when the corked frames are due */
+    private final Runnable corkFlusher = new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                } catch (BEEPException e) {
+                    log.error("Error flushing corked frames", e);
+                }
+            }
+        };
+
+    /** run by <code>corkTimer</code> when the corked frames are due */
+    private final Runnable corkTimeout = new Runnable() {
+            public void run() {
+                synchronized (OutboundQueue.this) {
+                    corkFlush = null;
+                }
+
+                dispatch(corkFlusher);
+            }
+        };
+
+    /** run on the session's dispatcher to write what a sender left */
+    private final Runnable drainer = new Runnable() {
+            public void run() {
+                try {
+                    drain(false);
+                } catch (BEEPException e) {
+                    log.error("Error writing queued frames", e);
+                }
+            }
+        };
+
+    private int policy = SessionImpl.FLUSH_IMMEDIATE;
+    private int corkThreshold = DEFAULT_CORK_THRESHOLD;
+    private long lingerTime = -1;
+
+    /** reused to hold the items of the next write */
+    private Object[] batch = new Object[16];
+
+    /** reused to gather the segments of the pending items */
+    private BufferSegment[] segments = new BufferSegment[16];
+
+    /** reused to encode the headers of the pending frames */
+    private byte[] headers = new byte[8 * Frame.MAX_HEADER_SIZE];
+
+    /** reused segments over the encoded headers */
+    private HeaderSegment[] headerSegments = new HeaderSegment[0];
+
+    OutboundQueue(SessionImpl session)
+    {
+        this.session = session;
+    }
+
+    synchronized void setPolicy(int policy)
+    {
+        if (policy != SessionImpl.FLUSH_IMMEDIATE &&
+            policy != SessionImpl.FLUSH_CORK &&
+            policy != SessionImpl.FLUSH_LINGER)
+        {
+            throw new IllegalArgumentException("Unknown flush policy");
+        }
+
+        this.policy = policy;
+    }
+
+    synchronized int getPolicy()
+    {
+        return policy;
+    }
+
+    synchronized void setCorkThreshold(int bytes)
+    {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("threshold must be positive");
+        }
+
+        corkThreshold = bytes;
+    }
+
+    synchronized int getCorkThreshold()
+    {
+        return corkThreshold;
+    }
+
+    synchronized void setLingerTime(long micros)
+    {
+        lingerTime = micros;
+    }
+
+    synchronized long getLingerTime()
+    {
+        return lingerTime;
+    }
+
+    /**
+     * Queues a frame, writing it and anything else pending if the flush
+     * policy allows.
+     */
+    void add(Frame f) throws BEEPException
+    {
+        add(f, frameBytes(f));
+    }
+
+    /**
+     * Queues transport specific bytes.
+     */
+    void add(BufferSegment b) throws BEEPException
+    {
+        add(b, b.getLength());
+    }
+
+    /**
+     * Writes everything that is pending and waits for any write in progress
+     * to complete.
+     */
+    void flush() throws BEEPException
+    {
+        synchronized (this) {
+            cancelCorkFlush();
+
+            while (draining) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    throw new BEEPException("Interrupted waiting for flush");
+                }
+            }
+
+            if (isEmpty()) {
+                return;
+            }
+
+            draining = true;
+        }
+
+        drain(false);
+    }
+
+    private void add(Object item, int size) throws BEEPException
+    {
+        long deadline = 0;
+
+        synchronized (this) {
+            enqueue(item);
+            pendingBytes += size;
+
+            if (draining) {
+                // the current drainer will write it
+                return;
+            }
+
+            // window updates go out now whatever the policy
+            boolean segment = (item instanceof Frame == false);
+
+            if (lingerThread != null) {
+                if (segment) {
+                    urgent = true;
+                }
+                if (segment || pendingBytes >= corkThreshold) {
+                    LockSupport.unpark(lingerThread);
+                }
+                return;
+            }
+
+            switch (segment ? SessionImpl.FLUSH_IMMEDIATE : policy) {
+            case SessionImpl.FLUSH_CORK:
+                if (pendingBytes < corkThreshold) {
+                    scheduleCorkFlush();
+                    return;
+                }
+                break;
+            case SessionImpl.FLUSH_LINGER:
+                if (lingerTime > 0 && pendingBytes < corkThreshold) {
+                    lingerThread = Thread.currentThread();
+                    deadline = System.nanoTime() + lingerTime * 1000;
+                }
+                break;
+            default:
+                break;
+            }
+
+            if (lingerThread == null) {
+                cancelCorkFlush();
+                draining = true;
+            }
+        }
+
+        if (deadline != 0) {
+            linger(deadline);
+
+            synchronized (this) {
+                lingerThread = null;
+                urgent = false;
+
+                if (draining || isEmpty()) {
+                    // flushed meanwhile
+                    return;
+                }
+
+                draining = true;
+            }
+        }
+
+        drain(true);
+    }
+
+    /**
+     * Waits until the deadline, until the cork threshold is reached or
+     * until a transport segment is queued, so that frames sent meanwhile
+     * are written together.  The monitor is not held so the wait is not
+     * rounded up to milliseconds.
+     */
+    private void linger(long deadline)
+    {
+        while (true) {
+            synchronized (this) {
+                if (pendingBytes >= corkThreshold || draining || urgent) {
+                    return;
+                }
+            }
+
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0) {
+                return;
+            }
+
+            LockSupport.parkNanos(this, nanos);
+        }
+    }
+
+    /**
+     * Has the corked frames written after the linger time, 200ms if not
+     * set.  Called holding the monitor.
+     */
+    private void scheduleCorkFlush()
+    {
+        if (corkFlush != null) {
+            return;
+        }
+
+        long delay = lingerTime > 0 ? lingerTime : DEFAULT_CORK_DELAY;
+
+        corkFlush = getCorkTimer().schedule(corkTimeout, delay,
+                                            TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Called holding the monitor when the pending frames are about to be
+     * written.
+     */
+    private void cancelCorkFlush()
+    {
+        if (corkFlush != null) {
+            corkFlush.cancel(false);
+            corkFlush = null;
+        }
+    }
+
+    /**
+     * Runs <code>task</code> on the session's dispatcher, or on the
+     * calling thread if the dispatcher refuses it.
+     */
+    private void dispatch(Runnable task)
+    {
+        try {
+            session.getDispatcher().execute(task);
+        } catch (BEEPException e) {
+            log.debug("Dispatcher refused write, writing inline", e);
+            task.run();
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getCorkTimer()
+    {
+        if (corkTimer == null) {
+            corkTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, CORK_TIMER_NAME);
+
+                        t.setDaemon(true);
+
+                        return t;
+                    }
+                });
+            // most cork flushes are cancelled by a write
+            corkTimer.setRemoveOnCancelPolicy(true);
+        }
+
+        return corkTimer;
+    }
+
+    /**
+     * Writes until the queue is empty.  The caller must have set
+     * <code>draining</code>.
+     *
+     * @param bounded hand what is left to the session's dispatcher after
+     *                <code>MAX_DRAIN_WRITES</code> writes.
+     */
+    private void drain(boolean bounded) throws BEEPException
+    {
+        boolean done = false;
+
+        try {
+            for (int writes = 0; ; ++writes) {
+                int count;
+
+                if (bounded && writes == MAX_DRAIN_WRITES) {
+                    // still draining, on behalf of the dispatcher
+                    done = true;
+                    dispatch(drainer);
+                    return;
+                }
+
+                synchronized (this) {
+                    if (isEmpty()) {
+                        draining = false;
+                        done = true;
+                        this.notifyAll();
+                        return;
+                    }
+
+                    count = schedule();
+                }
+
+                write(batch, count);
+            }
+        } finally {
+            if (done == false) {
+                synchronized (this) {
+                    // the session is terminated, drop what is left
+                    clear();
+                    pendingBytes = 0;
+                    draining = false;
+                    this.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds an item to the priority queue or to its channel's queue.
+     */
+    private void enqueue(Object item)
+    {
+        if (item instanceof Frame == false ||
+            ((Frame) item).getChannel().getNumber() == 0)
+        {
+            priority.addLast(item);
+            return;
+        }
+
+        ChannelImpl channel = (ChannelImpl) ((Frame) item).getChannel();
+        ChannelQueue q = channel.outboundFrames;
+
+        if (q == null) {
+            q = new ChannelQueue(channel);
+            channel.outboundFrames = q;
+        }
+
+        q.frames.addLast(item);
+
+        if (q.active == false) {
+            q.active = true;
+            active.addLast(q);
+        }
+    }
+
+    private boolean isEmpty()
+    {
+        return priority.isEmpty() && active.isEmpty();
+    }
+
+    private void clear()
+    {
+        while (priority.isEmpty() == false) {
+            discard(priority.removeFirst());
+        }
+
+        while (active.isEmpty() == false) {
+            ChannelQueue q = (ChannelQueue) active.removeFirst();
+
+            while (q.frames.isEmpty() == false) {
+                discard(q.frames.removeFirst());
+            }
+            q.deficit = 0;
+            q.active = false;
+        }
+    }
+
+    /**
+     * Drops an item that will not be written.  Its segments are told they
+     * are done with, as if written, so that they release what they hold
+     * (e.g. the file of a <code>FileOutputDataStream</code>).
+     */
+    private static void discard(Object item)
+    {
+        if (item instanceof Frame == false) {
+            ((BufferSegment) item).written();
+            return;
+        }
+
+        Frame f = (Frame) item;
+
+        for (Iterator i = f.getPayload(); i.hasNext(); ) {
+            ((BufferSegment) i.next()).written();
+        }
+        f.release();
+    }
+
+    /**
+     * Moves the items of the next write into <code>batch</code>: all of the
+     * priority items, then deficit round robin rounds over the channel
+     * queues until <code>MAX_BATCH_BYTES</code> are scheduled.
+     *
+     * @return the number of items in <code>batch</code>.
+     */
+    private int schedule()
+    {
+        int count = 0;
+        int bytes = 0;
+
+        while (priority.isEmpty() == false) {
+            Object item = priority.removeFirst();
+
+            bytes += itemBytes(item);
+            count = addToBatch(count, item);
+        }
+
+        while (bytes < MAX_BATCH_BYTES && active.isEmpty() == false) {
+            ChannelQueue q = (ChannelQueue) active.removeFirst();
+
+            q.deficit += QUANTUM * q.channel.getSendWeight();
+
+            while (q.frames.isEmpty() == false) {
+                Frame f = (Frame) q.frames.getFirst();
+                int size = frameBytes(f);
+
+                if (size > q.deficit) {
+                    break;
+                }
+
+                q.frames.removeFirst();
+                q.deficit -= size;
+                bytes += size;
+                count = addToBatch(count, f);
+            }
+
+            if (q.frames.isEmpty()) {
+                // an idle channel does not save up credit
+                q.deficit = 0;
+                q.active = false;
+            } else {
+                active.addLast(q);
+            }
+        }
+
+        pendingBytes = Math.max(0, pendingBytes - bytes);
+
+        return count;
+    }
+
+    private int addToBatch(int count, Object item)
+    {
+        if (count == batch.length) {
+            Object[] b = new Object[batch.length * 2];
+            System.arraycopy(batch, 0, b, 0, batch.length);
+            batch = b;
+        }
+
+        batch[count] = item;
+
+        return count + 1;
+    }
+
+    private static int frameBytes(Frame f)
+    {
+        return f.getPayloadLength() + Frame.MAX_HEADER_SIZE;
+    }
+
+    private static int itemBytes(Object item)
+    {
+        if (item instanceof Frame) {
+            return frameBytes((Frame) item);
+        }
+
+        return ((BufferSegment) item).getLength();
+    }
+
+    private void write(Object[] items, int itemCount) throws BEEPException
+    {
+        int count = 0;
+        int frames = 0;
+        int headerOffset = 0;
+
+        for (int i = 0; i < itemCount; ++i) {
+            if (items[i] instanceof Frame) {
+                Frame f = (Frame) items[i];
+
+                ensureHeaderCapacity(frames + 1);
+                ensureCapacity(count + 1 + f.getSegmentCount());
+
+                int length = f.encodeHeader(headers, headerOffset);
+                HeaderSegment header = headerSegments[frames++];
+
+                header.set(headers, headerOffset, length);
+                headerOffset += length;
+
+                segments[count++] = header;
+                count = f.getSegments(segments, count);
+            } else {
+                ensureCapacity(count + 1);
+                segments[count++] = (BufferSegment) items[i];
+            }
+        }
+
+        try {
+            if (session.writeSegments(segments, count) == false) {
+                // transport writes one frame at a time
+                for (int i = 0; i < itemCount; ++i) {
+                    if (items[i] instanceof Frame) {
+                        session.sendFrame((Frame) items[i]);
+                    } else {
+                        session.writeSegment((BufferSegment) items[i]);
+                    }
+                }
+            }
+        } catch (BEEPException e) {
+            session.terminate("Unable to write to transport: " +
+                              e.getMessage());
+            throw e;
+        } finally {
+            for (int i = 0; i < count; ++i) {
+                segments[i].written();
+                segments[i] = null;
+            }
+            for (int i = 0; i < itemCount; ++i) {
+                if (items[i] instanceof Frame) {
+                    ((Frame) items[i]).release();
+                }
+                items[i] = null;
+            }
+        }
+    }
+
+    private void ensureCapacity(int n)
+    {
+        if (n > segments.length) {
+            BufferSegment[] s = new BufferSegment[Math.max(n,
+                                                           segments.length * 2)];
+            System.arraycopy(segments, 0, s, 0, segments.length);
+            segments = s;
+        }
+    }
+
+    /**
+     * Makes room for the headers of <code>n</code> frames.  Headers
+     * already encoded stay where they are.
+     */
+    private void ensureHeaderCapacity(int n)
+    {
+        if (n * Frame.MAX_HEADER_SIZE > headers.length) {
+            byte[] h = new byte[Math.max(n * Frame.MAX_HEADER_SIZE,
+                                         headers.length * 2)];
+            System.arraycopy(headers, 0, h, 0, headers.length);
+            headers = h;
+
+            for (int i = 0; i < headerSegments.length; ++i) {
+                headerSegments[i].set(h, headerSegments[i].getOffset(),
+                                      headerSegments[i].getLength());
+            }
+        }
+
+        if (n > headerSegments.length) {
+            HeaderSegment[] s =
+                new HeaderSegment[Math.max(n, headerSegments.length * 2)];
+            System.arraycopy(headerSegments, 0, s, 0, headerSegments.length);
+            for (int i = headerSegments.length; i < s.length; ++i) {
+                s[i] = new HeaderSegment();
+            }
+            headerSegments = s;
+        }
+    }
+
+    /**
+     * The frames of one channel waiting to be written and the channel's
+     * deficit.  Guarded by the <code>OutboundQueue</code>.
+     */
+    static class ChannelQueue {
+        final ChannelImpl channel;
+        final ArrayDeque frames = new ArrayDeque();
+        int deficit = 0;
+        boolean active = false;
+
+        ChannelQueue(ChannelImpl channel)
+        {
+            this.channel = channel;
+        }
+    }
+}
@@ -37,13 +37,26 @@
  */
 package org.beepcore.beep.core;
 
-import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import org.beepcore.beep.util.BufferSegment;
 
 /**
  * <code>OutputDataStream</code> represents a BEEP message's payload as a
  * stream.
+ * <p>
+ * By default the stream holds any amount of data waiting for the peer's
+ * window.  A producer streaming a large payload should set a high-water
+ * mark with <code>setHighWaterMark</code>: once the stream has been
+ * passed to the channel, once that many bytes wait to be sent
+ * <code>add</code> blocks and <code>offer</code> refuses segments until
+ * half of them have been sent, when the writability listener is called
+ * on the channel's dispatcher.  The bytes are sent as the peer grants window,
+ * so the peer's consumer paces the producer.
  *
  * @author Huston Franklin
  * @version $Revision: 1.5 $, $Date: 2003/04/21 15:09:11 $
@@ -86,16 +99,145 @@ public class OutputDataStream {
         this.add(buf);
     }
 
+    /**
+     * Adds a segment to the stream.  If a high-water mark is set and the
+     * stream has been passed to a channel, waits once the bytes waiting
+     * to be sent have reached the mark until half of them have been sent.
+     * The window updates that let them be sent are received by the thread
+     * reading the session, so with a high-water mark this must not be
+     * called from that thread; use <code>offer</code> there.  If the
+     * thread is interrupted it stops waiting, adds the segment and keeps
+     * its interrupted status.
+     */
     public void add(BufferSegment segment) {
-        synchronized(this) {
-            this.buffers.addLast(segment);
+        lock.lock();
+        try {
+            while (isWritable() == false) {
+                try {
+                    drained.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            append(segment);
+        } finally {
+            lock.unlock();
         }
-        // Need to release lock before calling sendQueuedMessages, which is why entire method is not synchronized
-        if (channel != null) {
-            try {
-                channel.sendQueuedMessages();
-            } catch (BEEPException e) {
+        // Need to release lock before calling sendQueuedMessages, which is why entire method is not locked
+        sendQueuedMessages();
+    }
+
+    /**
+     * Adds a segment to the stream unless it is not writable.  If the
+     * segment is refused the writability listener is called once half of
+     * the bytes waiting to be sent have been sent.
+     *
+     * @return <code>false</code> if the segment was not added.
+     */
+    public boolean offer(BufferSegment segment) {
+        lock.lock();
+        try {
+            if (isWritable() == false) {
+                writabilityWanted = true;
+                return false;
             }
+
+            append(segment);
+        } finally {
+            lock.unlock();
+        }
+        sendQueuedMessages();
+
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if a segment can be added without waiting:
+     * from when the bytes waiting to be sent reach the high-water mark
+     * until half of them have been sent it returns <code>false</code>.
+     */
+    public boolean isWritable() {
+        lock.lock();
+        try {
+            return (highWaterMark <= 0 || channel == null ||
+                    channelClosed || full == false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the most bytes held waiting to be sent before
+     * <code>add</code> blocks, 0 for no limit.
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Sets the most bytes held waiting to be sent before
+     * <code>add</code> blocks and <code>offer</code> refuses segments,
+     * 0 for no limit.
+     */
+    public void setHighWaterMark(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid high-water mark " +
+                                               bytes);
+        }
+
+        boolean fire;
+
+        lock.lock();
+        try {
+            highWaterMark = bytes;
+            full = (bytes > 0 && bufferedBytes >= bytes);
+            fire = drained();
+        } finally {
+            lock.unlock();
+        }
+
+        if (fire) {
+            fireWritable();
+        }
+    }
+
+    /**
+     * Returns the number of bytes added and not yet sent.
+     */
+    public long getBufferedBytes() {
+        lock.lock();
+        try {
+            return bufferedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the listener called, on the channel's <code>Dispatcher</code>,
+     * when the stream can take segments again after <code>offer</code>
+     * refused one.
+     */
+    public void setWritabilityListener(Runnable listener) {
+        this.writabilityListener = listener;
+    }
+
+    /**
+     * Returns an <code>OutputStream</code> for writing the data of this
+     * stream.
+     */
+    public OutputDataStreamAdapter getOutputStream() {
+        lock.lock();
+        try {
+            if (stream == null) {
+                stream = new OutputDataStreamAdapter(this);
+            }
+
+            return stream;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -111,73 +253,281 @@ public class OutputDataStream {
      * those currently available on this stream.  Returns
      * <code>false</code> if more bytes are expected.
      */
-    synchronized public boolean isComplete() {
-        return this.complete;
+    public boolean isComplete() {
+        lock.lock();
+        try {
+            return this.complete;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void setComplete() {
-        synchronized(this) {
+        lock.lock();
+        try {
             this.complete = true;
+        } finally {
+            lock.unlock();
         }
-        // Need to release lock before calling sendQueuedMessages, which is why entire method is not synchronized
-        if (channel != null) {
-            try {
-                channel.sendQueuedMessages();
-            } catch (BEEPException e) {
-            }
-        }
+        // Need to release lock before calling sendQueuedMessages, which is why entire method is not locked
+        sendQueuedMessages();
     }
 
-    synchronized boolean availableSegment() {
-        return (buffers.isEmpty() == false);
+    boolean availableSegment() {
+        lock.lock();
+        try {
+            return (buffers.isEmpty() == false);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Get the number of <code>BufferSegment</code>s held.
      *
-     * @return the number of <code>BufferSegment</code>s in the buffers LinkedList.
+     * @return the number of <code>BufferSegment</code>s in the buffers queue.
+     */
+    public int getNumSegments() {
+        lock.lock();
+        try {
+            return this.buffers.size() + (headerSegment != null ? 1 : 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected BufferSegment getNextSegment(int maxLength) {
+        BufferSegment b;
+        boolean fire;
+
+        lock.lock();
+        try {
+            b = nextSegment(maxLength);
+            fire = drained();
+        } finally {
+            lock.unlock();
+        }
+
+        if (fire) {
+            fireWritable();
+        }
+
+        return b;
+    }
+
+    void setChannel(ChannelImpl channel) {
+        lock.lock();
+        try {
+            this.channel = channel;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the largest payload of the frames this stream is sent in,
+     * or 0 before it has been passed to a channel.
+     */
+    int getFrameSize() {
+        ChannelImpl ch = channel;
+
+        if (ch == null) {
+            return 0;
+        }
+
+        try {
+            return ch.getSendFrameSize();
+        } catch (BEEPException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Stops <code>add</code> from waiting for a channel that is closed,
+     * the data will not be sent.  The segments held are dropped and told
+     * they are done with, as if written, so that they release what they
+     * hold (e.g. the file of a <code>FileOutputDataStream</code>).
      */
-    synchronized public int getNumSegments() {
-        return this.buffers.size();
+    void channelClosed() {
+        boolean fire;
+
+        lock.lock();
+        try {
+            channelClosed = true;
+            discardSegments();
+            drained.signalAll();
+            fire = writabilityWanted;
+            writabilityWanted = false;
+        } finally {
+            lock.unlock();
+        }
+
+        if (fire) {
+            fireWritable();
+        }
     }
 
-    synchronized protected BufferSegment getNextSegment(int maxLength) {
+    private BufferSegment nextSegment(int maxLength) {
         if (this.headersSent == false) {
             if (this.mimeHeaders != null) {
-                this.buffers.addFirst(mimeHeaders.getBufferSegment());
+                this.headerSegment = mimeHeaders.getBufferSegment();
             }
             this.headersSent = true;
         }
 
-        BufferSegment b = (BufferSegment)buffers.getFirst();
+        // the headers are sent before the first segment
+        boolean header = (headerSegment != null);
+        BufferSegment b = (header ? headerSegment :
+                           (BufferSegment) buffers.getFirst());
 
         if (curOffset != 0 || maxLength < b.getLength()) {
 
             int origLength = b.getLength();
 
-            b = new BufferSegment(b.getData(), b.getOffset() + curOffset,
-                                  Math.min(maxLength, origLength - curOffset));
+            b = b.slice(curOffset,
+                        Math.min(maxLength, origLength - curOffset));
 
             if (curOffset + b.getLength() != origLength) {
                 curOffset += b.getLength();
+                if (header == false) {
+                    bufferedBytes -= b.getLength();
+                }
                 return b;
             }
         }
-        buffers.removeFirst();
+        if (header) {
+            headerSegment = null;
+        } else {
+            buffers.removeFirst();
+            bufferedBytes -= b.getLength();
+        }
         curOffset = 0;
 
         return b;
     }
-    
-    synchronized void setChannel(ChannelImpl channel) {
-        this.channel = channel;
+
+    /**
+     * Called holding <code>lock</code>.
+     */
+    private void discardSegments() {
+        if (headerSegment != null) {
+            headerSegment = null;
+            curOffset = 0;
+        }
+
+        while (buffers.isEmpty() == false) {
+            BufferSegment b = (BufferSegment) buffers.removeFirst();
+
+            if (curOffset != 0) {
+                b = b.slice(curOffset, b.getLength() - curOffset);
+                curOffset = 0;
+            }
+            b.written();
+        }
+        bufferedBytes = 0;
+        full = false;
+    }
+
+    /**
+     * Called holding <code>lock</code>.
+     */
+    private void append(BufferSegment segment) {
+        if (channelClosed) {
+            // never sent
+            segment.written();
+            return;
+        }
+
+        this.buffers.addLast(segment);
+        this.bufferedBytes += segment.getLength();
+        if (highWaterMark > 0 && bufferedBytes >= highWaterMark) {
+            full = true;
+        }
+    }
+
+    /**
+     * Wakes the producers once the bytes waiting to be sent are down to
+     * half of the high-water mark, so they do not wake for every frame
+     * sent.  Called holding <code>lock</code>.
+     *
+     * @return <code>true</code> if the writability listener is to be
+     *         called.
+     */
+    private boolean drained() {
+        if (full && bufferedBytes > highWaterMark / 2) {
+            return false;
+        }
+
+        full = false;
+        drained.signalAll();
+
+        boolean fire = writabilityWanted;
+
+        writabilityWanted = false;
+
+        return fire;
+    }
+
+    /**
+     * Calls the writability listener on the channel's dispatcher rather
+     * than from within the channel sending the stream.
+     */
+    private void fireWritable() {
+        Runnable listener = writabilityListener;
+        ChannelImpl ch = channel;
+
+        if (listener == null || ch == null) {
+            return;
+        }
+
+        try {
+            ch.getDispatcher().execute(listener);
+        } catch (BEEPException e) {
+            log.error("Unable to call the writability listener", e);
+        }
+    }
+
+    private void sendQueuedMessages() {
+        if (channel != null) {
+            try {
+                channel.sendQueuedMessages();
+            } catch (BEEPException e) {
+            }
+        }
     }
 
     protected final MimeHeaders mimeHeaders;
 
-    private LinkedList buffers = new LinkedList();
+    private Log log = LogFactory.getLog(this.getClass());
+
+    /** guards the stream, a lock so a waiting producer does not pin */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** signalled as the bytes waiting drop to half the high-water mark */
+    private final Condition drained = lock.newCondition();
+
+    /** most streams hold a single segment */
+    private RingQueue buffers = new RingQueue(2);
+
+    /** the encoded headers while they are being sent */
+    private BufferSegment headerSegment = null;
+
+    /** bytes added and not yet sent, the headers excepted */
+    private long bufferedBytes = 0;
+
+    private volatile int highWaterMark = 0;
+    private volatile Runnable writabilityListener = null;
+
+    /** <code>offer</code> refused a segment since the listener was called */
+    private boolean writabilityWanted = false;
+
+    /** the high-water mark was reached and the stream has not drained */
+    private boolean full = false;
+
+    private boolean channelClosed = false;
     private boolean complete = false;
     private boolean headersSent = false;
     private int curOffset = 0;
-    private ChannelImpl channel = null;
+    private volatile ChannelImpl channel = null;
+    private OutputDataStreamAdapter stream = null;
 }
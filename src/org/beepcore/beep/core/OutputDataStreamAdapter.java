@@ -0,0 +1,280 @@
+/*
+ * OutputDataStreamAdapter.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.beepcore.beep.util.BufferPool;
+import org.beepcore.beep.util.BufferSegment;
+
+
+/**
+ * Writes the payload of an <code>OutputDataStream</code> as an
+ * <code>OutputStream</code> or a <code>WritableByteChannel</code>.
+ * <p>
+ * The bytes written are copied into arrays from the default
+ * <code>BufferPool</code>, by default the size of the channel's frames,
+ * which are added to the stream as they fill and go back to the pool once
+ * the transport has written them.  <code>flush</code> adds a partly
+ * filled array and <code>close</code> completes the message.  With a
+ * high-water mark set on the stream the writes block while the peer
+ * holds back its window, so a serializer can write a payload of any size
+ * without it being held in memory.
+ * <p>
+ * <b>Note that this implementation is not synchronized.</b> If multiple
+ * threads write to an <code>OutputDataStreamAdapter</code> concurrently,
+ * data may be inconsistent or lost.
+ *
+ * @see OutputDataStream#getOutputStream
+ * @see OutputDataStream#setHighWaterMark
+ */
+public class OutputDataStreamAdapter extends OutputStream
+    implements WritableByteChannel
+{
+
+    /** size of the arrays filled before the stream is sent on a channel */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    OutputDataStreamAdapter(OutputDataStream ods)
+    {
+        this.ods = ods;
+    }
+
+    /**
+     * Returns the size of the arrays filled, or 0 if they are the size of
+     * the channel's frames.
+     */
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size of the arrays filled.
+     *
+     * @param size size in octets, or 0 for the size of the channel's
+     *             frames.
+     */
+    public void setBufferSize(int size)
+    {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid buffer size " + size);
+        }
+
+        this.bufferSize = size;
+    }
+
+    public void write(int b) throws IOException
+    {
+        ensureBuffer();
+
+        buf[pos++] = (byte) b;
+
+        if (pos == limit) {
+            addBuffer();
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        while (len > 0) {
+            ensureBuffer();
+
+            int n = Math.min(len, limit - pos);
+
+            System.arraycopy(b, off, buf, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+
+            if (pos == limit) {
+                addBuffer();
+            }
+        }
+    }
+
+    public int write(ByteBuffer src) throws IOException
+    {
+        int written = src.remaining();
+
+        while (src.hasRemaining()) {
+            ensureBuffer();
+
+            int n = Math.min(src.remaining(), limit - pos);
+
+            src.get(buf, pos, n);
+            pos += n;
+
+            if (pos == limit) {
+                addBuffer();
+            }
+        }
+
+        return written;
+    }
+
+    /**
+     * Adds the bytes written so far to the stream so they are sent
+     * without waiting for the array to fill.
+     */
+    public void flush() throws IOException
+    {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        if (pos != 0) {
+            addBuffer();
+        }
+    }
+
+    public boolean isOpen()
+    {
+        return closed == false;
+    }
+
+    /**
+     * Adds the bytes written so far to the stream and completes the
+     * message.
+     */
+    public void close()
+    {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (pos != 0) {
+            addBuffer();
+        } else if (segment != null) {
+            segment.release();
+            segment = null;
+            buf = null;
+        }
+
+        ods.setComplete();
+    }
+
+    private void ensureBuffer() throws IOException
+    {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        if (segment != null) {
+            return;
+        }
+
+        int size = bufferSize;
+
+        if (size == 0) {
+            size = ods.getFrameSize();
+            if (size <= 0) {
+                size = DEFAULT_BUFFER_SIZE;
+            }
+        }
+
+        segment = BufferPool.getDefault().allocate(size);
+        buf = segment.getData();
+        pos = 0;
+        // the pooled array may be larger
+        limit = segment.getLength();
+    }
+
+    private void addBuffer()
+    {
+        Segment s = new Segment(segment, pos);
+
+        segment = null;
+        buf = null;
+        pos = 0;
+
+        ods.add(s);
+    }
+
+    // Instance Data
+    private final OutputDataStream ods;
+    private int bufferSize = 0;
+    private boolean closed = false;
+
+    /** the pooled segment being filled */
+    private BufferSegment segment = null;
+    private byte[] buf = null;
+    private int pos = 0;
+    private int limit = 0;
+
+    /**
+     * The filled part of a pooled segment.  Slices share the pooled
+     * segment, which is released once all of its bytes have been written.
+     */
+    private static class Segment extends BufferSegment {
+        Segment(BufferSegment pooled, int length)
+        {
+            super(pooled.getData(), pooled.getOffset(), length);
+
+            this.pooled = pooled;
+            this.root = this;
+            this.unwritten = new AtomicInteger(length);
+        }
+
+        private Segment(Segment root, int offset, int length)
+        {
+            super(root.getData(), offset, length);
+
+            this.pooled = root.pooled;
+            this.root = root;
+            this.unwritten = null;
+        }
+
+        public BufferSegment slice(int offset, int length)
+        {
+            if (offset < 0 || length < 0 || offset + length > getLength()) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            return new Segment(root, getOffset() + offset, length);
+        }
+
+        public void written()
+        {
+            if (root.unwritten.addAndGet(-getLength()) == 0) {
+                pooled.release();
+            }
+        }
+
+        private final BufferSegment pooled;
+        private final Segment root;
+        private final AtomicInteger unwritten;
+    }
+}
@@ -54,6 +54,7 @@ public class ProfileRegistry implements Cloneable {
 
     private Hashtable profileListeners;
     String localize;
+    private volatile Dispatcher dispatcher = null;
 
     // Constructors
 
@@ -76,8 +77,39 @@ public class ProfileRegistry implements Cloneable {
 
     public Object clone()
     {
-        return new ProfileRegistry(this.localize,
-                                   (Hashtable) this.profileListeners.clone());
+        ProfileRegistry r =
+            new ProfileRegistry(this.localize,
+                                (Hashtable) this.profileListeners.clone());
+
+        r.dispatcher = this.dispatcher;
+
+        return r;
+    }
+
+    /**
+     * Returns the <code>Dispatcher</code> set for the sessions using this
+     * registry, or <code>null</code>.
+     */
+    public Dispatcher getDispatcher()
+    {
+        return dispatcher;
+    }
+
+    /**
+     * Sets the <code>Dispatcher</code> the channels of the sessions using
+     * this registry run their <code>RequestHandler</code>s and
+     * <code>ReplyListener</code>s on, unless the session or the channel
+     * has its own.  Sessions are created with a copy of the registry, so
+     * set it before the session is created.
+     *
+     * @param dispatcher the dispatcher, or <code>null</code> for the
+     *                   default one.
+     *
+     * @see Dispatcher#getDefault
+     */
+    public void setDispatcher(Dispatcher dispatcher)
+    {
+        this.dispatcher = dispatcher;
     }
 
     /**
@@ -0,0 +1,130 @@
+/*
+ * RingQueue.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.NoSuchElementException;
+
+
+/**
+ * A first in first out queue held in a circular array, used for the
+ * messages of a channel which BEEP requires to be replied to in order.
+ * <p>
+ * The array doubles when it fills up and is never shrunk, so it settles
+ * at the largest number of messages the channel has had outstanding.  It
+ * is not synchronized.
+ */
+class RingQueue {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private Object[] elements;
+
+    /** index of the first element */
+    private int head = 0;
+
+    private int size = 0;
+
+    RingQueue()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a queue holding <code>capacity</code> elements, rounded up to
+     * a power of two, before it grows.
+     */
+    RingQueue(int capacity)
+    {
+        int n = 1;
+
+        while (n < capacity) {
+            n <<= 1;
+        }
+
+        elements = new Object[n];
+    }
+
+    void addLast(Object o)
+    {
+        if (size == elements.length) {
+            grow();
+        }
+
+        elements[(head + size) & (elements.length - 1)] = o;
+        ++size;
+    }
+
+    Object getFirst()
+    {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+
+        return elements[head];
+    }
+
+    Object getLast()
+    {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+
+        return elements[(head + size - 1) & (elements.length - 1)];
+    }
+
+    Object removeFirst()
+    {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+
+        Object o = elements[head];
+
+        elements[head] = null;
+        head = (head + 1) & (elements.length - 1);
+        --size;
+
+        return o;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    private void grow()
+    {
+        Object[] grown = new Object[elements.length * 2];
+        int n = elements.length - head;
+
+        System.arraycopy(elements, head, grown, 0, n);
+        System.arraycopy(elements, 0, grown, n, head);
+
+        elements = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * SegmentQueue.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A first in first out queue handing the segments of a message from the
+ * session's reader, its only producer, to the application thread reading
+ * the message, its only consumer, without locks.
+ * <p>
+ * Elements are kept in an unbounded linked list of arrays of
+ * <code>CHUNK_SIZE</code> slots: the producer fills the slots of the last
+ * array and links a new one when it is full, the consumer empties the
+ * slots of the first array and drops it once it has been read.  The
+ * channel's receive window bounds the bytes and so, in practice, the
+ * number of segments, which lets the producer add without ever blocking.
+ * <p>
+ * Each side counts the elements it has added or removed; an element is
+ * published by the producer's count and the slot is read only once the
+ * count shows it.  The consumer may park waiting for an element, the
+ * producer unparks it after publishing one.
+ */
+class SegmentQueue {
+
+    private static final int CHUNK_SIZE = 16;
+
+    // consumer side
+    private Chunk head;
+    private int headIndex = 0;
+
+    // producer side
+    private Chunk tail;
+    private int tailIndex = 0;
+
+    /** number of elements added, written by the producer only */
+    private volatile long added = 0;
+
+    /** number of elements removed, written by the consumer only */
+    private volatile long removed = 0;
+
+    /** no more elements will be added */
+    private volatile boolean complete = false;
+
+    /** the consumer while it is parked waiting for an element */
+    private volatile Thread waiter = null;
+
+    SegmentQueue()
+    {
+        head = tail = new Chunk();
+    }
+
+    /**
+     * Adds <code>o</code> at the end of the queue.  Called by the producer.
+     */
+    void add(Object o)
+    {
+        if (tailIndex == CHUNK_SIZE) {
+            Chunk c = new Chunk();
+
+            tail.next = c;
+            tail = c;
+            tailIndex = 0;
+        }
+
+        tail.items[tailIndex++] = o;
+
+        // publishes the element
+        added = added + 1;
+    }
+
+    /**
+     * Marks the end of the elements.  Called by the producer.
+     */
+    void setComplete()
+    {
+        complete = true;
+        signal();
+    }
+
+    boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * Wakes the consumer if it is waiting.  Called by the producer after
+     * it has published elements.
+     */
+    void signal()
+    {
+        Thread t = waiter;
+
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    boolean isEmpty()
+    {
+        return removed == added;
+    }
+
+    /**
+     * Returns the first element, <code>null</code> if the queue is empty.
+     * Called by the consumer.
+     */
+    Object peek()
+    {
+        if (isEmpty()) {
+            return null;
+        }
+
+        if (headIndex == CHUNK_SIZE) {
+            head = head.next;
+            headIndex = 0;
+        }
+
+        return head.items[headIndex];
+    }
+
+    /**
+     * Removes the first element, <code>null</code> if the queue is empty.
+     * Called by the consumer.
+     */
+    Object poll()
+    {
+        Object o = peek();
+
+        if (o != null) {
+            head.items[headIndex++] = null;
+            removed = removed + 1;
+        }
+
+        return o;
+    }
+
+    /**
+     * Waits until an element is available or the queue is complete.
+     * Called by the consumer.
+     *
+     * @return <code>false</code> if the queue is complete and empty.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    boolean await() throws InterruptedException
+    {
+        if (isEmpty() == false) {
+            return true;
+        }
+
+        waiter = Thread.currentThread();
+        try {
+            // checked after the waiter is set, an element published or
+            // the completion made before it was visible is not signalled
+            while (isEmpty()) {
+                if (complete) {
+                    // elements added before the completion are visible
+                    return isEmpty() == false;
+                }
+
+                LockSupport.park(this);
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return true;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    private static class Chunk {
+        final Object[] items = new Object[CHUNK_SIZE];
+        volatile Chunk next;
+    }
+}
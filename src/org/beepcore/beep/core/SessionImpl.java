@@ -19,6 +19,7 @@
 package org.beepcore.beep.core;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
@@ -28,6 +29,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -44,6 +46,8 @@ import org.beepcore.beep.core.event.SessionListener;
 
 import org.beepcore.beep.core.serialize.*;
 
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.FrameHeader;
 import org.beepcore.beep.util.StringUtil;
 
 
@@ -70,6 +74,27 @@ import org.beepcore.beep.util.StringUtil;
  */
 public abstract class SessionImpl implements Session {
 
+    /**
+     * Flush policy which writes frames as soon as they are sent.  Frames
+     * sent while another thread is writing are written together by that
+     * thread.
+     */
+    public static final int FLUSH_IMMEDIATE = 0;
+
+    /**
+     * Flush policy which holds frames until the cork threshold is reached
+     * or the linger time (200ms if not set) has passed since the first of
+     * them was sent.
+     */
+    public static final int FLUSH_CORK = 1;
+
+    /**
+     * Flush policy where the thread sending a frame while nothing is
+     * pending waits up to the linger time, or until the cork threshold is
+     * reached, so that frames sent meanwhile are written with it.
+     */
+    public static final int FLUSH_LINGER = 2;
+
     // Constants
     private static final SessionOperations[] ops =
     {new INITIALIZED_SessionOperations(),
@@ -82,7 +107,6 @@ public abstract class SessionImpl implements Session {
      new CLOSED_SessionOperations(),
      new ABORTED_SessionOperations()};
 
-    private static final int DEFAULT_CHANNELS_SIZE = 4;
     private static final int DEFAULT_PROPERTIES_SIZE = 4;
     private static final int DEFAULT_POLL_INTERVAL = 500;
 
@@ -107,7 +131,7 @@ public abstract class SessionImpl implements Session {
     private int state;
     private long nextChannelNumber = 0;
     private ChannelImpl zero;
-    private Hashtable channels = null;
+    private ChannelTable channels = null;
     private Hashtable properties = null;
     private List sessionListenerList =
         Collections.synchronizedList(new LinkedList());
@@ -124,6 +148,14 @@ public abstract class SessionImpl implements Session {
     private String serverName;
     private boolean sentServerName = false;
     private boolean requiresTLS = false;
+    private OutboundQueue outbound = new OutboundQueue(this);
+    private FramePool framePool = new FramePool();
+    private int maxFrameSize = 0;
+    private volatile int messageSpillThreshold = 0;
+    private volatile long sessionSpillThreshold = 0;
+    private volatile File spillDirectory = null;
+    private AtomicLong bufferedBytes = new AtomicLong();
+    private volatile Dispatcher dispatcher = null;
 
     /**
      * Default Session Constructor.  A relationship between peers - a session -
@@ -151,7 +183,7 @@ public abstract class SessionImpl implements Session {
         nextChannelNumber = firstChannel;
         overflow = false;
         profileRegistry = registry;
-        channels = new Hashtable(DEFAULT_CHANNELS_SIZE);
+        channels = new ChannelTable();
         properties = new Hashtable(DEFAULT_PROPERTIES_SIZE);
         tuningProperties = tuning;
         this.serverName = serverName;
@@ -173,7 +205,7 @@ public abstract class SessionImpl implements Session {
         zero = ChannelImpl.createChannelZero(this, greetingListener,
                                              new ChannelZeroListener());
 
-        channels.put(CHANNEL_ZERO, zero);
+        channels.put(zero);
 
         // send greeting
         sendGreeting();
@@ -223,7 +255,7 @@ public abstract class SessionImpl implements Session {
 
         zero = ChannelImpl.createChannelZero(this, greetingListener,
                                              new ChannelZeroListener());
-        channels.put(CHANNEL_ZERO, zero);
+        channels.put(zero);
 
         // send greeting
         sendGreeting();
@@ -273,10 +305,10 @@ public abstract class SessionImpl implements Session {
 
         changeState(SESSION_STATE_CLOSE_PENDING);
 
-        Iterator i = channels.values().iterator();
+        ChannelImpl[] open = channels.toArray();
 
-        while (i.hasNext()) {
-            ChannelImpl ch = (ChannelImpl) i.next();
+        for (int i = 0; i < open.length; ++i) {
+            ChannelImpl ch = open[i];
 
             // if this channel is not zero, call the channel's scl
             if (ch.getNumber() == 0) {
@@ -319,6 +351,7 @@ public abstract class SessionImpl implements Session {
         this.disableIO();
         // @todo close the socket
 
+        setChannelStates(ChannelImpl.STATE_CLOSED);
         channels.clear();
         zero = null;
 
@@ -551,6 +584,7 @@ public abstract class SessionImpl implements Session {
         }
 
         this.disableIO();
+        setChannelStates(ChannelImpl.STATE_ABORTED);
         channels.clear();
 
         zero = null;
@@ -591,7 +625,41 @@ public abstract class SessionImpl implements Session {
     protected Frame createFrame(byte[] header, int headerLength)
             throws BEEPException
     {
-        Frame f = Frame.parseHeader(this, header, headerLength);
+        return createFrame(header, 0, headerLength);
+    }
+
+    /**
+     * This method is intended for use by tranport specific Sessions to create
+     * a new <code>Frame</code> object from a header located at an offset
+     * within a larger receive buffer.
+     *
+     * @return a <code>Frame</code> for the specified values
+     *
+     * @throws BEEPException
+     */
+    protected Frame createFrame(byte[] header, int offset, int headerLength)
+            throws BEEPException
+    {
+        FrameHeader h = new FrameHeader();
+
+        h.parse(header, offset, headerLength);
+
+        return createFrame(h);
+    }
+
+    /**
+     * This method is intended for use by tranport specific Sessions to create
+     * a new <code>Frame</code> object from a header the transport has
+     * already parsed, typically into a <code>FrameHeader</code> it reuses
+     * for every frame.
+     *
+     * @return a <code>Frame</code> for the specified values
+     *
+     * @throws BEEPException
+     */
+    protected Frame createFrame(FrameHeader header) throws BEEPException
+    {
+        Frame f = Frame.parseHeader(this, header);
         int windowSize = ((ChannelImpl)f.getChannel()).getAvailableWindow();
         int frameSize = f.getSize();
         // The window size and frame size have nothing in common.
@@ -623,7 +691,7 @@ public abstract class SessionImpl implements Session {
      */
     protected int getChannelAvailableWindow(int channel) throws BEEPException
     {
-        ChannelImpl ch = (ChannelImpl) channels.get(Integer.toString(channel));
+        ChannelImpl ch = channels.get(channel);
 
         if (ch == null) {
             throw new BEEPException("Session call on nonexistent channel.");
@@ -654,6 +722,15 @@ public abstract class SessionImpl implements Session {
      */
     protected abstract int getMaxFrameSize() throws BEEPException;
 
+    /**
+     * Returns the maximum frame size set for this session, or the
+     * transport's if none was set.
+     */
+    int getFrameSize() throws BEEPException
+    {
+        return (maxFrameSize > 0 ? maxFrameSize : getMaxFrameSize());
+    }
+
     /**
      * Method postFrame
      *
@@ -702,6 +779,71 @@ public abstract class SessionImpl implements Session {
      */
     protected abstract void sendFrame(Frame f) throws BEEPException;
 
+    /**
+     * Writes the bytes of any number of frames, in order, with as few
+     * writes to the transport as possible.  Transports that override this
+     * method may also queue their own bytes with <code>sendSegment</code>.
+     *
+     * @param segments the headers, payloads and trailers to write.
+     * @param count the number of entries of <code>segments</code> to write.
+     *
+     * @return <code>false</code> if the transport only supports
+     *         <code>sendFrame</code>, which is what this implementation
+     *         returns.
+     *
+     * @throws BEEPException
+     */
+    protected boolean writeSegments(BufferSegment[] segments, int count)
+        throws BEEPException
+    {
+        return false;
+    }
+
+    /**
+     * Writes bytes queued with <code>sendSegment</code> for a transport
+     * whose <code>writeSegments</code> returns <code>false</code>.  Called
+     * in order with <code>sendFrame</code>.
+     *
+     * @throws BEEPException unless overridden, such a transport has no
+     *         means of writing bytes other than frames.
+     */
+    protected void writeSegment(BufferSegment b) throws BEEPException
+    {
+        throw new BEEPException("Transport can only write frames");
+    }
+
+    /**
+     * Queues transport specific bytes, such as a TCP <code>SEQ</code>
+     * frame, to be written in order with the frames sent on this session.
+     * The bytes are written right away whatever the flush policy.  Only
+     * for transports that implement <code>writeSegments</code> or
+     * <code>writeSegment</code>.
+     *
+     * @param b
+     *
+     * @throws BEEPException
+     */
+    protected void sendSegment(BufferSegment b) throws BEEPException
+    {
+        outbound.add(b);
+    }
+
+    /**
+     * Returns the pool of the frames received by this session.
+     */
+    FramePool getFramePool()
+    {
+        return framePool;
+    }
+
+    /**
+     * Queues a frame to be written according to the flush policy.
+     */
+    void enqueueFrame(Frame f) throws BEEPException
+    {
+        outbound.add(f);
+    }
+
     /**
      * Method setLocalCredential
      *
@@ -745,6 +887,216 @@ public abstract class SessionImpl implements Session {
     {
         return serverName;
     }
+
+    /**
+     * Sets the maximum payload size of the frames sent on this session.
+     * Channels may override this with <code>ExtendedChannel.setMaxFrameSize</code>.
+     *
+     * @param size maximum size in octets, or 0 for the transport's default.
+     */
+    public void setMaxFrameSize(int size)
+    {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid frame size " + size);
+        }
+
+        maxFrameSize = size;
+    }
+
+    /**
+     * Sets the <code>Dispatcher</code> the channels of this session run
+     * their <code>RequestHandler</code>s and <code>ReplyListener</code>s
+     * on.  Channels may override this with
+     * <code>ExtendedChannel.setDispatcher</code>.
+     *
+     * @param dispatcher the dispatcher, or <code>null</code> to use the
+     *                   <code>ProfileRegistry</code>'s.
+     */
+    public void setDispatcher(Dispatcher dispatcher)
+    {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Returns the <code>Dispatcher</code> used by the channels of this
+     * session that do not have their own: the session's, the
+     * <code>ProfileRegistry</code>'s or the default one.
+     */
+    public Dispatcher getDispatcher()
+    {
+        Dispatcher d = dispatcher;
+
+        if (d == null && profileRegistry != null) {
+            d = profileRegistry.getDispatcher();
+        }
+
+        return (d == null ? Dispatcher.getDefault() : d);
+    }
+
+    /**
+     * Runs <code>task</code>, which calls a reply listener set to run
+     * inline or the session's listeners, before anything else is read on
+     * this session.  This implementation runs it on the calling thread,
+     * e.g. the session's reader.  Transports whose reader is shared with
+     * other sessions override it to stop reading this session while the
+     * task runs elsewhere.
+     *
+     * @see ExtendedChannel#INLINE_REPLY_EXECUTOR
+     */
+    protected void runInline(Runnable task)
+    {
+        task.run();
+    }
+
+    /**
+     * Sets when frames sent on this session are written to the transport.
+     *
+     * @param policy one of <code>FLUSH_IMMEDIATE</code>,
+     *        <code>FLUSH_CORK</code> or <code>FLUSH_LINGER</code>.
+     *
+     * @see #setCorkThreshold
+     * @see #setLingerTime
+     */
+    public void setFlushPolicy(int policy)
+    {
+        outbound.setPolicy(policy);
+    }
+
+    public int getFlushPolicy()
+    {
+        return outbound.getPolicy();
+    }
+
+    /**
+     * Sets the number of pending bytes at which frames held by the
+     * <code>FLUSH_CORK</code> and <code>FLUSH_LINGER</code> policies are
+     * written.
+     *
+     * @param bytes
+     */
+    public void setCorkThreshold(int bytes)
+    {
+        outbound.setCorkThreshold(bytes);
+    }
+
+    public int getCorkThreshold()
+    {
+        return outbound.getCorkThreshold();
+    }
+
+    /**
+     * Sets how long frames may be held by the <code>FLUSH_CORK</code> and
+     * <code>FLUSH_LINGER</code> policies.
+     *
+     * @param micros time in microseconds.
+     */
+    public void setLingerTime(long micros)
+    {
+        outbound.setLingerTime(micros);
+    }
+
+    public long getLingerTime()
+    {
+        return outbound.getLingerTime();
+    }
+
+    /**
+     * Writes any frames held by the flush policy and waits for writes in
+     * progress to complete.
+     *
+     * @throws BEEPException
+     */
+    public void flush() throws BEEPException
+    {
+        outbound.flush();
+    }
+
+    /**
+     * Sets the number of bytes a received message may hold in memory.
+     * Beyond it the message's data is spilled to a temporary file until
+     * the application reads it, and the channel's receive window is
+     * updated as soon as the data is on disk.
+     *
+     * @param bytes threshold in octets, or 0 to keep messages in memory.
+     *
+     * @see #setSessionSpillThreshold
+     * @see #setSpillDirectory
+     */
+    public void setMessageSpillThreshold(int bytes)
+    {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid threshold " + bytes);
+        }
+
+        messageSpillThreshold = bytes;
+    }
+
+    public int getMessageSpillThreshold()
+    {
+        return messageSpillThreshold;
+    }
+
+    /**
+     * Sets the number of bytes the received messages of all of the
+     * channels of this session may hold in memory before further data is
+     * spilled to temporary files.
+     *
+     * @param bytes threshold in octets, or 0 for no session limit.
+     *
+     * @see #setMessageSpillThreshold
+     */
+    public void setSessionSpillThreshold(long bytes)
+    {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid threshold " + bytes);
+        }
+
+        sessionSpillThreshold = bytes;
+    }
+
+    public long getSessionSpillThreshold()
+    {
+        return sessionSpillThreshold;
+    }
+
+    /**
+     * Sets the directory of the files received data is spilled to.
+     *
+     * @param dir directory, or <code>null</code> for the default
+     *            temporary-file directory.
+     */
+    public void setSpillDirectory(File dir)
+    {
+        spillDirectory = dir;
+    }
+
+    public File getSpillDirectory()
+    {
+        return spillDirectory;
+    }
+
+    /**
+     * Returns <code>true</code> if <code>length</code> more received bytes
+     * should be spilled to disk rather than kept in memory by a message
+     * already holding <code>messageBytes</code>.
+     */
+    boolean shouldSpill(int messageBytes, int length)
+    {
+        int m = messageSpillThreshold;
+        long s = sessionSpillThreshold;
+
+        return (m > 0 && messageBytes + length > m) ||
+            (s > 0 && bufferedBytes.get() + length > s);
+    }
+
+    /**
+     * Accounts for received bytes held in memory by the messages of this
+     * session.
+     */
+    void addBufferedBytes(int delta)
+    {
+        bufferedBytes.getAndAdd(delta);
+    }
     
     /**
      * This method is designed to allow for flow control across the multiplexed
@@ -827,6 +1179,10 @@ public abstract class SessionImpl implements Session {
         // Lock necessary because we have to know the msgNo
         // before we send the message, in order to be able
         // to associate the reply with this start request
+        // channel zero is written ahead of the other channels, make sure
+        // the frames already sent on the channel reach the peer first
+        outbound.flush();
+
         CloseReplyListener reply = new CloseReplyListener(channel);
         synchronized (reply) {
             OutputDataStream ds =
@@ -859,7 +1215,7 @@ public abstract class SessionImpl implements Session {
 
     ChannelImpl getValidChannel(int number) throws BEEPException
     {
-        ChannelImpl ch = (ChannelImpl) channels.get(Integer.toString(number));
+        ChannelImpl ch = channels.get(number);
 
         if (ch == null) {
             throw new BEEPException("Session call on nonexistent channel.");
@@ -878,7 +1234,7 @@ public abstract class SessionImpl implements Session {
                                      parser.serializeProfile(p));
 
         // Store the Channel
-        channels.put(ch.getNumberAsString(), ch);
+        channels.put(ch);
         ((MessageMSG)zero.getAppData()).sendRPY(ds);
     }
 
@@ -920,38 +1276,54 @@ public abstract class SessionImpl implements Session {
 
     private void fireSessionClosed()
     {
-        SessionListener[] l = this.sessionListeners;
+        final SessionListener[] l = this.sessionListeners;
         if (l.length == 0)
             return;
 
-        SessionEvent e = new SessionEvent(this);
-        for (int i=0; i<l.length; ++i) {
-            l[i].sessionClosed(e);
-        }
+        final SessionEvent e = new SessionEvent(this);
+        runInline(new Runnable() {
+                public void run() {
+                    for (int i=0; i<l.length; ++i) {
+                        l[i].sessionClosed(e);
+                    }
+                }
+            });
     }
 
     private void fireSessionTerminated()
     {
-        SessionListener[] l = this.sessionListeners;
+        final SessionListener[] l = this.sessionListeners;
         if (l.length == 0)
             return;
 
-        SessionEvent e = new SessionEvent(this);
-        for (int i=0; i<l.length; ++i) {
-            l[i].sessionClosed(e);
-        }
+        final SessionEvent e = new SessionEvent(this);
+        runInline(new Runnable() {
+                public void run() {
+                    for (int i=0; i<l.length; ++i) {
+                        l[i].sessionClosed(e);
+                    }
+                }
+            });
     }
 
     protected void fireSessionReset(Session newSession)
     {
-        SessionListener[] l = this.sessionListeners;
+        if (newSession instanceof SessionImpl) {
+            ((SessionImpl) newSession).dispatcher = this.dispatcher;
+        }
+
+        final SessionListener[] l = this.sessionListeners;
         if (l.length == 0)
             return;
 
-        SessionResetEvent e = new SessionResetEvent(this, newSession);
-        for (int i=0; i<l.length; ++i) {
-            l[i].sessionReset(e);
-        }
+        final SessionResetEvent e = new SessionResetEvent(this, newSession);
+        runInline(new Runnable() {
+                public void run() {
+                    for (int i=0; i<l.length; ++i) {
+                        l[i].sessionReset(e);
+                    }
+                }
+            });
     }
 
     /**
@@ -979,7 +1351,7 @@ public abstract class SessionImpl implements Session {
 
         enableIO();
                 
-        ChannelImpl channel = (ChannelImpl) channels.get(channelNumber);
+        ChannelImpl channel = channels.get(Integer.parseInt(channelNumber));
 
         if (channel == null) {
             throw new BEEPError(BEEPError.CODE_PARAMETER_INVALID,
@@ -1005,6 +1377,8 @@ public abstract class SessionImpl implements Session {
                                      OK_ELEMENT);
 
         try {
+            // the frames already sent on the channel go before the ok
+            outbound.flush();
             ((MessageMSG)zero.getAppData()).sendRPY(sds);
         } catch (BEEPException x) {
             terminate("Error sending RPY for <close>");
@@ -1014,7 +1388,7 @@ public abstract class SessionImpl implements Session {
 
         // We're past the CCL approval
         channel.setState(ChannelImpl.STATE_CLOSED);
-        channels.remove(channel.getNumberAsString());
+        channels.remove(channel.getNumber());
         fireChannelClosed(channel);
     }
 
@@ -1036,10 +1410,10 @@ public abstract class SessionImpl implements Session {
             return;
         }
 
-        Iterator i = channels.values().iterator();
+        ChannelImpl[] open = channels.toArray();
 
-        while (i.hasNext()) {
-            ChannelImpl ch = (ChannelImpl) i.next();
+        for (int i = 0; i < open.length; ++i) {
+            ChannelImpl ch = open[i];
 
             // if this channel is not zero, call the channel's scl
             if (ch.getNumber() == 0) {
@@ -1053,7 +1427,8 @@ public abstract class SessionImpl implements Session {
             // check locally first to see if it is ok to close the channel
             try {
                 scl.closeChannel(ch);
-                i.remove();
+                ch.setState(ChannelImpl.STATE_CLOSED);
+                channels.remove(ch.getNumber());
             } catch (CloseChannelException e) {
                 try {
                     changeState(SESSION_STATE_ACTIVE);
@@ -1075,6 +1450,7 @@ public abstract class SessionImpl implements Session {
                                      OK_ELEMENT);
 
         try {
+            outbound.flush();
             ((MessageMSG)zero.getAppData()).sendRPY(sds);
         } catch (BEEPException x) {
             terminate("Error sending RPY for <close> for channel 0");
@@ -1091,6 +1467,19 @@ public abstract class SessionImpl implements Session {
         fireSessionClosed();
     }
 
+    /**
+     * Sets the state of the channels of a session that is closed or
+     * terminated, which releases the messages they were receiving.
+     */
+    private void setChannelStates(int state)
+    {
+        ChannelImpl[] open = channels.toArray();
+
+        for (int i = 0; i < open.length; ++i) {
+            open[i].setState(state);
+        }
+    }
+
     /**
      * Returns the next free channel number as a string.
      * @return Channel number.
@@ -1112,7 +1501,7 @@ public abstract class SessionImpl implements Session {
         if (overflow) {
 
             // Equally insane collision check after the rollover
-            if (channels.get(nextChannel) != null) {
+            if (channels.get((int) i) != null) {
                 return getNextFreeChannelNumber();
             }
         }
@@ -1401,7 +1790,7 @@ public abstract class SessionImpl implements Session {
 
             // set the state
             channel.setState(ChannelImpl.STATE_ACTIVE);
-            channels.put(channel.getNumberAsString(), channel);
+            channels.put(channel);
 
             /**
              * @todo something with data
@@ -1435,7 +1824,7 @@ public abstract class SessionImpl implements Session {
             this.error = err;
 
             channel.setState(ChannelImpl.STATE_CLOSED);
-            channels.remove(channel.getNumberAsString());
+            channels.remove(channel.getNumber());
 
             // release the block waiting for the channel to start or close
             synchronized (this) {
@@ -1485,7 +1874,7 @@ public abstract class SessionImpl implements Session {
             // @todo we should fire an event instead.
             // set the state
             channel.setState(ChannelImpl.STATE_CLOSING);
-            channels.remove(channel.getNumberAsString());
+            channels.remove(channel.getNumber());
             channel.setState(ChannelImpl.STATE_CLOSED);
 
             // release the block waiting for the channel to
@@ -1517,7 +1906,7 @@ public abstract class SessionImpl implements Session {
 
             // set the state
             channel.setState(ChannelImpl.STATE_ACTIVE);
-            channels.remove(channel.getNumberAsString());
+            channels.remove(channel.getNumber());
 
             // release the block waiting for the channel to start or close
             synchronized (this) {
@@ -20,6 +20,9 @@ package org.beepcore.beep.lib;
 
 import org.beepcore.beep.core.BEEPException;
 import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Dispatcher;
+import org.beepcore.beep.core.ExtendedChannel;
+import org.beepcore.beep.core.Message;
 import org.beepcore.beep.core.MessageStatus;
 import org.beepcore.beep.core.RequestHandler;
 import org.beepcore.beep.core.OutputDataStream;
@@ -27,6 +30,9 @@ import org.beepcore.beep.core.ReplyListener;
 import org.beepcore.beep.core.Session;
 
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 
 /**
@@ -34,6 +40,10 @@ import java.util.Date;
  * <code>ChannelPool</code> holds a collection of <code>SharedChannel</code>s.
  * Call <code>ChannelPoll</code>'s <code>getSharedChannel</code> to create
  * a <code>SharedChannel</code>.
+ * <p>
+ * The <code>ExtendedChannel</code> methods are passed to the referenced
+ * channel, they throw <code>UnsupportedOperationException</code> if it
+ * is not an <code>ExtendedChannel</code>.
  *
  * @see ChannelPool
  *
@@ -43,7 +53,7 @@ import java.util.Date;
  * @author Scott Pead
  * @version $Revision: 1.14 $, $Date: 2004/01/01 19:12:51 $
  */
-public class SharedChannel implements Channel {
+public class SharedChannel implements ExtendedChannel {
 
     private Channel channel = null;    // Channel this SharedChannel references
     private ChannelPool pool =
@@ -189,4 +199,85 @@ public class SharedChannel implements Channel {
     {
         channel.setAppData(applicationData);
     }
+
+    public CompletableFuture<Message> sendMSGAsync(OutputDataStream stream)
+    {
+        return extended().sendMSGAsync(stream);
+    }
+
+    public CompletableFuture<Message> sendMSGAsync(OutputDataStream stream,
+                                                   Consumer<Message> answers)
+    {
+        return extended().sendMSGAsync(stream, answers);
+    }
+
+    public Dispatcher getDispatcher()
+    {
+        return extended().getDispatcher();
+    }
+
+    public void setDispatcher(Dispatcher dispatcher)
+    {
+        extended().setDispatcher(dispatcher);
+    }
+
+    public Executor getReplyExecutor()
+    {
+        return extended().getReplyExecutor();
+    }
+
+    public void setReplyExecutor(Executor executor)
+    {
+        extended().setReplyExecutor(executor);
+    }
+
+    public int getOutstandingMSGLimit()
+    {
+        return extended().getOutstandingMSGLimit();
+    }
+
+    public void setOutstandingMSGLimit(int limit, boolean block)
+    {
+        extended().setOutstandingMSGLimit(limit, block);
+    }
+
+    public int getMaxFrameSize()
+    {
+        return extended().getMaxFrameSize();
+    }
+
+    public void setMaxFrameSize(int size)
+    {
+        extended().setMaxFrameSize(size);
+    }
+
+    public int getFrameSizeMode()
+    {
+        return extended().getFrameSizeMode();
+    }
+
+    public void setFrameSizeMode(int mode)
+    {
+        extended().setFrameSizeMode(mode);
+    }
+
+    public int getSendWeight()
+    {
+        return extended().getSendWeight();
+    }
+
+    public void setSendWeight(int weight)
+    {
+        extended().setSendWeight(weight);
+    }
+
+    private ExtendedChannel extended()
+    {
+        if (channel instanceof ExtendedChannel == false) {
+            throw new UnsupportedOperationException(
+                channel.getClass().getName() + " is not an ExtendedChannel");
+        }
+
+        return (ExtendedChannel) channel;
+    }
 }
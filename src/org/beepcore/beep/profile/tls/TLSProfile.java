@@ -81,6 +81,28 @@ public abstract class TLSProfile extends TuningProfile implements Profile {
     abstract public TCPSession startTLS(TCPSession session)
         throws BEEPException;
 
+    /**
+     * start a channel for the TLS profile over a session of the
+     * non-blocking transport, see {@link #startTLS(TCPSession)}.  The
+     * session returned reads the TLS connection with a thread of its
+     * own.  Implementations that can not layer TLS over a
+     * {@link TCPNIOSession} refuse before the channel is started.
+     *
+     * @param session the session to encrypt communcation for
+     * @return new {@link TCPSession} with TLS negotiated.
+     * @throws BEEPError 451 if this implementation does not support
+     * <code>TCPNIOSession</code>s.
+     * @throws BEEPException an error occurs during the channel start
+     * request or the TLS handshake.
+     */
+    public TCPSession startTLS(TCPNIOSession session)
+        throws BEEPException
+    {
+        throw new BEEPError(BEEPError.CODE_REQUESTED_ACTION_ABORTED,
+                            getClass().getName() + " does not support " +
+                            "TCPNIOSession");
+    }
+
     /**
      * factory method that returns an instance the default
      * implementation.
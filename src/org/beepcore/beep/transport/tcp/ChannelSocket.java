@@ -0,0 +1,265 @@
+/*
+ * ChannelSocket.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * A <code>Socket</code> over a <code>SocketChannel</code> in blocking mode
+ * that may be read and written at the same time, for another protocol
+ * (e.g. TLS) to be layered over the connection of a session.
+ * <p>
+ * The streams of <code>channel.socket()</code> share the channel's
+ * blocking lock on some JVMs, so a thread blocked reading one stops
+ * another from writing to the other.  The streams of a
+ * <code>ChannelSocket</code> read and write the channel directly.  The
+ * socket options are those of <code>channel.socket()</code>, except that
+ * reads do not time out.
+ */
+class ChannelSocket extends Socket {
+
+    private final SocketChannel channel;
+    private final Socket socket;
+
+    private final InputStream in = new InputStream() {
+            public int read() throws IOException
+            {
+                byte[] b = new byte[1];
+
+                if (read(b, 0, 1) == -1) {
+                    return -1;
+                }
+
+                return b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                if (len == 0) {
+                    return 0;
+                }
+
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            public void close() throws IOException
+            {
+                ChannelSocket.this.close();
+            }
+        };
+
+    private final OutputStream out = new OutputStream() {
+            public void write(int b) throws IOException
+            {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+            }
+
+            public void close() throws IOException
+            {
+                ChannelSocket.this.close();
+            }
+        };
+
+    /**
+     * @param channel a connected <code>SocketChannel</code> in blocking
+     *                mode.
+     */
+    ChannelSocket(SocketChannel channel)
+    {
+        this.channel = channel;
+        this.socket = channel.socket();
+    }
+
+    /**
+     * Returns <code>null</code>, the channel is only written through this
+     * socket's streams.
+     */
+    public SocketChannel getChannel()
+    {
+        return null;
+    }
+
+    public InputStream getInputStream()
+    {
+        return in;
+    }
+
+    public OutputStream getOutputStream()
+    {
+        return out;
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    public boolean isConnected()
+    {
+        return socket.isConnected();
+    }
+
+    public boolean isBound()
+    {
+        return socket.isBound();
+    }
+
+    public boolean isClosed()
+    {
+        return socket.isClosed();
+    }
+
+    public void shutdownInput() throws IOException
+    {
+        socket.shutdownInput();
+    }
+
+    public void shutdownOutput() throws IOException
+    {
+        socket.shutdownOutput();
+    }
+
+    public boolean isInputShutdown()
+    {
+        return socket.isInputShutdown();
+    }
+
+    public boolean isOutputShutdown()
+    {
+        return socket.isOutputShutdown();
+    }
+
+    public InetAddress getInetAddress()
+    {
+        return socket.getInetAddress();
+    }
+
+    public int getPort()
+    {
+        return socket.getPort();
+    }
+
+    public InetAddress getLocalAddress()
+    {
+        return socket.getLocalAddress();
+    }
+
+    public int getLocalPort()
+    {
+        return socket.getLocalPort();
+    }
+
+    public SocketAddress getRemoteSocketAddress()
+    {
+        return socket.getRemoteSocketAddress();
+    }
+
+    public SocketAddress getLocalSocketAddress()
+    {
+        return socket.getLocalSocketAddress();
+    }
+
+    public void setSoTimeout(int timeout) throws SocketException
+    {
+        socket.setSoTimeout(timeout);
+    }
+
+    public int getSoTimeout() throws SocketException
+    {
+        return socket.getSoTimeout();
+    }
+
+    public void setTcpNoDelay(boolean on) throws SocketException
+    {
+        socket.setTcpNoDelay(on);
+    }
+
+    public boolean getTcpNoDelay() throws SocketException
+    {
+        return socket.getTcpNoDelay();
+    }
+
+    public void setSoLinger(boolean on, int linger) throws SocketException
+    {
+        socket.setSoLinger(on, linger);
+    }
+
+    public int getSoLinger() throws SocketException
+    {
+        return socket.getSoLinger();
+    }
+
+    public void setKeepAlive(boolean on) throws SocketException
+    {
+        socket.setKeepAlive(on);
+    }
+
+    public boolean getKeepAlive() throws SocketException
+    {
+        return socket.getKeepAlive();
+    }
+
+    public void setReceiveBufferSize(int size) throws SocketException
+    {
+        socket.setReceiveBufferSize(size);
+    }
+
+    public int getReceiveBufferSize() throws SocketException
+    {
+        return socket.getReceiveBufferSize();
+    }
+
+    public void setSendBufferSize(int size) throws SocketException
+    {
+        socket.setSendBufferSize(size);
+    }
+
+    public int getSendBufferSize() throws SocketException
+    {
+        return socket.getSendBufferSize();
+    }
+
+    public String toString()
+    {
+        return socket.toString();
+    }
+}
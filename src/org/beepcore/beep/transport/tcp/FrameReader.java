@@ -0,0 +1,351 @@
+/*
+ * FrameReader.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.util.BufferPool;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.FrameHeader;
+
+
+/**
+ * Incremental parser for the TCP mapping of BEEP (RFC 3081).
+ * <p>
+ * Bytes are read in large chunks into a receive buffer which is then
+ * parsed for any number of complete headers, payloads, trailers and
+ * <code>SEQ</code> frames.  Partial frames are kept until the next read
+ * completes them, so the parser can be driven by a non-blocking
+ * <code>SocketChannel</code> as well as by a blocking stream.
+ * <p>
+ * Payloads are read into segments from the default
+ * <code>BufferPool</code>, which are released as the application consumes
+ * the message's <code>InputDataStream</code>.
+ * <p>
+ * Subclasses connect the parser to a session by implementing
+ * <code>createFrame</code>, <code>postFrame</code> and
+ * <code>updatePeerReceiveBufferSize</code>.
+ */
+abstract class FrameReader {
+
+    // Constants
+    static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private static final byte[] TRAILER = Frame.TRAILER.getBytes();
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_PAYLOAD = 1;
+    private static final int STATE_TRAILER = 2;
+
+    // Instance Data
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private byte[] buf;
+
+    /** start of the unparsed bytes in <code>buf</code> */
+    private int pos = 0;
+
+    /** end of the valid bytes in <code>buf</code> */
+    private int limit = 0;
+
+    /** position to continue the search for the end of the header */
+    private int scan = 0;
+
+    /** reused for every header read */
+    private final FrameHeader header = new FrameHeader();
+
+    private int state = STATE_HEADER;
+    private Frame frame;
+    private BufferSegment payloadSegment;
+    private byte[] payload;
+    private int payloadLength;
+    private int payloadRead;
+    private int trailerRead;
+
+    FrameReader()
+    {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    FrameReader(int bufferSize)
+    {
+        this.buf = new byte[Math.max(bufferSize, 2 * Frame.MAX_HEADER_SIZE)];
+    }
+
+    /**
+     * Reads the next chunk of bytes from <code>is</code>.
+     *
+     * @return the number of bytes read or -1 if the end of the stream
+     *         has been reached.
+     */
+    int read(InputStream is) throws IOException
+    {
+        if (readPayloadDirect()) {
+            int n = is.read(payload, payloadRead,
+                            payloadLength - payloadRead);
+            if (n > 0) {
+                payloadRead += n;
+            }
+            return n;
+        }
+
+        prepareBuffer();
+
+        int n = is.read(buf, limit, buf.length - limit);
+        if (n > 0) {
+            limit += n;
+        }
+        return n;
+    }
+
+    /**
+     * Reads the bytes currently available from <code>ch</code>.
+     *
+     * @return the number of bytes read, possibly zero for a non-blocking
+     *         channel, or -1 if the end of the stream has been reached.
+     */
+    int read(ReadableByteChannel ch) throws IOException
+    {
+        if (readPayloadDirect()) {
+            int n = ch.read(ByteBuffer.wrap(payload, payloadRead,
+                                            payloadLength - payloadRead));
+            if (n > 0) {
+                payloadRead += n;
+            }
+            return n;
+        }
+
+        prepareBuffer();
+
+        int n = ch.read(ByteBuffer.wrap(buf, limit, buf.length - limit));
+        if (n > 0) {
+            limit += n;
+        }
+        return n;
+    }
+
+    /**
+     * Parses all of the complete frames currently buffered.
+     *
+     * @return <code>false</code> if the session asked for reading to stop
+     *         (e.g. for a tuning reset), <code>true</code> otherwise.  Any
+     *         bytes following the frame are kept and will be processed by
+     *         the next call.
+     */
+    boolean processFrames() throws BEEPException
+    {
+        while (true) {
+            switch (state) {
+            case STATE_HEADER:
+                if (parseHeader() == false) {
+                    return true;
+                }
+                break;
+            case STATE_PAYLOAD:
+                int n = Math.min(limit - pos, payloadLength - payloadRead);
+                System.arraycopy(buf, pos, payload, payloadRead, n);
+                pos += n;
+                payloadRead += n;
+
+                if (payloadRead < payloadLength) {
+                    return true;
+                }
+
+                if (log.isTraceEnabled()) {
+                    log.trace(new String(payload, 0, payloadLength));
+                }
+
+                state = STATE_TRAILER;
+                break;
+            case STATE_TRAILER:
+                while (trailerRead < TRAILER.length) {
+                    if (pos == limit) {
+                        return true;
+                    }
+
+                    if (buf[pos++] != TRAILER[trailerRead++]) {
+                        throw new BEEPException("Malformed BEEP frame, "
+                                                + "invalid trailer");
+                    }
+                }
+
+                Frame f = frame;
+                f.addPayload(payloadSegment);
+
+                frame = null;
+                payloadSegment = null;
+                payload = null;
+                state = STATE_HEADER;
+
+                if (postFrame(f) == false) {
+                    return false;
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if there are unparsed bytes in the buffer.
+     */
+    boolean hasBufferedData()
+    {
+        return pos != limit;
+    }
+
+    /**
+     * Moves the unparsed bytes of <code>from</code> into this reader.  Used
+     * when a session is reset on the same connection and the peer has
+     * already sent frames for the new session.
+     */
+    void takeBufferedData(FrameReader from)
+    {
+        int n = from.limit - from.pos;
+
+        if (n > buf.length - limit) {
+            byte[] b = new byte[limit + n];
+            System.arraycopy(buf, 0, b, 0, limit);
+            buf = b;
+        }
+
+        System.arraycopy(from.buf, from.pos, buf, limit, n);
+        limit += n;
+
+        from.pos = from.limit = from.scan = 0;
+    }
+
+    protected abstract Frame createFrame(FrameHeader header)
+        throws BEEPException;
+
+    protected abstract boolean postFrame(Frame f) throws BEEPException;
+
+    protected abstract void updatePeerReceiveBufferSize(int channelNum,
+                                                        long ackNum,
+                                                        int window)
+        throws BEEPException;
+
+    /**
+     * @return <code>true</code> if a complete header was parsed.
+     */
+    private boolean parseHeader() throws BEEPException
+    {
+        int eol = -1;
+
+        if (scan < pos) {
+            scan = pos;
+        }
+
+        for (int i = scan; i < limit; ++i) {
+            if (buf[i] == '\n') {
+                eol = i;
+                break;
+            }
+        }
+
+        if (eol == -1) {
+            if (limit - pos > Frame.MAX_HEADER_SIZE) {
+                throw new BEEPException("Malformed BEEP header, no CRLF");
+            }
+
+            scan = limit;
+            return false;
+        }
+
+        if (eol == pos || buf[eol - 1] != '\r') {
+            throw new BEEPException("Malformed BEEP header");
+        }
+
+        int headerLength = eol - 1 - pos;
+
+        if (log.isTraceEnabled()) {
+            log.trace(new String(buf, pos, headerLength));
+        }
+
+        header.parse(buf, pos, headerLength);
+
+        if (header.getType() == FrameHeader.TYPE_SEQ) {
+            processSEQFrame();
+        } else {
+            frame = createFrame(header);
+            payloadLength = frame.getSize();
+            payloadSegment = BufferPool.getDefault().allocate(payloadLength);
+            payload = payloadSegment.getData();
+            payloadRead = 0;
+            trailerRead = 0;
+            state = STATE_PAYLOAD;
+        }
+
+        pos = eol + 1;
+        scan = pos;
+
+        return true;
+    }
+
+    private void processSEQFrame() throws BEEPException
+    {
+        int channelNum = header.getChannel();
+        long ackNum = header.getAckno();
+        int window = header.getWindow();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Read: SEQ " + channelNum + " " + ackNum + " " + window);
+        }
+
+        // update the channel with the new receive window size
+        updatePeerReceiveBufferSize(channelNum, ackNum, window);
+    }
+
+    /**
+     * Large payloads are read straight into the payload array once the
+     * buffered bytes have been consumed, which saves a copy.
+     */
+    private boolean readPayloadDirect()
+    {
+        return state == STATE_PAYLOAD && pos == limit &&
+            payloadLength - payloadRead >= buf.length / 2;
+    }
+
+    /**
+     * Makes room at the end of the buffer for the next read.
+     */
+    private void prepareBuffer()
+    {
+        if (pos == limit) {
+            pos = limit = scan = 0;
+        } else if (buf.length - limit < Frame.MAX_HEADER_SIZE) {
+            int n = limit - pos;
+            System.arraycopy(buf, pos, buf, 0, n);
+            scan -= pos;
+            pos = 0;
+            limit = n;
+        }
+    }
+}
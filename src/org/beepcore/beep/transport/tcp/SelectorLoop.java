@@ -0,0 +1,229 @@
+/*
+ * SelectorLoop.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+
+import java.io.IOException;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.core.BEEPException;
+
+
+/**
+ * A single thread multiplexing the reads, and the writes the senders
+ * left, of many <code>TCPNIOSession</code>s over one
+ * <code>Selector</code>.
+ * <p>
+ * Interest changes and registrations are handed to the loop thread with
+ * <code>invoke</code> so the selector is only ever modified by its own
+ * thread.
+ */
+class SelectorLoop implements Runnable {
+
+    // Constants
+    private static int THREAD_COUNT = 0;
+    private static final String THREAD_NAME = "TCPSelector Thread #";
+
+    // Instance Data
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private Selector selector;
+    private Thread thread;
+    private LinkedList tasks = new LinkedList();
+
+    SelectorLoop() throws IOException
+    {
+        selector = Selector.open();
+
+        String threadName;
+
+        synchronized (THREAD_NAME) {
+            threadName = THREAD_NAME + THREAD_COUNT++;
+        }
+
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns <code>true</code> if the calling thread is the loop thread.
+     */
+    boolean inLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs <code>task</code> on the loop thread.  If called from the loop
+     * thread the task is run immediately.
+     */
+    void invoke(Runnable task)
+    {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+
+        synchronized (tasks) {
+            tasks.addLast(task);
+        }
+
+        selector.wakeup();
+    }
+
+    /**
+     * Runs <code>task</code> on the loop thread and waits for it to
+     * finish.
+     */
+    void invokeAndWait(final Runnable task) throws BEEPException
+    {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+
+        final boolean[] done = new boolean[1];
+
+        invoke(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        synchronized (done) {
+                            done[0] = true;
+                            done.notifyAll();
+                        }
+                    }
+                }
+            });
+
+        synchronized (done) {
+            while (done[0] == false) {
+                try {
+                    done.wait();
+                } catch (InterruptedException e) {
+                    throw new BEEPException("Interrupted waiting for " +
+                                            "selector thread");
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers <code>ch</code> with this loop's selector.  Must be called
+     * from the loop thread.
+     */
+    SelectionKey register(SelectableChannel ch, int ops,
+                          TCPNIOSession session)
+        throws IOException
+    {
+        SelectionKey key = ch.keyFor(selector);
+
+        if (key != null && key.isValid() == false) {
+            // flush the cancelled key before registering again
+            selector.selectNow();
+        }
+
+        ch.configureBlocking(false);
+
+        return ch.register(selector, ops, session);
+    }
+
+    /**
+     * Cancels <code>key</code> and flushes it from the selector so the
+     * channel may be put back in blocking mode.  Must be called from the
+     * loop thread.
+     */
+    void deregister(SelectionKey key) throws IOException
+    {
+        key.cancel();
+        selector.selectNow();
+    }
+
+    public void run()
+    {
+        while (true) {
+            runTasks();
+
+            try {
+                selector.select();
+            } catch (IOException e) {
+                log.error("Error in select", e);
+                continue;
+            }
+
+            // copy the selected keys, a session may deregister (and so
+            // call selectNow) while it is being processed
+            Object[] keys = selector.selectedKeys().toArray();
+            selector.selectedKeys().clear();
+
+            for (int i = 0; i < keys.length; ++i) {
+                SelectionKey key = (SelectionKey) keys[i];
+
+                if (key.isValid() == false) {
+                    continue;
+                }
+
+                TCPNIOSession session = (TCPNIOSession) key.attachment();
+
+                try {
+                    if (key.isWritable()) {
+                        session.processWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        session.processReadable();
+                    }
+                } catch (Throwable e) {
+                    log.error("Error processing " + session, e);
+                }
+            }
+        }
+    }
+
+    private void runTasks()
+    {
+        while (true) {
+            Runnable task;
+
+            synchronized (tasks) {
+                if (tasks.isEmpty()) {
+                    return;
+                }
+                task = (Runnable) tasks.removeFirst();
+            }
+
+            try {
+                task.run();
+            } catch (Throwable e) {
+                log.error("Error running selector task", e);
+            }
+        }
+    }
+}
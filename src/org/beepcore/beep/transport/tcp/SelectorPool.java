@@ -0,0 +1,97 @@
+/*
+ * SelectorPool.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+
+import java.io.IOException;
+
+import org.beepcore.beep.core.BEEPException;
+
+
+/**
+ * A fixed set of <code>SelectorLoop</code>s shared by all
+ * <code>TCPNIOSession</code>s.  Sessions are assigned to the loops
+ * round robin.
+ */
+class SelectorPool {
+
+    private static SelectorPool defaultPool = null;
+    private static int defaultSize =
+        Runtime.getRuntime().availableProcessors();
+
+    private SelectorLoop[] loops;
+    private int next = 0;
+
+    SelectorPool(int size) throws BEEPException
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+
+        loops = new SelectorLoop[size];
+
+        try {
+            for (int i = 0; i < size; ++i) {
+                loops[i] = new SelectorLoop();
+            }
+        } catch (IOException e) {
+            throw new BEEPException(e);
+        }
+    }
+
+    /**
+     * Returns the pool used by <code>TCPSessionCreator</code>, creating it
+     * on first use.
+     */
+    static synchronized SelectorPool getDefault() throws BEEPException
+    {
+        if (defaultPool == null) {
+            defaultPool = new SelectorPool(defaultSize);
+        }
+
+        return defaultPool;
+    }
+
+    /**
+     * Sets the number of selector threads used by the default pool.  Has
+     * no effect once the default pool has been created.
+     */
+    static synchronized void setDefaultSize(int size)
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+
+        defaultSize = size;
+    }
+
+    /**
+     * Returns the loop the next session should be assigned to.
+     */
+    synchronized SelectorLoop next()
+    {
+        SelectorLoop l = loops[next];
+
+        next = (next + 1) % loops.length;
+
+        return l;
+    }
+}
@@ -0,0 +1,924 @@
+/*
+ * TCPNIOSession.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionImpl;
+import org.beepcore.beep.core.SessionCredential;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.FileSegment;
+import org.beepcore.beep.util.FrameHeader;
+import org.beepcore.beep.util.StringUtil;
+
+
+/**
+ * Provides the TCP transport mapping for BEEP according to RFC 3081
+ * using non-blocking I/O.
+ * <p>
+ * Unlike <code>TCPSession</code>, which dedicates a thread to reading
+ * each connection, a <code>TCPNIOSession</code> is read by one of a small
+ * number of shared selector threads which parse frames incrementally as
+ * bytes arrive and hand them to the session.  Frames are written by the
+ * sending thread with a single gathering write.  The bytes the socket
+ * does not take are copied and written by the selector thread once it is
+ * writable, so a sender never blocks the selector thread; other senders
+ * wait while more than <code>MAX_PENDING_BYTES</code> are left.
+ * <p>
+ * Reply listeners that must run before anything else is read on the
+ * session, those of channel zero and of channels set to
+ * <code>INLINE_REPLY_EXECUTOR</code>, and the session's listeners are run
+ * on the session's <code>Dispatcher</code> while reading the session is
+ * held.  A session terminated by the selector thread is torn down on the
+ * <code>Dispatcher</code> too.
+ *
+ * @see TCPSessionCreator#initiateNIO(java.net.InetAddress, int)
+ * @see TCPSessionCreator#listenNIO(int, ProfileRegistry)
+ */
+public class TCPNIOSession extends SessionImpl {
+
+    // Constants
+    private static final char[] MESSAGE_TYPE_SEQ = new char[] {'S', 'E', 'Q'};
+    private static final int MAX_RECEIVE_BUFFER_SIZE = 64 * 1024;
+    private static final String CRLF = "\r\n";
+
+    private static final int CHANNEL_START_ODD = 1;
+    private static final int CHANNEL_START_EVEN = 2;
+
+    /** bytes left for the selector thread before other senders wait */
+    private static final int MAX_PENDING_BYTES = 64 * 1024;
+
+    // Instance Data
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private SocketChannel channel;
+
+    /** returned by <code>getSocket</code>, see <code>ChannelSocket</code> */
+    private Socket socket;
+
+    private SelectorLoop loop;
+    private SelectionKey key = null;
+    private FrameReader reader;
+
+    /**
+     * serializes the writes, a lock rather than a monitor so a sender
+     * waiting for the selector thread does not pin a virtual thread
+     */
+    private final ReentrantLock writerLock = new ReentrantLock();
+
+    /** signalled as the selector thread writes the bytes left */
+    private final Condition pendingWritten = writerLock.newCondition();
+
+    /**
+     * copies of the bytes the socket did not take, written by the
+     * selector thread, guarded by <code>writerLock</code>
+     */
+    private LinkedList pending = new LinkedList();
+    private long pendingBytes = 0;
+
+    /** reused by each write, guarded by <code>writerLock</code> */
+    private ByteBuffer[] gatherBufs = new ByteBuffer[0];
+
+    /**
+     * reading is held while an inline reply listener runs, read and
+     * written by the selector thread only
+     */
+    private boolean readingHeld = false;
+
+    /** what the frame that held reading returned */
+    private boolean continueAfterHeld = true;
+
+    private TCPNIOSession(SocketChannel channel, SelectorLoop loop,
+                          TCPNIOSession previous, ProfileRegistry registry,
+                          int firstChannel, SessionCredential localCred,
+                          SessionCredential peerCred,
+                          SessionTuningProperties tuning, String servername)
+        throws BEEPException
+    {
+        super(registry, firstChannel, localCred, peerCred, tuning, servername);
+
+        this.channel = channel;
+        this.socket = new ChannelSocket(channel);
+        this.loop = loop;
+        this.reader = new FrameReader() {
+                protected Frame createFrame(FrameHeader header)
+                    throws BEEPException
+                {
+                    return TCPNIOSession.this.createFrame(header);
+                }
+
+                protected boolean postFrame(Frame f) throws BEEPException {
+                    boolean more = TCPNIOSession.this.postFrame(f);
+
+                    if (readingHeld) {
+                        // resumed once the listener has run, see runInline
+                        continueAfterHeld = more;
+                        return false;
+                    }
+
+                    return more;
+                }
+
+                protected void updatePeerReceiveBufferSize(int channelNum,
+                                                           long ackNum,
+                                                           int window)
+                    throws BEEPException
+                {
+                    TCPNIOSession.this.updatePeerReceiveBufferSize(channelNum,
+                                                                   ackNum,
+                                                                   window);
+                }
+            };
+
+        if (previous != null) {
+            reader.takeBufferedData(previous.reader);
+
+            previous.writerLock.lock();
+            try {
+                pending.addAll(previous.pending);
+                pendingBytes = previous.pendingBytes;
+                previous.pending.clear();
+                previous.pendingBytes = 0;
+            } finally {
+                previous.writerLock.unlock();
+            }
+        }
+
+        try {
+            channel.socket().setReceiveBufferSize(MAX_RECEIVE_BUFFER_SIZE);
+        } catch (Exception x) {
+            log.debug("Socket doesn't support setting receive buffer size");
+        }
+
+        if ((peerCred != null) || (localCred != null) || (tuning != null)) {
+            tuningInit();
+        } else {
+            init();
+        }
+    }
+
+    /**
+     * Creates a TCPNIOSession for a SocketChannel that was created by
+     * initiating a connection.
+     *
+     * @param channel
+     * @param registry
+     * @param servername
+     *
+     * @throws BEEPException
+     */
+    public static TCPNIOSession createInitiator(SocketChannel channel,
+                                                ProfileRegistry registry,
+                                                String servername)
+        throws BEEPException
+    {
+        return new TCPNIOSession(channel, SelectorPool.getDefault().next(),
+                                 null, (ProfileRegistry) registry.clone(),
+                                 CHANNEL_START_ODD, null, null, null,
+                                 servername);
+    }
+
+    /**
+     * Creates a TCPNIOSession for a SocketChannel that was created by
+     * initiating a connection.
+     *
+     * @param channel
+     * @param registry
+     *
+     * @throws BEEPException
+     */
+    public static TCPNIOSession createInitiator(SocketChannel channel,
+                                                ProfileRegistry registry)
+        throws BEEPException
+    {
+        return createInitiator(channel, registry, null);
+    }
+
+    /**
+     * Creates a TCPNIOSession for a SocketChannel that was created by
+     * listening and accepting a connection.
+     *
+     * @param channel
+     * @param registry
+     *
+     * @throws BEEPException
+     */
+    public static TCPNIOSession createListener(SocketChannel channel,
+                                               ProfileRegistry registry)
+        throws BEEPException
+    {
+        return new TCPNIOSession(channel, SelectorPool.getDefault().next(),
+                                 null, (ProfileRegistry) registry.clone(),
+                                 CHANNEL_START_EVEN, null, null, null, null);
+    }
+
+    // Overrides method in Session, not synchronized as the selector
+    // thread locks the session while posting frames
+    public void close() throws BEEPException
+    {
+        super.close();
+
+        // the reply to the close may still be waiting for the socket
+        writerLock.lock();
+        try {
+            awaitPending(0);
+        } catch (IOException e) {
+            log.debug("Unable to write the last frames", e);
+        } finally {
+            writerLock.unlock();
+        }
+
+        closeChannel();
+    }
+
+    /**
+     * Returns the socket for this session.  Reading is suspended and the
+     * socket is returned to blocking mode so that another protocol (e.g.
+     * TLS) may be layered over it.  The socket may be read and written by
+     * different threads at the same time.
+     */
+    public Socket getSocket()
+    {
+        disableIO();
+
+        try {
+            flush();
+
+            writerLock.lock();
+            try {
+                awaitPending(0);
+            } finally {
+                writerLock.unlock();
+            }
+        } catch (BEEPException e) {
+            log.error("Unable to flush queued frames", e);
+        } catch (IOException e) {
+            log.error("Unable to flush queued frames", e);
+        }
+
+        return socket;
+    }
+
+    /**
+     * Terminates the session.  Called on the selector thread, the
+     * channels and the session's listeners are released on the
+     * session's <code>Dispatcher</code> so that they do not hold up the
+     * other sessions of the loop.
+     */
+    public void terminate(final String reason)
+    {
+        closeChannel();
+
+        if (loop.inLoop() == false) {
+            super.terminate(reason);
+            return;
+        }
+
+        try {
+            getDispatcher().execute(new Runnable() {
+                    public void run() {
+                        TCPNIOSession.super.terminate(reason);
+                    }
+                });
+        } catch (BEEPException e) {
+            log.error("Unable to dispatch the termination", e);
+            super.terminate(reason);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        Socket socket = channel.socket();
+
+        return super.toString() + " (" +
+            socket.getLocalAddress() + ":" + socket.getLocalPort() + "-" +
+            socket.getInetAddress() + ":" + socket.getPort() + ")";
+    }
+
+    // Implementation of method declared in Session
+    protected void disableIO()
+    {
+        try {
+            loop.invokeAndWait(new Runnable() {
+                    public void run() {
+                        suspendReading();
+                    }
+                });
+        } catch (BEEPException e) {
+            log.error("Unable to disable IO", e);
+        }
+    }
+
+    // Implementation of method declared in Session
+    protected void enableIO()
+    {
+        loop.invoke(new Runnable() {
+                public void run() {
+                    resumeReading();
+                }
+            });
+    }
+
+    /**
+     * Holds reading this session and runs <code>task</code> on the
+     * session's <code>Dispatcher</code>, so that the listener does not
+     * run on the selector thread shared with other sessions.
+     */
+    protected void runInline(final Runnable task)
+    {
+        if (loop.inLoop() == false) {
+            task.run();
+            return;
+        }
+
+        readingHeld = true;
+
+        try {
+            getDispatcher().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            loop.invoke(new Runnable() {
+                                    public void run() {
+                                        releaseReading();
+                                    }
+                                });
+                        }
+                    }
+                });
+        } catch (BEEPException e) {
+            log.error("Unable to dispatch reply, delivering it inline", e);
+            readingHeld = false;
+            task.run();
+        }
+    }
+
+    // Implementation of method declared in Session
+    protected int getMaxFrameSize()
+    {
+        return 1400;
+    }
+
+    /**
+     * Writes the header, payload, and trailer of the frame to the wire
+     * with a single gathering write.
+     *
+     * @param f the Frame to send.
+     *
+     * @throws BEEPException
+     */
+    protected void sendFrame(Frame f) throws BEEPException
+    {
+        BufferSegment[] bs = f.getBytes();
+
+        writeSegments(bs, bs.length);
+    }
+
+    /**
+     * Writes the segments of any number of frames and SEQs queued by the
+     * session with a single gathering write.  File payloads are sent with
+     * <code>transferTo</code> between the gathering writes.  What the
+     * socket does not take is left for the selector thread.
+     */
+    protected boolean writeSegments(BufferSegment[] bs, int count)
+        throws BEEPException
+    {
+        try {
+            write(bs, count);
+        } catch (IOException e) {
+            throw new BEEPException(e);
+        }
+
+        if (log.isTraceEnabled()) {
+            for (int i = 0; i < count; ++i) {
+                log.trace("Wrote the following\n" +
+                          new String(bs[i].getData(), bs[i].getOffset(),
+                                     bs[i].getLength()));
+            }
+        }
+
+        return true;
+    }
+
+    // Implementation of method declared in Session
+    protected Session reset(SessionCredential localCred,
+                            SessionCredential peerCred,
+                            SessionTuningProperties tuning,
+                            ProfileRegistry reg, Object argument)
+            throws BEEPException
+    {
+        if (log.isTraceEnabled()) {
+            log.trace("Reset as "
+                      + (isInitiator() ? "INITIATOR" : "LISTENER"));
+        }
+
+        if (reg == null) {
+            reg = this.getProfileRegistry();
+        }
+
+        int firstChannel = isInitiator() ? CHANNEL_START_ODD :
+            CHANNEL_START_EVEN;
+
+        Session newSession;
+
+        if (argument instanceof Socket && argument != socket &&
+            argument != channel.socket())
+        {
+            // The connection has been layered with another protocol
+            // (e.g. TLS) which is only available as a blocking Socket.
+            disableIO();
+
+            newSession = TCPSession.createReset((Socket) argument, reg,
+                                                firstChannel, localCred,
+                                                peerCred, tuning);
+        } else {
+            newSession = new TCPNIOSession(channel, loop, this, reg,
+                                           firstChannel, localCred, peerCred,
+                                           tuning, null);
+        }
+
+        this.fireSessionReset(newSession);
+
+        return newSession;
+    }
+
+    /**
+     * Update the channel window size with the remote peer by sending
+     * SEQ frames as per RFC 3081.
+     *
+     * @return true if the Receive Buffer Size was updated
+     *
+     * @throws BEEPException if the SEQ frame could not be sent.
+     */
+    protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                long currentSeq,
+                                                int currentAvail)
+            throws BEEPException
+    {
+        StringBuffer sb = new StringBuffer(Frame.MAX_HEADER_SIZE);
+
+        sb.append(MESSAGE_TYPE_SEQ);
+        sb.append(' ');
+        sb.append(this.getChannelNumberAsString(channel));
+        sb.append(' ');
+        sb.append(Long.toString(currentSeq));
+        sb.append(' ');
+        sb.append(Integer.toString(currentAvail));
+        sb.append(CRLF);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Wrote: " + sb.toString());
+        }
+
+        // written in order with the frames queued on the session
+        sendSegment(new BufferSegment(StringUtil.stringBufferToAscii(sb)));
+
+        return true;
+    }
+
+    /**
+     * Called by the selector thread when the channel is readable.
+     */
+    void processReadable()
+    {
+        if (readingHeld) {
+            return;
+        }
+
+        try {
+            int n = reader.read(channel);
+
+            if (n == -1) {
+                terminate("Session aborted by remote peer.");
+                return;
+            }
+
+            processFrames();
+        } catch (IOException e) {
+            log.error(e);
+            terminate(e.getMessage());
+        }
+    }
+
+    /**
+     * Called by the selector thread when the channel is writable, writes
+     * the bytes left by the senders.
+     */
+    void processWritable()
+    {
+        writerLock.lock();
+        try {
+            if (writePending()) {
+                updateInterestOps();
+            }
+            pendingWritten.signalAll();
+        } catch (IOException e) {
+            log.error(e);
+            terminate(e.getMessage());
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    private void processFrames()
+    {
+        try {
+            if (reader.processFrames() == false) {
+                if (readingHeld) {
+                    updateInterestOps();
+                } else {
+                    suspendReading();
+                }
+            }
+        } catch (Throwable e) {
+            log.error(e);
+            terminate(e.getMessage());
+        }
+    }
+
+    /**
+     * Registers for reads, run on the selector thread.
+     */
+    private void resumeReading()
+    {
+        if (channel.isOpen() == false) {
+            return;
+        }
+
+        try {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            log.error(e);
+            terminate(e.getMessage());
+            return;
+        }
+
+        // bytes taken over from the session this one was reset from
+        updateInterestOps();
+
+        if (reader.hasBufferedData() && readingHeld == false) {
+            processFrames();
+        }
+    }
+
+    /**
+     * Resumes reading once an inline reply listener has run, run on the
+     * selector thread.
+     */
+    private void releaseReading()
+    {
+        readingHeld = false;
+
+        // the listener may have suspended reading or reset the session
+        if (key == null || key.isValid() == false ||
+            key.attachment() != this)
+        {
+            return;
+        }
+
+        if (continueAfterHeld == false) {
+            suspendReading();
+            return;
+        }
+
+        updateInterestOps();
+
+        if (reader.hasBufferedData()) {
+            processFrames();
+        }
+    }
+
+    /**
+     * Sets the events the selector waits for: reads unless they are held,
+     * writes while bytes are left.  Run on the selector thread.
+     */
+    private void updateInterestOps()
+    {
+        if (key == null || key.isValid() == false ||
+            key.attachment() != this)
+        {
+            return;
+        }
+
+        int ops = (readingHeld ? 0 : SelectionKey.OP_READ);
+
+        writerLock.lock();
+        try {
+            if (pending.isEmpty() == false) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        } finally {
+            writerLock.unlock();
+        }
+
+        key.interestOps(ops);
+    }
+
+    /**
+     * Stops reading and returns the channel to blocking mode, run on the
+     * selector thread.  Bytes left are then written by the next sender.
+     */
+    private void suspendReading()
+    {
+        if (key == null) {
+            return;
+        }
+
+        try {
+            // the key is shared with a session created by reset
+            if (key.attachment() == this && channel.isOpen()) {
+                loop.deregister(key);
+
+                writerLock.lock();
+                try {
+                    channel.configureBlocking(true);
+                    pendingWritten.signalAll();
+                } finally {
+                    writerLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Unable to suspend reading", e);
+        }
+
+        key = null;
+    }
+
+    private void write(BufferSegment[] bs, int count)
+        throws IOException
+    {
+        writerLock.lock();
+        try {
+            if (count > gatherBufs.length) {
+                gatherBufs = new ByteBuffer[count];
+            }
+
+            ByteBuffer[] bufs = gatherBufs;
+
+            for (int i = 0; i < count; ++i) {
+                if (bs[i] instanceof FileSegment == false) {
+                    bufs[i] = bs[i].asByteBuffer();
+                } else {
+                    bufs[i] = null;
+                }
+            }
+
+            try {
+                writeOrLeave(bs, bufs, count);
+            } finally {
+                // don't hold on to the buffers of frames already sent
+                Arrays.fill(bufs, 0, count, null);
+            }
+
+            // the selector thread never waits for itself
+            if (loop.inLoop() == false) {
+                awaitPending(MAX_PENDING_BYTES);
+            }
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * Writes what the socket takes of <code>bufs</code>, after the bytes
+     * left by earlier writes, and leaves the rest for the selector thread.
+     * Must be called holding <code>writerLock</code>.
+     */
+    private void writeOrLeave(BufferSegment[] bs, ByteBuffer[] bufs,
+                              int count)
+        throws IOException
+    {
+        int i = 0;
+        int off = 0;
+
+        // bytes left by earlier writes go first
+        if (writePending()) {
+            while (i < count) {
+                if (bufs[i] == null) {
+                    off = transfer((FileSegment) bs[i]);
+                    if (off < bs[i].getLength()) {
+                        break;
+                    }
+                    off = 0;
+                    ++i;
+                    continue;
+                }
+
+                int end = i + 1;
+                while (end < count && bufs[end] != null) {
+                    ++end;
+                }
+
+                long n = channel.write(bufs, i, end - i);
+
+                while (i < end && bufs[i].hasRemaining() == false) {
+                    ++i;
+                }
+
+                if (n == 0 && i < end) {
+                    break;
+                }
+            }
+        }
+
+        if (i < count) {
+            leave(bs, bufs, i, off, count);
+        }
+    }
+
+    /**
+     * Sends a file payload straight from the file.  Must be called holding
+     * <code>writerLock</code>.
+     *
+     * @return the number of bytes sent, less than the length of
+     *         <code>f</code> if the socket is full.
+     */
+    private int transfer(FileSegment f) throws IOException
+    {
+        int off = 0;
+
+        while (off < f.getLength()) {
+            int n = f.transferTo(channel, off);
+
+            if (n == 0) {
+                break;
+            }
+            off += n;
+        }
+
+        return off;
+    }
+
+    /**
+     * Copies the bytes of the segments from <code>bs[i]</code> to
+     * <code>bs[count - 1]</code>, of which
+     * <code>off</code> bytes have been sent if it is a file, for the
+     * selector thread to write.  Must be called holding
+     * <code>writerLock</code>.
+     */
+    private void leave(BufferSegment[] bs, ByteBuffer[] bufs, int i, int off,
+                       int count)
+        throws IOException
+    {
+        int length = -off;
+
+        for (int j = i; j < count; ++j) {
+            length += (bufs[j] == null ? bs[j].getLength() :
+                       bufs[j].remaining());
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(length);
+
+        for (int j = i; j < count; ++j) {
+            if (bufs[j] == null) {
+                FileSegment f = (FileSegment) bs[j];
+
+                ((FileSegment) f.slice(off, f.getLength() - off)).read(copy);
+                off = 0;
+            } else {
+                copy.put(bufs[j]);
+            }
+        }
+        copy.flip();
+
+        boolean wasEmpty = pending.isEmpty();
+
+        pending.addLast(copy);
+        pendingBytes += length;
+
+        if (wasEmpty) {
+            loop.invoke(new Runnable() {
+                    public void run() {
+                        updateInterestOps();
+                    }
+                });
+        }
+    }
+
+    /**
+     * Writes what the socket takes of the bytes left.  Must be called
+     * holding <code>writerLock</code>.
+     *
+     * @return <code>true</code> if no bytes are left.
+     */
+    private boolean writePending() throws IOException
+    {
+        while (pending.isEmpty() == false) {
+            ByteBuffer[] bufs = (ByteBuffer[])
+                pending.toArray(new ByteBuffer[pending.size()]);
+
+            long n = channel.write(bufs);
+
+            pendingBytes -= n;
+            while (pending.isEmpty() == false &&
+                   ((ByteBuffer) pending.getFirst()).hasRemaining() == false)
+            {
+                pending.removeFirst();
+            }
+
+            if (n == 0) {
+                return pending.isEmpty();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits until no more than <code>max</code> bytes are left for the
+     * selector thread, writing them itself once the channel is back in
+     * blocking mode.  Must be called holding <code>writerLock</code>, not
+     * from the selector thread.
+     */
+    private void awaitPending(long max) throws IOException
+    {
+        while (pendingBytes > max) {
+            if (channel.isOpen() == false) {
+                throw new ClosedChannelException();
+            }
+
+            if (channel.isBlocking()) {
+                writePending();
+                continue;
+            }
+
+            if (loop.inLoop()) {
+                // only the selector thread writes while reading
+                return;
+            }
+
+            try {
+                pendingWritten.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private void closeChannel()
+    {
+        if (channel.isOpen() == false) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+
+        // release the senders waiting for the bytes left to be written
+        writerLock.lock();
+        try {
+            pending.clear();
+            pendingBytes = 0;
+            pendingWritten.signalAll();
+        } finally {
+            writerLock.unlock();
+        }
+    }
+}
@@ -45,11 +45,19 @@ import java.io.OutputStream;
 
 import java.net.Socket;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.beepcore.beep.core.BEEPException;
 import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Dispatcher;
 import org.beepcore.beep.core.Frame;
 import org.beepcore.beep.core.ProfileRegistry;
 import org.beepcore.beep.core.Session;
@@ -57,8 +65,10 @@ import org.beepcore.beep.core.SessionImpl;
 import org.beepcore.beep.core.SessionCredential;
 import org.beepcore.beep.core.SessionTuningProperties;
 import org.beepcore.beep.util.BufferSegment;
-import org.beepcore.beep.util.HeaderParser;
+import org.beepcore.beep.util.FileSegment;
+import org.beepcore.beep.util.FrameHeader;
 import org.beepcore.beep.util.StringUtil;
+import org.beepcore.beep.util.VirtualThreads;
 
 
 /**
@@ -77,14 +87,6 @@ public class TCPSession extends SessionImpl {
     private static final int MAX_RECEIVE_BUFFER_SIZE = 64 * 1024;
     private static final String TCP_MAPPING = "TCP Mapping";
     private static final String CRLF = "\r\n";
-    private static final int MIN_SEQ_HEADER_SIZE = (3        // msg type
-                                                    + 1      // space
-                                                    + 1      // channel number
-                                                    + 1      // space
-                                                    + 1      // acknum
-                                                    + 1      // space
-                                                    + 1      // window
-                                                    + CRLF.length());
 
     private static final int CHANNEL_START_ODD = 1;
     private static final int CHANNEL_START_EVEN = 2;
@@ -93,13 +95,17 @@ public class TCPSession extends SessionImpl {
     // Instance Data
     private Log log = LogFactory.getLog(this.getClass());
 
-    private byte headerBuffer[] = new byte[Frame.MAX_HEADER_SIZE];
+    private FrameReader reader;
     private byte[] outputBuf = new byte[0];
-    private Object writerLock;
+    private ReentrantLock writerLock;
+    private ByteBuffer[] gatherBufs = new ByteBuffer[0];
     private Socket socket;
-    private boolean running;
+    private SocketChannel channel;
+    private Socket channelSocket;
+    private volatile boolean running;
     private static int THREAD_COUNT = 0;
     private static final String THREAD_NAME = "TCPSession Thread #";
+    private static volatile boolean virtualThreads = false;
     private Thread thread;
 
     /**
@@ -128,7 +134,8 @@ public class TCPSession extends SessionImpl {
      *
      * @throws BEEPException
      */
-    private TCPSession(Socket sock, ProfileRegistry registry, int firstChannel,
+    private TCPSession(Socket sock, TCPSession previous,
+                       ProfileRegistry registry, int firstChannel,
                        SessionCredential localCred, SessionCredential peerCred,
                        SessionTuningProperties tuning, String servername)
             throws BEEPException
@@ -136,7 +143,45 @@ public class TCPSession extends SessionImpl {
 	super(registry, firstChannel, localCred, peerCred, tuning, servername);
 
         socket = sock;
-        writerLock = new Object();
+        writerLock = new ReentrantLock();
+
+        // a socket layered over another, e.g. an SSLSocket after TLS has
+        // been negotiated, may return the channel of the socket
+        // underneath, which must not be read or written directly
+        if (sock != null && sock.getChannel() != null &&
+            sock.getChannel().socket() == sock)
+        {
+            channel = sock.getChannel();
+            channelSocket = new ChannelSocket(channel);
+        }
+
+        reader = new FrameReader() {
+                protected Frame createFrame(FrameHeader header)
+                    throws BEEPException
+                {
+                    return TCPSession.this.createFrame(header);
+                }
+
+                protected boolean postFrame(Frame f) throws BEEPException {
+                    return TCPSession.this.postFrame(f);
+                }
+
+                protected void updatePeerReceiveBufferSize(int channelNum,
+                                                           long ackNum,
+                                                           int window)
+                    throws BEEPException
+                {
+                    TCPSession.this.updatePeerReceiveBufferSize(channelNum,
+                                                                ackNum,
+                                                                window);
+                }
+            };
+
+        // frames for this session may have been read ahead by the
+        // session being reset
+        if (previous != null) {
+            reader.takeBufferedData(previous.reader);
+        }
 
         if ((peerCred != null) || (localCred != null) || (tuning != null)) {
             tuningInit();
@@ -168,7 +213,7 @@ public class TCPSession extends SessionImpl {
 					     String servername)
             throws BEEPException
     {
-        return new TCPSession(sock, (ProfileRegistry) registry.clone(),
+        return new TCPSession(sock, null, (ProfileRegistry) registry.clone(),
 			      CHANNEL_START_ODD, null, null, null, servername);
     }
     /**
@@ -204,10 +249,65 @@ public class TCPSession extends SessionImpl {
                                             ProfileRegistry registry)
             throws BEEPException
     {
-        return new TCPSession(sock, (ProfileRegistry) registry.clone(),
+        return new TCPSession(sock, null, (ProfileRegistry) registry.clone(),
                               CHANNEL_START_EVEN, null, null, null, null);
     }
 
+    /**
+     * Creates a TCPSession for a Socket layered over the connection of a
+     * session that is being reset (e.g. a <code>TCPNIOSession</code> after
+     * TLS has been negotiated).
+     */
+    static TCPSession createReset(Socket sock, ProfileRegistry registry,
+                                  int firstChannel,
+                                  SessionCredential localCred,
+                                  SessionCredential peerCred,
+                                  SessionTuningProperties tuning)
+            throws BEEPException
+    {
+        return new TCPSession(sock, null, registry, firstChannel, localCred,
+                              peerCred, tuning, null);
+    }
+
+    /**
+     * Runs the reader of each session created afterwards on a virtual
+     * thread and, through a new default <code>Dispatcher</code>, the
+     * handlers and listeners of channels without a dispatcher of their
+     * own.  Thousands of mostly idle sessions, or handlers blocking on
+     * databases or other peers, then do not each hold a platform thread.
+     * Disabling it restores platform threads for new sessions and
+     * channels.
+     *
+     * @throws UnsupportedOperationException if <code>enable</code> is
+     *         <code>true</code> and the JVM has no virtual threads.
+     * @see Dispatcher#newVirtualThreadDispatcher
+     */
+    public static synchronized void setVirtualThreads(boolean enable)
+    {
+        if (enable == virtualThreads) {
+            return;
+        }
+
+        if (enable) {
+            int capacity = Dispatcher.DEFAULT_CAPACITY;
+
+            Dispatcher.setDefault(
+                Dispatcher.newVirtualThreadDispatcher("dispatch", capacity));
+        } else {
+            Dispatcher.setDefault(null);
+        }
+
+        virtualThreads = enable;
+    }
+
+    /**
+     * Returns <code>true</code> if new sessions read on virtual threads.
+     */
+    public static boolean getVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
     // Overrides method in Session
     public synchronized void close() throws BEEPException
     {
@@ -223,8 +323,17 @@ public class TCPSession extends SessionImpl {
         }
     }
 
+    /**
+     * Returns the socket of this session.  If the socket was created by a
+     * <code>SocketChannel</code> a view of it is returned whose streams may
+     * be read and written at the same time, for TLS to be layered over.
+     */
     public Socket getSocket()
     {
+        if (channelSocket != null) {
+            return channelSocket;
+        }
+
         return this.socket;
     }
 
@@ -272,14 +381,18 @@ public class TCPSession extends SessionImpl {
                 threadName = new String(THREAD_NAME + THREAD_COUNT++);
             }
 
-            thread = new Thread(threadName)
-                {
+            Runnable reader = new Runnable() {
                     public void run() {
                         processNextFrame();
                     }
                 };
 
-            thread.setDaemon(true);
+            if (virtualThreads) {
+                thread = VirtualThreads.newThread(threadName, reader);
+            } else {
+                thread = new Thread(reader, threadName);
+                thread.setDaemon(true);
+            }
             thread.start();
         }
     }
@@ -297,58 +410,49 @@ public class TCPSession extends SessionImpl {
     /**
      * Generates a header, then writes the header, payload, and
      * trailer to the wire.
+     * <p>
+     * If the socket was created by a <code>SocketChannel</code> the
+     * segments are written with a single gathering write, otherwise they
+     * are copied into one buffer and written to the socket's stream.
      *
      * @param f the Frame to send.
      * @return boolean true of the frame was sent, false otherwise.
      *
      * @throws BEEPException
-     *
-     * @todo make this one write operation later.
      */
     protected void sendFrame(Frame f) throws BEEPException
     {
-        try {
-
-            OutputStream os = socket.getOutputStream();
-
-            synchronized (writerLock) {
-                /* Inspite of the extra data copy if is faster to have
-                 * a single call to write() (at least with the JVMs we
-                 * have tested with).
-                 */
-                BufferSegment[] bs = f.getBytes();
-
-                int n = 0;
-                for (int i=0; i<bs.length; ++i) {
-                    n += bs[i].getLength();
-                }
-
-                if (n > outputBuf.length) {
-                    outputBuf = new byte[n];
-                }
-
-                int off = 0;
-
-                for (int i=0; i<bs.length; ++i) {
-                    System.arraycopy(bs[i].getData(), bs[i].getOffset(),
-                                     outputBuf, off, bs[i].getLength());
-
-                    off += bs[i].getLength();
-                }
+        BufferSegment[] bs = f.getBytes();
 
-                os.write(outputBuf, 0, n);
-                os.flush();
+        writeSegments(bs, bs.length);
+    }
 
-                if (log.isTraceEnabled()) {
-                    log.trace("Wrote the following\n" +
-                              new String(outputBuf, 0, n));
+    /**
+     * Writes the segments of any number of frames and SEQs queued by the
+     * session, with a single gathering write if the socket was created by
+     * a <code>SocketChannel</code>.
+     */
+    protected boolean writeSegments(BufferSegment[] bs, int count)
+        throws BEEPException
+    {
+        try {
+            writerLock.lock();
+            try {
+                if (channel != null) {
+                    writeGathering(channel, bs, count);
+                } else {
+                    writeCopy(socket.getOutputStream(), bs, count);
                 }
+            } finally {
+                writerLock.unlock();
             }
         } catch (IOException e) {
             throw new BEEPException(e);
         } catch (Exception e) {
             throw new BEEPException(e);
         }
+
+        return true;
     }
 
     // Implementation of method declared in Session
@@ -371,11 +475,16 @@ public class TCPSession extends SessionImpl {
             s = socket;
         }
 
+        if (s != null && s == channelSocket) {
+            s = socket;
+        }
+
         if (reg == null) {
             reg = this.getProfileRegistry();
         }
 
-        Session newSession = new TCPSession(s, reg,
+        Session newSession = new TCPSession(s, (s == socket ? this : null),
+                                            reg,
                                             (isInitiator() ? CHANNEL_START_ODD:
                                              CHANNEL_START_EVEN),
                                             localCred, peerCred, tuning, null);
@@ -412,22 +521,125 @@ public class TCPSession extends SessionImpl {
         sb.append(Integer.toString(currentAvail));
         sb.append(CRLF);
 
+        if (log.isDebugEnabled()) {
+            log.debug("Wrote: " + sb.toString());
+        }
+
+        // written in order with the frames queued on the session
+        sendSegment(new BufferSegment(StringUtil.stringBufferToAscii(sb)));
+
+        return true;
+    }
+
+    private void writeGathering(SocketChannel channel, BufferSegment[] bs,
+                                int count)
+        throws IOException
+    {
+        // reused by each write, guarded by writerLock
+        if (count > gatherBufs.length) {
+            gatherBufs = new ByteBuffer[count];
+        }
+
+        ByteBuffer[] bufs = gatherBufs;
+
+        for (int i=0; i<count; ++i) {
+            if (bs[i] instanceof FileSegment == false) {
+                bufs[i] = bs[i].asByteBuffer();
+            } else {
+                bufs[i] = null;
+            }
+        }
+
         try {
-            if (log.isDebugEnabled()) {
-                log.debug("Wrote: " + sb.toString());
+            writeGathering(channel, bs, bufs, count);
+        } finally {
+            // don't hold on to the buffers of frames already sent
+            Arrays.fill(bufs, 0, count, null);
+        }
+    }
+
+    private void writeGathering(SocketChannel channel, BufferSegment[] bs,
+                                ByteBuffer[] bufs, int count)
+        throws IOException
+    {
+
+        int i = 0;
+        while (i < count) {
+            if (bufs[i] == null) {
+                // payload sent straight from the file
+                FileSegment f = (FileSegment) bs[i];
+
+                for (int off = 0; off < f.getLength(); ) {
+                    off += f.transferTo(channel, off);
+                }
+                ++i;
+                continue;
             }
 
-            OutputStream os = socket.getOutputStream();
+            int end = i + 1;
+            while (end < count && bufs[end] != null) {
+                ++end;
+            }
+
+            // a blocking channel may still return after a partial write
+            while (i < end) {
+                if (bufs[i].hasRemaining() == false) {
+                    ++i;
+                    continue;
+                }
 
-            synchronized (writerLock) {
-                os.write(StringUtil.stringBufferToAscii(sb));
-                os.flush();
+                channel.write(bufs, i, end - i);
             }
-        } catch (IOException x) {
-            throw new BEEPException("Unable to send SEQ", x);
         }
 
-        return true;
+        if (log.isTraceEnabled()) {
+            for (i=0; i<count; ++i) {
+                log.trace("Wrote the following\n" +
+                          new String(bs[i].getData(), bs[i].getOffset(),
+                                     bs[i].getLength()));
+            }
+        }
+    }
+
+    private void writeCopy(OutputStream os, BufferSegment[] bs, int count)
+        throws IOException
+    {
+        /* Inspite of the extra data copy if is faster to have
+         * a single call to write() (at least with the JVMs we
+         * have tested with).
+         */
+        int n = 0;
+        for (int i=0; i<count; ++i) {
+            n += bs[i].getLength();
+        }
+
+        if (n > outputBuf.length) {
+            outputBuf = new byte[n];
+        }
+
+        int off = 0;
+
+        for (int i=0; i<count; ++i) {
+            if (bs[i] instanceof FileSegment) {
+                ((FileSegment) bs[i]).read(ByteBuffer.wrap(outputBuf, off,
+                                                           bs[i].getLength()));
+            } else if (bs[i].hasArray()) {
+                System.arraycopy(bs[i].getData(), bs[i].getOffset(),
+                                 outputBuf, off, bs[i].getLength());
+            } else {
+                bs[i].asByteBuffer().get(outputBuf, off, bs[i].getLength());
+            }
+
+            off += bs[i].getLength();
+        }
+
+        os.write(outputBuf, 0, n);
+        os.flush();
+
+        if (log.isTraceEnabled()) {
+            log.trace("Wrote the following\n" +
+                      new String(outputBuf, 0, n));
+        }
     }
 
     private void processNextFrame()
@@ -440,26 +652,29 @@ public class TCPSession extends SessionImpl {
         }
 
         try {
-            InputStream is = socket.getInputStream();
+            InputStream is = (channel == null ? socket.getInputStream() : null);
 
             while (running) {
+                // parse everything already buffered, including any frames
+                // read ahead by the session this one was reset from
+                if (reader.processFrames() == false) {
+                    break;
+                }
+
                 if (log.isTraceEnabled()) {
                     log.trace("Processing next frame");
                 }
 
                 int amountRead;
-                headerBuffer = new byte[Frame.MAX_HEADER_SIZE];
 
                 try {
-                    do {
-                        amountRead =
-                            is.read(headerBuffer, 0, MIN_SEQ_HEADER_SIZE);
-
-                        if (amountRead == -1) {
-                            throw new SessionAbortedException();
-                        }
-                    } while (amountRead == 0);
-
+                    // the streams of a channel's socket may block writes
+                    // while a read is blocked, so read the channel itself
+                    if (channel != null) {
+                        amountRead = reader.read(channel);
+                    } else {
+                        amountRead = reader.read(is);
+                    }
                 } catch (java.net.SocketException e) {
                     if (running) {
                         throw e;
@@ -467,17 +682,17 @@ public class TCPSession extends SessionImpl {
 
                     // socket closed intentionally (session closing)
                     // so just return
+                    return;
+                } catch (ClosedChannelException e) {
+                    if (running) {
+                        throw e;
+                    }
+
                     return;
                 }
 
-                if (headerBuffer[0] == (byte) MESSAGE_TYPE_SEQ[0]) {
-                    processSEQFrame(headerBuffer, amountRead, is);
-                    continue;
-                } else {
-                    if (processCoreFrame(headerBuffer, amountRead, is) == false)
-                    {
-                        break;
-                    }
+                if (amountRead == -1) {
+                    throw new SessionAbortedException();
                 }
             }
         } catch (IOException e) {
@@ -499,229 +714,6 @@ public class TCPSession extends SessionImpl {
         }
     }
 
-    private boolean processCoreFrame(byte[] headerBuffer, int amountRead,
-                                     InputStream is)
-        throws SessionAbortedException, BEEPException, IOException
-    {
-        int headerLength = 0;
-        int amountToRead = Frame.MIN_FRAME_SIZE - amountRead;
-
-    headerFound:
-        while (true) {
-            int tokenCount = 6;
-
-            try {
-                int n = is.read(headerBuffer, amountRead, amountToRead);
-
-                if (n == -1) {
-                    throw new SessionAbortedException();
-                }
-
-                if (n == 0) {
-                    continue;
-                }
-
-                amountRead += n;
-
-            } catch (java.net.SocketException e) {
-                if (running) {
-                    throw e;
-                }
-
-                // socket closed intentionally (session closing)
-                // so just return
-                return false;
-            }
-
-            while (headerLength < amountRead) {
-                if (headerBuffer[headerLength] == '\n') {
-                    if (headerLength == 0 ||
-                        headerBuffer[headerLength - 1] != '\r')
-                    {
-                        throw new BEEPException("Malformed BEEP header");
-                    }
-
-                    ++headerLength;
-                    break headerFound;
-                }
-
-                if (headerBuffer[headerLength] == ' ') {
-                    if (tokenCount > 1) { // This is for ANS frames
-                        --tokenCount;
-                    }
-                }
-
-                ++headerLength;
-            }
-
-            if (headerLength > Frame.MAX_HEADER_SIZE) {
-                throw new BEEPException("Malformed BEEP header, no CRLF");
-            }
-
-            /* 2 = 1 for the min token size and 1 is for the separator ' '
-             * or "\r\n"
-             * amountToRead = (tokenCount * 2) + Frame.TRAILER.length();
-             */
-            /* TLH: changed amountToRead for header to be 1 byte at a time
-             * Temporary fix. Found issues when using tokenCount * 2,
-             * where 1st byte of ANS was accidentally read from NUL header
-             * causing Malformed BEEP Header exception
-             */
-            amountToRead = 1;
-        }
-
-        if (log.isTraceEnabled()) {
-            log.trace(new String(headerBuffer, 0, headerLength));
-        }
-
-        Frame f = super.createFrame(headerBuffer,
-                                    headerLength - CRLF.length());
-        byte[] payload = new byte[f.getSize()];
-
-        int count = amountRead - headerLength;
-        if (count > payload.length) {
-            System.arraycopy(headerBuffer, headerLength, payload, 0,
-                             payload.length);
-            count -= payload.length;
-            
-            for (int i = 0; i < Frame.TRAILER.length(); ++i) {
-                int b;
-                if (count > 0) {
-                    b = headerBuffer[headerLength + payload.length + i];
-                    --count;
-                } else {
-                    b = is.read();
-
-                    if (b == -1) {
-                        throw new SessionAbortedException();
-                    }
-                }
-
-                if (((byte) b) != ((byte) Frame.TRAILER.charAt(i))) {
-                    throw new BEEPException("Malformed BEEP frame, "
-                                            + "invalid trailer");
-                }
-            }
-        } else {
-            System.arraycopy(headerBuffer, headerLength, payload, 0, count);
-
-            while (count < payload.length) {
-                int n = is.read(payload, count, payload.length - count);
-                if (n == -1) {
-                    throw new SessionAbortedException();
-                }
-                count += n;
-            }
-
-            if (log.isTraceEnabled()) {
-                log.trace(new String(payload));
-            }
-
-            for (int i = 0; i < Frame.TRAILER.length(); ++i) {
-                int b = is.read();
-
-                if (b == -1) {
-                    throw new SessionAbortedException();
-                }
-
-                if (((byte) b) != ((byte) Frame.TRAILER.charAt(i))) {
-                    throw new BEEPException("Malformed BEEP frame, "
-                                            + "invalid trailer");
-                }
-            }
-        }
-
-        f.addPayload(new BufferSegment(payload));
-
-        return super.postFrame(f);
-    }
-
-    private void processSEQFrame(byte[] headerBuffer, int amountRead,
-                                 InputStream is)
-        throws BEEPException, IOException, SessionAbortedException
-    {
-        int headerLength = 0;
-        int tokenCount = 4;
-
-    headerFound:
-        while (true) {
-
-            while (headerLength < amountRead) {
-                if (headerBuffer[headerLength] == '\n') {
-                    if (headerLength == 0 ||
-                        headerBuffer[headerLength - 1] != '\r')
-                    {
-                        throw new BEEPException("Malformed BEEP header");
-                    }
-
-                    ++headerLength;
-                    break headerFound;
-                }
-
-                if (headerBuffer[headerLength] == ' ') {
-                    if (tokenCount > 1) {
-                        --tokenCount;
-                    }
-                }
-
-                ++headerLength;
-            }
-
-            if (headerLength > Frame.MAX_HEADER_SIZE) {
-                throw new BEEPException("Malformed BEEP header, no CRLF");
-            }
-
-            int amountToRead = headerBuffer[headerLength - 1] == '\r' ? 1 :
-                tokenCount * 2;
-            try {
-                /* 2 = 1 for the min token size and 1 is for the separator ' '
-                 * or "\r\n"
-                 */
-                int n = is.read(headerBuffer, amountRead, amountToRead);
-
-                if (n == -1) {
-                    throw new SessionAbortedException();
-                }
-
-                if (n == 0) {
-                    continue;
-                }
-
-                amountRead += n;
-
-            } catch (java.net.SocketException e) {
-                if (running) {
-                    throw e;
-                }
-
-                // socket closed intentionally (session closing)
-                // so just return
-                return;
-            }
-        }
-
-        // Process the header
-        HeaderParser header = new HeaderParser(headerBuffer,
-                                               headerLength - CRLF.length());
-        
-        char[] type = header.parseType();
-        if (java.util.Arrays.equals(type, MESSAGE_TYPE_SEQ) == false) {
-            throw new BEEPException("Malformed BEEP header");
-        }
-
-        int channelNum = header.parseInt();
-        long ackNum = header.parseUnsignedInt();
-        int window = header.parseInt();
-
-        if (header.hasMoreTokens()) {
-            throw new BEEPException("Malformed BEEP Header");
-        }
-        log.debug("Read: SEQ " + channelNum + " " + ackNum + " " + window);
-
-        // update the channel with the new receive window size
-        this.updatePeerReceiveBufferSize(channelNum, ackNum, window);
-    }
-    
     private static class SessionAbortedException extends Exception {
     }
 }
@@ -21,10 +21,14 @@ package org.beepcore.beep.transport.tcp;
 import java.io.IOException;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.ServerSocket;
 import java.net.UnknownHostException;
 
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
 import java.util.Hashtable;
 
 import org.beepcore.beep.core.BEEPException;
@@ -54,6 +58,7 @@ public class TCPSessionCreator {
 
     // Data
     private static Hashtable listenerSockets = null;
+    private static Hashtable listenerChannels = null;
 
     /**
      * Method initiate
@@ -69,7 +74,7 @@ public class TCPSessionCreator {
             throws BEEPException
     {
         try {
-            return TCPSession.createInitiator(new Socket(host, port),
+            return TCPSession.createInitiator(connect(host, port),
                                               new ProfileRegistry());
         } catch (IOException x) {
             throw new BEEPException(x);
@@ -94,7 +99,7 @@ public class TCPSessionCreator {
             throws BEEPException
     {
         try {
-            return TCPSession.createInitiator(new Socket(host, port),
+            return TCPSession.createInitiator(connect(host, port),
                                               registry, servername);
         } catch (IOException x) {
             throw new BEEPException(x);
@@ -221,12 +226,11 @@ public class TCPSessionCreator {
 
             // Bind to interface/port pair
             try {
-                if (localInterface == null) {
-                    socket = new ServerSocket(port, DEFAULT_BACKLOG_SIZE);
-                } else {
-                    socket = new ServerSocket(port, DEFAULT_BACKLOG_SIZE,
-                                              localInterface);
-                }
+                // open through a channel so that accepted sockets
+                // support gathering writes
+                socket = ServerSocketChannel.open().socket();
+                socket.bind(new InetSocketAddress(localInterface, port),
+                            DEFAULT_BACKLOG_SIZE);
 
                 listenerSockets.put(Integer.toString(port), socket);
             } catch (Exception x) {
@@ -271,4 +275,221 @@ public class TCPSessionCreator {
             throw new BEEPException(x);
         }
     }
+
+    /**
+     * Connects a blocking socket backed by a <code>SocketChannel</code> so
+     * that <code>TCPSession</code> can read the channel and write frames
+     * with gathering writes.
+     */
+    private static Socket connect(InetAddress host, int port)
+        throws IOException
+    {
+        return SocketChannel.open(new InetSocketAddress(host, port)).socket();
+    }
+
+    /**
+     * Sets the number of selector threads shared by the sessions created
+     * with <code>initiateNIO</code> and <code>listenNIO</code>.  This must
+     * be called before the first such session is created, the default is
+     * one thread per available processor.
+     *
+     * @param count
+     */
+    public static void setSelectorThreadCount(int count)
+    {
+        SelectorPool.setDefaultSize(count);
+    }
+
+    /**
+     * Method initiateNIO
+     *
+     *
+     * @param host
+     * @param port
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPNIOSession initiateNIO(InetAddress host, int port)
+            throws BEEPException
+    {
+        return initiateNIO(host, port, new ProfileRegistry(), null);
+    }
+
+    /**
+     * Method initiateNIO
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     * @param servername
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPNIOSession initiateNIO(InetAddress host, int port,
+                                            ProfileRegistry registry,
+                                            String servername)
+            throws BEEPException
+    {
+        try {
+            SocketChannel channel =
+                SocketChannel.open(new InetSocketAddress(host, port));
+
+            return TCPNIOSession.createInitiator(channel, registry,
+                                                 servername);
+        } catch (IOException x) {
+            throw new BEEPException(x);
+        }
+    }
+
+    /**
+     * Method initiateNIO
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPNIOSession initiateNIO(InetAddress host, int port,
+                                            ProfileRegistry registry)
+        throws BEEPException
+    {
+        return initiateNIO(host, port, registry, null);
+    }
+
+    /**
+     * Method initiateNIO
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPNIOSession initiateNIO(String host, int port,
+                                            ProfileRegistry registry)
+        throws BEEPException
+    {
+        return initiateNIO(host, port, registry, null);
+    }
+
+    public static TCPNIOSession initiateNIO(String host, int port,
+                                            ProfileRegistry registry,
+                                            String servername)
+        throws BEEPException
+    {
+        try {
+            return initiateNIO(InetAddress.getByName(host), port, registry,
+                               servername);
+        } catch (UnknownHostException x) {
+            throw new BEEPException("Unable to connect, unkown host");
+        }
+    }
+
+    /**
+     * Method listenNIO
+     *
+     *
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPNIOSession listenNIO(int port, ProfileRegistry registry)
+            throws BEEPException
+    {
+        InetAddress temp = null;
+
+        return listenNIO(temp, port, registry);
+    }
+
+    /**
+     * Method listenNIO
+     *
+     *
+     * @param localInterface
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPNIOSession listenNIO(InetAddress localInterface,
+                                          int port,
+                                          ProfileRegistry registry)
+            throws BEEPException
+    {
+        ServerSocketChannel server = null;
+        SocketChannel peer = null;
+
+        synchronized (TCPSessionCreator.class) {
+            if (listenerChannels == null) {
+                listenerChannels = new Hashtable(DEFAULT_TABLE_SIZE);
+            }
+
+            server = (ServerSocketChannel)
+                listenerChannels.get(Integer.toString(port));
+
+            // Bind if we're not listening on this port
+            if (server == null) {
+
+                // Bind to interface/port pair
+                try {
+                    server = ServerSocketChannel.open();
+                    server.socket().bind(new InetSocketAddress(localInterface,
+                                                               port),
+                                         DEFAULT_BACKLOG_SIZE);
+
+                    listenerChannels.put(Integer.toString(port), server);
+                } catch (Exception x) {
+                    throw new BEEPException(x);
+                }
+            }
+        }
+
+        // Listen
+        try {
+            peer = server.accept();
+
+            return TCPNIOSession.createListener(peer, registry);
+        } catch (Exception e) {
+            throw new BEEPException(e);
+        }
+    }
+
+    /**
+     * Method listenNIO
+     *
+     *
+     * @param localInterface
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPNIOSession listenNIO(String localInterface, int port,
+                                          ProfileRegistry registry)
+            throws BEEPException
+    {
+        try {
+            InetAddress addr = null;
+
+            if (localInterface != null) {
+                addr = InetAddress.getByName(localInterface);
+            }
+
+            return listenNIO(addr, port, registry);
+        } catch (UnknownHostException x) {
+            throw new BEEPException(x);
+        }
+    }
 }
@@ -0,0 +1,314 @@
+/*
+ * BufferPool.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.util;
+
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import java.util.Hashtable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A pool of byte arrays used for the payloads of received frames.
+ * <p>
+ * Arrays are kept in power of two size classes.  <code>allocate</code>
+ * returns a <code>BufferSegment</code> holding one reference to its array;
+ * when the last reference is released with
+ * <code>BufferSegment.release</code> the array goes back to the pool.
+ * Requests larger than the biggest size class are not pooled.
+ * <p>
+ * A pool may be split into stripes, each with its own free arrays and
+ * lock.  A thread always allocates from the same stripe and an array
+ * goes back to the stripe it was allocated from, so sessions read by
+ * different threads do not contend for one lock.  The default pool is
+ * striped.
+ * <p>
+ * When leak detection is enabled, either with
+ * <code>setLeakDetection</code> or by enabling debug logging for this
+ * class, the allocation site of every segment is recorded and segments
+ * that are garbage collected without being released are logged, and
+ * segments used after being released throw
+ * <code>IllegalStateException</code>.
+ */
+public class BufferPool {
+
+    // Constants
+    private static final int MIN_SHIFT = 9;
+    private static final int DEFAULT_MAX_BUFFER_SIZE = 256 * 1024;
+    private static final int DEFAULT_MAX_POOLED_BYTES = 1024 * 1024;
+    private static final int MAX_DEFAULT_STRIPES = 8;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Class Data
+    private static BufferPool defaultPool = null;
+
+    private static boolean leakDetection = false;
+
+    // Instance Data
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private int maxBufferSize;
+
+    /** free arrays of each size class, used as stacks */
+    private byte[][][] free;
+    private int[] freeCount;
+
+    private long allocations = 0;
+    private long reuses = 0;
+
+    private ReferenceQueue collected = new ReferenceQueue();
+    private Hashtable outstanding = new Hashtable();
+
+    /** the pools allocations are spread over, <code>null</code> if none */
+    private BufferPool[] stripes = null;
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxBufferSize Size of the largest arrays pooled.  Rounded up
+     *                      to a power of two.
+     * @param maxPooledBytes Number of free bytes kept for each size class.
+     */
+    public BufferPool(int maxBufferSize, int maxPooledBytes)
+    {
+        int classes = sizeClass(Math.max(maxBufferSize, 1)) + 1;
+
+        this.maxBufferSize = 1 << (classes - 1 + MIN_SHIFT);
+        this.free = new byte[classes][][];
+        this.freeCount = new int[classes];
+
+        for (int i = 0; i < classes; ++i) {
+            free[i] = new byte[maxPooledBytes >> (i + MIN_SHIFT)][];
+        }
+    }
+
+    /**
+     * Creates a pool split into <code>stripes</code> stripes.
+     *
+     * @param maxBufferSize Size of the largest arrays pooled.  Rounded up
+     *                      to a power of two.
+     * @param maxPooledBytes Number of free bytes kept for each size class
+     *                       of each stripe.
+     * @param stripes Number of stripes.
+     */
+    public BufferPool(int maxBufferSize, int maxPooledBytes, int stripes)
+    {
+        this(maxBufferSize, 0);
+
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Invalid stripe count " +
+                                               stripes);
+        }
+
+        this.stripes = new BufferPool[stripes];
+
+        for (int i = 0; i < stripes; ++i) {
+            this.stripes[i] = new BufferPool(maxBufferSize, maxPooledBytes);
+        }
+    }
+
+    /**
+     * Returns the pool shared by the transports, with one stripe per
+     * processor up to 8.
+     */
+    public static synchronized BufferPool getDefault()
+    {
+        if (defaultPool == null) {
+            int stripes =
+                Math.min(Runtime.getRuntime().availableProcessors(),
+                         MAX_DEFAULT_STRIPES);
+
+            defaultPool = new BufferPool(DEFAULT_MAX_BUFFER_SIZE,
+                                         DEFAULT_MAX_POOLED_BYTES, stripes);
+        }
+
+        return defaultPool;
+    }
+
+    /**
+     * Replaces the pool shared by the transports.
+     */
+    public static synchronized void setDefault(BufferPool pool)
+    {
+        defaultPool = pool;
+    }
+
+    /**
+     * Enables or disables leak detection for all pools.
+     */
+    public static void setLeakDetection(boolean enabled)
+    {
+        leakDetection = enabled;
+    }
+
+    /**
+     * Returns a segment of <code>length</code> bytes.  The contents of the
+     * segment are undefined.
+     */
+    public BufferSegment allocate(int length)
+    {
+        if (length == 0) {
+            return new BufferSegment(EMPTY);
+        }
+
+        if (length > maxBufferSize) {
+            return new BufferSegment(new byte[length]);
+        }
+
+        if (stripes != null) {
+            long id = Thread.currentThread().getId();
+
+            return stripes[(int) (id % stripes.length)].allocate(length);
+        }
+
+        int c = sizeClass(length);
+        byte[] data = null;
+
+        synchronized (this) {
+            ++allocations;
+
+            if (freeCount[c] != 0) {
+                ++reuses;
+                data = free[c][--freeCount[c]];
+                free[c][freeCount[c]] = null;
+            }
+        }
+
+        if (data == null) {
+            data = new byte[1 << (c + MIN_SHIFT)];
+        }
+
+        BufferSegment b = new BufferSegment(this, data, length);
+
+        if (leakDetection || log.isDebugEnabled()) {
+            track(b);
+        }
+
+        return b;
+    }
+
+    /**
+     * Returns the number of pooled allocations made.
+     */
+    public long getAllocationCount()
+    {
+        if (stripes != null) {
+            long n = 0;
+
+            for (int i = 0; i < stripes.length; ++i) {
+                n += stripes[i].getAllocationCount();
+            }
+
+            return n;
+        }
+
+        synchronized (this) {
+            return allocations;
+        }
+    }
+
+    /**
+     * Returns the number of allocations satisfied by a free array.
+     */
+    public long getReuseCount()
+    {
+        if (stripes != null) {
+            long n = 0;
+
+            for (int i = 0; i < stripes.length; ++i) {
+                n += stripes[i].getReuseCount();
+            }
+
+            return n;
+        }
+
+        synchronized (this) {
+            return reuses;
+        }
+    }
+
+    /**
+     * Called by <code>BufferSegment</code> when its last reference is
+     * released.
+     */
+    void recycle(BufferSegment b)
+    {
+        forget(b);
+
+        byte[] data = b.array();
+        int c = sizeClass(data.length);
+
+        synchronized (this) {
+            if (freeCount[c] < free[c].length) {
+                free[c][freeCount[c]++] = data;
+            }
+        }
+    }
+
+    /**
+     * Stops tracking a segment that was released or detached.
+     */
+    void forget(BufferSegment b)
+    {
+        if (b.tracker != null) {
+            outstanding.remove(b.tracker);
+            b.tracker.clear();
+            b.tracker = null;
+        }
+    }
+
+    private void track(BufferSegment b)
+    {
+        LeakTracker t;
+
+        while ((t = (LeakTracker) collected.poll()) != null) {
+            if (outstanding.remove(t) != null) {
+                log.error("BufferSegment was not released", t.allocated);
+            }
+        }
+
+        t = new LeakTracker(b, collected);
+        outstanding.put(t, t);
+        b.tracker = t;
+        b.checkAccess = true;
+    }
+
+    private static int sizeClass(int length)
+    {
+        int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+
+        return Math.max(shift - MIN_SHIFT, 0);
+    }
+
+    static class LeakTracker extends WeakReference {
+        private Throwable allocated = new Throwable("Allocated at");
+
+        LeakTracker(BufferSegment b, ReferenceQueue q)
+        {
+            super(b, q);
+        }
+    }
+}
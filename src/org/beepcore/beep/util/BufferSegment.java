@@ -16,12 +16,30 @@
  */
 package org.beepcore.beep.util;
 
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * A <code>BufferSegment</code> represents a BEEP Frame payload and holds
  * the BEEP Frames's Header, Trailer and the message payload.
  *
  * It contains a byte array an offset into the array and the
- * length from the offset.
+ * length from the offset, or a view of a <code>ByteBuffer</code>.  Direct
+ * and read-only buffers have no accessible array; for those
+ * <code>asByteBuffer</code> gives the bytes without copying while
+ * <code>getData</code> copies them onto the heap.
+ * <p>
+ * Segments allocated from a <code>BufferPool</code> are reference
+ * counted.  The array is returned to the pool when the last reference is
+ * released, after which the segment must no longer be used.  For other
+ * segments <code>retain</code> and <code>release</code> do nothing.
+ * With the leak detection of <code>BufferPool</code> enabled, using a
+ * segment after it was released throws
+ * <code>IllegalStateException</code>.
+ *
+ * @see BufferPool
  *
  * @author Huston Franklin
  * @version $Revision: 1.3 $, $Date: 2001/11/23 15:10:56 $
@@ -55,11 +73,101 @@ public class BufferSegment {
         this.length = length;
     }
 
+    /**
+     * Constructor BufferSegment
+     *
+     * @param buffer A buffer containing a BEEP Frame payload between its
+     * position and limit.  The buffer's position is not changed.
+     */
+    public BufferSegment(ByteBuffer buffer)
+    {
+        this.buffer = buffer.slice();
+        this.offset = 0;
+        this.length = this.buffer.remaining();
+
+        if (this.buffer.hasArray()) {
+            this.data = this.buffer.array();
+            this.offset = this.buffer.arrayOffset();
+        }
+    }
+
+    BufferSegment(BufferPool pool, byte[] data, int length)
+    {
+        this(data, 0, length);
+        this.pool = pool;
+        this.refCount = 1;
+    }
+
+    /**
+     * Returns the array holding this segment.  For a segment backed by a
+     * direct or read-only <code>ByteBuffer</code> the bytes are copied to
+     * a new array the first time this is called.
+     *
+     * @see #hasArray
+     */
     public byte[] getData()
     {
+        checkReleased();
+
+        if (this.data == null) {
+            byte[] copy = new byte[this.length];
+
+            this.buffer.duplicate().get(copy);
+            this.data = copy;
+        }
+
         return this.data;
     }
 
+    /**
+     * Returns <code>true</code> if <code>getData</code> returns the
+     * array holding this segment without copying it.
+     */
+    public boolean hasArray()
+    {
+        return this.buffer == null || this.buffer.hasArray();
+    }
+
+    /**
+     * Returns a <code>ByteBuffer</code> whose remaining bytes are the bytes
+     * of this segment.  The bytes are not copied.
+     */
+    public ByteBuffer asByteBuffer()
+    {
+        checkReleased();
+
+        if (this.buffer != null) {
+            return this.buffer.duplicate();
+        }
+
+        return ByteBuffer.wrap(this.data, this.offset, this.length).slice();
+    }
+
+    /**
+     * Returns a segment sharing <code>length</code> bytes of this segment
+     * starting at <code>offset</code>.  The new segment is not reference
+     * counted.
+     */
+    public BufferSegment slice(int offset, int length)
+    {
+        checkReleased();
+
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (this.buffer != null && this.buffer.hasArray() == false) {
+            ByteBuffer b = this.buffer.duplicate();
+
+            b.position(offset);
+            b.limit(offset + length);
+
+            return new BufferSegment(b);
+        }
+
+        return new BufferSegment(this.data, this.offset + offset, length);
+    }
+
     public int getOffset()
     {
         return this.offset;
@@ -70,8 +178,117 @@ public class BufferSegment {
         return this.length;
     }
 
+    /**
+     * Returns <code>true</code> if the array of this segment belongs to a
+     * <code>BufferPool</code>.
+     */
+    public boolean isPooled()
+    {
+        return this.pool != null;
+    }
+
+    /**
+     * Adds a reference to this segment.  Each call must be matched by a
+     * call to <code>release</code>.
+     *
+     * @return this segment
+     */
+    public BufferSegment retain()
+    {
+        if (this.pool != null) {
+            if (REF_COUNT.getAndIncrement(this) <= 0) {
+                REF_COUNT.getAndDecrement(this);
+                throw new IllegalStateException("BufferSegment already " +
+                                                "released");
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Removes a reference to this segment, returning the array to its pool
+     * if it was the last one.
+     *
+     * @return <code>true</code> if the array was returned to the pool.
+     */
+    public boolean release()
+    {
+        if (this.pool == null) {
+            return false;
+        }
+
+        int n = REF_COUNT.decrementAndGet(this);
+
+        if (n < 0) {
+            throw new IllegalStateException("BufferSegment already released");
+        }
+
+        if (n != 0) {
+            return false;
+        }
+
+        this.pool.recycle(this);
+
+        return true;
+    }
+
+    /**
+     * Takes this segment out of its pool.  The array is no longer returned
+     * to the pool and <code>retain</code> and <code>release</code> do
+     * nothing, as for segments that were never pooled.  Must be called by
+     * the only holder of the segment.
+     */
+    public void detach()
+    {
+        BufferPool p = this.pool;
+
+        if (p == null) {
+            return;
+        }
+
+        checkReleased();
+        p.forget(this);
+        this.pool = null;
+    }
+
+    /**
+     * Returns the array of this segment without checking whether it was
+     * released.
+     */
+    byte[] array()
+    {
+        return this.data;
+    }
+
+    private void checkReleased()
+    {
+        if (this.checkAccess && this.refCount <= 0) {
+            throw new IllegalStateException("BufferSegment used after " +
+                                            "release");
+        }
+    }
+
+    /**
+     * Called by the session once the transport is done writing this
+     * segment, whether or not the write succeeded.  The default does
+     * nothing.
+     */
+    public void written()
+    {
+    }
+
+    private static final AtomicIntegerFieldUpdater REF_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater(BufferSegment.class, "refCount");
+
     private byte[] data;
+    private ByteBuffer buffer = null;
     private int offset;
     private int length;
+
+    private BufferPool pool = null;
+    private volatile int refCount = 0;
+    boolean checkAccess = false;
+    BufferPool.LeakTracker tracker = null;
 }
 
@@ -0,0 +1,220 @@
+/*
+ * FileSegment.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.util;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A <code>BufferSegment</code> holding a region of a file.
+ * <p>
+ * Transports writing to a <code>WritableByteChannel</code> send the region
+ * with <code>transferTo</code>, which lets the operating system copy the
+ * bytes from the file to the socket directly.  Other transports (e.g.
+ * TLS) use <code>read</code>, <code>asByteBuffer</code> or
+ * <code>getData</code>, which read the bytes of the segment into the heap
+ * each time they are called.  The segments of outgoing frames are slices
+ * of at most a frame's payload, so no more than that is read at once.
+ * <p>
+ * When a slice has been written <code>regionWritten</code> is called on
+ * the segment it was taken from.
+ */
+public class FileSegment extends BufferSegment {
+
+    /**
+     * Creates a segment for <code>length</code> bytes of
+     * <code>channel</code> starting at <code>position</code>.
+     */
+    public FileSegment(FileChannel channel, long position, int length)
+    {
+        super(EMPTY);
+
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+        this.root = this;
+    }
+
+    private FileSegment(FileSegment root, long position, int length)
+    {
+        super(EMPTY);
+
+        this.channel = root.channel;
+        this.position = position;
+        this.length = length;
+        this.root = root;
+    }
+
+    public FileChannel getChannel()
+    {
+        return this.channel;
+    }
+
+    /**
+     * Returns the position in the file of the first byte of this segment.
+     */
+    public long getPosition()
+    {
+        return this.position;
+    }
+
+    public int getLength()
+    {
+        return this.length;
+    }
+
+    public int getOffset()
+    {
+        return 0;
+    }
+
+    /**
+     * Returns a copy of the bytes of this segment.
+     *
+     * @throws IllegalStateException if the file can not be read.
+     */
+    public byte[] getData()
+    {
+        byte[] copy = new byte[this.length];
+
+        readFully(ByteBuffer.wrap(copy));
+
+        return copy;
+    }
+
+    public boolean hasArray()
+    {
+        return false;
+    }
+
+    /**
+     * Returns a copy of the bytes of this segment.
+     *
+     * @throws IllegalStateException if the file can not be read.
+     */
+    public ByteBuffer asByteBuffer()
+    {
+        ByteBuffer b = ByteBuffer.allocate(this.length);
+
+        readFully(b);
+        b.flip();
+
+        return b;
+    }
+
+    /**
+     * Reads the bytes of this segment into <code>dst</code>, which must
+     * have at least <code>getLength</code> bytes remaining.
+     *
+     * @throws EOFException if the file is shorter than the segment.
+     */
+    public void read(ByteBuffer dst) throws IOException
+    {
+        if (dst.remaining() < this.length) {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+
+        int limit = dst.limit();
+
+        dst.limit(dst.position() + this.length);
+        try {
+            for (long p = this.position; dst.hasRemaining(); ) {
+                int n = this.channel.read(dst, p);
+
+                if (n < 0) {
+                    throw new EOFException("File truncated at " + p);
+                }
+                p += n;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    public BufferSegment slice(int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        return new FileSegment(this.root, this.position + offset, length);
+    }
+
+    /**
+     * Transfers the bytes of this segment starting at <code>offset</code>
+     * to <code>target</code>.
+     *
+     * @return the number of bytes transferred, possibly zero for a
+     *         non-blocking <code>target</code>.
+     *
+     * @throws EOFException if the file is shorter than the segment.
+     */
+    public int transferTo(WritableByteChannel target, int offset)
+        throws IOException
+    {
+        long p = this.position + offset;
+        int n = (int) this.channel.transferTo(p, this.length - offset,
+                                              target);
+
+        // transferTo returns 0 rather than -1 past the end of the file
+        if (n == 0 && p >= this.channel.size()) {
+            throw new EOFException("File truncated at " + p);
+        }
+
+        return n;
+    }
+
+    public void written()
+    {
+        root.regionWritten(this.length);
+    }
+
+    /**
+     * Called when <code>length</code> bytes of this segment, or of a slice
+     * of it, have been written.  The default does nothing.
+     */
+    protected void regionWritten(int length)
+    {
+    }
+
+    private void readFully(ByteBuffer dst)
+    {
+        try {
+            read(dst);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read file: " +
+                                            e.getMessage());
+        }
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private FileChannel channel;
+    private long position;
+    private int length;
+    private FileSegment root;
+}
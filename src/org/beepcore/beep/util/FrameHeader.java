@@ -0,0 +1,152 @@
+/*
+ * FrameHeader.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.util;
+
+
+import org.beepcore.beep.core.BEEPException;
+
+
+/**
+ * A reusable record of a parsed frame header.
+ * <p>
+ * <code>parse</code> recognises the message type from the header bytes
+ * and parses the numbers in place, so a reader can decode every header it
+ * receives into the same <code>FrameHeader</code> without allocating.
+ * For a <code>SEQ</code> frame (RFC 3081) only the channel number,
+ * acknowledgement number and window are set.
+ */
+public class FrameHeader {
+
+    // The message types have the values of the Message.MESSAGE_TYPE_
+    // constants with SEQ added.
+    public static final int TYPE_UNK = 0;
+    public static final int TYPE_MSG = 1;
+    public static final int TYPE_RPY = 2;
+    public static final int TYPE_ERR = 3;
+    public static final int TYPE_ANS = 4;
+    public static final int TYPE_NUL = 5;
+    public static final int TYPE_SEQ = 6;
+
+    private final HeaderParser parser = new HeaderParser();
+
+    private int type;
+    private int channel;
+    private int msgno;
+    private boolean last;
+    private long seqno;
+    private int size;
+    private int ansno;
+
+    /**
+     * Parses the header of <code>length</code> bytes, without the CRLF,
+     * at <code>offset</code> in <code>buf</code> replacing the values of
+     * the previous header.
+     *
+     * @throws BEEPException if the header is malformed.
+     */
+    public void parse(byte[] buf, int offset, int length)
+        throws BEEPException
+    {
+        parser.reset(buf, offset, length);
+
+        type = parser.parseTypeCode();
+        channel = parser.parseInt();
+
+        if (type == TYPE_SEQ) {
+            msgno = -1;
+            last = true;
+            seqno = parser.parseUnsignedInt();
+            size = parser.parseInt();
+            ansno = -1;
+        } else {
+            msgno = parser.parseInt();
+            last = parser.parseLast();
+            seqno = parser.parseUnsignedInt();
+            size = parser.parseInt();
+
+            ansno = -1;
+            if (parser.hasMoreTokens()) {
+                ansno = parser.parseInt();
+            }
+        }
+
+        if (parser.hasMoreTokens()) {
+            throw new BEEPException("Malformed BEEP Header");
+        }
+    }
+
+    /**
+     * Returns one of the <code>TYPE_</code> constants.
+     */
+    public int getType()
+    {
+        return type;
+    }
+
+    public int getChannel()
+    {
+        return channel;
+    }
+
+    public int getMsgno()
+    {
+        return msgno;
+    }
+
+    public boolean isLast()
+    {
+        return last;
+    }
+
+    public long getSeqno()
+    {
+        return seqno;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the answer number, or -1 if the header has none.
+     */
+    public int getAnsno()
+    {
+        return ansno;
+    }
+
+    /**
+     * Returns the acknowledgement number of a <code>SEQ</code> frame.
+     */
+    public long getAckno()
+    {
+        return seqno;
+    }
+
+    /**
+     * Returns the window of a <code>SEQ</code> frame.
+     */
+    public int getWindow()
+    {
+        return size;
+    }
+}
@@ -32,11 +32,33 @@ public class HeaderParser {
     private int off = 0;
     private int len;
 
+    /**
+     * Creates a parser to be pointed at headers with <code>reset</code>.
+     */
+    public HeaderParser() {
+    }
+
     public HeaderParser(byte[] buf, int len) {
         this.buf = buf;
         this.len = len;
     }
 
+    public HeaderParser(byte[] buf, int off, int len) {
+        this.buf = buf;
+        this.off = off;
+        this.len = off + len;
+    }
+
+    /**
+     * Points this parser at the header of <code>len</code> bytes at
+     * <code>off</code> in <code>buf</code>.
+     */
+    public void reset(byte[] buf, int off, int len) {
+        this.buf = buf;
+        this.off = off;
+        this.len = off + len;
+    }
+
     public boolean hasMoreTokens() {
         return off < len;
     }
@@ -111,6 +133,64 @@ public class HeaderParser {
         return c;
     }
 
+    /**
+     * Parses the message type without copying it.
+     *
+     * @return one of the <code>FrameHeader.TYPE_</code> constants,
+     *         <code>TYPE_UNK</code> for a type that is not recognised.
+     */
+    public int parseTypeCode() throws BEEPException {
+        if (hasMoreTokens() == false) {
+            throw new BEEPException("Malformed BEEP Header");
+        }
+
+        int tl = tokenLength();
+        if (tl != 3) {
+            throw new BEEPException("Malformed BEEP Header");
+        }
+
+        byte c1 = buf[off+1];
+        byte c2 = buf[off+2];
+        int type = FrameHeader.TYPE_UNK;
+
+        switch (buf[off]) {
+        case 'M':
+            if (c1 == 'S' && c2 == 'G') {
+                type = FrameHeader.TYPE_MSG;
+            }
+            break;
+        case 'R':
+            if (c1 == 'P' && c2 == 'Y') {
+                type = FrameHeader.TYPE_RPY;
+            }
+            break;
+        case 'E':
+            if (c1 == 'R' && c2 == 'R') {
+                type = FrameHeader.TYPE_ERR;
+            }
+            break;
+        case 'A':
+            if (c1 == 'N' && c2 == 'S') {
+                type = FrameHeader.TYPE_ANS;
+            }
+            break;
+        case 'N':
+            if (c1 == 'U' && c2 == 'L') {
+                type = FrameHeader.TYPE_NUL;
+            }
+            break;
+        case 'S':
+            if (c1 == 'E' && c2 == 'Q') {
+                type = FrameHeader.TYPE_SEQ;
+            }
+            break;
+        }
+
+        findNextToken(tl);
+
+        return type;
+    }
+
     private void findNextToken(int previousLength) throws BEEPException {
             
         off += previousLength + 1;
@@ -0,0 +1,151 @@
+/*
+ * VirtualThreads.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.util;
+
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Creates virtual threads when the JVM has them (Java 21 and later).
+ * <p>
+ * The library is built for older JVMs so the virtual thread API is
+ * looked up by reflection once; <code>isSupported</code> tells whether it
+ * was found.  The other methods throw
+ * <code>UnsupportedOperationException</code> when it was not.
+ */
+public class VirtualThreads {
+
+    // Class Data
+    private static final Method ofVirtual;
+    private static final Method builderName;
+    private static final Method builderNameCounter;
+    private static final Method builderUnstarted;
+    private static final Method builderFactory;
+    private static final Method newThreadPerTaskExecutor;
+
+    static {
+        Method[] m = new Method[6];
+
+        try {
+            Class builder = Class.forName("java.lang.Thread$Builder");
+
+            m[0] = Thread.class.getMethod("ofVirtual", new Class[0]);
+            m[1] = builder.getMethod("name", new Class[] {String.class});
+            m[2] = builder.getMethod("name", new Class[] {String.class,
+                                                          long.class});
+            m[3] = builder.getMethod("unstarted",
+                                     new Class[] {Runnable.class});
+            m[4] = builder.getMethod("factory", new Class[0]);
+            m[5] = Executors.class.getMethod("newThreadPerTaskExecutor",
+                                             new Class[] {ThreadFactory.class});
+        } catch (ClassNotFoundException e) {
+            m = new Method[6];
+        } catch (NoSuchMethodException e) {
+            m = new Method[6];
+        }
+
+        ofVirtual = m[0];
+        builderName = m[1];
+        builderNameCounter = m[2];
+        builderUnstarted = m[3];
+        builderFactory = m[4];
+        newThreadPerTaskExecutor = m[5];
+    }
+
+    private VirtualThreads()
+    {
+    }
+
+    /**
+     * Returns <code>true</code> if the JVM can create virtual threads.
+     */
+    public static boolean isSupported()
+    {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Returns a new, unstarted, virtual thread running <code>task</code>.
+     */
+    public static Thread newThread(String name, Runnable task)
+    {
+        Object builder = invoke(ofVirtual, null, new Object[0]);
+
+        builder = invoke(builderName, builder, new Object[] {name});
+
+        return (Thread) invoke(builderUnstarted, builder,
+                               new Object[] {task});
+    }
+
+    /**
+     * Returns a factory of virtual threads named <code>name</code>
+     * followed by a counter.
+     */
+    public static ThreadFactory newThreadFactory(String name)
+    {
+        Object builder = invoke(ofVirtual, null, new Object[0]);
+
+        builder = invoke(builderNameCounter, builder,
+                         new Object[] {name, Long.valueOf(1)});
+
+        return (ThreadFactory) invoke(builderFactory, builder, new Object[0]);
+    }
+
+    /**
+     * Returns an executor starting a new virtual thread for each task.
+     */
+    public static ExecutorService newExecutor(String name)
+    {
+        return (ExecutorService)
+            invoke(newThreadPerTaskExecutor, null,
+                   new Object[] {newThreadFactory(name)});
+    }
+
+    private static Object invoke(Method m, Object target, Object[] args)
+    {
+        if (m == null) {
+            throw new UnsupportedOperationException("Virtual threads " +
+                                                    "require Java 21");
+        }
+
+        try {
+            return m.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException(e.getMessage());
+        } catch (InvocationTargetException e) {
+            Throwable t = e.getTargetException();
+
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new IllegalStateException(t.toString());
+        }
+    }
+}
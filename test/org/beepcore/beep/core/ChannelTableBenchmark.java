@@ -0,0 +1,131 @@
+/*
+ * ChannelTableBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.Hashtable;
+
+/**
+ * Compares the per-frame channel lookup of <code>ChannelTable</code> with
+ * the <code>String</code> keyed <code>Hashtable</code> it replaced, for
+ * 1 to 10,000 open channels.
+ * <p>
+ * Usage: <code>ChannelTableBenchmark [lookups] [threads]</code>
+ */
+public class ChannelTableBenchmark {
+
+    private static final int[] CHANNEL_COUNTS = { 1, 10, 100, 1000, 10000 };
+
+    public static void main(String[] args) throws Exception
+    {
+        int lookups = 10000000;
+        int threads = 1;
+
+        if (args.length > 0) {
+            lookups = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            threads = Integer.parseInt(args[1]);
+        }
+
+        for (int i = 0; i < CHANNEL_COUNTS.length; ++i) {
+            int n = CHANNEL_COUNTS[i];
+            final ChannelTable table = new ChannelTable();
+            final Hashtable hashtable = new Hashtable();
+            final int[] numbers = new int[n];
+
+            for (int j = 0; j < n; ++j) {
+                // initiator numbering, channel zero plus odd channels
+                numbers[j] = (j == 0 ? 0 : 2 * j - 1);
+
+                ChannelImpl ch = new ChannelImpl("bench",
+                                                 Integer.toString(numbers[j]),
+                                                 null);
+                table.put(ch);
+                hashtable.put(ch.getNumberAsString(), ch);
+            }
+
+            Lookup intKeyed = new Lookup() {
+                    public Object get(int number) {
+                        return table.get(number);
+                    }
+                };
+            Lookup stringKeyed = new Lookup() {
+                    public Object get(int number) {
+                        return hashtable.get(Integer.toString(number));
+                    }
+                };
+
+            // warm up
+            run(stringKeyed, numbers, lookups / 10, threads);
+            run(intKeyed, numbers, lookups / 10, threads);
+
+            long hashtableNanos = run(stringKeyed, numbers, lookups, threads);
+            long tableNanos = run(intKeyed, numbers, lookups, threads);
+
+            System.out.println(n + " channels: Hashtable " +
+                               (hashtableNanos / lookups) + " ns, " +
+                               "ChannelTable " + (tableNanos / lookups) +
+                               " ns per lookup");
+        }
+    }
+
+    private interface Lookup {
+        Object get(int number);
+    }
+
+    /**
+     * @return the elapsed time in nanoseconds
+     */
+    private static long run(final Lookup lookup, final int[] numbers,
+                            final int lookups, int threads)
+        throws InterruptedException
+    {
+        Thread[] t = new Thread[threads];
+
+        for (int i = 0; i < threads; ++i) {
+            t[i] = new Thread() {
+                    public void run() {
+                        int k = 0;
+
+                        for (int j = 0; j < lookups; ++j) {
+                            if (lookup.get(numbers[k]) == null) {
+                                throw new IllegalStateException("missing");
+                            }
+                            if (++k == numbers.length) {
+                                k = 0;
+                            }
+                        }
+                    }
+                };
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < threads; ++i) {
+            t[i].start();
+        }
+        for (int i = 0; i < threads; ++i) {
+            t[i].join();
+        }
+
+        return System.nanoTime() - start;
+    }
+}
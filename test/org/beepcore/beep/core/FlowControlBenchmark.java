@@ -0,0 +1,252 @@
+/*
+ * FlowControlBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Compares the window accounting of <code>ChannelImpl</code> with the
+ * accounting it replaced, which was done holding the session's monitor,
+ * while 64 channels are busy at the same time.  Each channel has its own
+ * thread which, like the reader and the application, counts received
+ * frames against the window, frees them and, like the peer's
+ * <code>SEQ</code> frames, reopens its send window.
+ * <p>
+ * Usage: <code>FlowControlBenchmark [frames per channel] [channels]</code>
+ */
+public class FlowControlBenchmark {
+
+    private static final int FRAME_SIZE = 1024;
+
+    public static void main(String[] args) throws Exception
+    {
+        int frames = 1000000;
+        int channels = 64;
+
+        if (args.length > 0) {
+            frames = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            channels = Integer.parseInt(args[1]);
+        }
+
+        // warm up
+        run(false, channels, frames / 10);
+        run(true, channels, frames / 10);
+
+        for (int i = 1; i <= channels; i *= 4) {
+            long locked = run(false, i, frames);
+            long lockFree = run(true, i, frames);
+
+            System.out.println(i + " channels: session lock " +
+                               (locked / frames) + " ns, per channel " +
+                               (lockFree / frames) + " ns per frame");
+        }
+    }
+
+    private interface Accounting {
+        void received(int size) throws BEEPException;
+        void freed(int size);
+        void windowUpdated(long seq, int size);
+    }
+
+    /**
+     * @return the elapsed time in nanoseconds
+     */
+    private static long run(boolean lockFree, int channels, final int frames)
+        throws Exception
+    {
+        final StubSession session = new StubSession();
+        final Accounting[] accounting = new Accounting[channels];
+
+        for (int i = 0; i < channels; ++i) {
+            final ChannelImpl ch =
+                new ChannelImpl("bench", Integer.toString(1 + 2 * i),
+                                session);
+            ch.setState(ChannelImpl.STATE_ACTIVE);
+
+            if (lockFree) {
+                accounting[i] = new Accounting() {
+                        public void received(int size)
+                            throws BEEPException
+                        {
+                            ch.consumeReceiveBufferBytes(size);
+                        }
+
+                        public void freed(int size) {
+                            ch.freeReceiveBufferBytes(size);
+                        }
+
+                        public void windowUpdated(long seq, int size) {
+                            ch.updatePeerReceiveBufferSize(seq, size);
+                        }
+                    };
+            } else {
+                accounting[i] = new SessionLocked(session);
+            }
+        }
+
+        Thread[] t = new Thread[channels];
+        final Throwable[] failure = new Throwable[1];
+
+        for (int i = 0; i < channels; ++i) {
+            final Accounting a = accounting[i];
+
+            t[i] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int j = 0; j < frames; ++j) {
+                                a.received(FRAME_SIZE);
+                                a.freed(FRAME_SIZE);
+                                // nothing is sent, acknowledge sequence 0
+                                a.windowUpdated(0,
+                                                ChannelImpl.DEFAULT_WINDOW_SIZE);
+                            }
+                        } catch (Throwable e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < channels; ++i) {
+            t[i].start();
+        }
+        for (int i = 0; i < channels; ++i) {
+            t[i].join();
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        if (failure[0] != null) {
+            throw new RuntimeException(failure[0]);
+        }
+
+        return elapsed;
+    }
+
+    /**
+     * The accounting as <code>ChannelImpl</code> did it before, updating
+     * the counters of every channel while holding the session's monitor.
+     */
+    private static class SessionLocked implements Accounting {
+        private StubSession session;
+        private long recvSequence = 0;
+        private int recvWindowUsed = 0;
+        private int recvWindowFreed = 0;
+        private int recvWindowSize = ChannelImpl.DEFAULT_WINDOW_SIZE;
+        private long sentSequence = 0;
+        private int peerWindowSize = ChannelImpl.DEFAULT_WINDOW_SIZE;
+
+        SessionLocked(StubSession session)
+        {
+            this.session = session;
+        }
+
+        public void received(int size) throws BEEPException
+        {
+            synchronized (session) {
+                recvSequence += size;
+                if (recvSequence > Frame.MAX_SEQUENCE_NUMBER) {
+                    recvSequence =
+                        (recvSequence - 1) % Frame.MAX_SEQUENCE_NUMBER;
+                }
+
+                recvWindowUsed += size;
+
+                if (recvWindowUsed > recvWindowSize) {
+                    throw new BEEPException("Channel window overflow");
+                }
+            }
+        }
+
+        public synchronized void freed(int size)
+        {
+            recvWindowFreed += size;
+
+            if (recvWindowFreed >= recvWindowSize / 2) {
+                synchronized (session) {
+                    if (session.updateMyReceiveBufferSize(null, recvSequence,
+                                                          recvWindowSize -
+                                                          (recvWindowUsed -
+                                                           recvWindowFreed)))
+                    {
+                        recvWindowUsed -= recvWindowFreed;
+                        recvWindowFreed = 0;
+                    }
+                }
+            }
+        }
+
+        public synchronized void windowUpdated(long seq, int size)
+        {
+            synchronized (session) {
+                peerWindowSize = size - (int) (sentSequence - seq);
+            }
+        }
+    }
+
+    /**
+     * A session that drops the window updates instead of sending them.
+     */
+    private static class StubSession extends SessionImpl {
+        StubSession() throws BEEPException
+        {
+            super(new ProfileRegistry(), 1, null, null, null, null);
+        }
+
+        protected void disableIO() {
+        }
+
+        protected void enableIO() {
+        }
+
+        protected int getMaxFrameSize() {
+            return FRAME_SIZE;
+        }
+
+        protected Session reset(SessionCredential localCred,
+                                SessionCredential peerCred,
+                                SessionTuningProperties tuning,
+                                ProfileRegistry reg, Object argument)
+        {
+            return null;
+        }
+
+        protected void sendFrame(Frame f) throws BEEPException {
+            throw new BEEPException("not connected");
+        }
+
+        protected boolean writeSegments(BufferSegment[] segments, int count)
+        {
+            return true;
+        }
+
+        protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                    long currentSeq,
+                                                    int currentAvail)
+        {
+            return true;
+        }
+    }
+}
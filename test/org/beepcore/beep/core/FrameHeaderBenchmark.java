@@ -0,0 +1,117 @@
+/*
+ * FrameHeaderBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.lang.management.ManagementFactory;
+
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Compares the bytes allocated per frame by <code>Frame.getBytes</code>
+ * with encoding the header into a reused buffer the way
+ * <code>OutboundQueue</code> does.
+ * <p>
+ * Usage: <code>FrameHeaderBenchmark [frame count]</code>
+ */
+public class FrameHeaderBenchmark {
+
+    private static final int FRAMES = 64;
+
+    public static void main(String[] args) throws Exception
+    {
+        int frameCount = 10000000;
+
+        if (args.length > 0) {
+            frameCount = Integer.parseInt(args[0]);
+        }
+
+        ChannelImpl channel = new ChannelImpl("bench", "12345", null);
+        BufferSegment payload = new BufferSegment(new byte[4096]);
+        Frame[] frames = new Frame[FRAMES];
+
+        for (int i = 0; i < FRAMES; ++i) {
+            frames[i] = new Frame(Message.MESSAGE_TYPE_ANS, channel, i * 7919,
+                                  false, 4000000000L + i * 4096L, 0, i);
+            frames[i].addPayload(payload);
+        }
+
+        run(frames, frameCount / 10, false);
+        run(frames, frameCount / 10, true);
+
+        run(frames, frameCount, false);
+        run(frames, frameCount, true);
+    }
+
+    private static void run(Frame[] frames, int frameCount, boolean reuse)
+    {
+        byte[] headers = new byte[FRAMES * Frame.MAX_HEADER_SIZE];
+        HeaderSegment[] headerSegments = new HeaderSegment[FRAMES];
+        BufferSegment[] segments = new BufferSegment[FRAMES * 3];
+        long sum = 0;
+
+        for (int i = 0; i < FRAMES; ++i) {
+            headerSegments[i] = new HeaderSegment();
+        }
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < frameCount; i += FRAMES) {
+            int count = 0;
+            int headerOffset = 0;
+
+            for (int j = 0; j < FRAMES; ++j) {
+                if (reuse) {
+                    int length = frames[j].encodeHeader(headers, headerOffset);
+
+                    headerSegments[j].set(headers, headerOffset, length);
+                    headerOffset += length;
+                    segments[count++] = headerSegments[j];
+                    count = frames[j].getSegments(segments, count);
+                } else {
+                    BufferSegment[] bs = frames[j].getBytes();
+
+                    System.arraycopy(bs, 0, segments, count, bs.length);
+                    count += bs.length;
+                }
+            }
+
+            sum += segments[0].getLength();
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        allocated = allocatedBytes() - allocated;
+
+        System.out.println((reuse ? "reused header buffer: " :
+                                    "Frame.getBytes: ") +
+                           ((double) allocated / frameCount) +
+                           " bytes allocated, " + (elapsed / frameCount) +
+                           " ns per frame (" + sum + ")");
+    }
+
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
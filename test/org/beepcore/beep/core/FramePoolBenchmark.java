@@ -0,0 +1,121 @@
+/*
+ * FramePoolBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.lang.management.ManagementFactory;
+
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.FrameHeader;
+
+/**
+ * Compares the bytes allocated and the time per received frame with a
+ * new <code>Frame</code> for every frame and with frames recycled through
+ * a <code>FramePool</code> (parse, add the payload, move it to the
+ * stream, release), on one thread like a session's reader.
+ * <p>
+ * Usage: <code>FramePoolBenchmark [frame count]</code>
+ */
+public class FramePoolBenchmark {
+
+    private static final int BATCH = 16;
+
+    public static void main(String[] args) throws Exception
+    {
+        int frameCount = 10000000;
+
+        if (args.length > 0) {
+            frameCount = Integer.parseInt(args[0]);
+        }
+
+        ChannelImpl channel = new ChannelImpl("bench", "1", null);
+        FramePool pool = new FramePool();
+
+        for (int pass = 0; pass < 2; ++pass) {
+            int n = (pass == 0 ? frameCount / 10 : frameCount);
+
+            receive(channel, null, n);
+            receive(channel, pool, n);
+        }
+    }
+
+    private static void receive(ChannelImpl channel, FramePool pool,
+                                int frameCount)
+        throws Exception
+    {
+        byte[] header = "RPY 1 7 * 4000000000 4096".getBytes("US-ASCII");
+        BufferSegment payload = new BufferSegment(new byte[4096]);
+        BufferSegment[] stream = new BufferSegment[BATCH];
+        FrameHeader h = new FrameHeader();
+        long sum = 0;
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < frameCount; ++i) {
+            h.parse(header, 0, header.length);
+
+            Frame f = newFrame(pool, h.getType(), channel, h.getMsgno(),
+                               h.getSeqno());
+            f.addPayload(payload);
+
+            // what ChannelImpl.receiveFrame does with the payload
+            for (int j = 0; j < f.getPayloadCount(); ++j) {
+                stream[i % BATCH] = f.getPayload(j);
+            }
+            sum += f.getSize();
+
+            f.release();
+        }
+
+        report("receive", pool, frameCount, allocated, start, sum);
+    }
+
+    private static Frame newFrame(FramePool pool, int type,
+                                  ChannelImpl channel, int msgno, long seqno)
+    {
+        if (pool == null) {
+            return new Frame(type, channel, msgno, false, seqno, 4096, -1);
+        }
+
+        return pool.get(type, channel, msgno, false, seqno, 4096, -1);
+    }
+
+    private static void report(String side, FramePool pool, int frameCount,
+                               long allocated, long start, long sum)
+    {
+        long elapsed = System.nanoTime() - start;
+
+        allocated = allocatedBytes() - allocated;
+
+        System.out.println(side + (pool == null ? ", new Frame: " :
+                                                  ", FramePool: ") +
+                           ((double) allocated / frameCount) +
+                           " bytes allocated, " + (elapsed / frameCount) +
+                           " ns per frame (" + sum + ")");
+    }
+
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * FrameSizeBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+/**
+ * Measures the throughput of large messages sent over a loopback TCP
+ * session with different maximum frame sizes.
+ * <p>
+ * Usage: <code>FrameSizeBenchmark [message size] [message count]</code>
+ */
+public class FrameSizeBenchmark {
+
+    private static final String URI = "http://xml.resource.org/profiles/NULL/BENCH";
+
+    /** receive window large enough for the biggest frame size tested */
+    private static final int WINDOW = 256 * 1024;
+
+    private static final int[] FRAME_SIZES = { 1400, 4096, 16384, 65536 };
+
+    public static void main(String[] args) throws Exception
+    {
+        int messageSize = 1024 * 1024;
+        int messageCount = 32;
+
+        if (args.length > 0) {
+            messageSize = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            messageCount = Integer.parseInt(args[1]);
+        }
+
+        Session session = connect();
+
+        byte[] data = new byte[messageSize];
+
+        for (int i = 0; i < FRAME_SIZES.length; ++i) {
+            run(session, "fixed " + FRAME_SIZES[i], FRAME_SIZES[i],
+                ExtendedChannel.FRAME_SIZE_FIXED, data, messageCount);
+        }
+
+        run(session, "adaptive", 0, ExtendedChannel.FRAME_SIZE_ADAPTIVE, data,
+            messageCount);
+
+        System.exit(0);
+    }
+
+    private static void run(Session session, String name, int frameSize,
+                            int mode, byte[] data, int count)
+        throws BEEPException, IOException
+    {
+        ChannelImpl channel = (ChannelImpl) session.startChannel(URI);
+
+        channel.setReceiveBufferSize(WINDOW);
+        channel.setMaxFrameSize(frameSize);
+        channel.setFrameSizeMode(mode);
+
+        // warm up
+        send(channel, data, Math.max(1, count / 4));
+
+        long start = System.currentTimeMillis();
+
+        send(channel, data, count);
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        long bytes = (long) data.length * count;
+
+        System.out.println(name + ": " + (bytes * 1000 / elapsed / 1024) +
+                           " KB/s (" + elapsed + " ms)");
+
+        channel.close();
+    }
+
+    private static void send(Channel channel, byte[] data, int count)
+        throws BEEPException, IOException
+    {
+        for (int i = 0; i < count; ++i) {
+            Reply reply = new Reply();
+
+            channel.sendMSG(new ByteOutputDataStream(data), reply);
+
+            drain(reply.getNextReply().getDataStream());
+        }
+    }
+
+    private static void drain(InputDataStream ds) throws IOException
+    {
+        InputStream is = ds.getInputStream();
+        byte[] buf = new byte[8192];
+
+        while (is.read(buf) != -1) {
+        }
+    }
+
+    private static Session connect() throws Exception
+    {
+        final int port = 10288;
+        final ProfileRegistry registry = new ProfileRegistry();
+
+        registry.addStartChannelListener(URI, new StartChannelListener() {
+                public boolean advertiseProfile(Session session) {
+                    return true;
+                }
+
+                public void startChannel(Channel channel, String encoding,
+                                         String data)
+                {
+                    channel.setRequestHandler(new SinkRequestHandler());
+                }
+
+                public void closeChannel(Channel channel) {
+                }
+            }, null);
+
+        Thread listener = new Thread() {
+                public void run() {
+                    try {
+                        TCPSessionCreator.listen(port, registry);
+                    } catch (BEEPException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+
+        listener.start();
+
+        Thread.sleep(500);
+
+        return TCPSessionCreator.initiate("localhost", port,
+                                          new ProfileRegistry());
+    }
+
+    /**
+     * Reads each message and replies with an empty message.  The receive
+     * window is enlarged when the first message arrives.
+     */
+    private static class SinkRequestHandler implements RequestHandler {
+        private boolean enlarged = false;
+
+        public void receiveMSG(MessageMSG message) {
+            try {
+                if (enlarged == false) {
+                    ((ChannelImpl) message.getChannel())
+                        .setReceiveBufferSize(WINDOW);
+                    enlarged = true;
+                }
+
+                drain(message.getDataStream());
+
+                message.sendRPY(new ByteOutputDataStream(new byte[0]));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
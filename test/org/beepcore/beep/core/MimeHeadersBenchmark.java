@@ -0,0 +1,116 @@
+/*
+ * MimeHeadersBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.lang.management.ManagementFactory;
+
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Measures the bytes allocated, and the time taken, to create and send
+ * the payload of a message with <code>ByteOutputDataStream</code> and
+ * <code>StringOutputDataStream</code>, headers included.  Sending takes
+ * the segments as a channel would, one frame's worth at a time.
+ * <p>
+ * Usage: <code>MimeHeadersBenchmark [messages]</code>
+ */
+public class MimeHeadersBenchmark {
+
+    private static final byte[] DATA = new byte[256];
+    private static final String XML = "<ok />";
+
+    public static void main(String[] args) throws Exception
+    {
+        int messages = 2000000;
+
+        if (args.length > 0) {
+            messages = Integer.parseInt(args[0]);
+        }
+
+        for (int pass = 0; pass < 2; ++pass) {
+            int n = (pass == 0 ? messages / 10 : messages);
+            boolean print = (pass == 1);
+
+            run("ByteOutputDataStream, default headers", 0, n, print);
+            run("ByteOutputDataStream, application/beep+xml", 1, n, print);
+            run("ByteOutputDataStream, extra header", 2, n, print);
+            run("StringOutputDataStream, default headers", 3, n, print);
+            run("StringOutputDataStream, application/beep+xml", 4, n,
+                print);
+        }
+    }
+
+    private static void run(String name, int kind, int messages,
+                            boolean print)
+    {
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        long sum = 0;
+
+        for (int i = 0; i < messages; ++i) {
+            OutputDataStream ds = newStream(kind);
+
+            ds.setComplete();
+            while (ds.availableSegment()) {
+                BufferSegment b = ds.getNextSegment(4096);
+
+                sum += b.getLength();
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        allocated = allocatedBytes() - allocated;
+
+        if (print) {
+            System.out.println(name + ": " + (allocated / messages) +
+                               " bytes, " + (elapsed / messages) +
+                               " ns per message (" + sum + ")");
+        }
+    }
+
+    private static OutputDataStream newStream(int kind)
+    {
+        switch (kind) {
+        case 0:
+            return new ByteOutputDataStream(DATA);
+        case 1:
+            return new ByteOutputDataStream(MimeHeaders.BEEP_XML_CONTENT_TYPE,
+                                            DATA);
+        case 2:
+            ByteOutputDataStream ds = new ByteOutputDataStream(DATA);
+            ds.setHeaderValue("X-Trace", "1234");
+            return ds;
+        case 3:
+            return new StringOutputDataStream(XML);
+        default:
+            return new StringOutputDataStream(
+                MimeHeaders.BEEP_XML_CONTENT_TYPE, XML);
+        }
+    }
+
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
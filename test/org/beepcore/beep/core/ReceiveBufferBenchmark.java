@@ -0,0 +1,123 @@
+/*
+ * ReceiveBufferBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import java.util.Iterator;
+
+import org.beepcore.beep.util.BufferPool;
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Compares the allocation rate of receiving frame payloads into pooled
+ * segments with allocating a new array for every frame.
+ * <p>
+ * Usage: <code>ReceiveBufferBenchmark [frame size] [frame count]</code>
+ */
+public class ReceiveBufferBenchmark {
+
+    private static final int FRAMES_PER_MESSAGE = 8;
+
+    public static void main(String[] args) throws Exception
+    {
+        int frameSize = 4096;
+        int frameCount = 2000000;
+
+        if (args.length > 0) {
+            frameSize = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            frameCount = Integer.parseInt(args[1]);
+        }
+
+        // a pool which keeps no free arrays allocates for every frame
+        BufferPool unpooled = new BufferPool(frameSize, 0);
+        BufferPool pooled = new BufferPool(frameSize, 1024 * 1024);
+
+        run("warm up", unpooled, frameSize, frameCount / 4);
+        run("warm up", pooled, frameSize, frameCount / 4);
+
+        run("new byte[]", unpooled, frameSize, frameCount);
+        run("pooled", pooled, frameSize, frameCount);
+    }
+
+    private static void run(String name, BufferPool pool, int frameSize,
+                            int frameCount)
+    {
+        long gcCount = gcCount();
+        long allocated = allocatedBytes();
+        long start = System.currentTimeMillis();
+        long sum = 0;
+
+        for (int i = 0; i < frameCount; i += FRAMES_PER_MESSAGE) {
+            InputDataStream ds = new InputDataStream();
+
+            ds.setReleaseOnNext(true);
+
+            for (int j = 0; j < FRAMES_PER_MESSAGE; ++j) {
+                BufferSegment b = pool.allocate(frameSize);
+
+                b.getData()[0] = (byte) j;
+                ds.add(b);
+            }
+            ds.setComplete();
+
+            while (ds.availableSegment()) {
+                BufferSegment b = ds.getNextSegment();
+
+                sum += b.getData()[b.getOffset()];
+            }
+            ds.close();
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        allocated = allocatedBytes() - allocated;
+        gcCount = gcCount() - gcCount;
+
+        System.out.println(name + ": " + (allocated / elapsed * 1000 /
+                                          (1024 * 1024)) +
+                           " MB/s allocated, " + gcCount + " GCs, " +
+                           elapsed + " ms (" + sum + ")");
+    }
+
+    private static long gcCount()
+    {
+        long count = 0;
+        Iterator i =
+            ManagementFactory.getGarbageCollectorMXBeans().iterator();
+
+        while (i.hasNext()) {
+            count += ((GarbageCollectorMXBean) i.next()).getCollectionCount();
+        }
+
+        return count;
+    }
+
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * ReplyCorrelationBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+/**
+ * Compares the msgno and ansno lookups of <code>ChannelImpl</code> with
+ * the <code>LinkedList</code> walks they replaced:
+ * <ul>
+ * <li>the duplicate msgno check made for each MSG received while 10,000
+ *     earlier MSGs await processing</li>
+ * <li>finding the message for each frame of 10,000 interleaved ANS
+ *     replies</li>
+ * </ul>
+ * Usage: <code>ReplyCorrelationBenchmark [outstanding] [rounds]</code>
+ */
+public class ReplyCorrelationBenchmark {
+
+    public static void main(String[] args) throws Exception
+    {
+        int outstanding = 10000;
+        int rounds = 20;
+
+        if (args.length > 0) {
+            outstanding = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            rounds = Integer.parseInt(args[1]);
+        }
+
+        // warm up
+        msgList(outstanding, 2);
+        msgTable(outstanding, 2);
+        ansList(outstanding, 2);
+        ansTable(outstanding, 2);
+
+        long frames = (long) outstanding * rounds;
+
+        System.out.println(outstanding + " outstanding MSGs: LinkedList " +
+                           (msgList(outstanding, rounds) / frames) +
+                           " ns, IntMap " +
+                           (msgTable(outstanding, rounds) / frames) +
+                           " ns per MSG");
+        System.out.println(outstanding + " interleaved ANS: LinkedList " +
+                           (ansList(outstanding, rounds) / frames) +
+                           " ns, IntMap " +
+                           (ansTable(outstanding, rounds) / frames) +
+                           " ns per frame");
+    }
+
+    /**
+     * Queues <code>outstanding</code> MSGs, checking each msgno against
+     * the queue, then processes them in order.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private static long msgList(int outstanding, int rounds)
+    {
+        LinkedList queue = new LinkedList();
+        int msgno = 0;
+        long start = System.nanoTime();
+
+        for (int r = 0; r < rounds; ++r) {
+            for (int i = 0; i < outstanding; ++i, ++msgno) {
+                ListIterator j = queue.listIterator(queue.size());
+                while (j.hasPrevious()) {
+                    if (((Message) j.previous()).getMsgno() == msgno) {
+                        throw new IllegalStateException("duplicate");
+                    }
+                }
+                queue.addLast(new MessageMSGImpl(null, msgno, null));
+            }
+            while (queue.isEmpty() == false) {
+                queue.removeFirst();
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private static long msgTable(int outstanding, int rounds)
+    {
+        RingQueue queue = new RingQueue();
+        IntMap numbers = new IntMap();
+        int msgno = 0;
+        long start = System.nanoTime();
+
+        for (int r = 0; r < rounds; ++r) {
+            for (int i = 0; i < outstanding; ++i, ++msgno) {
+                if (numbers.get(msgno) != null) {
+                    throw new IllegalStateException("duplicate");
+                }
+                Message m = new MessageMSGImpl(null, msgno, null);
+                queue.addLast(m);
+                numbers.put(msgno, m);
+            }
+            while (queue.isEmpty() == false) {
+                numbers.remove(((Message) queue.removeFirst()).getMsgno());
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Receives two frames for each of <code>outstanding</code> ANS
+     * replies, all first frames before any last frame.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private static long ansList(int outstanding, int rounds)
+    {
+        LinkedList queue = new LinkedList();
+        long start = System.nanoTime();
+
+        for (int r = 0; r < rounds; ++r) {
+            for (int pass = 0; pass < 2; ++pass) {
+                boolean last = (pass == 1);
+
+                for (int ansno = 0; ansno < outstanding; ++ansno) {
+                    Iterator i = queue.iterator();
+                    MessageImpl m = null;
+
+                    while (i.hasNext()) {
+                        MessageImpl tmp = (MessageImpl) i.next();
+
+                        if (tmp.getAnsno() == ansno) {
+                            m = tmp;
+                            break;
+                        }
+                    }
+
+                    if (m == null) {
+                        m = new MessageImpl(null, 1, ansno, null);
+                        if (!last) {
+                            queue.add(m);
+                        }
+                    } else if (last) {
+                        i.remove();
+                    }
+                }
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private static long ansTable(int outstanding, int rounds)
+    {
+        IntMap table = new IntMap();
+        long start = System.nanoTime();
+
+        for (int r = 0; r < rounds; ++r) {
+            for (int pass = 0; pass < 2; ++pass) {
+                boolean last = (pass == 1);
+
+                for (int ansno = 0; ansno < outstanding; ++ansno) {
+                    MessageImpl m;
+
+                    if (last) {
+                        m = (MessageImpl) table.remove(ansno);
+                    } else {
+                        m = (MessageImpl) table.get(ansno);
+                    }
+
+                    if (m == null) {
+                        m = new MessageImpl(null, 1, ansno, null);
+                        if (!last) {
+                            table.put(ansno, m);
+                        }
+                    }
+                }
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * SegmentHandoffBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.LinkedList;
+
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Measures handing segments from a reader thread to the thread reading
+ * the message with the lock free queue of <code>InputDataStream</code>,
+ * and with the <code>LinkedList</code> guarded by monitors and
+ * <code>wait</code>/<code>notify</code> that it replaced:
+ * <ul>
+ * <li>the latency, as half of the round trip of a segment sent back and
+ *     forth between two threads through two streams</li>
+ * <li>the throughput of a reader adding segments as fast as it can</li>
+ * </ul>
+ * Usage: <code>SegmentHandoffBenchmark [round trips] [segments]</code>
+ */
+public class SegmentHandoffBenchmark {
+
+    public static void main(String[] args) throws Exception
+    {
+        int roundTrips = 100000;
+        int segments = 2000000;
+
+        if (args.length > 0) {
+            roundTrips = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            segments = Integer.parseInt(args[1]);
+        }
+
+        // warm up
+        pingPong(false, roundTrips / 10);
+        pingPong(true, roundTrips / 10);
+        stream(false, segments / 10);
+        stream(true, segments / 10);
+
+        System.out.println("handoff latency: monitors " +
+                           (pingPong(false, roundTrips) / roundTrips / 2) +
+                           " ns, lock free " +
+                           (pingPong(true, roundTrips) / roundTrips / 2) +
+                           " ns");
+        System.out.println("handoff throughput: monitors " +
+                           (segments * 1000000000L /
+                            stream(false, segments)) +
+                           ", lock free " +
+                           (segments * 1000000000L /
+                            stream(true, segments)) +
+                           " segments/s");
+    }
+
+    /**
+     * @return the elapsed time in nanoseconds
+     */
+    private static long pingPong(boolean lockFree, final int roundTrips)
+        throws Exception
+    {
+        final Handoff ping = newHandoff(lockFree);
+        final Handoff pong = newHandoff(lockFree);
+        final BufferSegment b = new BufferSegment(new byte[1]);
+
+        Thread echo = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < roundTrips; ++i) {
+                            pong.add(ping.take());
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+
+        long start = System.nanoTime();
+
+        echo.start();
+        for (int i = 0; i < roundTrips; ++i) {
+            ping.add(b);
+            pong.take();
+        }
+        echo.join();
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return the elapsed time in nanoseconds
+     */
+    private static long stream(boolean lockFree, final int segments)
+        throws Exception
+    {
+        final Handoff h = newHandoff(lockFree);
+        final BufferSegment b = new BufferSegment(new byte[64]);
+
+        Thread reader = new Thread() {
+                public void run() {
+                    for (int i = 0; i < segments; ++i) {
+                        h.add(b);
+                    }
+                }
+            };
+
+        long start = System.nanoTime();
+
+        reader.start();
+        for (int i = 0; i < segments; ++i) {
+            h.take();
+        }
+        reader.join();
+
+        return System.nanoTime() - start;
+    }
+
+    private static Handoff newHandoff(boolean lockFree)
+    {
+        return lockFree ? (Handoff) new StreamHandoff() : new MonitorHandoff();
+    }
+
+    private interface Handoff {
+        void add(BufferSegment b);
+        BufferSegment take() throws InterruptedException;
+    }
+
+    private static class StreamHandoff implements Handoff {
+        private final InputDataStream ds = new InputDataStream();
+
+        public void add(BufferSegment b)
+        {
+            ds.add(b);
+        }
+
+        public BufferSegment take() throws InterruptedException
+        {
+            return ds.waitForNextSegment();
+        }
+    }
+
+    /**
+     * The locking of the former <code>InputDataStream</code>.
+     */
+    private static class MonitorHandoff implements Handoff {
+        private final LinkedList buffers = new LinkedList();
+        private int availableBytes = 0;
+
+        public void add(BufferSegment b)
+        {
+            synchronized (buffers) {
+                buffers.addLast(b);
+                availableBytes += b.getLength();
+                buffers.notify();
+            }
+        }
+
+        public synchronized BufferSegment take() throws InterruptedException
+        {
+            synchronized (buffers) {
+                while (buffers.isEmpty()) {
+                    buffers.wait();
+                }
+
+                BufferSegment b = (BufferSegment) buffers.removeFirst();
+
+                availableBytes -= b.getLength();
+
+                return b;
+            }
+        }
+    }
+}
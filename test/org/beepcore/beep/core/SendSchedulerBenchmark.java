@@ -0,0 +1,281 @@
+/*
+ * SendSchedulerBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.locks.LockSupport;
+
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Measures how long small frames on one channel wait in the
+ * <code>OutboundQueue</code> while other channels, each sending from its
+ * own thread, keep their windows full of large frames.  Like a channel sending in bulk, the large frames
+ * are queued in bursts whenever half of the window has been written.  The session writes to a simulated link of
+ * 100 MB/s, so the results do not depend on the TCP stack.  A FIFO queue
+ * would make every small frame wait for the bulk window queued ahead of
+ * it.
+ * <p>
+ * Usage: <code>SendSchedulerBenchmark [small frame count]</code>
+ */
+public class SendSchedulerBenchmark {
+
+    private static final int BULK_CHANNELS = 4;
+    private static final int WINDOW = 256 * 1024;
+    private static final int BULK_FRAME_SIZE = 16 * 1024;
+    private static final long NANOS_PER_BYTE = 10;
+
+    public static void main(String[] args) throws Exception
+    {
+        int count = 5000;
+
+        if (args.length > 0) {
+            count = Integer.parseInt(args[0]);
+        }
+
+        System.out.println("bulk windows written in " +
+                           (BULK_CHANNELS * WINDOW * NANOS_PER_BYTE / 1000) +
+                           " us");
+
+        run(1, count / 4);
+        run(1, count);
+        run(8, count);
+    }
+
+    private static void run(int weight, int count) throws Exception
+    {
+        LinkSession session = new LinkSession();
+        ChannelImpl interactive = new ChannelImpl("interactive", "1",
+                                                  session);
+        Thread[] producers = new Thread[BULK_CHANNELS];
+
+        interactive.setSendWeight(weight);
+
+        for (int j = 0; j < BULK_CHANNELS; ++j) {
+            producers[j] = new Producer(session, j);
+            producers[j].start();
+        }
+
+        Thread.sleep(100);
+
+        for (int i = 0; i < count; ++i) {
+            Frame f = new Frame(Message.MESSAGE_TYPE_MSG, interactive, 0,
+                                false, 0, 0, 0);
+            f.addPayload(new BufferSegment(session.small));
+
+            synchronized (session.enqueued) {
+                session.enqueued.addLast(Long.valueOf(System.nanoTime()));
+            }
+            session.enqueueFrame(f);
+
+            LockSupport.parkNanos(200 * 1000);
+        }
+
+        session.stopped = true;
+        for (int j = 0; j < BULK_CHANNELS; ++j) {
+            producers[j].join();
+        }
+
+        long[] micros = session.waits();
+        Arrays.sort(micros);
+
+        System.out.println("weight " + weight + ": median " +
+                           micros[micros.length / 2] + " us, 99th percentile " +
+                           micros[micros.length * 99 / 100] + " us, max " +
+                           micros[micros.length - 1] + " us, bulk " +
+                           (session.bulkBytes / session.elapsedMicros()) +
+                           " MB/s");
+    }
+
+    /**
+     * Sends large frames on one channel whenever the simulated peer opens
+     * its window.
+     */
+    private static class Producer extends Thread {
+        private LinkSession session;
+        private int index;
+        private ChannelImpl channel;
+
+        Producer(LinkSession session, int index)
+        {
+            this.session = session;
+            this.index = index;
+            this.channel = new ChannelImpl("bulk",
+                                           Integer.toString(3 + 2 * index),
+                                           session);
+        }
+
+        public void run() {
+            BufferSegment payload = new BufferSegment(session.bulk[index]);
+
+            try {
+                while (session.stopped == false) {
+                    int n = session.waitForWindow(index);
+
+                    // like ChannelImpl.sendFrames, fill the window
+                    for (int i = 0; i < n; ++i) {
+                        Frame f = new Frame(Message.MESSAGE_TYPE_MSG,
+                                            channel, 0, false, 0, 0, 0);
+                        f.addPayload(payload);
+                        session.enqueueFrame(f);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A session whose writes take as long as the link needs to send the
+     * bytes and which keeps the bulk channels' frames within their windows.
+     */
+    private static class LinkSession extends SessionImpl {
+        final byte[] small = new byte[100];
+        final byte[][] bulk = new byte[BULK_CHANNELS][BULK_FRAME_SIZE];
+        final LinkedList enqueued = new LinkedList();
+        volatile boolean stopped = false;
+
+        private long[] waits = new long[1024];
+        private int waitCount = 0;
+        private int[] outstanding = new int[BULK_CHANNELS];
+        long bulkBytes = 0;
+        private long start = System.nanoTime();
+
+        LinkSession() throws BEEPException
+        {
+            super(new ProfileRegistry(), 1, null, null, null, null);
+        }
+
+        /**
+         * Waits until half of the window is free, the way a peer sends
+         * <code>SEQ</code> frames, and takes all of it.
+         *
+         * @return the number of bulk frames that fit in the window.
+         */
+        synchronized int waitForWindow(int index)
+            throws InterruptedException
+        {
+            while (outstanding[index] > WINDOW / 2 && stopped == false) {
+                this.wait();
+            }
+
+            int n = (WINDOW - outstanding[index]) / BULK_FRAME_SIZE;
+            outstanding[index] += n * BULK_FRAME_SIZE;
+
+            return n;
+        }
+
+        synchronized long[] waits()
+        {
+            long[] w = new long[waitCount];
+            System.arraycopy(waits, 0, w, 0, waitCount);
+            return w;
+        }
+
+        long elapsedMicros()
+        {
+            return Math.max(1, (System.nanoTime() - start) / 1000);
+        }
+
+        protected boolean writeSegments(BufferSegment[] segments, int count)
+        {
+            long bytes = 0;
+            for (int i = 0; i < count; ++i) {
+                bytes += segments[i].getLength();
+            }
+
+            long end = System.nanoTime() + bytes * NANOS_PER_BYTE;
+            while (System.nanoTime() < end) {
+            }
+
+            long now = System.nanoTime();
+
+            for (int i = 0; i < count; ++i) {
+                byte[] data = segments[i].getData();
+
+                if (data == small) {
+                    long t;
+                    synchronized (enqueued) {
+                        t = ((Long) enqueued.removeFirst()).longValue();
+                    }
+                    recordWait((now - t) / 1000);
+                    continue;
+                }
+
+                for (int j = 0; j < BULK_CHANNELS; ++j) {
+                    if (data == bulk[j]) {
+                        synchronized (this) {
+                            outstanding[j] -= BULK_FRAME_SIZE;
+                            bulkBytes += BULK_FRAME_SIZE;
+                        }
+                    }
+                }
+            }
+
+            synchronized (this) {
+                this.notifyAll();
+            }
+
+            return true;
+        }
+
+        private synchronized void recordWait(long micros)
+        {
+            if (waitCount == waits.length) {
+                long[] w = new long[waits.length * 2];
+                System.arraycopy(waits, 0, w, 0, waitCount);
+                waits = w;
+            }
+            waits[waitCount++] = micros;
+        }
+
+        protected void disableIO() {
+        }
+
+        protected void enableIO() {
+        }
+
+        protected int getMaxFrameSize() {
+            return BULK_FRAME_SIZE;
+        }
+
+        protected Session reset(SessionCredential localCred,
+                                SessionCredential peerCred,
+                                SessionTuningProperties tuning,
+                                ProfileRegistry reg, Object argument)
+        {
+            return null;
+        }
+
+        protected void sendFrame(Frame f) throws BEEPException {
+            throw new BEEPException("writeSegments is implemented");
+        }
+
+        protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                    long currentSeq,
+                                                    int currentAvail)
+        {
+            return false;
+        }
+    }
+}
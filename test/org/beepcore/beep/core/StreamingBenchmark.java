@@ -0,0 +1,192 @@
+/*
+ * StreamingBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.io.OutputStream;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Streams a payload through an <code>OutputDataStreamAdapter</code> to a
+ * peer that opens its window as fast as a thread can, with and without a
+ * high-water mark on the stream, and reports the throughput and the most
+ * bytes the stream held.  Without a mark the writer runs ahead of the
+ * peer and the stream holds whatever has not been sent yet.
+ * <p>
+ * Usage: <code>StreamingBenchmark [megabytes] [high-water mark]</code>
+ */
+public class StreamingBenchmark {
+
+    private static final int FRAME_SIZE = 4096;
+    private static final int WINDOW_SIZE = 16 * 1024;
+    private static final int WRITE_SIZE = 8192;
+
+    public static void main(String[] args) throws Exception
+    {
+        int megabytes = 256;
+        int highWaterMark = 64 * 1024;
+
+        if (args.length > 0) {
+            megabytes = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            highWaterMark = Integer.parseInt(args[1]);
+        }
+
+        long total = megabytes * 1024L * 1024L;
+
+        // warm up
+        run(total / 8, 0);
+        run(total / 8, highWaterMark);
+
+        report("unbounded", total, run(total, 0));
+        report("high-water mark " + highWaterMark, total,
+               run(total, highWaterMark));
+    }
+
+    private static void report(String name, long total, long[] result)
+    {
+        System.out.println(name + ": " +
+                           (total * 1000 / result[0]) + " MB/s, " +
+                           (result[1] / 1024) + " KB held at most");
+    }
+
+    /**
+     * @return the elapsed time in nanoseconds and the most bytes held
+     */
+    private static long[] run(long total, int highWaterMark)
+        throws Exception
+    {
+        final StubSession session = new StubSession();
+        final ChannelImpl ch = new ChannelImpl("bench", "1", session);
+
+        ch.setState(ChannelImpl.STATE_ACTIVE);
+
+        OutputDataStream ds = new OutputDataStream(new MimeHeaders());
+
+        ds.setHighWaterMark(highWaterMark);
+
+        final long sequence = total + ds.mimeHeaders.getBufferSegment()
+            .getLength();
+        final Throwable[] failure = new Throwable[1];
+
+        // the peer acknowledges what has been written
+        Thread peer = new Thread() {
+                public void run() {
+                    try {
+                        long seq;
+
+                        while ((seq = session.sent.get()) != sequence) {
+                            ch.updatePeerReceiveBufferSize(seq, WINDOW_SIZE);
+                            Thread.yield();
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+
+        byte[] b = new byte[WRITE_SIZE];
+        long held = 0;
+        long start = System.nanoTime();
+
+        peer.start();
+        ch.sendMSG(ds, null);
+
+        OutputStream out = ds.getOutputStream();
+
+        for (long n = 0; n < total; n += b.length) {
+            out.write(b, 0, (int) Math.min(b.length, total - n));
+            held = Math.max(held, ds.getBufferedBytes());
+        }
+        out.close();
+        peer.join();
+
+        long elapsed = System.nanoTime() - start;
+
+        if (failure[0] != null) {
+            throw new RuntimeException(failure[0]);
+        }
+
+        return new long[] {elapsed, held};
+    }
+
+    /**
+     * A session that counts the payload bytes written instead of writing
+     * them.
+     */
+    private static class StubSession extends SessionImpl {
+        final AtomicLong sent = new AtomicLong();
+
+        StubSession() throws BEEPException
+        {
+            super(new ProfileRegistry(), 1, null, null, null, null);
+        }
+
+        protected void disableIO() {
+        }
+
+        protected void enableIO() {
+        }
+
+        protected int getMaxFrameSize() {
+            return FRAME_SIZE;
+        }
+
+        protected Session reset(SessionCredential localCred,
+                                SessionCredential peerCred,
+                                SessionTuningProperties tuning,
+                                ProfileRegistry reg, Object argument)
+        {
+            return null;
+        }
+
+        protected void sendFrame(Frame f) throws BEEPException {
+            throw new BEEPException("not connected");
+        }
+
+        protected boolean writeSegments(BufferSegment[] segments, int count)
+        {
+            long n = 0;
+
+            for (int i = 0; i < count; ++i) {
+                if (segments[i] instanceof HeaderSegment) {
+                    // each frame header is followed by a trailer
+                    n -= Frame.TRAILER.length();
+                } else {
+                    n += segments[i].getLength();
+                }
+            }
+            sent.addAndGet(n);
+
+            return true;
+        }
+
+        protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                    long currentSeq,
+                                                    int currentAvail)
+        {
+            return true;
+        }
+    }
+}
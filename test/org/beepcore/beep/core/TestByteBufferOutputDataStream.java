@@ -0,0 +1,113 @@
+/*
+ * TestByteBufferOutputDataStream.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestByteBufferOutputDataStream extends TestCase {
+    protected ByteBufferOutputDataStream data;
+    protected byte[] message;
+    protected byte[] payload;
+
+    public TestByteBufferOutputDataStream(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testGetNextSegment() {
+        int i=0;
+        while (data.availableSegment()) {
+            ByteBuffer b = data.getNextSegment(message.length).asByteBuffer();
+            while (b.hasRemaining()) {
+                assertEquals((char)message[i++], (char)b.get());
+            }
+        }
+        assertEquals(message.length, i);
+    }
+
+    public void testGetNextSegmentFragments() {
+        int i=0;
+        while (data.availableSegment()) {
+            BufferSegment b = data.getNextSegment(10);
+            assertTrue(b.getLength() <= 10);
+            for (int j=b.getOffset(); j < b.getOffset() + b.getLength(); ++j) {
+                assertEquals((char)message[i++], (char)(b.getData()[j]));
+            }
+        }
+        assertEquals(message.length, i);
+    }
+
+    public void testDirectSegment() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+        direct.put(payload);
+        direct.flip();
+
+        BufferSegment b = new BufferSegment(direct.asReadOnlyBuffer());
+
+        assertFalse(b.hasArray());
+        assertEquals(payload.length, b.getLength());
+        assertEquals(0, direct.position());
+
+        BufferSegment s = b.slice(5, 10);
+        assertFalse(s.hasArray());
+        for (int i=0; i < s.getLength(); ++i) {
+            assertEquals(payload[5 + i], s.getData()[s.getOffset() + i]);
+        }
+    }
+
+    public void testInputDataStreamBuffers() {
+        InputDataStream ids = new InputDataStream();
+        ids.add(new BufferSegment(payload, 3, 7));
+        ids.setComplete();
+
+        ByteBuffer b = ids.getNextBuffer();
+        assertEquals(7, b.remaining());
+        assertEquals(payload[3], b.get(0));
+        assertFalse(ids.availableSegment());
+    }
+
+    protected void setUp() throws UnsupportedEncodingException {
+        String s = "12345678901234567890x2345678901234567890";
+        payload = s.getBytes("UTF-8");
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+        direct.put(payload);
+        direct.flip();
+
+        data = new ByteBufferOutputDataStream(direct);
+
+        // default headers serialize to just the CRLF
+        message = ("\r\n" + s).getBytes("UTF-8");
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestByteBufferOutputDataStream.class);
+    }
+
+}
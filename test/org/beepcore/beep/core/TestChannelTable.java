@@ -0,0 +1,147 @@
+/*
+ * TestChannelTable.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import junit.framework.*;
+
+public class TestChannelTable extends TestCase {
+    protected ChannelTable table;
+
+    public TestChannelTable(String name) {
+        super(name);
+    }
+
+    public void testInsert() {
+        // enough channels for several rebuilds
+        for (int i=1; i < 200; i += 2) {
+            table.put(channel(i));
+        }
+
+        assertEquals(100, table.size());
+        for (int i=1; i < 200; i += 2) {
+            assertEquals(i, table.get(i).getNumber());
+        }
+        assertNull(table.get(0));
+        assertNull(table.get(2));
+        assertNull(table.get(201));
+    }
+
+    public void testReplace() {
+        ChannelImpl first = channel(3);
+        ChannelImpl second = channel(3);
+
+        table.put(first);
+        table.put(second);
+
+        assertEquals(1, table.size());
+        assertSame(second, table.get(3));
+    }
+
+    public void testRemove() {
+        for (int i=1; i < 20; i += 2) {
+            table.put(channel(i));
+        }
+
+        ChannelImpl ch = table.get(7);
+        assertSame(ch, table.remove(7));
+        assertNull(table.get(7));
+        assertNull(table.remove(7));
+        assertEquals(9, table.size());
+
+        // the channels probed past the removed one are still found
+        for (int i=1; i < 20; i += 2) {
+            if (i != 7) {
+                assertEquals(i, table.get(i).getNumber());
+            }
+        }
+    }
+
+    public void testReinsertAcrossRebuild() {
+        for (int i=1; i < 20; i += 2) {
+            table.put(channel(i));
+        }
+        for (int i=1; i < 20; i += 4) {
+            table.remove(i);
+        }
+
+        // grow the table past its capacity, rebuilding it
+        for (int i=101; i < 301; i += 2) {
+            table.put(channel(i));
+        }
+
+        for (int i=1; i < 20; i += 4) {
+            assertNull(table.get(i));
+        }
+
+        ChannelImpl again = channel(5);
+        table.put(again);
+        assertSame(again, table.get(5));
+        assertNull(table.get(1));
+        assertNull(table.get(9));
+
+        assertEquals(5 + 100 + 1, table.size());
+        assertEquals(table.size(), table.toArray().length);
+    }
+
+    public void testRemovedLookups() {
+        // fill the table with removed markers, lookups of channels that
+        // are not there must still end
+        for (int i=1; i < 1000; i += 2) {
+            table.put(channel(i));
+            table.remove(i);
+        }
+
+        assertEquals(0, table.size());
+        for (int i=0; i < 1000; ++i) {
+            assertNull(table.get(i));
+        }
+
+        table.put(channel(1001));
+        assertEquals(1001, table.get(1001).getNumber());
+    }
+
+    public void testClear() {
+        for (int i=1; i < 20; i += 2) {
+            table.put(channel(i));
+        }
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(0, table.toArray().length);
+        assertNull(table.get(1));
+    }
+
+    private static ChannelImpl channel(int number) {
+        return new ChannelImpl("test", Integer.toString(number), null);
+    }
+
+    protected void setUp() {
+        table = new ChannelTable();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestChannelTable.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
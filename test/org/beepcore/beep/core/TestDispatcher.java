@@ -0,0 +1,260 @@
+/*
+ * TestDispatcher.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestDispatcher extends TestCase {
+    protected ExecutorService executor;
+    protected StubSession session;
+
+    public TestDispatcher(String name) {
+        super(name);
+    }
+
+    public void testDeferRequests() throws Exception {
+        Dispatcher d = new Dispatcher(executor, 4);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        Runnable blocked = new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+
+        for (int i=0; i < 4; ++i) {
+            d.executeRequest(blocked);
+        }
+        assertEquals(0, d.getDeferredCount());
+
+        d.executeRequest(new Runnable() {
+                public void run() {
+                    ran.countDown();
+                }
+            });
+        assertEquals(4, d.getPendingCount());
+        assertEquals(1, d.getDeferredCount());
+        assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(5, d.getSubmittedCount());
+        assertEquals(5, d.getCompletedCount());
+        assertEquals(0, d.getPendingCount());
+    }
+
+    public void testRepliesNotDeferred() throws Exception {
+        Dispatcher d = new Dispatcher(executor, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        d.executeRequest(new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+
+        // a reply the blocked handler waits for must still run
+        d.execute(new Runnable() {
+                public void run() {
+                    ran.countDown();
+                }
+            });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(0, d.getDeferredCount());
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, d.getPendingCount());
+    }
+
+    public void testRepliesWhileFull() throws Exception {
+        Dispatcher d = new Dispatcher("test", 1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(8);
+        Runnable blocked = new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+
+        // one handler running, one waiting on the executor's queue
+        d.executeRequest(blocked);
+        d.executeRequest(blocked);
+        assertEquals(2, d.getPendingCount());
+
+        // more replies than the capacity are queued, not refused
+        for (int i=0; i < 8; ++i) {
+            d.execute(new Runnable() {
+                    public void run() {
+                        ran.countDown();
+                    }
+                });
+        }
+        assertEquals(10, d.getPendingCount());
+
+        release.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        d.shutdown();
+    }
+
+    public void testDeferredRefused() throws Exception {
+        Dispatcher d = new Dispatcher(executor, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        d.executeRequest(new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+
+        ChannelImpl ch = new ChannelImpl("test", "1", session);
+        d.executeRequest(ch);
+        assertEquals(1, d.getDeferredCount());
+
+        // the deferred MSG is refused once the blocked handler completes
+        executor.shutdown();
+        release.countDown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(Session.SESSION_STATE_ABORTED, session.getState());
+    }
+
+    public void testResolution() throws Exception {
+        Dispatcher registry = new Dispatcher(executor, 1);
+        Dispatcher own = new Dispatcher(executor, 1);
+
+        assertEquals(Dispatcher.getDefault(), session.getDispatcher());
+
+        session.getProfileRegistry().setDispatcher(registry);
+        assertEquals(registry, session.getDispatcher());
+        assertEquals(registry,
+                     ((ProfileRegistry) session.getProfileRegistry().clone())
+                     .getDispatcher());
+
+        session.setDispatcher(own);
+        assertEquals(own, session.getDispatcher());
+
+        ChannelImpl ch = new ChannelImpl("test", "1", session);
+        assertEquals(own, ch.getDispatcher());
+        ch.setDispatcher(registry);
+        assertEquals(registry, ch.getDispatcher());
+    }
+
+    public void testRejected() throws Exception {
+        Dispatcher d = new Dispatcher(executor, 1);
+
+        executor.shutdown();
+        try {
+            d.executeRequest(new Runnable() {
+                    public void run() {
+                    }
+                });
+            fail("executor is shut down");
+        } catch (BEEPException e) {
+        }
+        assertEquals(0, d.getPendingCount());
+    }
+
+    protected void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        session = new StubSession();
+    }
+
+    protected void tearDown() {
+        executor.shutdownNow();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestDispatcher.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    /**
+     * A session without a transport.
+     */
+    private static class StubSession extends SessionImpl {
+        StubSession() throws BEEPException
+        {
+            super(new ProfileRegistry(), 1, null, null, null, null);
+        }
+
+        protected void disableIO() {
+        }
+
+        protected void enableIO() {
+        }
+
+        protected int getMaxFrameSize() {
+            return 4096;
+        }
+
+        protected Session reset(SessionCredential localCred,
+                                SessionCredential peerCred,
+                                SessionTuningProperties tuning,
+                                ProfileRegistry reg, Object argument)
+        {
+            return null;
+        }
+
+        protected void sendFrame(Frame f) throws BEEPException {
+            throw new BEEPException("not connected");
+        }
+
+        protected boolean writeSegments(BufferSegment[] segments, int count)
+        {
+            return true;
+        }
+
+        protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                    long currentSeq,
+                                                    int currentAvail)
+        {
+            return true;
+        }
+    }
+}
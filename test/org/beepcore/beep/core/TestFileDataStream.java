@@ -16,77 +16,281 @@
  */
 package org.beepcore.beep.core;
 
-/*
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.Enumeration;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.FileSegment;
 
 import junit.framework.*;
-*/
 
-public class TestFileDataStream /*extends TestDataStream*/ {
-/*
-    static public String filename;
+/**
+ * Tests <code>FileOutputDataStream</code>.  Run with <code>main</code> to
+ * compare the throughput of sending a file read into <code>byte[]</code>
+ * chunks with sending it from a <code>FileOutputDataStream</code>.
+ */
+public class TestFileDataStream extends TestCase {
+    protected File file;
+    protected byte[] message;
 
     public TestFileDataStream(String name) {
         super(name);
     }
 
-    public static void main (String[] args) {
-        if( args.length == 0 )
-        {
-          System.out.println("Missing command line parameter: <filename>");
-          return;
+    public void testGetNextSegment() throws IOException {
+        FileOutputDataStream data = new FileOutputDataStream(file);
+
+        int i=0;
+        while (data.availableSegment()) {
+            BufferSegment b = data.getNextSegment(10);
+            for (int j=b.getOffset(); j < b.getOffset() + b.getLength(); ++j) {
+                assertEquals((char)message[i++], (char)(b.getData()[j]));
+            }
+        }
+        assertEquals(message.length, i);
+    }
+
+    public void testTransferTo() throws IOException {
+        FileOutputDataStream data = new FileOutputDataStream(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        FileSegment f = null;
+
+        while (data.availableSegment()) {
+            BufferSegment b = data.getNextSegment(16);
+
+            if (b instanceof FileSegment) {
+                f = (FileSegment) b;
+                for (int off = 0; off < f.getLength(); ) {
+                    off += f.transferTo(target, off);
+                }
+            } else {
+                out.write(b.getData(), b.getOffset(), b.getLength());
+            }
+            b.written();
         }
-        filename = args[0];
-        junit.textui.TestRunner.run (suite());
+
+        byte[] sent = out.toByteArray();
+        assertEquals(message.length, sent.length);
+        for (int i=0; i < sent.length; ++i) {
+            assertEquals(message[i], sent[i]);
+        }
+
+        assertNotNull(f);
+        assertFalse("file closed", f.getChannel().isOpen());
     }
 
-    protected void setUp()
-        throws UnsupportedEncodingException, BEEPException, IOException {
+    public void testTruncated() throws IOException {
+        FileOutputDataStream data = new FileOutputDataStream(file);
+        WritableByteChannel target =
+            Channels.newChannel(new ByteArrayOutputStream());
+
+        data.getNextSegment(4096);      // the headers
+        FileSegment f = (FileSegment) data.getNextSegment(4096);
 
-        Channel channel = new Channel("0", "0", null, null);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(10);
+        raf.close();
 
-        File f = new File( filename );
-        int size = (int)f.length();
-        char[] chars = new char[size];
-        FileReader fr = new FileReader(f);
-        fr.read( chars );
-        String s = new String( chars );
-        data = new FileDataStream(f);
+        try {
+            for (int off = 0; off < f.getLength(); ) {
+                off += f.transferTo(target, off);
+            }
+            fail("transferTo past the end of the file");
+        } catch (EOFException e) {
+        }
+
+        try {
+            f.read(ByteBuffer.allocate(f.getLength()));
+            fail("read past the end of the file");
+        } catch (EOFException e) {
+        }
+    }
 
-        String EH1 = "EntityHeader1";
-        String h1 = "header1";
-        String EH2 = "EntityHeader2";
-        String h2 = "header2";
-        String ct = "ContentType1";
-        String te = "TransferEncoding1";
+    public void testChannelClosed() throws IOException {
+        FileOutputDataStream data = new FileOutputDataStream(file);
 
-        data.setHeader( EH1, h1 );
-        data.setHeader( EH2, h2 );
-        data.setContentType( ct );
-        data.setTransferEncoding( te );
+        data.getNextSegment(4096);      // the headers
+        FileSegment f = (FileSegment) data.getNextSegment(16);
+
+        // the rest of the file is dropped when the channel closes
+        data.channelClosed();
+        assertTrue("file open", f.getChannel().isOpen());
+
+        f.written();
+        assertFalse("file closed", f.getChannel().isOpen());
+    }
 
-        headers.put( EH1, h1 );
-        headers.put( EH2, h2 );
-        headers.put( DataStream.CONTENT_TYPE, ct );
-        headers.put( DataStream.CONTENT_TRANSFER_ENCODING, te );
+    protected void setUp() throws IOException {
+        StringBuffer s = new StringBuffer();
+        for (int i=0; i < 100; ++i) {
+            s.append("line ");
+            s.append(i);
+            s.append("\n");
+        }
 
-        StringBuffer messageBuffer = new StringBuffer();
+        byte[] content = s.toString().getBytes("UTF-8");
 
-        messageBuffer.append(serializeHeaders());
+        file = File.createTempFile("TestFileDataStream", ".txt");
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(content);
+        fos.close();
 
-        dataOffset = messageBuffer.length();
+        // default headers serialize to just the CRLF
+        message = ("\r\n" + s).getBytes("UTF-8");
+    }
 
-        messageBuffer.append(s);
-        message = messageBuffer.toString().getBytes("UTF8");
+    protected void tearDown() {
+        file.delete();
     }
 
     public static Test suite() {
         return new TestSuite(TestFileDataStream.class);
     }
-*/
+
+    private static final String URI =
+        "http://xml.resource.org/profiles/NULL/FILE";
+    private static final int WINDOW = 256 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Usage: <code>TestFileDataStream [file size in MB] [count]</code>
+     */
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        File f = File.createTempFile("TestFileDataStream", ".bin");
+        f.deleteOnExit();
+
+        FileOutputStream fos = new FileOutputStream(f);
+        byte[] b = new byte[1024 * 1024];
+        for (int i=0; i < megabytes; ++i) {
+            fos.write(b);
+        }
+        fos.close();
+
+        Session session = connect();
+
+        throughput(session, f, false, Math.max(1, count / 4));
+        throughput(session, f, true, Math.max(1, count / 4));
+
+        System.out.println("byte[] chunks: " +
+                           throughput(session, f, false, count) + " MB/s");
+        System.out.println("FileOutputDataStream: " +
+                           throughput(session, f, true, count) + " MB/s");
+
+        System.exit(0);
+    }
+
+    private static long throughput(Session session, File f, boolean direct,
+                                   int count)
+        throws BEEPException, IOException
+    {
+        ChannelImpl channel = (ChannelImpl) session.startChannel(URI);
+        channel.setReceiveBufferSize(WINDOW);
+        channel.setMaxFrameSize(CHUNK_SIZE);
+
+        long start = System.currentTimeMillis();
+
+        for (int i=0; i < count; ++i) {
+            OutputDataStream data;
+
+            if (direct) {
+                data = new FileOutputDataStream(f);
+            } else {
+                data = new OutputDataStream(new MimeHeaders());
+
+                InputStream is = new FileInputStream(f);
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int n;
+                while ((n = is.read(chunk)) != -1) {
+                    data.add(new BufferSegment(chunk, 0, n));
+                    chunk = new byte[CHUNK_SIZE];
+                }
+                is.close();
+                data.setComplete();
+            }
+
+            Reply reply = new Reply();
+            channel.sendMSG(data, reply);
+            reply.getNextReply().getDataStream().close();
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        channel.close();
+
+        return f.length() * count * 1000 / elapsed / (1024 * 1024);
+    }
+
+    private static Session connect() throws Exception {
+        final int port = 10289;
+        final ProfileRegistry registry = new ProfileRegistry();
+
+        registry.addStartChannelListener(URI, new StartChannelListener() {
+                public boolean advertiseProfile(Session session) {
+                    return true;
+                }
+
+                public void startChannel(Channel channel, String encoding,
+                                         String data)
+                {
+                    channel.setRequestHandler(new RequestHandler() {
+                            private boolean enlarged = false;
+
+                            public void receiveMSG(MessageMSG message) {
+                                try {
+                                    if (enlarged == false) {
+                                        ((ChannelImpl) message.getChannel())
+                                            .setReceiveBufferSize(WINDOW);
+                                        enlarged = true;
+                                    }
+
+                                    InputStream is =
+                                        message.getDataStream().getInputStream();
+                                    byte[] buf = new byte[CHUNK_SIZE];
+                                    while (is.read(buf) != -1) {
+                                    }
+
+                                    message.sendRPY(new ByteOutputDataStream(new byte[0]));
+                                } catch (Exception e) {
+                                    e.printStackTrace();
+                                }
+                            }
+                        });
+                }
+
+                public void closeChannel(Channel channel) {
+                }
+            }, null);
+
+        Thread listener = new Thread() {
+                public void run() {
+                    try {
+                        TCPSessionCreator.listenNIO(port, registry);
+                    } catch (BEEPException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+
+        listener.start();
+
+        Thread.sleep(500);
+
+        return TCPSessionCreator.initiateNIO("localhost", port,
+                                             new ProfileRegistry());
+    }
 }
@@ -0,0 +1,131 @@
+/*
+ * TestFrameHeader.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.io.UnsupportedEncodingException;
+
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.FrameHeader;
+
+import junit.framework.*;
+
+public class TestFrameHeader extends TestCase {
+    protected FrameHeader header;
+
+    public TestFrameHeader(String name) {
+        super(name);
+    }
+
+    public void testMessageTypes() throws Exception {
+        String[] types = { "MSG", "RPY", "ERR", "ANS", "NUL" };
+        int[] codes = {
+            Message.MESSAGE_TYPE_MSG, Message.MESSAGE_TYPE_RPY,
+            Message.MESSAGE_TYPE_ERR, Message.MESSAGE_TYPE_ANS,
+            Message.MESSAGE_TYPE_NUL
+        };
+
+        for (int i=0; i < types.length; ++i) {
+            parse(types[i] + " 1 2 . 3 4");
+            assertEquals(types[i], codes[i], header.getType());
+        }
+
+        parse("XYZ 1 2 . 3 4");
+        assertEquals(FrameHeader.TYPE_UNK, header.getType());
+    }
+
+    public void testFields() throws Exception {
+        parse("ANS 2147483647 17 * 4294967295 4096 9");
+        assertEquals(FrameHeader.TYPE_ANS, header.getType());
+        assertEquals(Integer.MAX_VALUE, header.getChannel());
+        assertEquals(17, header.getMsgno());
+        assertFalse(header.isLast());
+        assertEquals(4294967295L, header.getSeqno());
+        assertEquals(4096, header.getSize());
+        assertEquals(9, header.getAnsno());
+
+        // the record is reused
+        parse("RPY 3 0 . 0 0");
+        assertEquals(FrameHeader.TYPE_RPY, header.getType());
+        assertEquals(3, header.getChannel());
+        assertTrue(header.isLast());
+        assertEquals(-1, header.getAnsno());
+    }
+
+    public void testSEQ() throws Exception {
+        parse("SEQ 5 123456 65536");
+        assertEquals(FrameHeader.TYPE_SEQ, header.getType());
+        assertEquals(5, header.getChannel());
+        assertEquals(123456, header.getAckno());
+        assertEquals(65536, header.getWindow());
+    }
+
+    public void testMalformed() throws Exception {
+        String[] bad = {
+            "MSG 1 2 . 3", "MSG 1 2 . 3 4 5 6", "MSG  1 2 . 3 4",
+            "MSG 1 2 + 3 4", "MSGS 1 2 . 3 4", "SEQ 1 2", "SEQ 1 2 3 4"
+        };
+
+        for (int i=0; i < bad.length; ++i) {
+            try {
+                parse(bad[i]);
+                fail(bad[i]);
+            } catch (BEEPException e) {
+            }
+        }
+    }
+
+    public void testEncodeHeader() throws Exception {
+        ChannelImpl channel = new ChannelImpl("test", "7", null);
+        Frame f = new Frame(Message.MESSAGE_TYPE_ANS, channel, 12, false,
+                            4294967295L, 0, 3);
+        f.addPayload(new BufferSegment(new byte[42]));
+
+        byte[] b = new byte[Frame.MAX_HEADER_SIZE + 5];
+        int length = f.encodeHeader(b, 5);
+
+        assertEquals("ANS 7 12 * 4294967295 42 3\r\n",
+                     new String(b, 5, length, "US-ASCII"));
+
+        header.parse(b, 5, length - 2);
+        assertEquals(FrameHeader.TYPE_ANS, header.getType());
+        assertEquals(42, header.getSize());
+        assertEquals(3, header.getAnsno());
+    }
+
+    private void parse(String s)
+        throws BEEPException, UnsupportedEncodingException
+    {
+        byte[] b = ("xx" + s).getBytes("US-ASCII");
+        header.parse(b, 2, b.length - 2);
+    }
+
+    protected void setUp() {
+        header = new FrameHeader();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestFrameHeader.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
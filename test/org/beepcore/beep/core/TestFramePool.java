@@ -0,0 +1,76 @@
+/*
+ * TestFramePool.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import junit.framework.*;
+
+public class TestFramePool extends TestCase {
+    protected FramePool pool;
+
+    public TestFramePool(String name) {
+        super(name);
+    }
+
+    public void testReused() {
+        Frame f = get();
+
+        f.release();
+        assertSame(f, get());
+    }
+
+    public void testOtherThreadNotPooled() throws Exception {
+        // the first thread to get a frame owns the pool
+        Frame owned = get();
+        final Frame[] other = new Frame[2];
+
+        Thread t = new Thread() {
+                public void run() {
+                    other[0] = get();
+                    other[0].release();
+                    other[1] = get();
+                }
+            };
+        t.start();
+        t.join();
+
+        // released by a thread that does not own the pool, dropped
+        assertTrue(other[0] != other[1]);
+
+        owned.release();
+        assertSame(owned, get());
+    }
+
+    private Frame get() {
+        return pool.get(Message.MESSAGE_TYPE_MSG, null, 1, false, 0, 0, -1);
+    }
+
+    protected void setUp() {
+        pool = new FramePool();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestFramePool.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * TestFutureReply.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+import junit.framework.*;
+
+public class TestFutureReply extends TestCase {
+
+    public TestFutureReply(String name) {
+        super(name);
+    }
+
+    public void testRPY() throws Exception {
+        FutureReply reply = new FutureReply(null);
+        Message rpy = reply(Message.MESSAGE_TYPE_RPY);
+
+        assertFalse(reply.getFuture().isDone());
+        reply.receiveRPY(rpy);
+        assertEquals(rpy, reply.getFuture().get());
+    }
+
+    public void testERR() throws Exception {
+        FutureReply reply = new FutureReply(null);
+        Message err = reply(Message.MESSAGE_TYPE_ERR);
+
+        reply.receiveERR(err);
+        assertEquals(err, reply.getFuture().get());
+    }
+
+    public void testAnswers() throws Exception {
+        final List answers = new ArrayList();
+        FutureReply reply = new FutureReply(new Consumer<Message>() {
+                public void accept(Message m) {
+                    answers.add(m);
+                }
+            });
+
+        Message ans1 = answer(1);
+        Message ans2 = answer(2);
+        Message nul = reply(Message.MESSAGE_TYPE_NUL);
+
+        reply.receiveANS(ans1);
+        reply.receiveANS(ans2);
+        assertFalse(reply.getFuture().isDone());
+
+        reply.receiveNUL(nul);
+        assertEquals(nul, reply.getFuture().get());
+        assertEquals(2, answers.size());
+        assertEquals(ans1, answers.get(0));
+        assertEquals(ans2, answers.get(1));
+    }
+
+    public void testANSWithoutConsumer() throws Exception {
+        FutureReply reply = new FutureReply(null);
+
+        reply.receiveANS(answer(1));
+        assertTrue(reply.getFuture().isCompletedExceptionally());
+
+        // the rest of the exchange is ignored
+        reply.receiveANS(answer(2));
+        reply.receiveNUL(reply(Message.MESSAGE_TYPE_NUL));
+
+        try {
+            reply.getFuture().get();
+            fail("ANS without a consumer");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BEEPException);
+        }
+    }
+
+    public void testConsumerThrows() throws Exception {
+        FutureReply reply = new FutureReply(new Consumer<Message>() {
+                public void accept(Message m) {
+                    throw new IllegalStateException("consumer");
+                }
+            });
+
+        reply.receiveANS(answer(1));
+
+        try {
+            reply.getFuture().get();
+            fail("consumer threw");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private static Message reply(int type) {
+        return new MessageImpl(null, 1, new InputDataStream(), type);
+    }
+
+    private static Message answer(int ansno) {
+        return new MessageImpl(null, 1, ansno, new InputDataStream());
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestFutureReply.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * TestInputDataStream.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.beepcore.beep.util.BufferPool;
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestInputDataStream extends TestCase {
+    protected BufferPool pool;
+    protected File spillDirectory;
+    protected SessionImpl session;
+
+    public TestInputDataStream(String name) {
+        super(name);
+    }
+
+    public void testSegmentsBelongToCaller() throws Exception {
+        InputDataStream ds = stream(3);
+
+        BufferSegment first = ds.getNextSegment();
+        BufferSegment second = ds.getNextSegment();
+
+        assertFalse(first.isPooled());
+        assertFalse(second.isPooled());
+        assertEquals('\r', first.getData()[0]);
+        assertEquals(1, second.getData()[0]);
+
+        ds.close();
+        assertEquals('\r', first.getData()[0]);
+        assertEquals(0, pool.getReuseCount());
+    }
+
+    public void testReleaseOnNext() throws Exception {
+        InputDataStream ds = stream(3);
+
+        ds.setReleaseOnNext(true);
+
+        BufferSegment first = ds.getNextSegment();
+        BufferSegment kept = ds.getNextSegment().retain();
+
+        assertTrue(first.isPooled());
+        try {
+            first.getData();
+            fail("used after release");
+        } catch (IllegalStateException e) {
+        }
+
+        ds.getNextSegment();
+        assertEquals(1, kept.getData()[0]);
+        kept.release();
+
+        ds.close();
+        try {
+            kept.asByteBuffer();
+            fail("used after release");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void testAdapterReleases() throws Exception {
+        InputDataStream ds = stream(3);
+        InputStream is = ds.getInputStream();
+
+        while (is.read() != -1) {
+        }
+        ds.close();
+
+        // the three arrays are back in the pool
+        for (int i=0; i < 3; ++i) {
+            pool.allocate(100);
+        }
+        assertEquals(3, pool.getReuseCount());
+    }
+
+    public void testSpillFileDeleted() throws Exception {
+        InputDataStream ds = spilled();
+
+        assertEquals(1, spillDirectory.list().length);
+        while (ds.availableSegment()) {
+            ds.getNextSegment();
+        }
+        assertEquals(0, spillDirectory.list().length);
+
+        ds = spilled();
+        assertEquals(1, spillDirectory.list().length);
+        ds.close();
+        assertEquals(0, spillDirectory.list().length);
+    }
+
+    public void testSpillFileDeletedOnAbort() throws Exception {
+        ChannelImpl channel = new ChannelImpl("test", "1", session);
+        InputDataStream ds = new InputDataStream(channel);
+
+        session.setMessageSpillThreshold(1);
+        ds.add(new BufferSegment(new byte[100]));
+        assertEquals(1, spillDirectory.list().length);
+
+        channel.setState(ChannelImpl.STATE_ABORTED);
+        assertTrue(ds.isClosed());
+        assertEquals(0, spillDirectory.list().length);
+    }
+
+    public void testSessionThreshold() throws Exception {
+        ChannelImpl channel = new ChannelImpl("test", "1", session);
+
+        session.setSessionSpillThreshold(300);
+
+        InputDataStream a = new InputDataStream(channel);
+        a.add(new BufferSegment(new byte[300]));
+        assertEquals(0, spillDirectory.list().length);
+
+        // over the session's threshold with the bytes held by a
+        InputDataStream b = new InputDataStream(channel);
+        b.add(new BufferSegment(new byte[100]));
+        assertEquals(1, spillDirectory.list().length);
+        b.close();
+        assertEquals(0, spillDirectory.list().length);
+
+        // reading a gives its bytes back
+        a.getNextSegment();
+        InputDataStream c = new InputDataStream(channel);
+        c.add(new BufferSegment(new byte[100]));
+        assertEquals(0, spillDirectory.list().length);
+
+        // closing the channel closes c, which is incomplete, and stops
+        // counting the bytes of d, which stays readable
+        InputDataStream d = new InputDataStream(channel);
+        d.add(new BufferSegment(new byte[200]));
+        d.setComplete();
+        channel.setState(ChannelImpl.STATE_CLOSED);
+        assertTrue(c.isClosed());
+        assertFalse(d.isClosed());
+
+        ChannelImpl other = new ChannelImpl("test", "3", session);
+        InputDataStream e = new InputDataStream(other);
+        e.add(new BufferSegment(new byte[300]));
+        assertEquals(0, spillDirectory.list().length);
+
+        assertEquals(200, d.getNextSegment().getLength());
+    }
+
+    public void testSpillReadError() throws Exception {
+        InputDataStream ds = spilled();
+        File spillFile = spillDirectory.listFiles()[0];
+
+        RandomAccessFile raf = new RandomAccessFile(spillFile, "rw");
+        raf.setLength(0);
+        raf.close();
+
+        try {
+            ds.getInputStream().read();
+            fail("read spilled data from an empty file");
+        } catch (IOException e) {
+        }
+        ds.close();
+    }
+
+    /**
+     * Returns a complete stream of three segments held in a spill file.
+     */
+    private InputDataStream spilled() {
+        InputDataStream ds = new InputDataStream();
+
+        ds.setSpillThreshold(1, spillDirectory);
+        for (int i=0; i < 3; ++i) {
+            ds.add(new BufferSegment(new byte[100]));
+        }
+        ds.setComplete();
+
+        return ds;
+    }
+
+    private InputDataStream stream(int segments) {
+        InputDataStream ds = new InputDataStream();
+
+        for (int i=0; i < segments; ++i) {
+            BufferSegment b = pool.allocate(100);
+
+            b.getData()[0] = (byte) i;
+            if (i == 0) {
+                // empty MIME headers for the adapter
+                b.getData()[0] = '\r';
+                b.getData()[1] = '\n';
+            }
+            ds.add(b);
+        }
+        ds.setComplete();
+
+        return ds;
+    }
+
+    protected void setUp() throws Exception {
+        pool = new BufferPool(4096, 64 * 1024);
+        BufferPool.setLeakDetection(true);
+
+        spillDirectory = File.createTempFile("TestInputDataStream", "");
+        spillDirectory.delete();
+        spillDirectory.mkdir();
+
+        session = new TestOutboundQueue.RecordingSession();
+        session.setSpillDirectory(spillDirectory);
+    }
+
+    protected void tearDown() {
+        BufferPool.setLeakDetection(false);
+
+        File[] files = spillDirectory.listFiles();
+        for (int i=0; i < files.length; ++i) {
+            files[i].delete();
+        }
+        spillDirectory.delete();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestInputDataStream.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -188,6 +188,33 @@ public class TestInputDataStreamAdapter extends TestCase {
         }
     }
 
+    public void testSpilledRead() throws IOException {
+        InputDataStream spilled = new InputDataStream();
+        spilled.setSpillThreshold(4096, null);
+
+        for (int j = 0; j < message.length; j += 1400) {
+            spilled.add(new BufferSegment(message, j,
+                                          Math.min(message.length - j, 1400)));
+        }
+        spilled.setComplete();
+
+        InputStream is = spilled.getInputStream();
+        assertEquals("is.available()",
+                     message.length - dataOffset, is.available());
+
+        byte[] b = new byte[message.length];
+        int count = 0;
+        int n;
+        while ((n = is.read(b, count, b.length - count)) != -1) {
+            count += n;
+        }
+        assertEquals("count == message.length - dataOffset",
+                     message.length - dataOffset, count);
+        for (int i=0; i < count; ++i) {
+            assertEquals("Byte number: " + i, message[dataOffset + i], b[i]);
+        }
+    }
+
     protected void setUp() throws UnsupportedEncodingException {
         int j = 0;
         int frameSize = 1400;
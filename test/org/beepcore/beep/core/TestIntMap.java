@@ -0,0 +1,112 @@
+/*
+ * TestIntMap.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.*;
+
+public class TestIntMap extends TestCase {
+    protected IntMap map;
+
+    public TestIntMap(String name) {
+        super(name);
+    }
+
+    public void testPutGetRemove() {
+        assertNull(map.get(1));
+        assertNull(map.put(1, "one"));
+        assertNull(map.put(-1, "piggyback"));
+        assertEquals("one", map.put(1, "uno"));
+        assertEquals("uno", map.get(1));
+        assertEquals("piggyback", map.get(-1));
+        assertEquals(2, map.size());
+
+        assertEquals("uno", map.remove(1));
+        assertNull(map.remove(1));
+        assertNull(map.get(1));
+        assertEquals(1, map.size());
+    }
+
+    public void testAgainstHashMap() {
+        Map expected = new HashMap();
+        Random r = new Random(17);
+
+        // small key range so probe sequences collide and wrap
+        for (int i=0; i < 100000; ++i) {
+            int key = r.nextInt(200) - 20;
+
+            if (r.nextBoolean()) {
+                assertEquals(expected.put(new Integer(key), "" + i),
+                             map.put(key, "" + i));
+            } else {
+                assertEquals(expected.remove(new Integer(key)),
+                             map.remove(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        Iterator i = expected.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry e = (Map.Entry) i.next();
+            assertEquals(e.getValue(),
+                         map.get(((Integer) e.getKey()).intValue()));
+        }
+    }
+
+    public void testRingQueue() {
+        RingQueue q = new RingQueue();
+
+        // wrap the head around before growing
+        for (int i=0; i < 10; ++i) {
+            q.addLast(new Integer(i));
+        }
+        for (int i=0; i < 10; ++i) {
+            assertEquals(new Integer(i), q.removeFirst());
+        }
+        for (int i=0; i < 100; ++i) {
+            q.addLast(new Integer(i));
+            assertEquals(new Integer(i), q.getLast());
+        }
+
+        assertEquals(100, q.size());
+        for (int i=0; i < 100; ++i) {
+            assertEquals(new Integer(i), q.getFirst());
+            assertEquals(new Integer(i), q.removeFirst());
+        }
+        assertTrue(q.isEmpty());
+    }
+
+    protected void setUp() {
+        map = new IntMap();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestIntMap.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * TestMimeHeaderParser.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.Enumeration;
+
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestMimeHeaderParser extends TestCase {
+
+    private static final String HEADERS =
+        "Content-Type: application/beep+xml\r\n" +
+        "X-Caf\u00e9:\tvalue: with colon\r\n" +
+        "\r\n";
+
+    public TestMimeHeaderParser(String name) {
+        super(name);
+    }
+
+    public void testNoHeaders() throws Exception {
+        byte[] b = "\r\n<x/>".getBytes("UTF-8");
+        MimeHeaderParser p = new MimeHeaderParser();
+
+        assertEquals(2, p.parse(b, 0, b.length));
+        assertTrue(p.isDone());
+        assertSame(HeaderMap.DEFAULTS, p.getHeaders());
+    }
+
+    public void testHeaders() throws Exception {
+        byte[] b = (HEADERS + "data").getBytes("UTF-8");
+        MimeHeaderParser p = new MimeHeaderParser();
+
+        assertEquals(b.length - 4, p.parse(b, 0, b.length));
+        assertTrue(p.isDone());
+        checkHeaders(p.getHeaders());
+    }
+
+    public void testSplitHeaders() throws Exception {
+        byte[] b = HEADERS.getBytes("UTF-8");
+
+        // every split of the headers into two segments
+        for (int i = 0; i < b.length; ++i) {
+            MimeHeaderParser p = new MimeHeaderParser();
+
+            assertEquals(i, p.parse(b, 0, i));
+            assertFalse(p.isDone());
+            assertEquals(b.length - i, p.parse(b, i, b.length - i));
+            assertTrue(p.isDone());
+            checkHeaders(p.getHeaders());
+        }
+
+        // one byte at a time
+        MimeHeaderParser p = new MimeHeaderParser();
+
+        for (int i = 0; i < b.length; ++i) {
+            assertFalse(p.isDone());
+            assertEquals(1, p.parse(b, i, 1));
+        }
+        assertTrue(p.isDone());
+        checkHeaders(p.getHeaders());
+    }
+
+    public void testAdapter() throws Exception {
+        byte[] b = (HEADERS + "data").getBytes("UTF-8");
+        InputDataStream ds = new InputDataStream();
+
+        for (int i = 0; i < b.length; i += 7) {
+            ds.add(new BufferSegment(b, i, Math.min(7, b.length - i)));
+        }
+        ds.setComplete();
+
+        InputDataStreamAdapter is = ds.getInputStream();
+
+        assertEquals(MimeHeaders.BEEP_XML_CONTENT_TYPE, is.getContentType());
+        assertEquals(MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING,
+                     is.getTransferEncoding());
+
+        Enumeration e = is.getHeaderNames();
+        int count = 0;
+        while (e.hasMoreElements()) {
+            e.nextElement();
+            ++count;
+        }
+        assertEquals(3, count);
+
+        assertEquals('d', is.read());
+        byte[] rest = new byte[3];
+        assertEquals(3, is.read(rest));
+        assertEquals("ata", new String(rest, "US-ASCII"));
+        assertEquals(-1, is.read());
+    }
+
+    private void checkHeaders(HeaderMap h) {
+        assertSame(MimeHeaders.BEEP_XML_CONTENT_TYPE,
+                   h.get(MimeHeaders.CONTENT_TYPE));
+        assertSame(MimeHeaders.CONTENT_TYPE, h.getName(0));
+        assertEquals("value: with colon", h.get("X-Caf\u00e9"));
+        assertEquals(MimeHeaders.DEFAULT_CONTENT_TRANSFER_ENCODING,
+                     h.get(MimeHeaders.CONTENT_TRANSFER_ENCODING));
+        assertEquals(3, h.size());
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestMimeHeaderParser.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
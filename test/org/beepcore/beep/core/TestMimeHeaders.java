@@ -0,0 +1,92 @@
+/*
+ * TestMimeHeaders.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestMimeHeaders extends TestCase {
+
+    public TestMimeHeaders(String name) {
+        super(name);
+    }
+
+    public void testShared() throws Exception {
+        BufferSegment b = new MimeHeaders().getBufferSegment();
+
+        assertEquals("\r\n", encoded(new MimeHeaders()));
+        assertSame(b, new MimeHeaders().getBufferSegment());
+
+        MimeHeaders xml = new MimeHeaders(MimeHeaders.BEEP_XML_CONTENT_TYPE);
+
+        assertEquals("Content-Type: application/beep+xml\r\n\r\n",
+                     encoded(xml));
+        assertSame(xml.getBufferSegment(),
+                   new MimeHeaders(MimeHeaders.BEEP_XML_CONTENT_TYPE)
+                   .getBufferSegment());
+    }
+
+    public void testCache() throws Exception {
+        MimeHeaders h = new MimeHeaders("text/plain");
+
+        h.setHeader("X-Trace", "1234");
+
+        BufferSegment b = h.getBufferSegment();
+
+        assertEquals("Content-Type: text/plain\r\nX-Trace: 1234\r\n\r\n",
+                     encoded(h));
+        assertSame(b, h.getBufferSegment());
+
+        h.setTransferEncoding("base64");
+        assertEquals("Content-Type: text/plain\r\n" +
+                     "Content-Transfer-Encoding: base64\r\n" +
+                     "X-Trace: 1234\r\n\r\n", encoded(h));
+
+        assertTrue(h.removeHeader("X-Trace"));
+        assertFalse(h.removeHeader("X-Trace"));
+        h.setContentType(MimeHeaders.DEFAULT_CONTENT_TYPE);
+        assertEquals("Content-Transfer-Encoding: base64\r\n\r\n",
+                     encoded(h));
+    }
+
+    public void testNonASCII() throws Exception {
+        MimeHeaders h = new MimeHeaders();
+
+        h.setHeader("X-Name", "caf\u00e9");
+        assertEquals("X-Name: caf\u00e9\r\n\r\n", encoded(h));
+    }
+
+    private static String encoded(MimeHeaders h) throws Exception {
+        BufferSegment b = h.getBufferSegment();
+
+        return new String(b.getData(), b.getOffset(), b.getLength(),
+                          "UTF-8");
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestMimeHeaders.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
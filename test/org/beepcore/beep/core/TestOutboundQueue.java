@@ -0,0 +1,240 @@
+/*
+ * TestOutboundQueue.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.ArrayList;
+
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestOutboundQueue extends TestCase {
+    protected RecordingSession session;
+    protected ChannelImpl channel;
+
+    public TestOutboundQueue(String name) {
+        super(name);
+    }
+
+    public void testSEQNotCorked() throws Exception {
+        session.setFlushPolicy(SessionImpl.FLUSH_CORK);
+        session.setLingerTime(60 * 1000 * 1000);
+
+        session.enqueueFrame(frame(10));
+        assertEquals(0, session.written.size());
+
+        // the window update goes first and takes the corked frame with it
+        session.sendSegment(seq());
+        assertEquals(2, session.written.size());
+        assertEquals("SEQ", session.written.get(0));
+        assertTrue(session.written.get(1) instanceof Frame);
+    }
+
+    public void testCorkDelay() throws Exception {
+        session.setFlushPolicy(SessionImpl.FLUSH_CORK);
+        session.setLingerTime(20 * 1000);
+
+        session.enqueueFrame(frame(10));
+        session.enqueueFrame(frame(10));
+        assertEquals(0, session.written.size());
+
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (session.written.size() < 2 &&
+               System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        assertEquals(2, session.written.size());
+    }
+
+    public void testDrainBounded() throws Exception {
+        session.setFlushPolicy(SessionImpl.FLUSH_CORK);
+        session.setCorkThreshold(1024 * 1024);
+        session.setLingerTime(60 * 1000 * 1000);
+
+        for (int i = 0; i < 20; ++i) {
+            session.enqueueFrame(frame(40 * 1024));
+        }
+        assertEquals(0, session.written.size());
+
+        // this sender writes a few batches, the dispatcher the rest
+        session.setFlushPolicy(SessionImpl.FLUSH_IMMEDIATE);
+        session.enqueueFrame(frame(10));
+
+        session.flush();
+        assertEquals(21, session.written.size());
+
+        int inline = 0;
+        for (int i = 0; i < session.writers.size(); ++i) {
+            if (session.writers.get(i) == Thread.currentThread()) {
+                ++inline;
+            }
+        }
+        assertEquals(OutboundQueue.MAX_DRAIN_WRITES, inline);
+    }
+
+    public void testFrameOnlyTransport() throws Exception {
+        session.gathering = false;
+
+        session.enqueueFrame(frame(10));
+        session.sendSegment(seq());
+        session.enqueueFrame(frame(20));
+
+        assertEquals(3, session.written.size());
+        assertTrue(session.written.get(0) instanceof Frame);
+        assertEquals("SEQ", session.written.get(1));
+        assertTrue(session.written.get(2) instanceof Frame);
+    }
+
+    public void testDroppedFramesReleased() throws Exception {
+        final int[] released = new int[1];
+
+        session.setFlushPolicy(SessionImpl.FLUSH_CORK);
+        session.setCorkThreshold(1024 * 1024);
+        session.setLingerTime(60 * 1000 * 1000);
+
+        for (int i = 0; i < 10; ++i) {
+            Frame f = new Frame(Message.MESSAGE_TYPE_MSG, channel, 1, false,
+                                0, 0, -1);
+
+            f.addPayload(new BufferSegment(new byte[40 * 1024]) {
+                    public void written() {
+                        ++released[0];
+                    }
+                });
+            session.enqueueFrame(f);
+        }
+
+        // the first batch fails, the frames after it are dropped
+        session.failing = true;
+        try {
+            session.flush();
+            fail("flush succeeded");
+        } catch (BEEPException e) {
+        }
+
+        assertEquals(0, session.written.size());
+        assertEquals(10, released[0]);
+    }
+
+    private Frame frame(int length) {
+        Frame f = new Frame(Message.MESSAGE_TYPE_MSG, channel, 1, false,
+                            0, 0, -1);
+
+        f.addPayload(new BufferSegment(new byte[length]));
+
+        return f;
+    }
+
+    private static BufferSegment seq() throws Exception {
+        return new BufferSegment("SEQ".getBytes("US-ASCII"));
+    }
+
+    protected void setUp() throws Exception {
+        session = new RecordingSession();
+        channel = new ChannelImpl("test", "1", session);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestOutboundQueue.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    /**
+     * A session that records the frames and segments written, either
+     * through <code>writeSegments</code> or one at a time.
+     */
+    static class RecordingSession extends SessionImpl {
+        final ArrayList written = new ArrayList();
+        final ArrayList writers = new ArrayList();
+        boolean gathering = true;
+        boolean failing = false;
+
+        RecordingSession() throws BEEPException
+        {
+            super(new ProfileRegistry(), 1, null, null, null, null);
+        }
+
+        protected void disableIO() {
+        }
+
+        protected void enableIO() {
+        }
+
+        protected int getMaxFrameSize() {
+            return 4096;
+        }
+
+        protected Session reset(SessionCredential localCred,
+                                SessionCredential peerCred,
+                                SessionTuningProperties tuning,
+                                ProfileRegistry reg, Object argument)
+        {
+            return null;
+        }
+
+        protected synchronized void sendFrame(Frame f) {
+            written.add(f);
+        }
+
+        protected synchronized void writeSegment(BufferSegment b) {
+            written.add(new String(b.getData(), b.getOffset(),
+                                   b.getLength()));
+        }
+
+        protected synchronized boolean writeSegments(BufferSegment[] segments,
+                                                     int count)
+            throws BEEPException
+        {
+            if (failing) {
+                throw new BEEPException("failing");
+            }
+            if (gathering == false) {
+                return false;
+            }
+
+            writers.add(Thread.currentThread());
+
+            for (int i = 0; i < count; ++i) {
+                if (segments[i] instanceof HeaderSegment) {
+                    // one entry per frame
+                    written.add(new Frame(null));
+                } else if (segments[i].getLength() == 3) {
+                    written.add(new String(segments[i].getData(),
+                                           segments[i].getOffset(), 3));
+                }
+            }
+
+            return true;
+        }
+
+        protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                    long currentSeq,
+                                                    int currentAvail)
+        {
+            return true;
+        }
+    }
+}
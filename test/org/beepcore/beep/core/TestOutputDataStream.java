@@ -0,0 +1,218 @@
+/*
+ * TestOutputDataStream.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestOutputDataStream extends TestCase {
+    protected ChannelImpl channel;
+    protected Dispatcher dispatcher;
+
+    public TestOutputDataStream(String name) {
+        super(name);
+    }
+
+    public void testUnbounded() throws Exception {
+        OutputDataStream ds = new OutputDataStream();
+
+        ds.setChannel(channel);
+        for (int i=0; i < 100; ++i) {
+            assertTrue(ds.offer(segment(1000)));
+        }
+        assertEquals(100000, ds.getBufferedBytes());
+        assertTrue(ds.isWritable());
+    }
+
+    public void testUnattached() throws Exception {
+        OutputDataStream ds = new OutputDataStream();
+
+        // not limited until the channel sends it
+        ds.setHighWaterMark(1000);
+        assertTrue(ds.offer(segment(1000)));
+        assertTrue(ds.offer(segment(1000)));
+        ds.add(segment(1000));
+
+        ds.setChannel(channel);
+        assertFalse(ds.isWritable());
+        assertFalse(ds.offer(segment(1000)));
+        assertEquals(3000, ds.getBufferedBytes());
+    }
+
+    public void testOffer() throws Exception {
+        OutputDataStream ds = new OutputDataStream(new MimeHeaders());
+        final CountDownLatch writable = new CountDownLatch(1);
+
+        ds.setChannel(channel);
+        ds.setHighWaterMark(1000);
+        ds.setWritabilityListener(new Runnable() {
+                public void run() {
+                    writable.countDown();
+                }
+            });
+
+        assertTrue(ds.offer(segment(600)));
+        assertTrue(ds.offer(segment(600)));
+        assertFalse(ds.offer(segment(600)));
+        assertEquals(1200, ds.getBufferedBytes());
+
+        // the headers are not counted
+        assertEquals(2, ds.getNextSegment(1000).getLength());
+        assertEquals(1200, ds.getBufferedBytes());
+
+        // more than half the mark is still waiting
+        assertEquals(400, ds.getNextSegment(400).getLength());
+        assertEquals(800, ds.getBufferedBytes());
+        assertFalse(ds.offer(segment(600)));
+        assertEquals(1, writable.getCount());
+
+        assertEquals(200, ds.getNextSegment(1000).getLength());
+        assertEquals(600, ds.getBufferedBytes());
+        assertEquals(1, writable.getCount());
+
+        assertEquals(300, ds.getNextSegment(300).getLength());
+        assertTrue(writable.await(10, TimeUnit.SECONDS));
+        assertTrue(ds.isWritable());
+        assertTrue(ds.offer(segment(600)));
+    }
+
+    public void testBlockingAdd() throws Exception {
+        final OutputDataStream ds = new OutputDataStream();
+        final CountDownLatch added = new CountDownLatch(1);
+
+        ds.setChannel(channel);
+        ds.setHighWaterMark(1000);
+        ds.add(segment(1000));
+
+        Thread producer = new Thread() {
+                public void run() {
+                    ds.add(segment(1000));
+                    added.countDown();
+                }
+            };
+        producer.start();
+
+        assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+
+        assertEquals(1000, ds.getNextSegment(1000).getLength());
+        assertTrue(added.await(10, TimeUnit.SECONDS));
+        assertEquals(1000, ds.getBufferedBytes());
+        producer.join();
+    }
+
+    public void testAddWhileDispatcherFull() throws Exception {
+        final OutputDataStream ds = new OutputDataStream();
+        final CountDownLatch added = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Dispatcher full = new Dispatcher(executor, 2);
+
+        ds.setChannel(channel);
+        ds.setHighWaterMark(1000);
+        ds.add(segment(1000));
+
+        // a handler blocked in add on a dispatcher that is full
+        full.executeRequest(new Runnable() {
+                public void run() {
+                    ds.add(segment(1000));
+                    added.countDown();
+                }
+            });
+        full.executeRequest(new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+        full.executeRequest(new Runnable() {
+                public void run() {
+                    ran.countDown();
+                }
+            });
+        assertEquals(1, full.getDeferredCount());
+        assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+
+        // sending, as when the reader receives a window update
+        assertEquals(1000, ds.getNextSegment(1000).getLength());
+        assertTrue(added.await(10, TimeUnit.SECONDS));
+
+        release.countDown();
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, full.getPendingCount());
+    }
+
+    public void testChannelClosed() throws Exception {
+        final OutputDataStream ds = new OutputDataStream();
+        final CountDownLatch added = new CountDownLatch(1);
+
+        ds.setChannel(channel);
+        ds.setHighWaterMark(1000);
+        ds.add(segment(1000));
+
+        Thread producer = new Thread() {
+                public void run() {
+                    ds.add(segment(1000));
+                    added.countDown();
+                }
+            };
+        producer.start();
+
+        assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+
+        ds.channelClosed();
+        assertTrue(added.await(10, TimeUnit.SECONDS));
+        assertTrue(ds.offer(segment(1000)));
+        producer.join();
+    }
+
+    private static BufferSegment segment(int length) {
+        return new BufferSegment(new byte[length]);
+    }
+
+    protected void setUp() {
+        channel = new ChannelImpl("test", "1", null);
+        dispatcher = new Dispatcher("test", 1, 16);
+        channel.setDispatcher(dispatcher);
+    }
+
+    protected void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestOutputDataStream.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * TestOutputDataStreamAdapter.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import org.beepcore.beep.util.BufferPool;
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestOutputDataStreamAdapter extends TestCase {
+    protected OutputDataStream ds;
+    protected OutputDataStreamAdapter out;
+
+    public TestOutputDataStreamAdapter(String name) {
+        super(name);
+    }
+
+    public void testWrite() throws Exception {
+        byte[] data = pattern(2500);
+
+        out.setBufferSize(1024);
+        out.write(data, 0, 1000);
+        assertEquals(0, ds.getNumSegments());
+        out.write(data[1000]);
+        out.write(data, 1001, 1499);
+        assertEquals(2, ds.getNumSegments());
+        assertEquals(2048, ds.getBufferedBytes());
+
+        out.flush();
+        assertEquals(3, ds.getNumSegments());
+        assertFalse(ds.isComplete());
+
+        out.close();
+        assertTrue(ds.isComplete());
+        assertFalse(out.isOpen());
+
+        assertTrue(java.util.Arrays.equals(data, drain(ds, 1024)));
+    }
+
+    public void testByteBuffer() throws Exception {
+        byte[] data = pattern(3000);
+        ByteBuffer src = ByteBuffer.wrap(data);
+
+        out.setBufferSize(1024);
+        src.limit(100);
+        assertEquals(100, out.write(src));
+        src.limit(data.length);
+        assertEquals(2900, out.write(src));
+        assertFalse(src.hasRemaining());
+        out.close();
+
+        assertEquals(3, ds.getNumSegments());
+        assertTrue(java.util.Arrays.equals(data, drain(ds, 4096)));
+    }
+
+    public void testClosed() throws Exception {
+        out.close();
+        out.close();
+        assertTrue(ds.isComplete());
+        assertEquals(0, ds.getNumSegments());
+
+        try {
+            out.write(1);
+            fail("write after close");
+        } catch (ClosedChannelException e) {
+        }
+        try {
+            out.write(ByteBuffer.allocate(1));
+            fail("write after close");
+        } catch (ClosedChannelException e) {
+        }
+    }
+
+    public void testFrameSize() throws Exception {
+        ChannelImpl channel = new ChannelImpl("test", "1", null);
+
+        channel.setMaxFrameSize(600);
+        ds.setChannel(channel);
+        out.write(pattern(1500));
+
+        // the arrays come from the pool, sized to the frames
+        assertEquals(2, ds.getNextSegment(4096).getLength());
+        assertEquals(600, ds.getNextSegment(4096).getLength());
+        assertEquals(600, ds.getNextSegment(4096).getLength());
+        assertFalse(ds.availableSegment());
+    }
+
+    public void testRecycle() throws Exception {
+        BufferPool pool = BufferPool.getDefault();
+
+        out.setBufferSize(1024);
+        out.write(pattern(1024));
+
+        // the first frame carries the headers and part of the array
+        BufferSegment header = ds.getNextSegment(512);
+        BufferSegment first = ds.getNextSegment(512 - header.getLength());
+        BufferSegment second = ds.getNextSegment(4096);
+
+        assertEquals(1024, first.getLength() + second.getLength());
+        assertSame(first.getData(), second.getData());
+
+        byte[] array = first.getData();
+
+        first.written();
+        second.written();
+
+        long reuses = pool.getReuseCount();
+        BufferSegment b = pool.allocate(1024);
+
+        assertEquals(reuses + 1, pool.getReuseCount());
+        assertSame(array, b.getData());
+        b.release();
+    }
+
+    private static byte[] drain(OutputDataStream ds, int maxLength) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        // skip the headers
+        ds.getNextSegment(maxLength);
+
+        while (ds.availableSegment()) {
+            BufferSegment b = ds.getNextSegment(maxLength);
+
+            bytes.write(b.getData(), b.getOffset(), b.getLength());
+            b.written();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] b = new byte[length];
+
+        for (int i=0; i < length; ++i) {
+            b[i] = (byte) i;
+        }
+
+        return b;
+    }
+
+    protected void setUp() {
+        ds = new OutputDataStream(new MimeHeaders());
+        out = ds.getOutputStream();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestOutputDataStreamAdapter.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
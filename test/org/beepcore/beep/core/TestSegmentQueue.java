@@ -0,0 +1,248 @@
+/*
+ * TestSegmentQueue.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.beepcore.beep.util.BufferPool;
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestSegmentQueue extends TestCase {
+
+    public TestSegmentQueue(String name) {
+        super(name);
+    }
+
+    public void testChunkRollover() throws Exception {
+        SegmentQueue q = new SegmentQueue();
+
+        assertNull(q.peek());
+        assertNull(q.poll());
+
+        // several chunks filled before any is read
+        for (int i=0; i < 100; ++i) {
+            q.add(new Integer(i));
+        }
+        for (int i=0; i < 100; ++i) {
+            assertEquals(new Integer(i), q.peek());
+            assertEquals(new Integer(i), q.poll());
+        }
+        assertTrue(q.isEmpty());
+        assertNull(q.poll());
+
+        // the consumer following the producer across the chunks
+        for (int i=0; i < 100; ++i) {
+            q.add(new Integer(i));
+            q.add(new Integer(-i));
+            assertEquals(new Integer(i), q.poll());
+            assertEquals(new Integer(-i), q.poll());
+            assertTrue(q.isEmpty());
+        }
+    }
+
+    public void testAwaitAdd() throws Exception {
+        final SegmentQueue q = new SegmentQueue();
+        Waiter w = new Waiter(q);
+
+        w.start();
+        assertFalse(w.done.await(100, TimeUnit.MILLISECONDS));
+
+        q.add("a");
+        q.signal();
+        assertTrue(w.done.await(10, TimeUnit.SECONDS));
+        w.join();
+        assertTrue(w.result);
+        assertEquals("a", q.poll());
+    }
+
+    public void testAwaitComplete() throws Exception {
+        SegmentQueue q = new SegmentQueue();
+        Waiter w = new Waiter(q);
+
+        w.start();
+        assertFalse(w.done.await(100, TimeUnit.MILLISECONDS));
+
+        q.setComplete();
+        assertTrue(w.done.await(10, TimeUnit.SECONDS));
+        w.join();
+        assertFalse(w.result);
+
+        // elements added before the completion are still read
+        q = new SegmentQueue();
+        q.add("a");
+        q.setComplete();
+        assertTrue(q.await());
+        assertEquals("a", q.poll());
+        assertFalse(q.await());
+    }
+
+    public void testAwaitInterrupted() throws Exception {
+        SegmentQueue q = new SegmentQueue();
+        Waiter w = new Waiter(q);
+
+        w.start();
+        assertFalse(w.done.await(100, TimeUnit.MILLISECONDS));
+
+        w.interrupt();
+        assertTrue(w.done.await(10, TimeUnit.SECONDS));
+        w.join();
+        assertTrue(w.interrupted);
+    }
+
+    public void testHandoff() throws Exception {
+        final SegmentQueue q = new SegmentQueue();
+        final int count = 100000;
+
+        Thread producer = new Thread() {
+                public void run() {
+                    for (int i=0; i < count; ++i) {
+                        q.add(new Integer(i));
+                        q.signal();
+                    }
+                    q.setComplete();
+                }
+            };
+        producer.start();
+
+        int expected = 0;
+        while (q.await()) {
+            assertEquals(new Integer(expected++), q.poll());
+        }
+        assertEquals(count, expected);
+        producer.join();
+    }
+
+    public void testCloseRacingAdd() throws Exception {
+        BufferPool pool = new BufferPool(4096, 64 * 1024);
+
+        BufferPool.setLeakDetection(true);
+        try {
+            for (int run=0; run < 100; ++run) {
+                final InputDataStream ds = new InputDataStream();
+                final BufferSegment[] segments = new BufferSegment[100];
+
+                for (int i=0; i < segments.length; ++i) {
+                    segments[i] = pool.allocate(100);
+                }
+
+                Thread reader = new Thread() {
+                        public void run() {
+                            for (int i=0; i < segments.length; ++i) {
+                                ds.add(segments[i]);
+                            }
+                        }
+                    };
+                reader.start();
+                Thread.yield();
+                ds.close();
+                reader.join();
+
+                // every segment was released, whether it was added before
+                // or after the stream was closed
+                assertFalse(ds.availableSegment());
+                assertEquals(0, ds.available());
+                for (int i=0; i < segments.length; ++i) {
+                    try {
+                        segments[i].getData();
+                        fail("segment " + i + " not released");
+                    } catch (IllegalStateException e) {
+                    }
+                }
+            }
+        } finally {
+            BufferPool.setLeakDetection(false);
+        }
+    }
+
+    public void testSpillCoalescing() throws Exception {
+        File dir = File.createTempFile("TestSegmentQueue", "");
+        dir.delete();
+        dir.mkdir();
+
+        try {
+            InputDataStream ds = new InputDataStream();
+
+            // the first segment is kept in memory, the others spilled
+            ds.setSpillThreshold(150, dir);
+            for (int i=0; i < 4; ++i) {
+                ds.add(new BufferSegment(new byte[100]));
+            }
+            ds.setComplete();
+
+            assertEquals(100, ds.getNextSegment().getLength());
+            assertEquals(300, ds.getNextSegment().getLength());
+            assertFalse(ds.availableSegment());
+
+            // regions are merged up to 64k at a time
+            ds = new InputDataStream();
+            ds.setSpillThreshold(1, dir);
+            for (int i=0; i < 100; ++i) {
+                ds.add(new BufferSegment(new byte[1000]));
+            }
+            ds.setComplete();
+
+            assertEquals(65000, ds.getNextSegment().getLength());
+            assertEquals(35000, ds.getNextSegment().getLength());
+            assertFalse(ds.availableSegment());
+        } finally {
+            File[] files = dir.listFiles();
+            for (int i=0; i < files.length; ++i) {
+                files[i].delete();
+            }
+            dir.delete();
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestSegmentQueue.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    /**
+     * A consumer waiting on a queue.
+     */
+    private static class Waiter extends Thread {
+        final SegmentQueue queue;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean result = false;
+        volatile boolean interrupted = false;
+
+        Waiter(SegmentQueue queue) {
+            this.queue = queue;
+        }
+
+        public void run() {
+            try {
+                result = queue.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * TestTCPNIOSession.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.beepcore.beep.core.event.SessionAdapter;
+import org.beepcore.beep.core.event.SessionEvent;
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPNIOSession;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+import org.beepcore.beep.util.BufferPool;
+
+import junit.framework.*;
+
+/**
+ * Tests <code>TCPNIOSession</code> over a loopback connection between an
+ * NIO listener and an NIO initiator.
+ */
+public class TestTCPNIOSession extends TestCase {
+    private static final String URI =
+        "http://xml.resource.org/profiles/NULL/ECHO";
+    private static final int WINDOW = 1024 * 1024;
+
+    protected TCPNIOSession listener;
+    protected TCPNIOSession initiator;
+
+    public TestTCPNIOSession(String name) {
+        super(name);
+    }
+
+    public void testEcho() throws Exception {
+        ChannelImpl channel = (ChannelImpl) initiator.startChannel(URI);
+
+        assertEcho(channel, new byte[0]);
+        assertEcho(channel, message(100));
+        assertEcho(channel, message(100000));
+
+        channel.close();
+    }
+
+    public void testLargeWindow() throws Exception {
+        ChannelImpl channel = (ChannelImpl) initiator.startChannel(URI);
+
+        // more than the socket buffers hold, so writes are left for the
+        // selector threads
+        channel.setReceiveBufferSize(WINDOW);
+        for (int i=0; i < 4; ++i) {
+            assertEcho(channel, message(4 * WINDOW));
+        }
+
+        channel.close();
+    }
+
+    public void testChannels() throws Exception {
+        final ChannelImpl[] channels = new ChannelImpl[8];
+        final Throwable[] errors = new Throwable[channels.length];
+        Thread[] senders = new Thread[channels.length];
+
+        for (int i=0; i < channels.length; ++i) {
+            channels[i] = (ChannelImpl) initiator.startChannel(URI);
+        }
+
+        for (int i=0; i < channels.length; ++i) {
+            final int n = i;
+
+            senders[i] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int j=0; j < 10; ++j) {
+                                assertEcho(channels[n],
+                                           message(1000 * (n + 1) * j));
+                            }
+                        } catch (Throwable e) {
+                            errors[n] = e;
+                        }
+                    }
+                };
+            senders[i].start();
+        }
+
+        for (int i=0; i < channels.length; ++i) {
+            senders[i].join();
+            if (errors[i] != null) {
+                throw new AssertionFailedError("channel " + i + ": " +
+                                               errors[i]);
+            }
+            channels[i].close();
+        }
+    }
+
+    public void testAdapterReusesArrays() throws Exception {
+        ChannelImpl channel = (ChannelImpl) initiator.startChannel(URI);
+        BufferPool pool = BufferPool.getDefault();
+        long reuses = pool.getReuseCount();
+
+        // both peers read the messages through InputDataStreamAdapters,
+        // which release the arrays of the received frames to the pool
+        for (int i=0; i < 20; ++i) {
+            assertEcho(channel, message(10000));
+        }
+
+        assertTrue(pool.getReuseCount() - reuses >= 20);
+
+        channel.close();
+    }
+
+    public void testInlineReplyOffSelector() throws Exception {
+        ChannelImpl channel = (ChannelImpl) initiator.startChannel(URI);
+        final String[] thread = new String[1];
+        final CountDownLatch received = new CountDownLatch(1);
+
+        channel.setReplyExecutor(ChannelImpl.INLINE_REPLY_EXECUTOR);
+        channel.sendMSG(new ByteOutputDataStream(message(100)),
+                        new ReplyListener() {
+                            public void receiveRPY(Message message) {
+                                thread[0] = Thread.currentThread().getName();
+                                message.getDataStream().close();
+                                received.countDown();
+                            }
+
+                            public void receiveERR(Message message) {
+                            }
+
+                            public void receiveANS(Message message) {
+                            }
+
+                            public void receiveNUL(Message message) {
+                            }
+                        });
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertFalse(thread[0], thread[0].startsWith("TCPSelector"));
+
+        // reading resumed once the listener returned
+        assertEcho(channel, message(100));
+
+        channel.close();
+    }
+
+    public void testTerminateOffSelector() throws Exception {
+        final String[] thread = new String[1];
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        initiator.addSessionListener(new SessionAdapter() {
+                public void sessionClosed(SessionEvent e) {
+                    thread[0] = Thread.currentThread().getName();
+                    closed.countDown();
+                }
+            });
+
+        // the initiator's selector thread reads the end of the stream
+        listener.terminate("test");
+
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertFalse(thread[0], thread[0].startsWith("TCPSelector"));
+        assertEquals(Session.SESSION_STATE_ABORTED, initiator.getState());
+
+        initiator = null;
+    }
+
+    private static void assertEcho(Channel channel, byte[] data)
+        throws BEEPException, IOException
+    {
+        Reply reply = new Reply();
+
+        channel.sendMSG(new ByteOutputDataStream(data), reply);
+
+        assertTrue(Arrays.equals(data, read(reply.getNextReply())));
+    }
+
+    private static byte[] read(Message message) throws IOException {
+        InputStream is = message.getDataStream().getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+
+        while ((n = is.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] message(int length) {
+        byte[] b = new byte[length];
+
+        for (int i=0; i < length; ++i) {
+            b[i] = (byte) ('a' + i % 26);
+        }
+
+        return b;
+    }
+
+    protected void setUp() throws Exception {
+        final ProfileRegistry registry = new ProfileRegistry();
+        final BEEPException[] error = new BEEPException[1];
+
+        registry.addStartChannelListener(URI, new StartChannelListener() {
+                public boolean advertiseProfile(Session session) {
+                    return true;
+                }
+
+                public void startChannel(Channel channel, String encoding,
+                                         String data)
+                {
+                    channel.setRequestHandler(new RequestHandler() {
+                            private boolean enlarged = false;
+
+                            public void receiveMSG(MessageMSG message) {
+                                try {
+                                    if (enlarged == false) {
+                                        ((ChannelImpl) message.getChannel())
+                                            .setReceiveBufferSize(WINDOW);
+                                        enlarged = true;
+                                    }
+
+                                    message.sendRPY(
+                                        new ByteOutputDataStream(
+                                            read(message)));
+                                } catch (Exception e) {
+                                    e.printStackTrace();
+                                }
+                            }
+                        });
+                }
+
+                public void closeChannel(Channel channel) {
+                }
+            }, null);
+
+        ServerSocket s = new ServerSocket(0);
+        final int port = s.getLocalPort();
+        s.close();
+
+        Thread accept = new Thread() {
+                public void run() {
+                    try {
+                        listener = TCPSessionCreator.listenNIO(port,
+                                                               registry);
+                    } catch (BEEPException e) {
+                        error[0] = e;
+                    }
+                }
+            };
+        accept.start();
+
+        Thread.sleep(500);
+
+        initiator = TCPSessionCreator.initiateNIO("localhost", port,
+                                                  new ProfileRegistry());
+        accept.join();
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        if (initiator != null) {
+            initiator.close();
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestTCPNIOSession.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * TestTCPSession.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSession;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+import junit.framework.*;
+
+/**
+ * Tests <code>TCPSession</code> over a loopback connection created by
+ * <code>TCPSessionCreator</code>, whose sockets are backed by
+ * <code>SocketChannel</code>s so frames are sent with gathering writes
+ * and file payloads with <code>transferTo</code>.
+ */
+public class TestTCPSession extends TestCase {
+    private static final String URI =
+        "http://xml.resource.org/profiles/NULL/ECHO";
+    // the default receive window of a channel
+    private static final int WINDOW = 4096;
+
+    protected TCPSession listener;
+    protected TCPSession initiator;
+
+    public TestTCPSession(String name) {
+        super(name);
+    }
+
+    public void testEcho() throws Exception {
+        Channel channel = initiator.startChannel(URI);
+
+        assertEcho(channel, new byte[0]);
+        assertEcho(channel, message(100));
+        assertEcho(channel, message(16 * WINDOW));
+
+        channel.close();
+    }
+
+    public void testFile() throws Exception {
+        byte[] data = message(4 * WINDOW + 1000);
+        File file = File.createTempFile("TestTCPSession", ".bin");
+
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(data);
+            fos.close();
+
+            Channel channel = initiator.startChannel(URI);
+            Reply reply = new Reply();
+
+            channel.sendMSG(new FileOutputDataStream(file), reply);
+
+            assertTrue(Arrays.equals(data, read(reply.getNextReply())));
+
+            channel.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testChannels() throws Exception {
+        final Channel[] channels = new Channel[4];
+        final Throwable[] errors = new Throwable[channels.length];
+        Thread[] senders = new Thread[channels.length];
+
+        for (int i=0; i < channels.length; ++i) {
+            channels[i] = initiator.startChannel(URI);
+        }
+
+        // each peer's reader is blocked reading the socket while frames
+        // are written to it
+        for (int i=0; i < channels.length; ++i) {
+            final int n = i;
+
+            senders[i] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int j=0; j < 10; ++j) {
+                                assertEcho(channels[n],
+                                           message(1000 * (n + 1) * j));
+                            }
+                        } catch (Throwable e) {
+                            errors[n] = e;
+                        }
+                    }
+                };
+            senders[i].start();
+        }
+
+        for (int i=0; i < channels.length; ++i) {
+            senders[i].join();
+            if (errors[i] != null) {
+                throw new AssertionFailedError("channel " + i + ": " +
+                                               errors[i]);
+            }
+            channels[i].close();
+        }
+    }
+
+    private static void assertEcho(Channel channel, byte[] data)
+        throws BEEPException, IOException
+    {
+        Reply reply = new Reply();
+
+        channel.sendMSG(new ByteOutputDataStream(data), reply);
+
+        assertTrue(Arrays.equals(data, read(reply.getNextReply())));
+    }
+
+    private static byte[] read(Message message) throws IOException {
+        InputStream is = message.getDataStream().getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+
+        while ((n = is.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] message(int length) {
+        byte[] b = new byte[length];
+
+        for (int i=0; i < length; ++i) {
+            b[i] = (byte) ('a' + i % 26);
+        }
+
+        return b;
+    }
+
+    protected void setUp() throws Exception {
+        final ProfileRegistry registry = new ProfileRegistry();
+        final BEEPException[] error = new BEEPException[1];
+
+        registry.addStartChannelListener(URI, new StartChannelListener() {
+                public boolean advertiseProfile(Session session) {
+                    return true;
+                }
+
+                public void startChannel(Channel channel, String encoding,
+                                         String data)
+                {
+                    channel.setRequestHandler(new RequestHandler() {
+                            public void receiveMSG(MessageMSG message) {
+                                try {
+                                    message.sendRPY(
+                                        new ByteOutputDataStream(
+                                            read(message)));
+                                } catch (Exception e) {
+                                    e.printStackTrace();
+                                }
+                            }
+                        });
+                }
+
+                public void closeChannel(Channel channel) {
+                }
+            }, null);
+
+        ServerSocket s = new ServerSocket(0);
+        final int port = s.getLocalPort();
+        s.close();
+
+        Thread accept = new Thread() {
+                public void run() {
+                    try {
+                        listener = TCPSessionCreator.listen(port, registry);
+                    } catch (BEEPException e) {
+                        error[0] = e;
+                    }
+                }
+            };
+        accept.start();
+
+        Thread.sleep(500);
+
+        initiator = TCPSessionCreator.initiate("localhost", port);
+        accept.join();
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        if (initiator != null) {
+            initiator.close();
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestTCPSession.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * VirtualThreadBenchmark.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.VirtualThreads;
+
+/**
+ * Runs 100,000 handlers that block, as a handler waiting on a database
+ * or on another peer would, on a <code>Dispatcher</code> with a pool of
+ * platform threads and on one starting a virtual thread for each task.
+ * Each handler waits for the data of its message on an
+ * <code>InputDataStream</code> and then sleeps.
+ * <p>
+ * The virtual thread run needs Java 21 or later and is skipped on older
+ * JVMs.
+ * <p>
+ * Usage: <code>VirtualThreadBenchmark [handlers] [sleep ms] [pool size]</code>
+ */
+public class VirtualThreadBenchmark {
+
+    public static void main(String[] args) throws Exception
+    {
+        int handlers = 100000;
+        int sleep = 10;
+        int poolSize = 200;
+
+        if (args.length > 0) {
+            handlers = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            sleep = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            poolSize = Integer.parseInt(args[2]);
+        }
+
+        Dispatcher pool = new Dispatcher("pool", poolSize, handlers);
+
+        report(poolSize + " platform threads", run(pool, handlers, sleep),
+               handlers);
+        pool.shutdown();
+
+        if (VirtualThreads.isSupported() == false) {
+            System.out.println("virtual threads: not supported by this JVM");
+            return;
+        }
+
+        Dispatcher virtual =
+            Dispatcher.newVirtualThreadDispatcher("virtual", handlers);
+
+        // warm up
+        run(virtual, handlers / 10, sleep);
+
+        report("virtual threads", run(virtual, handlers, sleep), handlers);
+        virtual.shutdown();
+    }
+
+    private static void report(String name, long elapsed, int handlers)
+    {
+        System.out.println(name + ": " + (elapsed / 1000000) + " ms, " +
+                           (handlers * 1000000000L / elapsed) +
+                           " handlers/s");
+    }
+
+    /**
+     * Submits <code>handlers</code> tasks, completes the stream each one
+     * waits for and waits for all of them.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private static long run(Dispatcher dispatcher, int handlers,
+                            final int sleep)
+        throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(handlers);
+        InputDataStream[] streams = new InputDataStream[handlers];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < handlers; ++i) {
+            final InputDataStream ds = new InputDataStream();
+
+            streams[i] = ds;
+            dispatcher.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            while (ds.waitForNextSegment() != null) {
+                            }
+                            Thread.sleep(sleep);
+                        } catch (InterruptedException e) {
+                        }
+                        done.countDown();
+                    }
+                });
+        }
+
+        byte[] data = new byte[64];
+
+        for (int i = 0; i < handlers; ++i) {
+            streams[i].add(new BufferSegment(data));
+            streams[i].setComplete();
+        }
+
+        done.await();
+
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * TestTLSProfileJSSE.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.profile.tls.jsse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ByteOutputDataStream;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Message;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.profile.ProfileConfiguration;
+import org.beepcore.beep.profile.echo.EchoProfile;
+import org.beepcore.beep.profile.tls.TLSProfile;
+import org.beepcore.beep.transport.tcp.TCPNIOSession;
+import org.beepcore.beep.transport.tcp.TCPSession;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+import junit.framework.*;
+
+/**
+ * Tests STARTTLS between <code>TCPNIOSession</code>s and between a
+ * <code>TCPNIOSession</code> and a <code>TCPSession</code>, over a
+ * loopback connection with a key generated by <code>keytool</code>.
+ */
+public class TestTLSProfileJSSE extends TestCase {
+    private static final String PASSPHRASE = "changeit";
+
+    private File keyStore;
+    private int port;
+    private BEEPException listenError;
+    private Thread accept;
+
+    public TestTLSProfileJSSE(String name) {
+        super(name);
+    }
+
+    public void testNIOInitiatorAndListener() throws Exception {
+        listen();
+
+        TCPNIOSession session =
+            TCPSessionCreator.initiateNIO("localhost", port,
+                                          new ProfileRegistry());
+
+        assertEchoOverTLS(newProfile().startTLS(session));
+    }
+
+    public void testNIOListener() throws Exception {
+        listen();
+
+        TCPSession session = TCPSessionCreator.initiate("localhost", port);
+
+        assertEchoOverTLS(newProfile().startTLS(session));
+    }
+
+    private void assertEchoOverTLS(Session session) throws Exception {
+        assertEquals(TLSProfile.URI,
+                     session.getLocalCredential().getAuthenticator());
+
+        Channel channel = session.startChannel(EchoProfile.ECHO_URI);
+
+        // each peer's reader is blocked reading the TLS socket while
+        // frames are written to it, several windows' worth of them
+        assertEcho(channel, message(100));
+        assertEcho(channel, message(64 * 1024));
+
+        session.close();
+    }
+
+    private void listen() throws Exception {
+        final ProfileRegistry registry = new ProfileRegistry();
+
+        registry.addStartChannelListener(TLSProfile.URI,
+                                         newProfile().init(TLSProfile.URI,
+                                                           config()),
+                                         null);
+        registry.addStartChannelListener(EchoProfile.ECHO_URI,
+                                         new EchoProfile(), null);
+
+        accept = new Thread() {
+                public void run() {
+                    try {
+                        TCPSessionCreator.listenNIO(port, registry);
+                    } catch (BEEPException e) {
+                        listenError = e;
+                    }
+                }
+            };
+        accept.start();
+
+        Thread.sleep(500);
+    }
+
+    private TLSProfileJSSE newProfile() throws BEEPException {
+        TLSProfileJSSE profile = new TLSProfileJSSE();
+
+        profile.init(TLSProfile.URI, config());
+
+        return profile;
+    }
+
+    private ProfileConfiguration config() {
+        ProfileConfiguration config = new ProfileConfiguration();
+
+        config.setProperty("Key Algorithm", "SunX509");
+        config.setProperty("Key Store Passphrase", PASSPHRASE);
+        config.setProperty("Key Store Data Type", "file");
+        config.setProperty("Key Store", keyStore.getPath());
+        config.setProperty("Trust Algorithm", "SunX509");
+        config.setProperty("Trust Store Passphrase", PASSPHRASE);
+        config.setProperty("Trust Store Data Type", "file");
+        config.setProperty("Trust Store", keyStore.getPath());
+
+        return config;
+    }
+
+    private static void assertEcho(Channel channel, byte[] data)
+        throws BEEPException, IOException
+    {
+        Reply reply = new Reply();
+
+        channel.sendMSG(new ByteOutputDataStream(data), reply);
+
+        assertTrue(Arrays.equals(data, read(reply.getNextReply())));
+    }
+
+    private static byte[] read(Message message) throws IOException {
+        InputStream is = message.getDataStream().getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+
+        while ((n = is.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] message(int length) {
+        byte[] b = new byte[length];
+
+        for (int i=0; i < length; ++i) {
+            b[i] = (byte) ('a' + i % 26);
+        }
+
+        return b;
+    }
+
+    protected void setUp() throws Exception {
+        keyStore = File.createTempFile("beep", ".jks");
+        keyStore.delete();
+
+        String keytool = System.getProperty("java.home") + File.separator +
+            "bin" + File.separator + "keytool";
+        Process p = new ProcessBuilder(keytool, "-genkeypair",
+                                       "-alias", "beep",
+                                       "-keyalg", "RSA",
+                                       "-keysize", "2048",
+                                       "-dname", "CN=localhost",
+                                       "-validity", "1",
+                                       "-storetype", "JKS",
+                                       "-keystore", keyStore.getPath(),
+                                       "-storepass", PASSPHRASE,
+                                       "-keypass", PASSPHRASE)
+            .redirectErrorStream(true).start();
+
+        p.getOutputStream().close();
+        while (p.getInputStream().read() != -1) {
+        }
+        assertEquals("keytool", 0, p.waitFor());
+
+        ServerSocket s = new ServerSocket(0);
+        port = s.getLocalPort();
+        s.close();
+    }
+
+    protected void tearDown() throws Exception {
+        if (accept != null) {
+            accept.join();
+            if (listenError != null) {
+                throw listenError;
+            }
+        }
+
+        keyStore.delete();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestTLSProfileJSSE.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
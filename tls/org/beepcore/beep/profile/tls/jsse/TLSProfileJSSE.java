@@ -62,6 +62,7 @@ import org.beepcore.beep.core.StringOutputDataStream;
 import org.beepcore.beep.profile.Profile;
 import org.beepcore.beep.profile.ProfileConfiguration;
 import org.beepcore.beep.profile.tls.TLSProfile;
+import org.beepcore.beep.transport.tcp.TCPNIOSession;
 import org.beepcore.beep.transport.tcp.TCPSession;
 
 
@@ -580,6 +581,7 @@ public class TLSProfileJSSE extends TLSProfile
         BufferedReader reader = new BufferedReader(new InputStreamReader(is));
 
         String data;
+        Socket oldSocket;
 
         try {
             try {
@@ -597,6 +599,9 @@ public class TLSProfileJSSE extends TLSProfile
 
             this.begin(channel);
 
+            // stop reading before the peer can start the handshake
+            oldSocket = getSocket(channel.getSession());
+
             msg.sendRPY(new StringOutputDataStream(PROCEED2));
         } catch (BEEPException e1) {
             channel.getSession().terminate("unable to send ERR");
@@ -604,7 +609,6 @@ public class TLSProfileJSSE extends TLSProfile
         }
 
         try {
-            Socket oldSocket = ((TCPSession) channel.getSession()).getSocket();
             /** @TODO add support for serverName */
             SSLSocket newSocket =
                 (SSLSocket) socketFactory.createSocket(oldSocket,
@@ -654,6 +658,19 @@ public class TLSProfileJSSE extends TLSProfile
         return true;
     }
 
+    /**
+     * Returns the socket of a TCP session with reading suspended so that
+     * TLS can be layered over it.
+     */
+    private static Socket getSocket(Session session)
+    {
+        if (session instanceof TCPNIOSession) {
+            return ((TCPNIOSession) session).getSocket();
+        }
+
+        return ((TCPSession) session).getSocket();
+    }
+
     /**
      * start a channel for the TLS profile.  Besides issuing the
      * channel start request, it also performs the initiator side
@@ -674,6 +691,28 @@ public class TLSProfileJSSE extends TLSProfile
      * anonymous cipher suite).
      */
     public TCPSession startTLS(TCPSession session) throws BEEPException
+    {
+        return negotiateTLS(session);
+    }
+
+    /**
+     * start a channel for the TLS profile over a session of the
+     * non-blocking transport, see {@link #startTLS(TCPSession)}.  The
+     * session returned reads the TLS connection with a thread of its
+     * own.
+     *
+     * @param session The session to encrypt communcation for
+     *
+     * @return new <code>Session</code> with TLS negotiated.
+     * @throws BEEPException an error occurs during the channel start
+     * request or the TLS handshake.
+     */
+    public TCPSession startTLS(TCPNIOSession session) throws BEEPException
+    {
+        return negotiateTLS(session);
+    }
+
+    private TCPSession negotiateTLS(Session session) throws BEEPException
     {
         Channel ch = startChannel(session, uri, false, READY2, null);
 
@@ -693,7 +732,7 @@ public class TLSProfileJSSE extends TLSProfile
         }
 
         // Freeze IO and get the socket and reset it to TLS
-        Socket oldSocket = session.getSocket();
+        Socket oldSocket = getSocket(session);
         SSLSocket newSocket = null;
         TLSHandshake l = new TLSHandshake();
 